@@ -21,9 +21,12 @@ import com.apzda.cloud.gsvc.i18n.MessageSourceNameResolver;
 import com.apzda.cloud.msg.Messenger;
 import com.apzda.cloud.msg.client.MessengerImpl;
 import com.apzda.cloud.msg.config.MessengerClientProperties;
+import com.apzda.cloud.msg.domain.mapper.SchedulerNodeMapper;
 import com.apzda.cloud.msg.domain.service.IMailboxTransService;
 import com.apzda.cloud.msg.listener.MessengerTransactionListener;
 import com.apzda.cloud.msg.proto.MessengerService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.rocketmq.client.AccessChannel;
@@ -67,9 +70,11 @@ public class MessengerClientAutoConfiguration {
     private String defaultService;
 
     @Bean
-    Messenger messengerImpl(MessengerClientProperties properties, IMailboxTransService mailboxService, Clock clock,
-            ObjectProvider<TransactionMQProducer> provider) throws MQClientException {
-        return new MessengerImpl(properties, provider, mailboxService, clock, defaultService);
+    Messenger messengerImpl(MessengerClientProperties properties, IMailboxTransService mailboxService,
+            SchedulerNodeMapper schedulerNodeMapper, Clock clock, ObjectProvider<TransactionMQProducer> provider,
+            ObjectProvider<MeterRegistry> meterRegistry) throws MQClientException {
+        return new MessengerImpl(properties, provider, mailboxService, schedulerNodeMapper, clock,
+                meterRegistry.getIfAvailable(() -> Metrics.globalRegistry), defaultService);
     }
 
     @Bean(destroyMethod = "shutdown")
@@ -21,9 +21,15 @@ import com.apzda.cloud.msg.IMail;
 import com.apzda.cloud.msg.Messenger;
 import com.apzda.cloud.msg.config.MessengerClientProperties;
 import com.apzda.cloud.msg.domain.entity.MailboxTrans;
+import com.apzda.cloud.msg.domain.mapper.SchedulerNodeMapper;
 import com.apzda.cloud.msg.domain.service.IMailboxTransService;
 import com.apzda.cloud.msg.domain.vo.MailStatus;
+import com.apzda.cloud.msg.scheduler.PartitionedScheduler;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
@@ -31,15 +37,25 @@ import org.apache.commons.lang3.StringUtils;
 import org.apache.rocketmq.client.exception.MQClientException;
 import org.apache.rocketmq.client.producer.TransactionMQProducer;
 import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageDecoder;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -65,12 +81,21 @@ public class MessengerImpl implements Messenger, InitializingBean {
 
     private final ScheduledThreadPoolExecutor executor;
 
+    private final ThreadPoolExecutor sendExecutor;
+
+    private final PartitionedScheduler scheduler;
+
+    private final MailSender mailSender;
+
     private final AtomicInteger atomicInteger = new AtomicInteger(0);
 
     private final String defaultService;
 
+    private ScheduledThreadPoolExecutor recoverer;
+
     public MessengerImpl(MessengerClientProperties properties, ObjectProvider<TransactionMQProducer> provider,
-            IMailboxTransService mailboxService, Clock clock, String defaultService) throws MQClientException {
+            IMailboxTransService mailboxService, SchedulerNodeMapper schedulerNodeMapper, Clock clock,
+            MeterRegistry meterRegistry, String defaultService) throws MQClientException {
         this.properties = properties;
         this.mailboxService = mailboxService;
         this.clock = clock;
@@ -86,21 +111,88 @@ public class MessengerImpl implements Messenger, InitializingBean {
                     thread.setDaemon(true);
                     return thread;
                 });
+        val concurrency = properties.getSendConcurrency();
+        if (concurrency > 1) {
+            // 队列满时由认领线程自己发送
+            sendExecutor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, properties.getBatchSize())), r -> {
+                        val thread = new Thread(r);
+                        thread.setName("messenger-send-" + atomicInteger.getAndAdd(1));
+                        thread.setDaemon(true);
+                        return thread;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+            sendExecutor.allowCoreThreadTimeOut(true);
+        }
+        else {
+            sendExecutor = null;
+        }
+        if (properties.isPartitioned()) {
+            scheduler = new PartitionedScheduler("messenger", schedulerNodeMapper, clock, properties.getHeartbeat(),
+                    properties.getLookahead(), properties.getBatchSize(),
+                    (partitions, partition, until, limit) -> mailboxService
+                        .listDueByPartition(MailStatus.PENDING, until, partitions, partition, limit)
+                        .stream()
+                        .map(trans -> new PartitionedScheduler.Due(trans.getId(), trans.getNextRetryAt()))
+                        .toList(),
+                    this::fire);
+        }
+        else {
+            scheduler = null;
+        }
+        mailSender = new MailSender(producer, mailboxService, topic, properties, clock, defaultService, sendExecutor,
+                scheduler, meterRegistry);
     }
 
     @Override
     public void afterPropertiesSet() throws Exception {
-        if (this.producer != null) {
+        if (this.producer != null && scheduler != null) {
+            scheduler.start();
+        }
+        else if (this.producer != null) {
             val executorCount = executor.getCorePoolSize();
             val delay = properties.getDelay().toSeconds();
             val period = properties.getPeriod().toSeconds();
             for (int i = 0; i < executorCount; i++) {
-                executor.scheduleAtFixedRate(
-                        new MailSender(producer, mailboxService, topic, properties, clock, defaultService),
-                        delay > 0 ? delay : 10, period > 0 ? period : 1, TimeUnit.SECONDS);
+                executor.scheduleAtFixedRate(mailSender, delay > 0 ? delay : 10, period > 0 ? period : 1,
+                        TimeUnit.SECONDS);
             }
             log.info("Messenger executor init: count={}, delay={}, period={} ", executorCount, delay, period);
         }
+        if (this.producer != null) {
+            startRecovering();
+        }
+    }
+
+    /**
+     * 定期将认领后超过sendingTimeout仍未记录发送结果的邮件恢复为PENDING，节点崩溃或停止时它们还在发送.
+     */
+    private void startRecovering() {
+        val timeout = properties.getSendingTimeout().toMillis();
+        if (timeout <= 0) {
+            return;
+        }
+        recoverer = new ScheduledThreadPoolExecutor(1, r -> {
+            val thread = new Thread(r);
+            thread.setName("messenger-recoverer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        val period = Math.max(1000, Math.min(timeout / 2, 60_000));
+        recoverer.scheduleWithFixedDelay(() -> recover(timeout), period, period, TimeUnit.MILLISECONDS);
+        log.info("Messenger recoverer init: sendingTimeout={}ms, period={}ms", timeout, period);
+    }
+
+    void recover(long timeout) {
+        try {
+            val recovered = mailboxService.recover(clock.millis() - timeout);
+            if (recovered > 0) {
+                log.warn("Recovered {} mails that were claimed {}ms ago but not sent", recovered, timeout);
+            }
+        }
+        catch (Exception e) {
+            // 异常会终止周期任务
+            log.warn("Cannot recover mails: {}", ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+        }
     }
 
     @Override
@@ -127,10 +219,32 @@ public class MessengerImpl implements Messenger, InitializingBean {
         if (!mailboxService.save(mailbox)) {
             throw new RuntimeException("The mail cannot save into mailbox: " + mail);
         }
+        if (scheduler != null) {
+            val id = mailbox.getId();
+            val dueAt = mailbox.getNextRetryAt();
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                // 事务提交后才能被认领
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCommit() {
+                        scheduler.schedule(id, dueAt);
+                    }
+                });
+            }
+            else {
+                scheduler.schedule(id, dueAt);
+            }
+        }
     }
 
     @PreDestroy
     void stop() {
+        if (recoverer != null) {
+            recoverer.shutdownNow();
+        }
+        if (scheduler != null) {
+            scheduler.stop();
+        }
         try {
             executor.shutdown();
             if (executor.awaitTermination(90, TimeUnit.SECONDS)) {
@@ -143,64 +257,243 @@ public class MessengerImpl implements Messenger, InitializingBean {
         catch (Exception e) {
             log.warn("Cannot shutdown Messenger executor: {}", e.getMessage());
         }
+        if (sendExecutor != null) {
+            sendExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 认领并发送一轮到期的邮件.
+     */
+    void sendDue() {
+        mailSender.run();
+    }
+
+    private void fire(@Nonnull List<Long> ids) {
+        val mails = mailboxService.claim(MailStatus.PENDING, clock.millis() + PartitionedScheduler.CLOCK_TOLERANCE,
+                ids);
+        mailSender.send(mails);
     }
 
     @Slf4j
     private record MailSender(TransactionMQProducer producer, IMailboxTransService mailboxService, String topic,
-            MessengerClientProperties postmanConfig, Clock clock, String defaultService) implements Runnable {
+            MessengerClientProperties postmanConfig, Clock clock, String defaultService,
+            ThreadPoolExecutor sendExecutor, @Nullable PartitionedScheduler scheduler,
+            MeterRegistry meterRegistry) implements Runnable {
 
+        /**
+         * 批量认领到期的邮件并发送，认领到满批时继续认领下一批. 多个节点(线程)通过SKIP LOCKED认领不同的邮件.
+         */
         @Override
         public void run() {
-            MailboxTrans trans;
-            do {
-                trans = mailboxService.getByStatusAndNextRetryAtLe(MailStatus.PENDING, clock.millis());
-                if (trans != null) {
-                    try {
-                        trans.setStatus(MailStatus.SENDING);
-                        if (!mailboxService.updateStatus(trans, MailStatus.PENDING)) {
-                            continue;
-                        }
-
-                        val postman = trans.getPostman();
-                        Assert.hasText(postman, "postman must not be null");
-                        val content = trans.getContent();
-                        Assert.hasText(content, "content must not be null");
-
-                        if (StringUtils.isBlank(trans.getService()) && StringUtils.isNotBlank(defaultService)) {
-                            trans.setService(defaultService);
-                        }
-
-                        val message = createMessage(topic, postman, content, trans);
-                        val result = this.producer.sendMessageInTransaction(message, trans);
-                        if (result == null) {
-                            throw new RuntimeException("Can't send mail: " + trans);
-                        }
-                        else if (SEND_OK != result.getSendStatus()) {
-                            throw new RuntimeException(
-                                    "Can't send mail with status(" + result.getSendStatus() + "): " + trans);
-                        }
-                    }
-                    catch (Exception e) {
-                        val message = ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e));
-                        val retries = postmanConfig.getRetries();
-                        val currentRetry = trans.getRetries();
-                        if (retries.size() >= (currentRetry + 1)) {
-                            trans.setStatus(MailStatus.PENDING);
-                            trans.setRetries(currentRetry + 1);
-                            val duration = retries.get(currentRetry);
-                            trans.setNextRetryAt(trans.getNextRetryAt() + duration.toMillis());
-                        }
-                        else {
-                            trans.setStatus(MailStatus.FAIL);
-                        }
-                        trans.setRemark(message);
-                        mailboxService.updateStatus(trans, MailStatus.SENDING);
-                        log.warn("Cannot send mail: {} - {}", trans, message);
-                    }
+            val batchSize = Math.max(1, postmanConfig.getBatchSize());
+            try {
+                List<MailboxTrans> mails;
+                do {
+                    mails = mailboxService.claim(MailStatus.PENDING, clock.millis(), batchSize);
+                    send(mails);
+                }
+                while (mails.size() >= batchSize);
+            }
+            catch (Exception e) {
+                // 异常会终止周期任务
+                log.warn("Cannot send mails: {}", ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+            }
+        }
+
+        private void send(@Nonnull List<MailboxTrans> mails) {
+            if (postmanConfig.isBatchSend()) {
+                sendBatches(mails);
+            }
+            else if (sendExecutor == null) {
+                mails.forEach(this::send);
+            }
+            else {
+                CompletableFuture.allOf(mails.stream()
+                    .map(trans -> CompletableFuture.runAsync(() -> send(trans), sendExecutor))
+                    .toArray(CompletableFuture[]::new)).join();
+            }
+        }
+
+        /**
+         * 按邮递员(tags)分组，每组按{@code batchSize}和消息大小上限切成若干批，每批用一个RocketMQ批量消息发送.
+         */
+        private void sendBatches(@Nonnull List<MailboxTrans> mails) {
+            val maxBatchSize = Math.max(1, postmanConfig.getBatchSize());
+            val maxBytes = producer.getMaxMessageSize();
+            val batches = new ArrayList<Batch>();
+            val current = new HashMap<String, Batch>();
+            for (MailboxTrans trans : mails) {
+                final Message message;
+                try {
+                    message = createMessage(trans);
+                    // 生产者发送批量消息前会为每条消息生成唯一ID，提前生成以便准确计算大小
+                    MessageClientIDSetter.setUniqID(message);
+                }
+                catch (Exception e) {
+                    failed(trans, e);
+                    continue;
                 }
+                val bytes = estimate(message);
+                var batch = current.get(trans.getPostman());
+                if (batch == null || batch.mails.size() >= maxBatchSize || batch.bytes + bytes > maxBytes) {
+                    batch = new Batch(trans.getPostman());
+                    current.put(batch.postman, batch);
+                    batches.add(batch);
+                }
+                batch.add(trans, message, bytes);
+            }
+
+            if (sendExecutor == null || batches.size() < 2) {
+                batches.forEach(this::send);
+            }
+            else {
+                CompletableFuture.allOf(batches.stream()
+                    .map(batch -> CompletableFuture.runAsync(() -> send(batch), sendExecutor))
+                    .toArray(CompletableFuture[]::new)).join();
             }
-            while (trans != null);
         }
+
+        private void send(@Nonnull Batch batch) {
+            val start = System.nanoTime();
+            var success = false;
+            var marked = false;
+            try {
+                // 批量消息不支持事务消息: 邮件已保存在表中，发送成功后一次性标记整组邮件，消费端按msgId去重
+                val result = this.producer.send(batch.messages);
+                if (result == null) {
+                    throw new RuntimeException("Can't send mails in batch: " + batch.postman);
+                }
+                else if (SEND_OK != result.getSendStatus()) {
+                    throw new RuntimeException("Can't send mails in batch with status(" + result.getSendStatus()
+                            + "): " + batch.postman);
+                }
+                success = true;
+                if (!mailboxService.markSent(batch.ids())) {
+                    log.warn("Cannot mark mails as sent: {}", batch.ids());
+                }
+                marked = true;
+                DistributionSummary.builder("messenger.send.batch.size")
+                    .description("The number of mails sent in a RocketMQ batch message")
+                    .tag("postman", batch.postman)
+                    .register(meterRegistry)
+                    .record(batch.mails.size());
+            }
+            catch (Exception e) {
+                if (success) {
+                    // 已发送成功，下次重发由消费端去重
+                    log.warn("Cannot mark mails as sent: {} - {}", batch.ids(),
+                            ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+                }
+                batch.mails.forEach(trans -> failed(trans, e));
+            }
+            finally {
+                Timer.builder("messenger.send.batch.latency")
+                    .description("The time taken to send a RocketMQ batch message")
+                    .tag("postman", batch.postman)
+                    // unmarked: 已发送成功但标记失败，邮件将被重发
+                    .tag("result", marked ? "success" : success ? "unmarked" : "failure")
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void send(MailboxTrans trans) {
+            try {
+                val message = createMessage(trans);
+                val result = this.producer.sendMessageInTransaction(message, trans);
+                if (result == null) {
+                    throw new RuntimeException("Can't send mail: " + trans);
+                }
+                else if (SEND_OK != result.getSendStatus()) {
+                    throw new RuntimeException("Can't send mail with status(" + result.getSendStatus() + "): " + trans);
+                }
+            }
+            catch (Exception e) {
+                failed(trans, e);
+            }
+        }
+
+        private void failed(MailboxTrans trans, Exception e) {
+            val message = ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e));
+            val retries = postmanConfig.getRetries();
+            val currentRetry = trans.getRetries();
+            if (retries.size() >= (currentRetry + 1)) {
+                trans.setStatus(MailStatus.PENDING);
+                trans.setRetries(currentRetry + 1);
+                val duration = retries.get(currentRetry);
+                trans.setNextRetryAt(trans.getNextRetryAt() + duration.toMillis());
+            }
+            else {
+                trans.setStatus(MailStatus.FAIL);
+            }
+            trans.setRemark(message);
+            try {
+                if (mailboxService.updateStatus(trans, MailStatus.SENDING) && scheduler != null
+                        && trans.getStatus() == MailStatus.PENDING) {
+                    scheduler.schedule(trans.getId(), trans.getNextRetryAt());
+                }
+            }
+            catch (Exception ex) {
+                log.warn("Cannot update mail: {} - {}", trans.getId(), ex.getMessage());
+            }
+            log.warn("Cannot send mail: {} - {}", trans, message);
+        }
+
+        @Nonnull
+        private Message createMessage(MailboxTrans trans) {
+            val postman = trans.getPostman();
+            Assert.hasText(postman, "postman must not be null");
+            val content = trans.getContent();
+            Assert.hasText(content, "content must not be null");
+
+            if (StringUtils.isBlank(trans.getService()) && StringUtils.isNotBlank(defaultService)) {
+                trans.setService(defaultService);
+            }
+
+            return MessengerImpl.createMessage(topic, postman, content, trans);
+        }
+
+    }
+
+    /**
+     * 同一个邮递员的一批邮件.
+     */
+    private static final class Batch {
+
+        private final String postman;
+
+        private final List<MailboxTrans> mails = new ArrayList<>();
+
+        private final List<Message> messages = new ArrayList<>();
+
+        private int bytes;
+
+        Batch(String postman) {
+            this.postman = postman;
+        }
+
+        void add(MailboxTrans trans, Message message, int size) {
+            mails.add(trans);
+            messages.add(message);
+            bytes += size;
+        }
+
+        List<Long> ids() {
+            return mails.stream().map(MailboxTrans::getId).toList();
+        }
+
+    }
+
+    /**
+     * 消息在批量消息体中占用的字节数，与{@link MessageDecoder#encodeMessage(Message)}一致:
+     * 总长度、魔数、消息体CRC、标志及消息体长度(各4字节)、消息体、属性长度(2字节)、UTF-8编码的属性.
+     * 主题在批量消息中只出现一次，不计入每条消息.
+     */
+    static int estimate(@Nonnull Message message) {
+        val props = MessageDecoder.messageProperties2String(message.getProperties());
+        return 20 + message.getBody().length + 2 + props.getBytes(StandardCharsets.UTF_8).length;
     }
 
     @Nonnull
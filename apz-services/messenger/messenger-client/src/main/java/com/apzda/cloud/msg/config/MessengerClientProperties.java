@@ -47,6 +47,41 @@ public class MessengerClientProperties {
 
     private Duration period = Duration.ofSeconds(1);
 
+    /**
+     * 每次认领的待发送邮件数量
+     */
+    private int batchSize = 32;
+
+    /**
+     * 并行发送的线程数，为1时按时间顺序逐个发送
+     */
+    private int sendConcurrency = 4;
+
+    /**
+     * 按邮递员分组，用RocketMQ批量消息发送(非事务消息)，发送成功后一次性标记整组邮件
+     */
+    private boolean batchSend = false;
+
+    /**
+     * 按节点分区调度: 存活的节点按ID取模分担邮件，各节点把即将到期的邮件加载到内存中按时发送，不再轮询
+     */
+    private boolean partitioned = false;
+
+    /**
+     * 分区调度的心跳间隔，3个间隔内没有心跳的节点被视为已离开
+     */
+    private Duration heartbeat = Duration.ofSeconds(5);
+
+    /**
+     * 分区调度每次加载多长时间内到期的邮件，其它节点写入的邮件最迟在它的一半时间后被发现
+     */
+    private Duration lookahead = Duration.ofSeconds(30);
+
+    /**
+     * 认领后超过该时间仍未记录发送结果的邮件(节点崩溃或停止时仍在发送)被恢复为PENDING，须大于发送一批邮件的最长时间
+     */
+    private Duration sendingTimeout = Duration.ofMinutes(10);
+
     private List<Duration> retries = List.of(Duration.ofSeconds(10), Duration.ofSeconds(30), Duration.ofMinutes(1),
             Duration.ofMinutes(2), Duration.ofMinutes(3), Duration.ofMinutes(4), Duration.ofMinutes(5),
             Duration.ofMinutes(6), Duration.ofMinutes(7), Duration.ofMinutes(8), Duration.ofMinutes(9),
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.msg.domain.mapper;
+
+import com.apzda.cloud.msg.domain.entity.SchedulerNode;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+import java.util.List;
+
+/**
+ * 调度节点心跳表. 心跳时间与存活判断都使用数据库时间(毫秒)，不受各节点时钟偏差影响.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public interface SchedulerNodeMapper extends BaseMapper<SchedulerNode> {
+
+    @Insert("INSERT INTO apzda_scheduler_node (scheduler, node_id, heartbeat_at) VALUES (#{scheduler}, #{nodeId},"
+            + " CAST(UNIX_TIMESTAMP(NOW(3)) * 1000 AS UNSIGNED))"
+            + " ON DUPLICATE KEY UPDATE heartbeat_at = VALUES(heartbeat_at)")
+    int heartbeat(@Param("scheduler") String scheduler, @Param("nodeId") String nodeId);
+
+    /**
+     * 列出最近{@code timeout}毫秒内(数据库时间)有心跳的节点.
+     */
+    @Select("SELECT node_id FROM apzda_scheduler_node WHERE scheduler = #{scheduler}"
+            + " AND heartbeat_at >= CAST(UNIX_TIMESTAMP(NOW(3)) * 1000 AS UNSIGNED) - #{timeout} ORDER BY node_id")
+    List<String> listAliveNodes(@Param("scheduler") String scheduler, @Param("timeout") long timeout);
+
+    /**
+     * 删除超过{@code timeout}毫秒(数据库时间)没有心跳的节点.
+     */
+    @Delete("DELETE FROM apzda_scheduler_node WHERE scheduler = #{scheduler}"
+            + " AND heartbeat_at < CAST(UNIX_TIMESTAMP(NOW(3)) * 1000 AS UNSIGNED) - #{timeout}")
+    int removeDeadNodes(@Param("scheduler") String scheduler, @Param("timeout") long timeout);
+
+    @Delete("DELETE FROM apzda_scheduler_node WHERE scheduler = #{scheduler} AND node_id = #{nodeId}")
+    int removeNode(@Param("scheduler") String scheduler, @Param("nodeId") String nodeId);
+
+}
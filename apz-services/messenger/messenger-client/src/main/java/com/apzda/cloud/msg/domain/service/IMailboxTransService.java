@@ -21,6 +21,7 @@ import com.apzda.cloud.msg.domain.vo.MailStatus;
 import com.baomidou.mybatisplus.extension.service.IService;
 import jakarta.annotation.Nonnull;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -32,8 +33,49 @@ public interface IMailboxTransService extends IService<MailboxTrans> {
 
     MailboxTrans getByStatusAndNextRetryAtLe(MailStatus mailStatus, long nextRetryAt);
 
+    /**
+     * 认领一批到期的邮件: 锁定(跳过已被其它节点锁定的行)并将状态改为SENDING.
+     * @param mailStatus 当前状态
+     * @param nextRetryAt 重试时间上限
+     * @param limit 最多认领的数量
+     * @return 认领到的邮件，状态已为SENDING
+     */
+    @Nonnull
+    List<MailboxTrans> claim(MailStatus mailStatus, long nextRetryAt, int limit);
+
+    /**
+     * 按ID认领到期的邮件，已被认领、已改期或状态已变化的邮件会被跳过.
+     * @param mailStatus 当前状态
+     * @param nextRetryAt 重试时间上限
+     * @param ids 邮件ID
+     * @return 认领到的邮件，状态已为SENDING
+     */
+    @Nonnull
+    List<MailboxTrans> claim(MailStatus mailStatus, long nextRetryAt, Collection<Long> ids);
+
+    /**
+     * 列出分区内到期的邮件(只有id和nextRetryAt).
+     */
+    @Nonnull
+    List<MailboxTrans> listDueByPartition(MailStatus mailStatus, long nextRetryAt, int partitions, int partition,
+            int limit);
+
+    /**
+     * 将认领后长时间没有记录发送结果的邮件(节点崩溃或停止时仍在发送)恢复为PENDING.
+     * @param claimedBefore 认领时间上限
+     * @return 恢复的邮件数
+     */
+    int recover(long claimedBefore);
+
     boolean updateStatus(MailboxTrans mailboxTrans, MailStatus fromStatus);
 
+    /**
+     * 标记批量发送成功的邮件. 与事务消息的本地事务一样，发送成功的邮件直接从表中删除.
+     * @param ids 邮件ID
+     * @return 是否标记成功
+     */
+    boolean markSent(Collection<Long> ids);
+
     @Nonnull
     List<MailboxTrans> listByMailId(String id);
 
@@ -26,7 +26,10 @@ import jakarta.annotation.Nonnull;
 import lombok.RequiredArgsConstructor;
 import lombok.val;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Clock;
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -39,6 +42,8 @@ import java.util.List;
 public class MailboxTransServiceImpl extends ServiceImpl<MailboxTransMapper, MailboxTrans>
         implements IMailboxTransService {
 
+    private final Clock clock;
+
     @Override
     public MailboxTrans getByStatusAndNextRetryAtLe(MailStatus mailStatus, long nextRetryAt) {
         val con = Wrappers.lambdaQuery(MailboxTrans.class);
@@ -50,6 +55,35 @@ public class MailboxTransServiceImpl extends ServiceImpl<MailboxTransMapper, Mai
         return getOne(con);
     }
 
+    @Nonnull
+    @Override
+    @Transactional
+    public List<MailboxTrans> claim(MailStatus mailStatus, long nextRetryAt, int limit) {
+        return claim(getBaseMapper().lockByStatusAndNextRetryAtLe(mailStatus, nextRetryAt, limit), mailStatus);
+    }
+
+    @Nonnull
+    @Override
+    @Transactional
+    public List<MailboxTrans> claim(MailStatus mailStatus, long nextRetryAt, Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        return claim(getBaseMapper().lockByIds(mailStatus, nextRetryAt, ids), mailStatus);
+    }
+
+    @Nonnull
+    @Override
+    public List<MailboxTrans> listDueByPartition(MailStatus mailStatus, long nextRetryAt, int partitions,
+            int partition, int limit) {
+        return getBaseMapper().listDueByPartition(mailStatus, nextRetryAt, partitions, partition, limit);
+    }
+
+    @Override
+    public int recover(long claimedBefore) {
+        return getBaseMapper().recoverSending(claimedBefore, clock.millis());
+    }
+
     @Override
     public boolean updateStatus(MailboxTrans mailboxTrans, MailStatus fromStatus) {
         val con = Wrappers.lambdaUpdate(MailboxTrans.class);
@@ -59,6 +93,18 @@ public class MailboxTransServiceImpl extends ServiceImpl<MailboxTransMapper, Mai
         return update(mailboxTrans, con);
     }
 
+    @Override
+    public boolean markSent(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return true;
+        }
+        val con = Wrappers.lambdaQuery(MailboxTrans.class);
+        con.in(MailboxTrans::getId, ids);
+        con.eq(MailboxTrans::getStatus, MailStatus.SENDING);
+
+        return remove(con);
+    }
+
     @Nonnull
     @Override
     public List<MailboxTrans> listByMailId(String id) {
@@ -76,4 +122,22 @@ public class MailboxTransServiceImpl extends ServiceImpl<MailboxTransMapper, Mai
         return remove(con);
     }
 
+    @Nonnull
+    private List<MailboxTrans> claim(List<MailboxTrans> mails, MailStatus mailStatus) {
+        if (mails.isEmpty()) {
+            return mails;
+        }
+        // SENDING状态的next_retry_at记录认领时间，用于恢复认领后没有发送完成的邮件
+        val now = clock.millis();
+        val con = Wrappers.lambdaUpdate(MailboxTrans.class);
+        con.set(MailboxTrans::getStatus, MailStatus.SENDING);
+        con.set(MailboxTrans::getNextRetryAt, now);
+        con.set(MailboxTrans::getUpdatedAt, now);
+        con.in(MailboxTrans::getId, mails.stream().map(MailboxTrans::getId).toList());
+        con.eq(MailboxTrans::getStatus, mailStatus);
+        update(con);
+        mails.forEach(mail -> mail.setStatus(MailStatus.SENDING));
+        return mails;
+    }
+
 }
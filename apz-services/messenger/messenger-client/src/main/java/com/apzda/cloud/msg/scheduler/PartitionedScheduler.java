@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.msg.scheduler;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import com.apzda.cloud.msg.domain.mapper.SchedulerNodeMapper;
+import jakarta.annotation.Nonnull;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分区调度器.
+ * <p>
+ * 存活的节点通过心跳表(apzda_scheduler_node)互相发现，按节点ID排序后第i个节点负责{@code MOD(id, n) = i}的行.
+ * 心跳与存活判断使用数据库时间，节点时钟的偏差不会让节点被误判为离开.
+ * 每个节点把自己分区内{@code lookahead}时间内到期的行加载到内存的延时队列中，到期时交给{@link Firer}处理，
+ * 不再由每个节点的每个线程反复查询表头. 节点加入或离开(心跳超时)时各节点重新分区并重新加载.
+ * <p>
+ * 加载后才插入或改期的行: 由本节点写入的可通过{@link #schedule(long, long)}直接加入队列(不论属于哪个分区，
+ * 所属节点加载后也会处理，由认领保证只处理一次); 其它情况在下一次加载(最迟{@code lookahead}的一半)时被发现.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class PartitionedScheduler {
+
+    /**
+     * 节点间允许的时钟误差(毫秒)，认领到期的行时使用
+     */
+    public static final long CLOCK_TOLERANCE = 1000;
+
+    private final String name;
+
+    private final String nodeId = UUID.randomUUID().toString().replace("-", "");
+
+    private final SchedulerNodeMapper nodeMapper;
+
+    private final Clock clock;
+
+    private final long heartbeat;
+
+    private final long lookahead;
+
+    private final int batchSize;
+
+    private final Loader loader;
+
+    private final Firer firer;
+
+    private final DelayQueue<Task> queue = new DelayQueue<>();
+
+    private final ConcurrentHashMap<Long, Task> tasks = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    private Thread fireThread;
+
+    private volatile int partitions;
+
+    private volatile int partition;
+
+    private volatile long loadedUntil;
+
+    public PartitionedScheduler(String name, SchedulerNodeMapper nodeMapper, Clock clock, Duration heartbeat,
+            Duration lookahead, int batchSize, Loader loader, Firer firer) {
+        this.name = name;
+        this.nodeMapper = nodeMapper;
+        this.clock = clock;
+        this.heartbeat = Math.max(1000, heartbeat.toMillis());
+        this.lookahead = Math.max(this.heartbeat * 2, lookahead.toMillis());
+        this.batchSize = Math.max(1, batchSize);
+        this.loader = loader;
+        this.firer = firer;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            val thread = new Thread(r);
+            thread.setName(name + "-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::tick, 0, heartbeat, TimeUnit.MILLISECONDS);
+        fireThread = new Thread(this::fire, name + "-fire");
+        fireThread.setDaemon(true);
+        fireThread.start();
+        log.info("Partitioned scheduler({}) started: node={}, heartbeat={}ms, lookahead={}ms", name, nodeId, heartbeat,
+                lookahead);
+    }
+
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        fireThread.interrupt();
+        executor = null;
+        try {
+            // 让其它节点尽快接管
+            nodeMapper.removeNode(name, nodeId);
+        }
+        catch (Exception e) {
+            log.warn("Cannot leave scheduler({}): {}", name, e.getMessage());
+        }
+        log.info("Partitioned scheduler({}) stopped", name);
+    }
+
+    /**
+     * 把本节点写入的行加入队列，不论它属于哪个分区: 新写入的行不必等待所属节点的下一次加载.
+     * 超出已加载范围的行忽略，由所属节点加载时处理.
+     * @param id 行ID
+     * @param dueAt 到期时间
+     */
+    public void schedule(long id, long dueAt) {
+        if (dueAt > loadedUntil) {
+            return;
+        }
+        val task = new Task(id, dueAt);
+        // 已在队列中且时间未变的不重复加入; 改期的旧任务出队时因不在tasks中而被丢弃
+        if (tasks.compute(id, (k, prev) -> prev != null && prev.dueAt == dueAt ? prev : task) == task) {
+            queue.add(task);
+        }
+    }
+
+    void tick() {
+        try {
+            nodeMapper.heartbeat(name, nodeId);
+            nodeMapper.removeDeadNodes(name, heartbeat * 3);
+            val nodes = nodeMapper.listAliveNodes(name, heartbeat * 3);
+            val index = nodes.indexOf(nodeId);
+            if (index < 0) {
+                return;
+            }
+            if (nodes.size() != partitions || index != partition) {
+                log.info("Scheduler({}) repartitioned: partition {}/{} -> {}/{}", name, partition, partitions, index,
+                        nodes.size());
+                tasks.clear();
+                queue.clear();
+                loadedUntil = 0;
+                partitions = nodes.size();
+                partition = index;
+            }
+            val now = clock.millis();
+            if (now + lookahead / 2 >= loadedUntil) {
+                load(now);
+            }
+        }
+        catch (Exception e) {
+            log.warn("Scheduler({}) tick failed: {}", name,
+                    ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+        }
+    }
+
+    private void load(long now) {
+        val limit = batchSize * 32;
+        var until = now + lookahead;
+        val due = loader.load(partitions, partition, until, limit);
+        if (due.size() >= limit) {
+            // 没加载完: 只认为加载到了最后一行，下一次心跳继续加载
+            until = due.get(due.size() - 1).dueAt();
+        }
+        loadedUntil = until;
+        for (Due d : due) {
+            schedule(d.id(), d.dueAt());
+        }
+        log.debug("Scheduler({}) loaded {} rows due before {}", name, due.size(), until);
+    }
+
+    private void fire() {
+        val batch = new ArrayList<Long>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                var task = queue.take();
+                do {
+                    if (tasks.remove(task.id, task)) {
+                        batch.add(task.id);
+                    }
+                }
+                while (batch.size() < batchSize && (task = queue.poll()) != null);
+
+                if (!batch.isEmpty()) {
+                    firer.fire(List.copyOf(batch));
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e) {
+                log.warn("Scheduler({}) cannot fire {}: {}", name, batch,
+                        ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+            }
+            finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 加载分区内到期的行.
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        /**
+         * @param partitions 分区数
+         * @param partition 本节点的分区
+         * @param until 到期时间上限
+         * @param limit 最多加载的行数
+         * @return 按到期时间排序的行
+         */
+        @Nonnull
+        List<Due> load(int partitions, int partition, long until, int limit);
+
+    }
+
+    /**
+     * 处理到期的行，须自行认领(行可能已被其它节点处理或改期).
+     */
+    @FunctionalInterface
+    public interface Firer {
+
+        void fire(@Nonnull List<Long> ids);
+
+    }
+
+    public record Due(long id, long dueAt) {
+    }
+
+    private final class Task implements Delayed {
+
+        private final long id;
+
+        private final long dueAt;
+
+        Task(long id, long dueAt) {
+            this.id = id;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(@Nonnull TimeUnit unit) {
+            return unit.convert(dueAt - clock.millis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(@Nonnull Delayed o) {
+            return Long.compare(dueAt, ((Task) o).dueAt);
+        }
+
+    }
+
+}
@@ -0,0 +1,9 @@
+CREATE TABLE `apzda_scheduler_node`
+(
+    id           BIGINT UNIQUE   NOT NULL AUTO_INCREMENT PRIMARY KEY,
+    scheduler    VARCHAR(32)     NOT NULL COMMENT 'The scheduler this node joined',
+    node_id      CHAR(32)        NOT NULL COMMENT 'The ID of this node',
+    heartbeat_at BIGINT UNSIGNED NOT NULL DEFAULT 0 COMMENT 'Last heartbeat timestamp',
+    UNIQUE INDEX UDX_NODE (scheduler, node_id),
+    INDEX IDX_HEARTBEAT (scheduler, heartbeat_at) using btree
+) ENGINE = InnoDB COMMENT 'live nodes of partitioned schedulers';
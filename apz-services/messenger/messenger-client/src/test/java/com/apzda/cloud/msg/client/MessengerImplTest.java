@@ -1,16 +1,29 @@
 package com.apzda.cloud.msg.client;
 
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
 import com.apzda.cloud.msg.Messenger;
 import com.apzda.cloud.msg.TextMail;
 import com.apzda.cloud.msg.autoconfig.MessengerClientAutoConfiguration;
+import com.apzda.cloud.msg.config.MessengerClientProperties;
+import com.apzda.cloud.msg.domain.entity.MailboxTrans;
 import com.apzda.cloud.msg.domain.service.IMailboxTransService;
+import com.apzda.cloud.msg.domain.vo.MailStatus;
 import com.apzda.cloud.test.autoconfig.AutoConfigureGsvcTest;
 import com.baomidou.mybatisplus.test.autoconfigure.MybatisPlusTest;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.val;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.client.producer.TransactionMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.spring.autoconfigure.RocketMQAutoConfiguration;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
 import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
@@ -22,9 +35,24 @@ import org.springframework.test.context.ContextConfiguration;
 import org.testcontainers.containers.MySQLContainer;
 import org.testcontainers.utility.DockerImageName;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -44,6 +72,31 @@ class MessengerImplTest {
     @Autowired
     private IMailboxTransService mailboxTransService;
 
+    private final List<List<Message>> batches = new ArrayList<>();
+
+    private TransactionMQProducer producer;
+
+    private SimpleMeterRegistry meterRegistry;
+
+    private Clock clock;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        // 批量发送的邮件时间从很早以前开始逐次递增，只认领本测试写入的邮件且认领顺序确定
+        val now = new AtomicLong(1000);
+        clock = mock(Clock.class);
+        when(clock.millis()).thenAnswer(inv -> now.getAndIncrement());
+        producer = mock(TransactionMQProducer.class);
+        when(producer.getMaxMessageSize()).thenReturn(4 * 1024 * 1024);
+        when(producer.send(anyCollection())).thenAnswer(inv -> {
+            batches.add(List.copyOf(inv.<List<Message>>getArgument(0)));
+            val result = new SendResult();
+            result.setSendStatus(SendStatus.SEND_OK);
+            return result;
+        });
+        meterRegistry = new SimpleMeterRegistry();
+    }
+
     @Test
     @Commit
     void mail_should_be_sent_ok() {
@@ -63,6 +116,138 @@ class MessengerImplTest {
         assertThat(trans.size()).isEqualTo(1);
     }
 
+    @Test
+    void estimate_should_match_rocketmq_batch_encoding() {
+        // given
+        val message = new Message("消息主题", "sms", "您的验证码是123456".getBytes(StandardCharsets.UTF_8));
+        message.putUserProperty("msgId", RandomUtil.randomString(32));
+        message.putUserProperty("title", "验证码");
+        message.putUserProperty("recipients", "手机:13800138000");
+        MessageClientIDSetter.setUniqID(message);
+
+        // when
+        val size = MessengerImpl.estimate(message);
+
+        // then
+        assertThat(size).isEqualTo(MessageDecoder.encodeMessage(message).length);
+    }
+
+    @Test
+    void batch_send_should_group_mails_by_postman() throws Exception {
+        // given
+        val messenger = batchMessenger(mailboxTransService, 3);
+        val ids = List.of(send(messenger, "sms", "1"), send(messenger, "email", "2"), send(messenger, "sms", "3"),
+                send(messenger, "sms", "4"), send(messenger, "email", "5"));
+
+        // when
+        messenger.sendDue();
+
+        // then
+        assertThat(batches).extracting(batch -> batch.stream().map(Message::getTags).distinct().toList())
+            .containsExactly(List.of("sms"), List.of("email"), List.of("sms"), List.of("email"));
+        assertThat(batches)
+            .extracting(batch -> batch.stream().map(message -> message.getUserProperty("msgId")).toList())
+            .containsExactly(List.of(ids.get(0), ids.get(2)), List.of(ids.get(1)), List.of(ids.get(3)),
+                    List.of(ids.get(4)));
+        assertThat(ids).allMatch(id -> mailboxTransService.listByMailId(id).isEmpty());
+        assertThat(meterRegistry.get("messenger.send.batch.latency").tag("result", "success").timers()).hasSize(2);
+    }
+
+    @Test
+    void batch_send_should_split_batches_by_encoded_size() throws Exception {
+        // given: 消息体500个汉字(1500字节)，两条放得下，三条超出上限
+        when(producer.getMaxMessageSize()).thenReturn(4000);
+        val messenger = batchMessenger(mailboxTransService, 3);
+        val content = StrUtil.repeat("中", 500);
+        val ids = List.of(send(messenger, "sms", content), send(messenger, "sms", content),
+                send(messenger, "sms", content));
+
+        // when
+        messenger.sendDue();
+
+        // then
+        assertThat(batches).extracting(List::size).containsExactly(2, 1);
+        assertThat(batches).allMatch(batch -> batch.stream().mapToInt(MessengerImpl::estimate).sum() <= 4000);
+        assertThat(content.getBytes(StandardCharsets.UTF_8)).hasSize(1500);
+        assertThat(ids).allMatch(id -> mailboxTransService.listByMailId(id).isEmpty());
+    }
+
+    @Test
+    void batch_send_should_retry_and_tag_unmarked_when_markSent_fails() throws Exception {
+        // given
+        val mailboxService = mock(IMailboxTransService.class);
+        val mails = List.of(pending(1L), pending(2L));
+        when(mailboxService.claim(eq(MailStatus.PENDING), anyLong(), anyInt())).thenReturn(mails);
+        when(mailboxService.markSent(anyCollection())).thenThrow(new IllegalStateException("db down"));
+        when(mailboxService.updateStatus(any(), eq(MailStatus.SENDING))).thenReturn(true);
+        val messenger = batchMessenger(mailboxService, 3);
+
+        // when
+        messenger.sendDue();
+
+        // then
+        assertThat(batches).hasSize(1);
+        verify(mailboxService, times(2)).updateStatus(any(), eq(MailStatus.SENDING));
+        assertThat(mails).extracting("status").containsOnly(MailStatus.PENDING);
+        assertThat(mails).extracting("retries").containsOnly(1);
+        assertThat(meterRegistry.get("messenger.send.batch.latency").tag("result", "unmarked").timer().count())
+            .isEqualTo(1);
+        assertThat(meterRegistry.find("messenger.send.batch.latency").tag("result", "success").timer()).isNull();
+    }
+
+    @Test
+    void claimed_but_unsent_mail_should_be_recovered() throws Exception {
+        // given: 认领后节点崩溃，邮件停留在SENDING
+        val messenger = batchMessenger(mailboxTransService, 3);
+        val id = send(messenger, "sms", "test");
+        val ids = mailboxTransService.listByMailId(id).stream().map(MailboxTrans::getId).toList();
+        assertThat(mailboxTransService.claim(MailStatus.PENDING, Long.MAX_VALUE, ids)).hasSize(1);
+        val claimedAt = mailboxTransService.getById(ids.get(0)).getNextRetryAt();
+
+        // when
+        mailboxTransService.recover(claimedAt);
+
+        // then
+        assertThat(mailboxTransService.getById(ids.get(0)).getStatus()).isEqualTo(MailStatus.SENDING);
+
+        // when
+        mailboxTransService.recover(claimedAt + 1);
+
+        // then
+        assertThat(mailboxTransService.getById(ids.get(0)).getStatus()).isEqualTo(MailStatus.PENDING);
+    }
+
+    private MessengerImpl batchMessenger(IMailboxTransService mailboxService, int batchSize) throws Exception {
+        val properties = new MessengerClientProperties();
+        properties.setBatchSend(true);
+        properties.setBatchSize(batchSize);
+        properties.setSendConcurrency(1);
+        val beanFactory = new StaticListableBeanFactory(Map.of("producer", producer));
+        return new MessengerImpl(properties, beanFactory.getBeanProvider(TransactionMQProducer.class), mailboxService,
+                null, clock, meterRegistry, "test");
+    }
+
+    private String send(MessengerImpl messenger, String postman, String content) {
+        val id = RandomUtil.randomString(32);
+        val mail = new TextMail(id, postman, content);
+        mail.setRecipients("test:demo");
+        messenger.send(mail);
+        return id;
+    }
+
+    private MailboxTrans pending(Long id) {
+        val trans = new MailboxTrans();
+        trans.setId(id);
+        trans.setMailId(RandomUtil.randomString(32));
+        trans.setPostman("sms");
+        trans.setContent("test");
+        trans.setStatus(MailStatus.SENDING);
+        trans.setRetries(0);
+        trans.setNextRetryAt(1000L);
+        trans.setPostTime(1000L);
+        return trans;
+    }
+
     @TestConfiguration(proxyBeanMethods = false)
     @ConditionalOnProperty(name = "skip.container", havingValue = "no", matchIfMissing = true)
     static class TestConfig {
@@ -0,0 +1,178 @@
+package com.apzda.cloud.msg.scheduler;
+
+import com.apzda.cloud.msg.domain.mapper.SchedulerNodeMapper;
+import lombok.val;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class PartitionedSchedulerTest {
+
+    private static final Duration HEARTBEAT = Duration.ofSeconds(1);
+
+    /**
+     * 模拟数据库时间
+     */
+    private final AtomicLong dbNow = new AtomicLong(1_000_000);
+
+    /**
+     * 模拟心跳表: 节点ID -> 心跳时间(数据库时间)
+     */
+    private final Map<String, Long> beats = new ConcurrentHashMap<>();
+
+    private final List<PartitionedScheduler.Due> rows = LongStream.rangeClosed(1, 10)
+        .mapToObj(id -> new PartitionedScheduler.Due(id, 0))
+        .toList();
+
+    private SchedulerNodeMapper nodeMapper;
+
+    @BeforeEach
+    void setUp() {
+        nodeMapper = mock(SchedulerNodeMapper.class);
+        when(nodeMapper.heartbeat(anyString(), anyString())).thenAnswer(inv -> {
+            beats.put(inv.getArgument(1), dbNow.get());
+            return 1;
+        });
+        when(nodeMapper.removeDeadNodes(anyString(), anyLong())).thenAnswer(inv -> {
+            long aliveAt = dbNow.get() - inv.<Long>getArgument(1);
+            beats.values().removeIf(heartbeatAt -> heartbeatAt < aliveAt);
+            return 0;
+        });
+        when(nodeMapper.listAliveNodes(anyString(), anyLong())).thenAnswer(inv -> {
+            long aliveAt = dbNow.get() - inv.<Long>getArgument(1);
+            return beats.entrySet()
+                .stream()
+                .filter(beat -> beat.getValue() >= aliveAt)
+                .map(Map.Entry::getKey)
+                .sorted()
+                .toList();
+        });
+        when(nodeMapper.removeNode(anyString(), anyString())).thenAnswer(inv -> {
+            beats.remove(inv.<String>getArgument(1));
+            return 1;
+        });
+    }
+
+    @Test
+    void nodes_should_split_partitions_by_database_time_and_take_over_dead_ones() {
+        // given: 两个节点的时钟相差1小时
+        val loadedByA = new CopyOnWriteArrayList<Long>();
+        val loadedByB = new CopyOnWriteArrayList<Long>();
+        val clockA = Clock.fixed(Instant.ofEpochMilli(5_000_000), ZoneOffset.UTC);
+        val clockB = Clock.offset(clockA, Duration.ofHours(1));
+        val a = scheduler(clockA, loadedByA, ids -> {
+        });
+        val b = scheduler(clockB, loadedByB, ids -> {
+        });
+
+        // when
+        a.tick();
+        b.tick();
+        a.tick();
+
+        // then
+        assertThat(beats).hasSize(2);
+        assertThat(loadedByA).isNotEmpty().doesNotContainAnyElementsOf(loadedByB);
+        assertThat(loadedByB).isNotEmpty();
+        val all = new ArrayList<>(loadedByA);
+        all.addAll(loadedByB);
+        assertThat(all).containsExactlyInAnyOrderElementsOf(ids(rows));
+
+        // when: B停止心跳超过3个心跳周期
+        dbNow.addAndGet(HEARTBEAT.toMillis() * 3 + 1);
+        a.tick();
+
+        // then
+        assertThat(beats).hasSize(1);
+        assertThat(loadedByA).containsExactlyInAnyOrderElementsOf(ids(rows));
+    }
+
+    @Test
+    void node_should_fire_due_rows_and_leave_on_stop() throws InterruptedException {
+        // given
+        val fired = new CopyOnWriteArrayList<Long>();
+        val latch = new CountDownLatch(rows.size());
+        val scheduler = scheduler(Clock.systemUTC(), new CopyOnWriteArrayList<>(), ids -> {
+            fired.addAll(ids);
+            ids.forEach(id -> latch.countDown());
+        });
+
+        // when
+        scheduler.start();
+        val done = latch.await(5, TimeUnit.SECONDS);
+        scheduler.stop();
+
+        // then
+        assertThat(done).isTrue();
+        assertThat(fired).containsExactlyInAnyOrderElementsOf(ids(rows));
+        assertThat(beats).isEmpty();
+    }
+
+    @Test
+    void rows_written_by_node_should_be_fired_regardless_of_partition() throws InterruptedException {
+        // given: 两个节点，100与101分属不同分区
+        val fired = new CopyOnWriteArrayList<Long>();
+        val latch = new CountDownLatch(2);
+        val b = scheduler(Clock.systemUTC(), new CopyOnWriteArrayList<>(), ids -> {
+        });
+        val a = scheduler(Clock.systemUTC(), new CopyOnWriteArrayList<>(), ids -> {
+            fired.addAll(ids);
+            ids.stream().filter(id -> id >= 100).forEach(id -> latch.countDown());
+        });
+        b.tick();
+        a.tick();
+
+        // when
+        a.start();
+        a.schedule(100, System.currentTimeMillis());
+        a.schedule(101, System.currentTimeMillis());
+        val done = latch.await(5, TimeUnit.SECONDS);
+        a.stop();
+
+        // then
+        assertThat(done).isTrue();
+        assertThat(fired).contains(100L, 101L);
+    }
+
+    private PartitionedScheduler scheduler(Clock clock, List<Long> loaded, PartitionedScheduler.Firer firer) {
+        return new PartitionedScheduler("test", nodeMapper, clock, HEARTBEAT, Duration.ofSeconds(10), 4,
+                (partitions, partition, until, limit) -> {
+                    val due = rows.stream()
+                        .filter(row -> Math.floorMod(row.id(), partitions) == partition && row.dueAt() <= until)
+                        .limit(limit)
+                        .toList();
+                    loaded.clear();
+                    loaded.addAll(ids(due));
+                    return due;
+                }, firer);
+    }
+
+    private static List<Long> ids(List<PartitionedScheduler.Due> due) {
+        return due.stream().map(PartitionedScheduler.Due::id).toList();
+    }
+
+}
@@ -22,8 +22,12 @@ import com.apzda.cloud.msg.TextMail;
 import com.apzda.cloud.msg.mq.FixedRateLimiter;
 import com.apzda.cloud.msg.mq.RocketMqRateLimiter;
 import com.apzda.cloud.msg.postman.DemoPostman;
+import com.apzda.cloud.msg.postman.PostmanRegistry;
 import com.apzda.cloud.msg.postman.RocketMqPostman;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
 import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
@@ -32,6 +36,8 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Import;
 
+import java.time.Clock;
+
 /**
  * @author fengz (windywany@gmail.com)
  * @version 1.0.0
@@ -62,4 +68,12 @@ public class MessengerServiceConfig {
         return new RocketMqPostman(rocketMqRateLimiter);
     }
 
+    @Bean
+    @ConditionalOnMissingBean
+    PostmanRegistry postmanRegistry(ObjectProvider<Postman<?, ?>> postmanProvider,
+            ObjectProvider<MeterRegistry> meterRegistry, Clock clock, MessengerServiceProperties properties) {
+        return new PostmanRegistry(postmanProvider, meterRegistry.getIfAvailable(() -> Metrics.globalRegistry), clock,
+                properties);
+    }
+
 }
@@ -20,7 +20,9 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -57,10 +59,80 @@ public class MessengerServiceProperties {
 
     private Duration period = Duration.ofSeconds(1);
 
+    /**
+     * 每次认领的待重试邮件数量
+     */
+    private int batchSize = 32;
+
+    /**
+     * 每个邮递员的投递线程数(隔离舱)，一个邮递员变慢不会影响其它邮递员
+     */
+    private int deliveryConcurrency = 4;
+
+    /**
+     * 每个邮递员等待投递的队列长度，队列满时邮件稍后重试(不计入重试次数)
+     */
+    private int deliveryQueueSize = 64;
+
+    /**
+     * 按邮递员(tags)覆盖投递线程数
+     */
+    private Map<String, Integer> postmanConcurrency = new HashMap<>();
+
+    /**
+     * 连续失败多少次后熔断，小于1时不熔断
+     */
+    private int breakerThreshold = 5;
+
+    /**
+     * 熔断时长. 熔断期间或隔离舱已满时没有投递的邮件在此之后重试(不计入重试次数)
+     */
+    private Duration breakerDuration = Duration.ofSeconds(30);
+
+    /**
+     * 重试间隔的随机抖动比例(0~1)，避免各节点同时重试
+     */
+    private double retryJitter = 0.2;
+
+    /**
+     * 找不到邮递员时重新加载邮递员的最小间隔
+     */
+    private Duration postmanRescanInterval = Duration.ofSeconds(30);
+
+    /**
+     * 按节点分区调度: 存活的节点按ID取模分担邮件，各节点把即将到期的邮件加载到内存中按时重试，不再轮询
+     */
+    private boolean partitioned = false;
+
+    /**
+     * 分区调度的心跳间隔，3个间隔内没有心跳的节点被视为已离开
+     */
+    private Duration heartbeat = Duration.ofSeconds(5);
+
+    /**
+     * 分区调度每次加载多长时间内到期的邮件，其它节点写入的邮件最迟在它的一半时间后被发现
+     */
+    private Duration lookahead = Duration.ofSeconds(30);
+
+    /**
+     * 认领后超过该时间仍未记录投递结果的邮件(节点崩溃或停止时仍在队列中)被恢复为RETRYING，须大于排队与投递的最长时间
+     */
+    private Duration sendingTimeout = Duration.ofMinutes(10);
+
     private int limitRetry = 5;
 
     private int limitRate = -1;
 
+    /**
+     * 每次从Redis租借的令牌数，小于1时取每秒限速的1/50
+     */
+    private int limitLease = 0;
+
+    /**
+     * 获取令牌的最长等待时间，超时后直接投递
+     */
+    private Duration limitWait = Duration.ofSeconds(1);
+
     private List<Duration> retries = List.of(Duration.ofSeconds(10), Duration.ofSeconds(30), Duration.ofMinutes(1),
             Duration.ofMinutes(2), Duration.ofMinutes(3), Duration.ofMinutes(4), Duration.ofMinutes(5),
             Duration.ofMinutes(6), Duration.ofMinutes(7), Duration.ofMinutes(8), Duration.ofMinutes(9),
@@ -37,7 +37,7 @@ class RedisBasedRateLimiterConfig {
     RocketMqRateLimiter rocketMqRateLimiter(RocketMQTemplate rocketMQTemplate, StringRedisTemplate stringRedisTemplate,
             MessengerServiceProperties properties) {
         return new RedisBasedRateLimiter(rocketMQTemplate, stringRedisTemplate, properties.getLimitRate(),
-                properties.getLimitRetry());
+                properties.getLimitLease(), properties.getLimitWait(), properties.getLimitRetry());
     }
 
 }
@@ -17,11 +17,14 @@
 package com.apzda.cloud.msg.consumer;
 
 import cn.hutool.core.exceptions.ExceptionUtil;
-import com.apzda.cloud.msg.Postman;
+import com.apzda.cloud.msg.IMail;
 import com.apzda.cloud.msg.config.MessengerServiceProperties;
 import com.apzda.cloud.msg.domain.entity.Mailbox;
+import com.apzda.cloud.msg.domain.mapper.SchedulerNodeMapper;
 import com.apzda.cloud.msg.domain.service.IMailboxService;
 import com.apzda.cloud.msg.domain.vo.MailStatus;
+import com.apzda.cloud.msg.postman.PostmanRegistry;
+import com.apzda.cloud.msg.scheduler.PartitionedScheduler;
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
@@ -33,12 +36,16 @@ import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
 import org.apache.rocketmq.spring.core.RocketMQPushConsumerLifecycleListener;
-import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -62,12 +69,18 @@ public class MailboxConsumer implements RocketMQListener<MessageExt>, RocketMQPu
 
     private final Clock clock;
 
-    private final ObjectProvider<Postman<?, ?>> postmanProvider;
+    private final PostmanRegistry postmanRegistry;
+
+    private final SchedulerNodeMapper schedulerNodeMapper;
 
     private final AtomicInteger atomicInteger = new AtomicInteger(0);
 
     private ScheduledThreadPoolExecutor executor;
 
+    private PartitionedScheduler scheduler;
+
+    private ScheduledThreadPoolExecutor recoverer;
+
     @Override
     public void prepareStart(@Nonnull DefaultMQPushConsumer consumer) {
         val namespace = properties.getNamespace();
@@ -86,6 +99,26 @@ public class MailboxConsumer implements RocketMQListener<MessageExt>, RocketMQPu
         log.info("a consumer used by Messenger ({}) init on namesrv {}", consumer.getConsumerGroup(),
                 consumer.getNamesrvAddr());
 
+        if (properties.isPartitioned()) {
+            scheduler = new PartitionedScheduler("postman", schedulerNodeMapper, clock, properties.getHeartbeat(),
+                    properties.getLookahead(), properties.getBatchSize(),
+                    (partitions, partition, until, limit) -> mailboxService
+                        .listDueByPartition(MailStatus.RETRYING, until, partitions, partition, limit)
+                        .stream()
+                        .map(mailbox -> new PartitionedScheduler.Due(mailbox.getId(), mailbox.getNextRetryAt()))
+                        .toList(),
+                    this::fire);
+            scheduler.start();
+        }
+        else {
+            startPolling();
+        }
+        startRecovering();
+        log.info("Postman delivery init: batchSize={}, concurrency={}, queueSize={}", properties.getBatchSize(),
+                properties.getDeliveryConcurrency(), properties.getDeliveryQueueSize());
+    }
+
+    private void startPolling() {
         val executorCount = properties.getExecutorCount();
         executor = new ScheduledThreadPoolExecutor(
                 executorCount < 1 ? Math.max(1, Runtime.getRuntime().availableProcessors() / 4) : executorCount, r -> {
@@ -103,6 +136,38 @@ public class MailboxConsumer implements RocketMQListener<MessageExt>, RocketMQPu
         log.info("Postman executor init: count={}, delay={}, period={} ", executorCount, delay, period);
     }
 
+    /**
+     * 定期将认领后超过sendingTimeout仍未记录投递结果的邮件恢复为RETRYING，节点崩溃或停止时它们还在投递队列中.
+     */
+    private void startRecovering() {
+        val timeout = properties.getSendingTimeout().toMillis();
+        if (timeout <= 0) {
+            return;
+        }
+        recoverer = new ScheduledThreadPoolExecutor(1, r -> {
+            val thread = new Thread(r);
+            thread.setName("postman-recoverer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        val period = Math.max(1000, Math.min(timeout / 2, 60_000));
+        recoverer.scheduleWithFixedDelay(() -> recover(timeout), period, period, TimeUnit.MILLISECONDS);
+        log.info("Postman recoverer init: sendingTimeout={}ms, period={}ms", timeout, period);
+    }
+
+    private void recover(long timeout) {
+        try {
+            val recovered = mailboxService.recover(clock.millis() - timeout);
+            if (recovered > 0) {
+                log.warn("Recovered {} mails that were claimed {}ms ago but not delivered", recovered, timeout);
+            }
+        }
+        catch (Exception e) {
+            // 异常会终止周期任务
+            log.warn("Cannot recover mails: {}", ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+        }
+    }
+
     @Override
     public void onMessage(MessageExt message) {
         val tags = message.getTags();
@@ -142,28 +207,40 @@ public class MailboxConsumer implements RocketMQListener<MessageExt>, RocketMQPu
             // 利用RocketMQ的重试机制
             throw new RuntimeException("Cannot save mail into mailbox: " + mailbox);
         }
-        // 立即投递
-        deliver(mailbox);
+        // 立即投递(由邮递员的隔离舱投递，不占用消费线程)
+        deliver(List.of(mailbox));
     }
 
+    /**
+     * 批量认领到期的邮件并投递，认领到满批且都进入了隔离舱时继续认领下一批. 多个节点(线程)通过SKIP LOCKED认领不同的邮件.
+     */
     @Override
     public void run() {
-        Mailbox mailbox;
-        do {
-            mailbox = mailboxService.getByStatusAndNextRetryAtLe(MailStatus.RETRYING, clock.millis());
-            if (mailbox != null) {
-                mailbox.setStatus(MailStatus.SENDING);
-                if (!mailboxService.updateStatus(mailbox, MailStatus.RETRYING)) {
-                    continue;
+        val batchSize = Math.max(1, properties.getBatchSize());
+        try {
+            List<Mailbox> mailboxes;
+            do {
+                mailboxes = mailboxService.claim(MailStatus.RETRYING, clock.millis(), batchSize);
+                if (!mailboxes.isEmpty() && !deliver(mailboxes)) {
+                    break;
                 }
-                deliver(mailbox);
             }
+            while (mailboxes.size() >= batchSize);
+        }
+        catch (Exception e) {
+            // 异常会终止周期任务
+            log.warn("Cannot deliver mails: {}", ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
         }
-        while (mailbox != null);
     }
 
     @PreDestroy
     void stop() {
+        if (recoverer != null) {
+            recoverer.shutdownNow();
+        }
+        if (scheduler != null) {
+            scheduler.stop();
+        }
         if (executor == null) {
             return;
         }
@@ -182,57 +259,112 @@ public class MailboxConsumer implements RocketMQListener<MessageExt>, RocketMQPu
         }
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private void deliver(@Nonnull Mailbox mailbox) {
-        val tags = mailbox.getPostman();
-        val msgId = mailbox.getMsgId();
-        val service = mailbox.getService();
-        val title = mailbox.getTitle();
-
-        try {
-            val postmanOpt = postmanProvider.stream().filter(pm -> pm.supports(tags)).findFirst();
-            if (postmanOpt.isEmpty()) {
-                try {
-                    mailboxService.markFailure(mailbox, "postman(" + tags + ") not found.");
-                }
-                catch (Exception ie) {
-                    log.warn("Cannot update mailbox status to fail: postman({}) - msgId({}) - {}", tags, msgId,
-                            ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(ie)));
+    /**
+     * 把邮件交给各自邮递员的隔离舱投递，不等待投递完成. 同一邮递员的邮件投递完成后批量记录结果.
+     * @param mailboxes 邮件
+     * @return 是否所有邮件都进入了隔离舱
+     */
+    private boolean deliver(@Nonnull List<Mailbox> mailboxes) {
+        val deferUntil = clock.millis() + properties.getBreakerDuration().toMillis();
+        val results = new ArrayList<IMailboxService.Result>();
+        val pending = new HashMap<PostmanRegistry.Route, List<CompletableFuture<IMailboxService.Result>>>();
+        var accepted = true;
+        for (Mailbox mailbox : mailboxes) {
+            val tags = mailbox.getPostman();
+            try {
+                val route = postmanRegistry.route(tags);
+                if (route == null) {
+                    results.add(new IMailboxService.Result(mailbox, "postman(" + tags + ") not found."));
+                    continue;
                 }
-                return;
+                pending.computeIfAbsent(route, (r) -> new ArrayList<>())
+                    .add(CompletableFuture.supplyAsync(() -> post(mailbox, route), route.bulkhead()));
+            }
+            catch (RejectedExecutionException e) {
+                // 隔离舱已满: 稍后重试，不计入重试次数
+                accepted = false;
+                results.add(new IMailboxService.Result(mailbox, "postman(" + tags + ") is busy.", deferUntil));
             }
+            catch (Exception e) {
+                results.add(new IMailboxService.Result(mailbox,
+                        ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e))));
+            }
+        }
+        markDelivered(results);
+        pending.forEach((route, futures) -> CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+            .thenRun(() -> markDelivered(futures.stream().map(CompletableFuture::join).toList())));
 
-            val postman = (Postman) postmanOpt.get();
-            val content = mailbox.getContent();
-            val mail = postman.encapsulate(msgId, tags, content);
+        return accepted;
+    }
 
-            mail.setPostman(tags);
-            mail.setService(service);
-            mail.setTitle(title);
-            mail.setId(msgId);
-            mail.setRecipients(mailbox.getRecipients());
+    private void fire(@Nonnull List<Long> ids) {
+        val mailboxes = mailboxService.claim(MailStatus.RETRYING,
+                clock.millis() + PartitionedScheduler.CLOCK_TOLERANCE, ids);
+        if (!mailboxes.isEmpty()) {
+            deliver(mailboxes);
+        }
+    }
 
-            if (postman.deliver(mail)) {
-                mailboxService.markSuccess(mailbox);
-            }
-            else {
-                try {
-                    mailboxService.markFailure(mailbox, "postman(" + tags + ") cannot deliver it.");
-                }
-                catch (Exception e) {
-                    log.warn("Cannot mark mailbox status fail: postman({}) - msgId({}) - {}", tags, msgId,
-                            ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+    private void markDelivered(@Nonnull List<IMailboxService.Result> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        try {
+            val recorded = mailboxService.markDelivered(results);
+            if (scheduler != null) {
+                for (IMailboxService.Result result : recorded) {
+                    val mailbox = result.mailbox();
+                    if (mailbox.getStatus() == MailStatus.RETRYING) {
+                        scheduler.schedule(mailbox.getId(), mailbox.getNextRetryAt());
+                    }
                 }
             }
         }
         catch (Exception e) {
+            log.warn("Cannot update status of mails: {} - {}",
+                    results.stream().map((r) -> r.mailbox().getMsgId()).toList(),
+                    ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+        }
+    }
+
+    @Nonnull
+    private IMailboxService.Result post(@Nonnull Mailbox mailbox, @Nonnull PostmanRegistry.Route route) {
+        val tags = mailbox.getPostman();
+        val msgId = mailbox.getMsgId();
+        val service = mailbox.getService();
+        val title = mailbox.getTitle();
+
+        try {
+            val now = clock.millis();
+            val breaker = route.breaker();
+            if (!breaker.allow(now)) {
+                // 熔断中: 熔断结束后重试，不计入重试次数
+                return new IMailboxService.Result(mailbox, "postman(" + tags + ") is unavailable.",
+                        Math.max(breaker.getOpenUntil(), now));
+            }
+
+            final IMail<?> mail;
             try {
-                mailboxService.markFailure(mailbox, ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+                mail = route.encapsulate(msgId, tags, mailbox.getContent());
+                mail.setPostman(tags);
+                mail.setService(service);
+                mail.setTitle(title);
+                mail.setId(msgId);
+                mail.setRecipients(mailbox.getRecipients());
             }
-            catch (Exception ie) {
-                log.warn("Cannot update mailbox status: postman({}) - msgId({}) - {}", tags, msgId,
-                        ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(ie)));
+            catch (RuntimeException | Error e) {
+                // 邮件无法封装与邮递员是否可用无关，只释放可能得到的试探机会
+                breaker.release();
+                throw e;
             }
+
+            if (route.deliver(mail)) {
+                return new IMailboxService.Result(mailbox, null);
+            }
+            return new IMailboxService.Result(mailbox, "postman(" + tags + ") cannot deliver it.");
+        }
+        catch (Exception e) {
+            return new IMailboxService.Result(mailbox, ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
         }
     }
 
@@ -17,10 +17,15 @@
 package com.apzda.cloud.msg.domain.mapper;
 
 import com.apzda.cloud.msg.domain.entity.Mailbox;
+import com.apzda.cloud.msg.domain.vo.MailStatus;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -36,4 +41,36 @@ public interface MailboxMapper extends BaseMapper<Mailbox> {
     @Select("SELECT * FROM apzda_mailbox WHERE msg_id = #{msgId}")
     Mailbox getByMsgId(@Param("msgId") String msgId);
 
+    /**
+     * 锁定一批待投递的邮件，已被其它事务锁定的行会被跳过，须在事务中调用.
+     */
+    @Select("SELECT * FROM apzda_mailbox WHERE status = #{status} AND next_retry_at <= #{nextRetryAt}"
+            + " ORDER BY next_retry_at LIMIT #{limit} FOR UPDATE SKIP LOCKED")
+    List<Mailbox> lockByStatusAndNextRetryAtLe(@Param("status") MailStatus status,
+            @Param("nextRetryAt") long nextRetryAt, @Param("limit") int limit);
+
+    /**
+     * 列出分区({@code MOD(id, partitions) = partition})内到期的邮件，只查询id和next_retry_at.
+     */
+    @Select("SELECT id, next_retry_at FROM apzda_mailbox WHERE status = #{status} AND next_retry_at <= #{nextRetryAt}"
+            + " AND MOD(id, #{partitions}) = #{partition} ORDER BY next_retry_at LIMIT #{limit}")
+    List<Mailbox> listDueByPartition(@Param("status") MailStatus status, @Param("nextRetryAt") long nextRetryAt,
+            @Param("partitions") int partitions, @Param("partition") int partition, @Param("limit") int limit);
+
+    /**
+     * 将{@code claimedBefore}之前认领(SENDING状态的next_retry_at为认领时间)的邮件恢复为RETRYING，立即重试.
+     */
+    @Update("UPDATE apzda_mailbox SET status = 'RETRYING', updated_at = #{now} WHERE status = 'SENDING'"
+            + " AND next_retry_at < #{claimedBefore}")
+    int recoverSending(@Param("claimedBefore") long claimedBefore, @Param("now") long now);
+
+    /**
+     * 按ID锁定到期的邮件，已被其它事务锁定的行会被跳过，须在事务中调用.
+     */
+    @Select({ "<script>SELECT * FROM apzda_mailbox WHERE status = #{status} AND next_retry_at &lt;= #{nextRetryAt}",
+            " AND id IN <foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach>",
+            " FOR UPDATE SKIP LOCKED</script>" })
+    List<Mailbox> lockByIds(@Param("status") MailStatus status, @Param("nextRetryAt") long nextRetryAt,
+            @Param("ids") Collection<Long> ids);
+
 }
@@ -22,6 +22,11 @@ import com.apzda.cloud.msg.domain.vo.MailStatus;
 import com.baomidou.mybatisplus.core.conditions.Wrapper;
 import com.baomidou.mybatisplus.core.metadata.IPage;
 import com.baomidou.mybatisplus.extension.service.IService;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -36,14 +41,80 @@ public interface IMailboxService extends IService<Mailbox> {
 
     Mailbox getByStatusAndNextRetryAtLe(MailStatus mailStatus, long nextRetryAt);
 
+    /**
+     * 认领一批到期的邮件: 锁定(跳过已被其它节点锁定的行)并将状态改为SENDING.
+     * @param mailStatus 当前状态
+     * @param nextRetryAt 重试时间上限
+     * @param limit 最多认领的数量
+     * @return 认领到的邮件，状态已为SENDING
+     */
+    @Nonnull
+    List<Mailbox> claim(MailStatus mailStatus, long nextRetryAt, int limit);
+
+    /**
+     * 按ID认领到期的邮件，已被认领、已改期或状态已变化的邮件会被跳过.
+     * @param mailStatus 当前状态
+     * @param nextRetryAt 重试时间上限
+     * @param ids 邮件ID
+     * @return 认领到的邮件，状态已为SENDING
+     */
+    @Nonnull
+    List<Mailbox> claim(MailStatus mailStatus, long nextRetryAt, Collection<Long> ids);
+
+    /**
+     * 列出分区内到期的邮件(只有id和nextRetryAt).
+     */
+    @Nonnull
+    List<Mailbox> listDueByPartition(MailStatus mailStatus, long nextRetryAt, int partitions, int partition,
+            int limit);
+
+    /**
+     * 将认领后长时间没有记录投递结果的邮件(节点崩溃或停止时仍在投递队列中)恢复为RETRYING.
+     * @param claimedBefore 认领时间上限
+     * @return 恢复的邮件数
+     */
+    int recover(long claimedBefore);
+
     void markSuccess(Mailbox mailbox);
 
     void markFailure(Mailbox mailbox, String error);
 
+    /**
+     * 在一个事务中批量记录投递结果(更新邮件状态并写入投递记录). 只更新仍为本次认领(状态为SENDING且认领时间未变)的邮件，
+     * 已被恢复并重新认领的邮件由新的认领者记录.
+     * @param results 投递结果
+     * @return 已记录的投递结果
+     */
+    @Nonnull
+    List<Result> markDelivered(@Nonnull List<Result> results);
+
     boolean updateStatus(Mailbox mailbox, MailStatus fromStatus);
 
     boolean resend(Mailbox mailbox);
 
     IPage<Delivery> deliveries(IPage<Delivery> page, Wrapper<Delivery> wrapper);
 
+    /**
+     * 投递结果.
+     *
+     * @param mailbox 邮件
+     * @param error 失败原因，成功时为null
+     * @param deferUntil 大于0时表示没有投递(熔断或隔离舱已满)，不早于该时间重试且不计入重试次数
+     */
+    record Result(Mailbox mailbox, @Nullable String error, long deferUntil) {
+
+        public Result(Mailbox mailbox, @Nullable String error) {
+            this(mailbox, error, 0);
+        }
+
+        public boolean success() {
+            return error == null && !deferred();
+        }
+
+        public boolean deferred() {
+            return deferUntil > 0;
+        }
+
+    }
+
 }
@@ -21,24 +21,34 @@ import com.apzda.cloud.msg.domain.entity.Delivery;
 import com.apzda.cloud.msg.domain.entity.Mailbox;
 import com.apzda.cloud.msg.domain.mapper.DeliveryMapper;
 import com.apzda.cloud.msg.domain.mapper.MailboxMapper;
+import com.apzda.cloud.msg.domain.service.IDeliveryService;
 import com.apzda.cloud.msg.domain.service.IMailboxService;
 import com.apzda.cloud.msg.domain.vo.MailStatus;
 import com.baomidou.mybatisplus.core.conditions.Wrapper;
 import com.baomidou.mybatisplus.core.metadata.IPage;
 import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import jakarta.annotation.Nonnull;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
 
 /**
  * @author fengz (windywany@gmail.com)
  * @version 1.0.0
  * @since 1.0.0
  **/
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class MailboxServiceImpl extends ServiceImpl<MailboxMapper, Mailbox> implements IMailboxService {
@@ -51,6 +61,8 @@ public class MailboxServiceImpl extends ServiceImpl<MailboxMapper, Mailbox> impl
 
     private final DeliveryMapper deliveryMapper;
 
+    private final IDeliveryService deliveryService;
+
     private final MessengerServiceProperties properties;
 
     @Override
@@ -74,17 +86,38 @@ public class MailboxServiceImpl extends ServiceImpl<MailboxMapper, Mailbox> impl
         return getOne(con);
     }
 
+    @Nonnull
+    @Override
+    public List<Mailbox> claim(MailStatus mailStatus, long nextRetryAt, int limit) {
+        return claim(mailStatus, () -> mailboxMapper.lockByStatusAndNextRetryAtLe(mailStatus, nextRetryAt, limit));
+    }
+
+    @Nonnull
+    @Override
+    public List<Mailbox> claim(MailStatus mailStatus, long nextRetryAt, Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return List.of();
+        }
+        return claim(mailStatus, () -> mailboxMapper.lockByIds(mailStatus, nextRetryAt, ids));
+    }
+
+    @Nonnull
+    @Override
+    public List<Mailbox> listDueByPartition(MailStatus mailStatus, long nextRetryAt, int partitions, int partition,
+            int limit) {
+        return mailboxMapper.listDueByPartition(mailStatus, nextRetryAt, partitions, partition, limit);
+    }
+
+    @Override
+    public int recover(long claimedBefore) {
+        return mailboxMapper.recoverSending(claimedBefore, clock.millis());
+    }
+
     @Override
     public void markSuccess(Mailbox mailbox) {
         transactionTemplate.execute(status -> {
-            mailbox.setDeliveredAt(clock.millis());
-            mailbox.setStatus(MailStatus.SENT);
-            mailbox.setRemark("");
+            val deliver = sent(mailbox, clock.millis());
             if (updateById(mailbox)) {
-                val deliver = new Delivery();
-                deliver.setDeliveredAt(mailbox.getDeliveredAt());
-                deliver.setMailboxId(mailbox.getId());
-                deliver.setStatus(MailStatus.SENT);
                 deliveryMapper.insert(deliver);
             }
             else {
@@ -96,31 +129,10 @@ public class MailboxServiceImpl extends ServiceImpl<MailboxMapper, Mailbox> impl
     }
 
     @Override
-
     public void markFailure(Mailbox mailbox, String error) {
         transactionTemplate.execute(status -> {
-            mailbox.setDeliveredAt(clock.millis());
-            mailbox.setRemark(error);
-            // retries
-            val retries = properties.getRetries();
-            val currentRetry = mailbox.getRetries();
-            if (retries.size() >= currentRetry + 1) {
-                val duration = retries.get(currentRetry);
-                mailbox.setRetries(currentRetry + 1);
-                mailbox.setNextRetryAt(mailbox.getDeliveredAt() + duration.toMillis());
-                mailbox.setStatus(MailStatus.RETRYING);
-            }
-            else {
-                mailbox.setStatus(MailStatus.FAIL);
-            }
-
+            val deliver = failed(mailbox, error, clock.millis());
             if (updateById(mailbox)) {
-                val deliver = new Delivery();
-                deliver.setDeliveredAt(mailbox.getDeliveredAt());
-                deliver.setMailboxId(mailbox.getId());
-                deliver.setStatus(MailStatus.FAIL);
-                deliver.setRetries(currentRetry);
-                deliver.setRemark(error);
                 deliveryMapper.insert(deliver);
             }
             else {
@@ -131,6 +143,52 @@ public class MailboxServiceImpl extends ServiceImpl<MailboxMapper, Mailbox> impl
         });
     }
 
+    @Nonnull
+    @Override
+    public List<Result> markDelivered(@Nonnull List<Result> results) {
+        if (results.isEmpty()) {
+            return List.of();
+        }
+        return Objects.requireNonNull(transactionTemplate.execute(status -> {
+            val deliveredAt = clock.millis();
+            val recorded = new ArrayList<Result>(results.size());
+            val deliveries = new ArrayList<Delivery>(results.size());
+            for (Result result : results) {
+                val mailbox = result.mailbox();
+                // 认领时间(SENDING状态的next_retry_at)，下面会被改为下次重试时间
+                val claimedAt = mailbox.getNextRetryAt();
+                Delivery delivery = null;
+                if (result.deferred()) {
+                    deferred(mailbox, result.error(), result.deferUntil());
+                }
+                else if (result.success()) {
+                    delivery = sent(mailbox, deliveredAt);
+                }
+                else {
+                    delivery = failed(mailbox, result.error(), deliveredAt);
+                }
+                val con = Wrappers.lambdaUpdate(Mailbox.class);
+                con.eq(Mailbox::getId, mailbox.getId());
+                con.eq(Mailbox::getStatus, MailStatus.SENDING);
+                con.eq(Mailbox::getNextRetryAt, claimedAt);
+                if (!update(mailbox, con)) {
+                    // 投递期间被恢复(可能已被重新认领)，结果由新的认领者记录
+                    log.warn("Mail {} is no longer claimed, drop its delivery result", mailbox.getMsgId());
+                    continue;
+                }
+                recorded.add(result);
+                if (delivery != null) {
+                    deliveries.add(delivery);
+                }
+            }
+            if (!deliveries.isEmpty() && !deliveryService.saveBatch(deliveries)) {
+                status.setRollbackOnly();
+                throw new IllegalStateException("Cannot record deliveries of " + deliveries.size() + " mails");
+            }
+            return recorded;
+        }));
+    }
+
     @Override
     public boolean updateStatus(Mailbox mailbox, MailStatus fromStatus) {
         val con = Wrappers.lambdaUpdate(Mailbox.class);
@@ -156,4 +214,88 @@ public class MailboxServiceImpl extends ServiceImpl<MailboxMapper, Mailbox> impl
         return deliveryMapper.selectPage(page, wrapper);
     }
 
+    @Nonnull
+    private List<Mailbox> claim(MailStatus mailStatus, Supplier<List<Mailbox>> locker) {
+        return Objects.requireNonNull(transactionTemplate.execute(status -> {
+            val mailboxes = locker.get();
+            if (mailboxes.isEmpty()) {
+                return List.<Mailbox>of();
+            }
+            // SENDING状态的next_retry_at记录认领时间，用于恢复认领后没有投递完成的邮件
+            val now = clock.millis();
+            val con = Wrappers.lambdaUpdate(Mailbox.class);
+            con.set(Mailbox::getStatus, MailStatus.SENDING);
+            con.set(Mailbox::getNextRetryAt, now);
+            con.set(Mailbox::getUpdatedAt, now);
+            con.in(Mailbox::getId, mailboxes.stream().map(Mailbox::getId).toList());
+            con.eq(Mailbox::getStatus, mailStatus);
+            update(con);
+            mailboxes.forEach(mailbox -> {
+                mailbox.setStatus(MailStatus.SENDING);
+                mailbox.setNextRetryAt(now);
+            });
+            return mailboxes;
+        }));
+    }
+
+    private Delivery sent(Mailbox mailbox, long deliveredAt) {
+        mailbox.setDeliveredAt(deliveredAt);
+        mailbox.setStatus(MailStatus.SENT);
+        mailbox.setRemark("");
+
+        val deliver = new Delivery();
+        deliver.setDeliveredAt(mailbox.getDeliveredAt());
+        deliver.setMailboxId(mailbox.getId());
+        deliver.setStatus(MailStatus.SENT);
+        deliver.setRetries(mailbox.getRetries());
+        return deliver;
+    }
+
+    private Delivery failed(Mailbox mailbox, String error, long deliveredAt) {
+        mailbox.setDeliveredAt(deliveredAt);
+        mailbox.setRemark(error);
+        // retries
+        val retries = properties.getRetries();
+        val currentRetry = mailbox.getRetries();
+        if (retries.size() >= currentRetry + 1) {
+            val duration = retries.get(currentRetry);
+            mailbox.setRetries(currentRetry + 1);
+            mailbox.setNextRetryAt(mailbox.getDeliveredAt() + jitter(duration.toMillis()));
+            mailbox.setStatus(MailStatus.RETRYING);
+        }
+        else {
+            mailbox.setStatus(MailStatus.FAIL);
+        }
+
+        val deliver = new Delivery();
+        deliver.setDeliveredAt(mailbox.getDeliveredAt());
+        deliver.setMailboxId(mailbox.getId());
+        deliver.setStatus(MailStatus.FAIL);
+        deliver.setRetries(currentRetry);
+        deliver.setRemark(error);
+        return deliver;
+    }
+
+    /**
+     * 没有投递的邮件: 在{@code deferUntil}之后的一段随机时间内重试，重试次数不变.
+     */
+    private void deferred(Mailbox mailbox, String reason, long deferUntil) {
+        val spread = (long) (properties.getBreakerDuration().toMillis() * jitterRatio());
+        mailbox.setStatus(MailStatus.RETRYING);
+        mailbox.setNextRetryAt(deferUntil + (spread > 0 ? ThreadLocalRandom.current().nextLong(spread) : 0));
+        mailbox.setRemark(reason);
+    }
+
+    /**
+     * 在[delay * (1 - retryJitter), delay]内随机取重试间隔.
+     */
+    private long jitter(long delay) {
+        val spread = (long) (delay * jitterRatio());
+        return spread > 0 ? delay - ThreadLocalRandom.current().nextLong(spread) : delay;
+    }
+
+    private double jitterRatio() {
+        return Math.min(1, Math.max(0, properties.getRetryJitter()));
+    }
+
 }
@@ -3,20 +3,30 @@
  */
 package com.apzda.cloud.msg.mq;
 
-import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.rocketmq.spring.core.RocketMQTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 
-import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.time.Duration;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 基于令牌桶机制的限速器.
  * <p>
+ * 全局令牌桶保存在Redis中，由Lua脚本按Redis服务器时间平滑地补充令牌，不再依赖某个节点定时重置；
+ * 各节点一次租借一批令牌放入本地桶中，投递线程无锁地从本地桶取令牌，本地桶用完后只有一个线程去Redis租借，
+ * 其它线程挂起等待。
+ * <p>
+ * Lua脚本先调用TIME再写入，需要按效果复制(effects replication): Redis 5.0起默认如此，
+ * 3.2~4.x由脚本中的redis.replicate_commands()开启，因此要求Redis 3.2及以上版本。Redis不可用时不限速。
+ * <p>
  * Created at 2023/6/26 13:17.
  *
  * @author ningGf
@@ -26,92 +36,155 @@ import java.util.concurrent.TimeUnit;
 @Slf4j
 public class RedisBasedRateLimiter extends AbstractRateLimiter {
 
-    public static final String RATE_LIMITER_KEY = "rocket_rate_limiter_valve";
+    public static final String RATE_LIMITER_KEY = "rocket_rate_limiter_bucket";
 
-    public static final String TOKEN_OFFICER_KEY = "rocket_rate_limiter_token";
+    // KEYS[1]: 令牌桶; ARGV: 每秒令牌数, 桶容量, 租借数量
+    private static final RedisScript<Long> LEASE_SCRIPT = new DefaultRedisScript<>("""
+            redis.replicate_commands()
+            local rate = tonumber(ARGV[1])
+            local capacity = tonumber(ARGV[2])
+            local time = redis.call('TIME')
+            local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+            local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts')
+            local tokens = tonumber(bucket[1])
+            local ts = tonumber(bucket[2])
+            if tokens == nil or ts == nil then
+                tokens = capacity
+                ts = now
+            end
+            if now > ts then
+                tokens = math.min(capacity, tokens + (now - ts) * rate / 1000)
+                ts = now
+            end
+            local granted = 0
+            if tokens >= tonumber(ARGV[3]) then
+                granted = tonumber(ARGV[3])
+            end
+            redis.call('HSET', KEYS[1], 'tokens', tostring(tokens - granted), 'ts', tostring(ts))
+            redis.call('PEXPIRE', KEYS[1], 60000)
+            return granted
+            """, Long.class);
 
     private final StringRedisTemplate redisTemplate;
 
-    private final String tokenOfficer;
-
     private final int rateLimit;
 
-    private ScheduledExecutorService scheduledExecutorService;
+    private final int leaseSize;
+
+    private final int capacity;
+
+    private final long waitNanos;
+
+    private final long backoffNanos;
+
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private boolean leasing;
+
+    private long nextLeaseAt = System.nanoTime();
 
     public RedisBasedRateLimiter(RocketMQTemplate mqTemplate, StringRedisTemplate redisTemplate, int rateLimit,
-            int maxRetry) {
+            int leaseSize, Duration maxWait, int maxRetry) {
         super(mqTemplate, maxRetry);
         this.redisTemplate = redisTemplate;
-        this.tokenOfficer = String.valueOf(new Random().nextInt(Integer.MAX_VALUE));
         this.rateLimit = rateLimit;
+        this.leaseSize = leaseSize > 0 ? leaseSize : Math.max(1, rateLimit / 50);
+        // 桶里最多攒100毫秒的令牌，空闲后的突发流量不会超过它
+        this.capacity = Math.max(this.leaseSize, rateLimit / 10);
+        this.waitNanos = maxWait.toNanos();
+        // 全局桶补满一次租借所需的时间
+        this.backoffNanos = rateLimit > 0 ? TimeUnit.SECONDS.toNanos(this.leaseSize) / rateLimit : 0;
         if (rateLimit > 0) {
-            // 抢发牌的机会
-            redisTemplate.opsForValue().set(RedisBasedRateLimiter.TOKEN_OFFICER_KEY, tokenOfficer);
-            val rateLimitStr = String.valueOf(rateLimit);
-            scheduledExecutorService = Executors.newScheduledThreadPool(1);
-            scheduledExecutorService.scheduleAtFixedRate(() -> {
-                if (tokenOfficer.equals(redisTemplate.opsForValue().get(RedisBasedRateLimiter.TOKEN_OFFICER_KEY))) {
-                    try {
-                        redisTemplate.opsForValue().set(RedisBasedRateLimiter.RATE_LIMITER_KEY, rateLimitStr);
-                    }
-                    catch (Exception e) {
-                        log.warn("重置令牌数失败: {}", e.getMessage());
-                    }
-                }
-                else {
-                    log.warn("抢令牌数重置权失败，自动退出！");
-                    scheduledExecutorService.shutdown();
-                }
-            }, 1, 1, TimeUnit.SECONDS);
-            log.info("投递限速器初始化完成。限速: {}/秒，重试: {}, 令牌官ID: {}", rateLimit, maxRetry, tokenOfficer);
+            log.info("投递限速器初始化完成。限速: {}/秒，每次租借: {}, 重试: {}", rateLimit, this.leaseSize, maxRetry);
         }
     }
 
     @Override
     public boolean isLimited(String destination) {
-        if (rateLimit > 0) {
+        if (rateLimit > 0 && !tryTake()) {
             try {
-                int wait = 0;
-                Long valve = redisTemplate.opsForValue().decrement(RATE_LIMITER_KEY);
-                while ((valve == null || valve <= 0) && wait < 10) {
-                    try {
-                        TimeUnit.MILLISECONDS.sleep(100);
-                    }
-                    catch (InterruptedException e) {
-                        log.warn("投递消息到: {}，等待超时!", destination);
-                    }
-                    wait++;
-                    valve = redisTemplate.opsForValue().decrement(RATE_LIMITER_KEY);
-                }
-                if (log.isTraceEnabled()) {
-                    log.trace("获取投递机会, 阀值: {}, 等待: {}", valve, wait);
+                if (!acquire() && log.isDebugEnabled()) {
+                    log.debug("投递消息到: {}，等待令牌超时!", destination);
                 }
             }
-            catch (Exception e) {
-                log.warn("获取投递机会时发生异常: {}", e.getMessage());
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("投递消息到: {}，等待令牌被中断!", destination);
             }
         }
 
         return false;
     }
 
-    @PreDestroy
-    boolean shutdown() {
-        if (scheduledExecutorService == null) {
-            return true;
+    private boolean tryTake() {
+        long current;
+        do {
+            current = tokens.get();
+            if (current <= 0) {
+                return false;
+            }
         }
+        while (!tokens.compareAndSet(current, current - 1));
+        return true;
+    }
+
+    private boolean acquire() throws InterruptedException {
+        val deadline = System.nanoTime() + waitNanos;
+        lock.lockInterruptibly();
         try {
-            log.info("关闭限速器线程池, 等待: {}秒", 60);
-            scheduledExecutorService.shutdown();
-            return scheduledExecutorService.awaitTermination(60, TimeUnit.SECONDS);
-        }
-        catch (Exception e) {
-            log.warn("关闭限速器线程池出错: {}", e.getMessage());
+            while (true) {
+                if (tryTake()) {
+                    return true;
+                }
+                if (!leasing && System.nanoTime() - nextLeaseAt >= 0) {
+                    leasing = true;
+                    long granted;
+                    lock.unlock();
+                    try {
+                        granted = lease();
+                    }
+                    finally {
+                        lock.lock();
+                        leasing = false;
+                    }
+                    if (granted > 0) {
+                        tokens.addAndGet(granted - 1);
+                        available.signalAll();
+                        return true;
+                    }
+                    nextLeaseAt = System.nanoTime() + backoffNanos;
+                }
+                val nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return false;
+                }
+                // 租借成功时会被唤醒，否则等到全局桶补满一次租借后再试
+                available.awaitNanos(Math.min(nanos, backoffNanos));
+            }
         }
         finally {
-            log.info("限速器线程池已关闭!");
+            lock.unlock();
+        }
+    }
+
+    private long lease() {
+        try {
+            val granted = redisTemplate.execute(LEASE_SCRIPT, List.of(RATE_LIMITER_KEY), String.valueOf(rateLimit),
+                    String.valueOf(capacity), String.valueOf(leaseSize));
+            if (log.isTraceEnabled()) {
+                log.trace("租借令牌: {}/{}", granted, leaseSize);
+            }
+            return granted == null ? 0 : granted;
+        }
+        catch (Exception e) {
+            // Redis不可用时不限速
+            log.warn("租借令牌时发生异常: {}", e.getMessage());
+            return leaseSize;
         }
-        return false;
     }
 
 }
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.msg.postman;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 邮递员熔断器.
+ * <p>
+ * 连续失败{@code threshold}次后熔断{@code openDuration}毫秒，期间不再投递; 熔断到期后只放行一封邮件试探，
+ * 试探成功则恢复，失败则继续熔断.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class CircuitBreaker {
+
+    private final String name;
+
+    private final int threshold;
+
+    private final long openDuration;
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private volatile long openUntil;
+
+    public CircuitBreaker(String name, int threshold, long openDuration) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * 是否允许投递. 熔断到期后只有第一个调用者得到试探的机会.
+     * @param now 当前时间
+     * @return 是否允许投递
+     */
+    public boolean allow(long now) {
+        if (threshold < 1) {
+            return true;
+        }
+        val until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        return now >= until && probing.compareAndSet(false, true);
+    }
+
+    public void success() {
+        failures.set(0);
+        if (openUntil != 0) {
+            openUntil = 0;
+            log.info("Postman({}) circuit closed", name);
+        }
+        probing.set(false);
+    }
+
+    /**
+     * 没有得出投递结果(如封装邮件失败)时释放试探机会，不改变熔断状态. 得到试探机会的调用者必须调用
+     * {@link #success()}、{@link #failure(long)}或本方法之一，否则熔断器不会再放行试探.
+     */
+    public void release() {
+        probing.set(false);
+    }
+
+    public void failure(long now) {
+        if (threshold < 1) {
+            return;
+        }
+        if (openUntil != 0 || failures.incrementAndGet() >= threshold) {
+            openUntil = now + openDuration;
+            failures.set(0);
+            probing.set(false);
+            log.warn("Postman({}) circuit opened until {}", name, openUntil);
+        }
+    }
+
+    /**
+     * @return 熔断结束时间，未熔断时为0
+     */
+    public long getOpenUntil() {
+        return openUntil;
+    }
+
+    public boolean isOpen() {
+        return openUntil != 0;
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.msg.postman;
+
+import com.apzda.cloud.msg.IMail;
+import com.apzda.cloud.msg.Postman;
+import com.apzda.cloud.msg.config.MessengerServiceProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.Nullable;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 邮递员路由表.
+ * <p>
+ * 邮件的postman(RocketMQ的tags)只在第一次出现时遍历一次邮递员，结果保存在不可变的路由表中，之后的投递直接查表.
+ * 找不到邮递员时会重新从容器中加载邮递员(最多每{@code rescanInterval}一次)，也可以通过{@link #register(Postman)}
+ * 注册新的邮递员，注册后路由表会重建.
+ * <p>
+ * 每个路由有自己的投递线程池(隔离舱，队列有界)和熔断器，一个邮递员变慢或不可用时不会拖累其它邮递员.
+ * <p>
+ * 每个路由都带有投递计数(messenger.postman.deliveries)、耗时(messenger.postman.latency)、正在投递的邮件数
+ * (messenger.postman.inflight)、排队的邮件数(messenger.postman.queue)和熔断状态(messenger.postman.breaker)指标.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class PostmanRegistry implements DisposableBean {
+
+    private final ObjectProvider<Postman<?, ?>> postmanProvider;
+
+    private final MeterRegistry meterRegistry;
+
+    private final Clock clock;
+
+    private final MessengerServiceProperties properties;
+
+    private final long rescanInterval;
+
+    private final List<Postman<?, ?>> registered = new ArrayList<>();
+
+    private final Map<String, Route> meters = new HashMap<>();
+
+    private volatile List<Postman<?, ?>> postmen;
+
+    private volatile Map<String, Optional<Route>> routes = Map.of();
+
+    private long rescannedAt;
+
+    public PostmanRegistry(ObjectProvider<Postman<?, ?>> postmanProvider, MeterRegistry meterRegistry, Clock clock,
+            MessengerServiceProperties properties) {
+        this.postmanProvider = postmanProvider;
+        this.meterRegistry = meterRegistry;
+        this.clock = clock;
+        this.properties = properties;
+        this.rescanInterval = properties.getPostmanRescanInterval().toMillis();
+    }
+
+    /**
+     * 查找支持{@code postman}的路由.
+     * @param postman 邮递员(RocketMQ的tags)
+     * @return 路由，找不到邮递员时返回null
+     */
+    @Nullable
+    public Route route(@Nonnull String postman) {
+        val route = routes.get(postman);
+        if (route != null) {
+            return route.orElse(null);
+        }
+        return resolve(postman);
+    }
+
+    /**
+     * 注册一个新的邮递员，优先于已有的邮递员.
+     * @param postman 邮递员
+     */
+    public synchronized void register(@Nonnull Postman<?, ?> postman) {
+        registered.add(0, postman);
+        postmen = load();
+        routes = Map.of();
+        log.info("Postman registered: {}", postman.getClass().getName());
+    }
+
+    @Override
+    public synchronized void destroy() {
+        for (Route route : meters.values()) {
+            route.bulkhead.shutdown();
+        }
+    }
+
+    @Nullable
+    private synchronized Route resolve(@Nonnull String postman) {
+        var route = routes.get(postman);
+        if (route != null && (route.isPresent() || clock.millis() - rescannedAt < rescanInterval)) {
+            return route.orElse(null);
+        }
+        if (postmen == null || route != null) {
+            // 首次使用或未知的邮递员: 重新加载容器中的邮递员
+            postmen = load();
+            routes = Map.of();
+            rescannedAt = clock.millis();
+        }
+        route = Optional.ofNullable(find(postman));
+        if (route.isEmpty()) {
+            log.warn("Postman not found: {}", postman);
+        }
+        val table = new HashMap<>(routes);
+        table.put(postman, route);
+        routes = Map.copyOf(table);
+        return route.orElse(null);
+    }
+
+    @Nullable
+    private Route find(@Nonnull String postman) {
+        for (Postman<?, ?> pm : postmen) {
+            if (pm.supports(postman)) {
+                val route = meters.get(postman);
+                if (route != null && route.postman == pm) {
+                    return route;
+                }
+                // 隔离舱、熔断器和指标按邮递员(tags)创建一次，邮递员变化时沿用
+                val newRoute = route != null ? new Route(pm, route) : newRoute(pm, postman);
+                meters.put(postman, newRoute);
+                return newRoute;
+            }
+        }
+        return null;
+    }
+
+    @Nonnull
+    private Route newRoute(Postman<?, ?> postman, String name) {
+        val concurrency = Math.max(1,
+                properties.getPostmanConcurrency().getOrDefault(name, properties.getDeliveryConcurrency()));
+        val counter = new AtomicInteger();
+        val bulkhead = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, properties.getDeliveryQueueSize())), r -> {
+                    val thread = new Thread(r);
+                    thread.setName("postman-" + name + "-" + counter.getAndAdd(1));
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        bulkhead.allowCoreThreadTimeOut(true);
+        val breaker = new CircuitBreaker(name, properties.getBreakerThreshold(),
+                properties.getBreakerDuration().toMillis());
+        log.info("Postman route created: {} -> {}, concurrency={}", name, postman.getClass().getName(), concurrency);
+        return new Route(postman, name, bulkhead, breaker, clock, meterRegistry);
+    }
+
+    @Nonnull
+    private List<Postman<?, ?>> load() {
+        val list = new ArrayList<Postman<?, ?>>(registered);
+        postmanProvider.orderedStream().forEach(list::add);
+        return List.copyOf(list);
+    }
+
+    /**
+     * 路由: 邮递员及其隔离舱、熔断器和投递指标.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static final class Route {
+
+        private final Postman postman;
+
+        private final Counter delivered;
+
+        private final Counter rejected;
+
+        private final Counter failed;
+
+        private final Timer latency;
+
+        private final AtomicInteger inflight;
+
+        private final ThreadPoolExecutor bulkhead;
+
+        private final CircuitBreaker breaker;
+
+        private final Clock clock;
+
+        Route(Postman<?, ?> postman, String name, ThreadPoolExecutor bulkhead, CircuitBreaker breaker, Clock clock,
+                MeterRegistry registry) {
+            this.postman = postman;
+            this.bulkhead = bulkhead;
+            this.breaker = breaker;
+            this.clock = clock;
+            this.delivered = counter(registry, name, "delivered");
+            this.rejected = counter(registry, name, "rejected");
+            this.failed = counter(registry, name, "failed");
+            this.latency = Timer.builder("messenger.postman.latency")
+                .description("The time taken by the postman to deliver a mail")
+                .tag("postman", name)
+                .publishPercentileHistogram()
+                .register(registry);
+            this.inflight = new AtomicInteger();
+            Gauge.builder("messenger.postman.inflight", inflight, AtomicInteger::get)
+                .description("The number of mails being delivered by the postman")
+                .tag("postman", name)
+                .register(registry);
+            Gauge.builder("messenger.postman.queue", bulkhead, (e) -> e.getQueue().size())
+                .description("The number of mails waiting for the postman")
+                .tag("postman", name)
+                .register(registry);
+            Gauge.builder("messenger.postman.breaker", breaker, (b) -> b.isOpen() ? 1 : 0)
+                .description("Whether the circuit breaker of the postman is open")
+                .tag("postman", name)
+                .register(registry);
+        }
+
+        Route(Postman<?, ?> postman, Route route) {
+            this.postman = postman;
+            this.delivered = route.delivered;
+            this.rejected = route.rejected;
+            this.failed = route.failed;
+            this.latency = route.latency;
+            this.inflight = route.inflight;
+            this.bulkhead = route.bulkhead;
+            this.breaker = route.breaker;
+            this.clock = route.clock;
+        }
+
+        /**
+         * @return 该邮递员专用的投递线程池，队列满时拒绝({@link java.util.concurrent.RejectedExecutionException})
+         */
+        @Nonnull
+        public Executor bulkhead() {
+            return bulkhead;
+        }
+
+        @Nonnull
+        public CircuitBreaker breaker() {
+            return breaker;
+        }
+
+        @Nonnull
+        public IMail<?> encapsulate(String id, String postman, String content) {
+            return this.postman.encapsulate(id, postman, content);
+        }
+
+        /**
+         * 投递邮件，记录指标并更新熔断器.
+         * @param mail 邮件
+         * @return 邮递员是否投递成功
+         */
+        public boolean deliver(@Nonnull IMail<?> mail) {
+            inflight.incrementAndGet();
+            val start = System.nanoTime();
+            try {
+                val success = postman.deliver(mail);
+                if (success) {
+                    delivered.increment();
+                    breaker.success();
+                }
+                else {
+                    rejected.increment();
+                    breaker.failure(clock.millis());
+                }
+                return success;
+            }
+            catch (RuntimeException | Error e) {
+                failed.increment();
+                breaker.failure(clock.millis());
+                throw e;
+            }
+            finally {
+                latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                inflight.decrementAndGet();
+            }
+        }
+
+        private static Counter counter(MeterRegistry registry, String name, String result) {
+            return Counter.builder("messenger.postman.deliveries")
+                .description("The number of mails delivered by the postman")
+                .tag("postman", name)
+                .tag("result", result)
+                .register(registry);
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.apzda.cloud.msg.domain.service;
+
+import com.apzda.cloud.gsvc.autoconfigure.MyBatisPlusAutoConfiguration;
+import com.apzda.cloud.gsvc.config.ServiceConfigProperties;
+import com.apzda.cloud.msg.config.MessengerServiceProperties;
+import com.apzda.cloud.msg.domain.entity.Delivery;
+import com.apzda.cloud.msg.domain.vo.MailStatus;
+import com.apzda.cloud.test.autoconfig.AutoConfigureGsvcTest;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.baomidou.mybatisplus.test.autoconfigure.MybatisPlusTest;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.mybatis.spring.annotation.MapperScan;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.testcontainers.service.connection.ServiceConnection;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.jdbc.Sql;
+import org.testcontainers.containers.MySQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@MybatisPlusTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@ContextConfiguration(classes = MailboxServiceImplTest.class)
+@AutoConfigureGsvcTest
+@ImportAutoConfiguration(MyBatisPlusAutoConfiguration.class)
+@ComponentScan({ "com.apzda.cloud.msg.domain.service" })
+@MapperScan("com.apzda.cloud.msg.domain.mapper")
+@EnableConfigurationProperties({ MessengerServiceProperties.class, ServiceConfigProperties.class })
+@Sql("classpath:retrying.sql")
+@ActiveProfiles("flyway")
+class MailboxServiceImplTest {
+
+    @Autowired
+    private IMailboxService mailboxService;
+
+    @Autowired
+    private IDeliveryService deliveryService;
+
+    @Test
+    void claim_should_take_due_mails_in_batches() {
+        // when
+        val first = mailboxService.claim(MailStatus.RETRYING, 100, 2);
+        val second = mailboxService.claim(MailStatus.RETRYING, 100, 2);
+        val third = mailboxService.claim(MailStatus.RETRYING, 100, 2);
+
+        // then
+        assertThat(first).extracting("msgId").containsExactly("r1", "r2");
+        assertThat(first).extracting("status").containsOnly(MailStatus.SENDING);
+        assertThat(second).extracting("msgId").containsExactly("r3");
+        assertThat(third).isEmpty();
+        assertThat(mailboxService.getByMsgId("r1").getStatus()).isEqualTo(MailStatus.SENDING);
+        assertThat(mailboxService.getByMsgId("r4").getStatus()).isEqualTo(MailStatus.RETRYING);
+    }
+
+    @Test
+    void claim_should_only_take_due_mails_by_id() {
+        // given
+        val r1 = mailboxService.getByMsgId("r1");
+        val r4 = mailboxService.getByMsgId("r4");
+
+        // when
+        val claimed = mailboxService.claim(MailStatus.RETRYING, 100, List.of(r1.getId(), r4.getId()));
+
+        // then
+        assertThat(claimed).extracting("msgId").containsExactly("r1");
+        assertThat(mailboxService.claim(MailStatus.RETRYING, 100, List.of(r1.getId()))).isEmpty();
+    }
+
+    @Test
+    void listDueByPartition_should_split_mails_across_partitions() {
+        // when
+        val p0 = mailboxService.listDueByPartition(MailStatus.RETRYING, 100, 2, 0, 10);
+        val p1 = mailboxService.listDueByPartition(MailStatus.RETRYING, 100, 2, 1, 10);
+
+        // then
+        assertThat(p0.size() + p1.size()).isEqualTo(3);
+        assertThat(p0).allMatch(mailbox -> mailbox.getId() % 2 == 0);
+        assertThat(p1).allMatch(mailbox -> mailbox.getId() % 2 == 1);
+    }
+
+    @Test
+    void markDelivered_should_update_mails_and_record_deliveries() {
+        // given
+        val mails = mailboxService.claim(MailStatus.RETRYING, 100, 2);
+        assertThat(mails).hasSize(2);
+
+        // when
+        mailboxService.markDelivered(List.of(new IMailboxService.Result(mails.get(0), null),
+                new IMailboxService.Result(mails.get(1), "timeout")));
+
+        // then
+        val sent = mailboxService.getByMsgId("r1");
+        assertThat(sent.getStatus()).isEqualTo(MailStatus.SENT);
+        val failed = mailboxService.getByMsgId("r2");
+        assertThat(failed.getStatus()).isEqualTo(MailStatus.RETRYING);
+        assertThat(failed.getRetries()).isEqualTo(1);
+        assertThat(failed.getRemark()).isEqualTo("timeout");
+        val deliveries = deliveryService.list(Wrappers.lambdaQuery(Delivery.class)
+            .in(Delivery::getMailboxId, sent.getId(), failed.getId())
+            .orderByAsc(Delivery::getMailboxId));
+        assertThat(deliveries).extracting("status").containsExactly(MailStatus.SENT, MailStatus.FAIL);
+    }
+
+    @Test
+    void markDelivered_should_defer_mails_without_burning_retries() {
+        // given
+        val mails = mailboxService.claim(MailStatus.RETRYING, 100, 1);
+        assertThat(mails).hasSize(1);
+
+        // when
+        mailboxService.markDelivered(List.of(new IMailboxService.Result(mails.get(0), "unavailable", 1000)));
+
+        // then
+        val deferred = mailboxService.getByMsgId("r1");
+        assertThat(deferred.getStatus()).isEqualTo(MailStatus.RETRYING);
+        assertThat(deferred.getRetries()).isEqualTo(0);
+        assertThat(deferred.getNextRetryAt()).isGreaterThanOrEqualTo(1000);
+        assertThat(deliveryService.count(Wrappers.lambdaQuery(Delivery.class)
+            .eq(Delivery::getMailboxId, deferred.getId()))).isEqualTo(0);
+    }
+
+    @Test
+    void markDelivered_should_skip_mails_that_are_no_longer_claimed() {
+        // given: r1被恢复后重新认领(认领时间已变化)，r2仍属于本次认领
+        val mails = mailboxService.claim(MailStatus.RETRYING, 100, 2);
+        assertThat(mails).hasSize(2);
+        val reclaimed = mails.get(0);
+        reclaimed.setNextRetryAt(reclaimed.getNextRetryAt() - 1);
+
+        // when
+        val recorded = mailboxService.markDelivered(List.of(new IMailboxService.Result(reclaimed, null),
+                new IMailboxService.Result(mails.get(1), null)));
+
+        // then
+        assertThat(recorded).extracting(result -> result.mailbox().getMsgId()).containsExactly("r2");
+        assertThat(mailboxService.getByMsgId("r1").getStatus()).isEqualTo(MailStatus.SENDING);
+        assertThat(mailboxService.getByMsgId("r2").getStatus()).isEqualTo(MailStatus.SENT);
+        assertThat(deliveryService.count(Wrappers.lambdaQuery(Delivery.class)
+            .eq(Delivery::getMailboxId, reclaimed.getId()))).isEqualTo(0);
+    }
+
+    @Test
+    void markDelivered_should_skip_recovered_mails() {
+        // given
+        val mails = mailboxService.claim(MailStatus.RETRYING, 100, 1);
+        assertThat(mails).hasSize(1);
+        mailboxService.recover(mails.get(0).getNextRetryAt() + 1);
+
+        // when
+        val recorded = mailboxService.markDelivered(List.of(new IMailboxService.Result(mails.get(0), "timeout")));
+
+        // then
+        assertThat(recorded).isEmpty();
+        val recovered = mailboxService.getByMsgId("r1");
+        assertThat(recovered.getStatus()).isEqualTo(MailStatus.RETRYING);
+        assertThat(recovered.getRetries()).isEqualTo(0);
+    }
+
+    @Test
+    void recover_should_return_stale_sending_mails_to_retrying() {
+        // given
+        val mails = mailboxService.claim(MailStatus.RETRYING, 100, 2);
+        assertThat(mails).hasSize(2);
+        val claimedAt = mailboxService.getByMsgId("r1").getNextRetryAt();
+
+        // when
+        val fresh = mailboxService.recover(claimedAt);
+        val stale = mailboxService.recover(claimedAt + 1);
+
+        // then
+        assertThat(fresh).isEqualTo(0);
+        assertThat(stale).isEqualTo(2);
+        assertThat(mailboxService.getByMsgId("r1").getStatus()).isEqualTo(MailStatus.RETRYING);
+        assertThat(mailboxService.getByMsgId("r2").getStatus()).isEqualTo(MailStatus.RETRYING);
+        assertThat(mailboxService.claim(MailStatus.RETRYING, claimedAt + 1, 2)).extracting("msgId")
+            .containsExactly("r1", "r2");
+    }
+
+    @TestConfiguration(proxyBeanMethods = false)
+    @ConditionalOnProperty(name = "skip.container", havingValue = "no", matchIfMissing = true)
+    static class TestConfig {
+
+        @Bean
+        @ServiceConnection
+        MySQLContainer<?> mysql() {
+            return new MySQLContainer<>(DockerImageName.parse("mysql:8.0.35")).withDatabaseName("demo_db")
+                .withUsername("root")
+                .withPassword("Abc12332!")
+                .withStartupTimeout(Duration.ofMinutes(3));
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.apzda.cloud.msg.mq;
+
+import lombok.val;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * 在最低支持的Redis版本上验证租借脚本.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Testcontainers(disabledWithoutDocker = true)
+class RedisBasedRateLimiterScriptTest {
+
+    @Container
+    static final GenericContainer<?> redis = new GenericContainer<>(DockerImageName.parse("redis:5-alpine"))
+        .withExposedPorts(6379);
+
+    static LettuceConnectionFactory connectionFactory;
+
+    static StringRedisTemplate redisTemplate;
+
+    @BeforeAll
+    static void setUp() {
+        connectionFactory = new LettuceConnectionFactory(redis.getHost(), redis.getMappedPort(6379));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        connectionFactory.destroy();
+    }
+
+    @BeforeEach
+    void reset() {
+        redisTemplate.delete(RedisBasedRateLimiter.RATE_LIMITER_KEY);
+    }
+
+    @Test
+    void bucket_should_be_refilled_at_the_configured_rate() {
+        // given: 每秒100个令牌，每次租借10个，桶容量10
+        val limiter = limiter();
+        for (int i = 0; i < 10; i++) {
+            limiter.isLimited("test");
+        }
+
+        // when
+        val start = System.nanoTime();
+        limiter.isLimited("test");
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // then: 桶已租空，补满一次租借需要100毫秒，在等待超时前租到
+        assertThat(elapsed).isBetween(50L, 1000L);
+        val tokens = (String) redisTemplate.opsForHash().get(RedisBasedRateLimiter.RATE_LIMITER_KEY, "tokens");
+        assertThat(Double.parseDouble(tokens)).isLessThan(10);
+        assertThat(redisTemplate.getExpire(RedisBasedRateLimiter.RATE_LIMITER_KEY, TimeUnit.MILLISECONDS))
+            .isPositive();
+    }
+
+    @Test
+    void bucket_should_be_shared_by_all_nodes() {
+        // given
+        val node1 = limiter();
+        val node2 = limiter();
+        node1.isLimited("test");
+
+        // when
+        val start = System.nanoTime();
+        node2.isLimited("test");
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // then: node1租空了全局桶，node2需要等待补充
+        assertThat(elapsed).isBetween(50L, 1000L);
+    }
+
+    private static RedisBasedRateLimiter limiter() {
+        return new RedisBasedRateLimiter(mock(RocketMQTemplate.class), redisTemplate, 100, 10, Duration.ofSeconds(2),
+                0);
+    }
+
+}
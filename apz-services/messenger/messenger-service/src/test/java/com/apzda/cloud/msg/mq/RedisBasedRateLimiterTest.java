@@ -0,0 +1,153 @@
+package com.apzda.cloud.msg.mq;
+
+import lombok.val;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class RedisBasedRateLimiterTest {
+
+    @Test
+    void tokens_should_be_taken_from_the_local_bucket() {
+        // given
+        val redis = new FakeRedis(() -> 10L);
+        val limiter = limiter(redis, 10, Duration.ofSeconds(1));
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.isLimited("test")).isFalse();
+        }
+
+        // then
+        assertThat(redis.calls).hasValue(1);
+
+        // when
+        limiter.isLimited("test");
+
+        // then
+        assertThat(redis.calls).hasValue(2);
+    }
+
+    @Test
+    void waiting_threads_should_be_woken_by_one_lease() throws Exception {
+        // given
+        val leasing = new CountDownLatch(1);
+        val proceed = new CountDownLatch(1);
+        val redis = new FakeRedis(() -> {
+            leasing.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 3L;
+        });
+        val limiter = limiter(redis, 3, Duration.ofSeconds(5));
+        val executor = Executors.newFixedThreadPool(3);
+
+        try {
+            // when
+            val first = executor.submit(() -> limiter.isLimited("test"));
+            assertThat(leasing.await(5, TimeUnit.SECONDS)).isTrue();
+            val second = executor.submit(() -> limiter.isLimited("test"));
+            val third = executor.submit(() -> limiter.isLimited("test"));
+            Thread.sleep(100);
+
+            // then: 其它线程等待正在进行的租借，不会再访问Redis
+            assertThat(second).isNotDone();
+            assertThat(third).isNotDone();
+            assertThat(redis.calls).hasValue(1);
+
+            // when
+            proceed.countDown();
+
+            // then
+            assertThat(first.get(1, TimeUnit.SECONDS)).isFalse();
+            assertThat(second.get(1, TimeUnit.SECONDS)).isFalse();
+            assertThat(third.get(1, TimeUnit.SECONDS)).isFalse();
+            assertThat(redis.calls).hasValue(1);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void waiting_should_time_out_when_no_token_is_granted() {
+        // given: 每秒1000个令牌，每次租借10个，全局桶补满一次租借需要10毫秒
+        val redis = new FakeRedis(() -> 0L);
+        val limiter = limiter(redis, 10, Duration.ofMillis(100));
+
+        // when
+        val start = System.nanoTime();
+        limiter.isLimited("test");
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // then: 按补满时间退避重试，而不是忙等
+        assertThat(elapsed).isGreaterThanOrEqualTo(100);
+        assertThat(redis.calls.get()).isBetween(2, 12);
+    }
+
+    @Test
+    void redis_failure_should_not_limit_delivery() {
+        // given
+        val redis = new FakeRedis(() -> {
+            throw new RedisConnectionFailureException("Unable to connect to Redis");
+        });
+        val limiter = limiter(redis, 10, Duration.ofSeconds(5));
+
+        // when
+        val start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.isLimited("test")).isFalse();
+        }
+        val elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // then: 视为租借成功，不等待
+        assertThat(elapsed).isLessThan(1000);
+        assertThat(redis.calls).hasValue(1);
+    }
+
+    private static RedisBasedRateLimiter limiter(FakeRedis redis, int leaseSize, Duration maxWait) {
+        return new RedisBasedRateLimiter(mock(RocketMQTemplate.class), redis, 1000, leaseSize, maxWait, 0);
+    }
+
+    private static class FakeRedis extends StringRedisTemplate {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        private final Supplier<Long> lease;
+
+        FakeRedis(Supplier<Long> lease) {
+            this.lease = lease;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            calls.incrementAndGet();
+            return (T) lease.get();
+        }
+
+    }
+
+}
@@ -0,0 +1,12 @@
+INSERT INTO apzda_mailbox (created_at, updated_at, delivered_at, next_retry_at, msg_id, title, service, status, postman,
+                           content, retries, remark)
+VALUES (null, null, null, 1, 'r1', null, null, 'RETRYING', 'test', 'r1', 0, null);
+INSERT INTO apzda_mailbox (created_at, updated_at, delivered_at, next_retry_at, msg_id, title, service, status, postman,
+                           content, retries, remark)
+VALUES (null, null, null, 2, 'r2', null, null, 'RETRYING', 'test', 'r2', 0, null);
+INSERT INTO apzda_mailbox (created_at, updated_at, delivered_at, next_retry_at, msg_id, title, service, status, postman,
+                           content, retries, remark)
+VALUES (null, null, null, 3, 'r3', null, null, 'RETRYING', 'test', 'r3', 0, null);
+INSERT INTO apzda_mailbox (created_at, updated_at, delivered_at, next_retry_at, msg_id, title, service, status, postman,
+                           content, retries, remark)
+VALUES (null, null, null, 9999999999999, 'r4', null, null, 'RETRYING', 'test', 'r4', 0, null);
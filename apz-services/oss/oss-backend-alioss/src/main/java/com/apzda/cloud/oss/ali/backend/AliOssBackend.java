@@ -18,18 +18,36 @@ package com.apzda.cloud.oss.ali.backend;
 
 import com.aliyun.oss.ClientConfiguration;
 import com.aliyun.oss.OSSClient;
+import com.aliyun.oss.OSSErrorCode;
+import com.aliyun.oss.OSSException;
 import com.aliyun.oss.common.auth.DefaultCredentialProvider;
+import com.aliyun.oss.model.AbortMultipartUploadRequest;
+import com.aliyun.oss.model.CompleteMultipartUploadRequest;
+import com.aliyun.oss.model.InitiateMultipartUploadRequest;
+import com.aliyun.oss.model.ListObjectsRequest;
+import com.aliyun.oss.model.OSSObjectSummary;
 import com.aliyun.oss.model.ObjectMetadata;
+import com.aliyun.oss.model.PartETag;
+import com.aliyun.oss.model.UploadPartRequest;
 import com.apzda.cloud.oss.ali.file.AliOssFile;
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import com.apzda.cloud.oss.backend.ContentRefs;
+import com.apzda.cloud.oss.backend.MultipartUpload;
+import com.apzda.cloud.oss.backend.MultipartUploader;
 import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.proto.FileInfo;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -38,12 +56,18 @@ import java.io.*;
  **/
 @Slf4j
 @Getter
-public class AliOssBackend implements OssBackend {
+public class AliOssBackend implements OssBackend, ChunkedUploadSupport {
 
     private OSSClient ossClient;
 
     private BackendConfig config;
 
+    private LocalFileCache localFileCache;
+
+    private MultipartUploader uploader;
+
+    private final ContentRefs contentRefs = new AliContentRefs();
+
     @Override
     public boolean init(BackendConfig config) {
         this.config = config;
@@ -57,6 +81,8 @@ public class AliOssBackend implements OssBackend {
             conf.setConnectionTimeout((int) config.getConnectTimeout().toMillis());
             conf.setSocketTimeout((int) config.getReadTimeout().toMillis());
 
+            localFileCache = LocalFileCache.of(config);
+            uploader = new MultipartUploader(config);
             this.ossClient = new OSSClient(endpoint, new DefaultCredentialProvider(accessKeyId, accessKeySecret), conf);
 
             return true;
@@ -85,19 +111,27 @@ public class AliOssBackend implements OssBackend {
         if (ossClient == null) {
             throw new IOException("AliOss Client is not initialized");
         }
-        try (val bs = new BufferedInputStream(stream)) {
+        try (stream) {
             val filePath = generatePath(fileName, config.getPathPatten(), path);
-            val meta = new ObjectMetadata();
-            meta.addUserMetadata("filename", fileName);
-            meta.addUserMetadata("createtime", String.valueOf(System.currentTimeMillis()));
-            val result = ossClient.putObject(config.getBucketName(), filePath.substring(1), bs, meta);
-            if (result == null) {
-                throw new IOException("Cannot upload file: response is null");
+            val createTime = System.currentTimeMillis();
+
+            val upload = new PartUpload(filePath, fileName, path, createTime);
+            val result = uploader.upload(stream, fileName, upload);
+            if (upload.existing != null) {
+                return FileInfo.newBuilder(upload.existing).setFilename(fileName).build();
             }
+            // 使用上传结果构建文件信息，无需再次查询元数据
+            val ossFile = new AliOssFile(upload.filePath, this);
+            return ossFile.info(fileName, result.length(), result.fileId(), createTime);
+        }
+    }
 
-            val ossFile = getFile(filePath);
-            return ossFile.stat();
+    @Override
+    public boolean close() {
+        if (uploader != null) {
+            uploader.shutdown();
         }
+        return true;
     }
 
     @Override
@@ -105,8 +139,218 @@ public class AliOssBackend implements OssBackend {
         if (ossClient == null) {
             throw new IOException("AliOss Client is not initialized");
         }
+        if (OssBackend.isContentPath(filePath)) {
+            // 内容对象被多次上传共享，最后一个引用释放后才删除
+            contentRefs.release(filePath);
+            return true;
+        }
         val result = ossClient.deleteObject(config.getBucketName(), filePath.substring(1));
         return result != null && result.getResponse().isSuccessful();
     }
 
+    @Override
+    public long minPartSize() {
+        return 100 * 1024;
+    }
+
+    @Override
+    public Session initiateChunked(String fileName, String path) throws IOException {
+        if (ossClient == null) {
+            throw new IOException("AliOss Client is not initialized");
+        }
+        val filePath = generatePath(fileName, config.getPathPatten(), path);
+        val upload = new PartUpload(filePath, fileName, path, System.currentTimeMillis());
+        upload.initiate();
+        return new Session(upload.uploadId, filePath, upload.createTime);
+    }
+
+    @Override
+    public String uploadChunk(Session session, int partNumber, InputStream data, long length) throws IOException {
+        if (ossClient == null) {
+            throw new IOException("AliOss Client is not initialized");
+        }
+        return new PartUpload(session, null).uploadPart(partNumber, data, length);
+    }
+
+    @Override
+    public FileInfo completeChunked(Session session, String fileName, List<String> parts, long length)
+            throws IOException {
+        if (ossClient == null) {
+            throw new IOException("AliOss Client is not initialized");
+        }
+        val fileId = new PartUpload(session, fileName).complete(parts);
+        return new AliOssFile(session.filePath(), this).info(fileName, length, fileId, session.createTime());
+    }
+
+    @Override
+    public void abortChunked(Session session, List<String> parts) {
+        if (ossClient != null) {
+            new PartUpload(session, null).abort();
+        }
+    }
+
+    private final class PartUpload implements MultipartUpload {
+
+        private final String fileName;
+
+        private final String path;
+
+        private final long createTime;
+
+        private String filePath;
+
+        private String objectName;
+
+        private String uploadId;
+
+        private FileInfo existing;
+
+        private PartUpload(String filePath, String fileName, String path, long createTime) {
+            this.filePath = filePath;
+            this.objectName = filePath.substring(1);
+            this.fileName = fileName;
+            this.path = path;
+            this.createTime = createTime;
+        }
+
+        private PartUpload(Session session, String fileName) {
+            this(session.filePath(), fileName, null, session.createTime());
+            this.uploadId = session.uploadId();
+        }
+
+        @Override
+        public String putObject(byte[] data, int length, byte[] md5) throws IOException {
+            if (!config.isDedup()) {
+                return put(data, length, md5);
+            }
+            // 去重模式: 单个分片的文件上传前已知摘要，内容相同的文件已存在时不再上传
+            filePath = contentPath(HexFormat.of().formatHex(md5), fileName, path);
+            objectName = filePath.substring(1);
+            // 先登记引用再检查内容对象，见ContentRefs
+            val ref = contentRefs.add(filePath);
+            try {
+                try {
+                    existing = getFile(filePath).stat();
+                    return existing.getFileId();
+                }
+                catch (FileNotFoundException e) {
+                    log.trace("Content {} is not found, upload it", filePath);
+                }
+                return put(data, length, md5);
+            }
+            catch (IOException | RuntimeException e) {
+                contentRefs.remove(ref);
+                throw e;
+            }
+        }
+
+        private String put(byte[] data, int length, byte[] md5) throws IOException {
+            val contentMd5 = Base64.getEncoder().encodeToString(md5);
+            val meta = newMetadata();
+            meta.setContentLength(length);
+            meta.setContentMD5(contentMd5);
+            val input = new ByteArrayInputStream(data, 0, length);
+            val result = ossClient.putObject(config.getBucketName(), objectName, input, meta);
+            if (result == null) {
+                throw new IOException("Cannot upload file: response is null");
+            }
+            return contentMd5;
+        }
+
+        @Override
+        public void initiate() {
+            val request = new InitiateMultipartUploadRequest(config.getBucketName(), objectName, newMetadata());
+            uploadId = ossClient.initiateMultipartUpload(request).getUploadId();
+        }
+
+        @Override
+        public String uploadPart(int partNumber, byte[] data, int length) {
+            return uploadPart(partNumber, new ByteArrayInputStream(data, 0, length), length);
+        }
+
+        private String uploadPart(int partNumber, InputStream data, long length) {
+            val request = new UploadPartRequest();
+            request.setBucketName(config.getBucketName());
+            request.setKey(objectName);
+            request.setUploadId(uploadId);
+            request.setPartNumber(partNumber);
+            request.setPartSize(length);
+            request.setInputStream(data);
+            return ossClient.uploadPart(request).getETag();
+        }
+
+        @Override
+        public String complete(List<String> parts) {
+            val partETags = new ArrayList<PartETag>(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                partETags.add(new PartETag(i + 1, parts.get(i)));
+            }
+            val request = new CompleteMultipartUploadRequest(config.getBucketName(), objectName, uploadId, partETags);
+            return ossClient.completeMultipartUpload(request).getETag();
+        }
+
+        @Override
+        public void abort() {
+            if (uploadId == null) {
+                return;
+            }
+            try {
+                val request = new AbortMultipartUploadRequest(config.getBucketName(), objectName, uploadId);
+                ossClient.abortMultipartUpload(request);
+            }
+            catch (Exception e) {
+                log.warn("Cannot abort multipart upload of {}: {}", objectName, e.getMessage());
+            }
+        }
+
+        private ObjectMetadata newMetadata() {
+            val meta = new ObjectMetadata();
+            meta.addUserMetadata("filename", fileName);
+            meta.addUserMetadata("createtime", String.valueOf(createTime));
+            val contentType = OssBackend.contentType(fileName);
+            if (contentType != null) {
+                meta.setContentType(contentType);
+            }
+            return meta;
+        }
+
+    }
+
+    private final class AliContentRefs extends ContentRefs {
+
+        @Override
+        protected void putEmpty(String objectName) {
+            val meta = new ObjectMetadata();
+            meta.setContentLength(0);
+            ossClient.putObject(config.getBucketName(), objectName, new ByteArrayInputStream(new byte[0]), meta);
+        }
+
+        @Override
+        protected List<String> listObjects(String prefix, int limit) {
+            val request = new ListObjectsRequest(config.getBucketName(), prefix, null, null, limit);
+            return ossClient.listObjects(request).getObjectSummaries().stream().map(OSSObjectSummary::getKey).toList();
+        }
+
+        @Override
+        protected void removeObject(String objectName) {
+            ossClient.deleteObject(config.getBucketName(), objectName);
+        }
+
+        @Override
+        protected boolean copyObject(String source, String target) {
+            val bucketName = config.getBucketName();
+            try {
+                ossClient.copyObject(bucketName, source, bucketName, target);
+                return true;
+            }
+            catch (OSSException e) {
+                if (OSSErrorCode.NO_SUCH_KEY.equals(e.getErrorCode())) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+
+    }
+
 }
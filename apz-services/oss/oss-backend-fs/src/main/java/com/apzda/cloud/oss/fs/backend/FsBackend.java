@@ -17,9 +17,11 @@
 package com.apzda.cloud.oss.fs.backend;
 
 import com.apzda.cloud.oss.backend.OssBackend;
+import com.apzda.cloud.oss.backend.PathAllocator;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
 import com.apzda.cloud.oss.fs.file.FsFile;
+import com.apzda.cloud.oss.fs.file.FsMetadata;
 import com.apzda.cloud.oss.proto.FileInfo;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -27,6 +29,15 @@ import lombok.val;
 import org.springframework.util.FileCopyUtils;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -41,10 +52,19 @@ public class FsBackend implements OssBackend {
 
     private String rootDir;
 
+    private Path refsDir;
+
+    private final Object refLock = new Object();
+
+    @Getter
+    private FsMetadata metadata;
+
     @Override
     public boolean init(BackendConfig config) {
         this.config = config;
         this.rootDir = config.getRootDir();
+        this.metadata = new FsMetadata(rootDir);
+        this.refsDir = Paths.get(rootDir, REFS_DIR).toAbsolutePath().normalize();
         val file = new File(rootDir);
         val absolutePath = file.getAbsolutePath();
         if (!file.exists()) {
@@ -71,19 +91,18 @@ public class FsBackend implements OssBackend {
     @Override
     public FileInfo uploadFile(InputStream stream, String fileName, String path) throws IOException {
         try (val bs = new BufferedInputStream(stream)) {
-            val filePath = generatePath(fileName, config.getPathPatten(), path);
-            val destFile = new File(rootDir + filePath);
-            val absolutePath = destFile.getParentFile().getAbsolutePath();
-            val parentDir = new File(absolutePath);
             try {
-                if (!parentDir.exists()) {
-                    synchronized (this) {
-                        if (!parentDir.exists() && !parentDir.mkdirs()) {
-                            throw new IOException("Cannot create directory: " + absolutePath);
-                        }
-                    }
+                // 写入的同时计算摘要并保存到元数据，stat时无需再次读取文件
+                val input = new DigestInputStream(bs, MessageDigest.getInstance("MD5"));
+                if (config.isDedup()) {
+                    return dedupUpload(input, fileName, path);
                 }
-                FileCopyUtils.copy(bs, new FileOutputStream(destFile));
+                val filePath = generatePath(fileName, config.getPathPatten(), path);
+                val destFile = new File(rootDir + filePath);
+                mkdirs(destFile.getParentFile());
+                FileCopyUtils.copy(input, new FileOutputStream(destFile));
+                val md5 = HexFormat.of().formatHex(input.getMessageDigest().digest());
+                metadata.store(destFile.toPath(), filePath, md5);
                 val ossFile = getFile(filePath);
                 val stat = ossFile.stat();
                 return FileInfo.newBuilder(stat).setFilename(fileName).build();
@@ -91,16 +110,108 @@ public class FsBackend implements OssBackend {
             catch (IOException ie) {
                 throw ie;
             }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
             catch (Exception e) {
                 throw new IOException(e);
             }
         }
     }
 
+    /**
+     * 去重模式: 先写入临时文件，摘要确定后移动到基于内容的路径，内容相同的文件已存在时直接使用.
+     * 每次上传登记一个引用，引用的登记与释放互斥，保证内容文件只在最后一个引用释放后删除.
+     */
+    private FileInfo dedupUpload(DigestInputStream input, String fileName, String path) throws IOException {
+        val tmpFile = Files.createTempFile(Paths.get(rootDir), ".upload-", ".part");
+        try {
+            FileCopyUtils.copy(input, Files.newOutputStream(tmpFile));
+            val md5 = HexFormat.of().formatHex(input.getMessageDigest().digest());
+            val filePath = contentPath(md5, fileName, path);
+            val destFile = new File(rootDir + filePath);
+            synchronized (refLock) {
+                val refDir = refDir(filePath);
+                Files.createDirectories(refDir);
+                Files.createFile(refDir.resolve(PathAllocator.nextId()));
+                if (!destFile.exists()) {
+                    mkdirs(destFile.getParentFile());
+                    Files.move(tmpFile, destFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                    metadata.store(destFile.toPath(), filePath, md5);
+                }
+                else {
+                    log.debug("File {} already exists, reuse it for {}", filePath, fileName);
+                }
+            }
+            val stat = getFile(filePath).stat();
+            return FileInfo.newBuilder(stat).setFilename(fileName).build();
+        }
+        finally {
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+
+    private void mkdirs(File parentDir) throws IOException {
+        if (!parentDir.exists()) {
+            synchronized (this) {
+                if (!parentDir.exists() && !parentDir.mkdirs()) {
+                    throw new IOException("Cannot create directory: " + parentDir.getAbsolutePath());
+                }
+            }
+        }
+    }
+
     @Override
     public boolean delete(String filePath) throws IOException {
-        val ossFile = getFile(filePath);
-        return ossFile.delete();
+        if (!filePath.startsWith("/")) {
+            filePath = "/" + filePath;
+        }
+        if (!OssBackend.isContentPath(filePath)) {
+            return remove(filePath);
+        }
+        synchronized (refLock) {
+            // 内容文件被多次上传共享，仍有其它引用时只释放一个引用
+            if (releaseRef(filePath)) {
+                return true;
+            }
+            return remove(filePath);
+        }
+    }
+
+    private boolean remove(String filePath) throws IOException {
+        metadata.delete(filePath);
+        return Files.deleteIfExists(Paths.get(rootDir + filePath));
+    }
+
+    /**
+     * 释放内容文件的一个引用.
+     * @return 是否仍有其它引用
+     */
+    private boolean releaseRef(String filePath) throws IOException {
+        val refDir = refDir(filePath);
+        if (!Files.isDirectory(refDir)) {
+            return false;
+        }
+        List<Path> refs;
+        try (val stream = Files.list(refDir)) {
+            refs = stream.limit(2).toList();
+        }
+        if (!refs.isEmpty()) {
+            Files.deleteIfExists(refs.get(0));
+        }
+        if (refs.size() > 1) {
+            return true;
+        }
+        Files.deleteIfExists(refDir);
+        return false;
+    }
+
+    private Path refDir(String filePath) {
+        val refDir = refsDir.getParent().resolve(OssBackend.refPrefix(filePath)).normalize();
+        if (!refDir.startsWith(refsDir) || refDir.equals(refsDir)) {
+            throw new IllegalArgumentException("Invalid file path: " + filePath);
+        }
+        return refDir;
     }
 
 }
@@ -17,16 +17,18 @@
 package com.apzda.cloud.oss.fs.file;
 
 import cn.hutool.core.io.FileUtil;
+import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
 import com.apzda.cloud.oss.fs.backend.FsBackend;
 import com.apzda.cloud.oss.proto.FileInfo;
 import lombok.val;
-import org.springframework.util.DigestUtils;
 
 import java.io.*;
-import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
 
 /**
@@ -46,6 +48,10 @@ public class FsFile implements IOssFile {
 
     protected final String rootDir;
 
+    protected final FsMetadata metadata;
+
+    protected final FsBackend backend;
+
     public FsFile(String filePath, FsBackend backend) {
         if (filePath.startsWith("/")) {
             this.filePath = filePath;
@@ -56,6 +62,8 @@ public class FsFile implements IOssFile {
         this.config = backend.getConfig();
         this.baseUrl = config.getBaseUrl();
         this.rootDir = config.getRootDir();
+        this.metadata = backend.getMetadata();
+        this.backend = backend;
         this.file = new File(rootDir + filePath);
     }
 
@@ -74,6 +82,32 @@ public class FsFile implements IOssFile {
         return new BufferedInputStream(new FileInputStream(file));
     }
 
+    /**
+     * 使用FileChannel.transferTo写入，数据不经过Java堆.
+     */
+    @Override
+    public long transferTo(long offset, long length, OutputStream out) throws IOException {
+        try (val channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            val target = Channels.newChannel(out);
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                val transferred = channel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+            return length - remaining;
+        }
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
     @Override
     public FileInfo stat() throws IOException {
         val builder = FileInfo.newBuilder();
@@ -86,15 +120,13 @@ public class FsFile implements IOssFile {
             builder.setLength(file.length());
             builder.setExt(FileUtil.extName(file));
             builder.setFilename(file.getName());
-            builder.setContentType(URLConnection.guessContentTypeFromName(file.getName()));
-            try (val input = new FileInputStream(file)) {
-                builder.setFileId(DigestUtils.md5DigestAsHex(input));
+            builder.setContentType(OssBackend.contentType(file.getName()));
+            // 摘要在上传时已计算并保存在元数据中，无需读取整个文件
+            builder.setFileId(metadata.md5(file.toPath(), filePath));
+            try {
                 FileTime creationTime = (FileTime) Files.getAttribute(file.toPath(), "creationTime");
                 builder.setCreateTime(creationTime.toMillis());
             }
-            catch (FileNotFoundException e) {
-                throw e;
-            }
             catch (IOException e) {
                 builder.setCreateTime(0);
             }
@@ -107,7 +139,7 @@ public class FsFile implements IOssFile {
 
     @Override
     public boolean delete() throws IOException {
-        return Files.deleteIfExists(file.toPath());
+        return backend.delete(filePath);
     }
 
 }
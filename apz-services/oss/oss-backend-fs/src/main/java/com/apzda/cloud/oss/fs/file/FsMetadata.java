@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.fs.file;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.util.DigestUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * 文件元数据索引. 上传时计算的摘要保存在文件的扩展属性(xattr)中，文件系统不支持扩展属性时保存在根目录下的
+ * {@value #META_DIR}目录中. 元数据同时记录文件长度与修改时间，文件被外部修改后元数据失效并重新计算.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class FsMetadata {
+
+    public static final String META_DIR = ".oss-meta";
+
+    private static final String XATTR_NAME = "apzda.oss.md5";
+
+    private final Path metaDir;
+
+    private volatile boolean xattrSupported = true;
+
+    public FsMetadata(@NonNull String rootDir) {
+        this.metaDir = Paths.get(rootDir, META_DIR).toAbsolutePath().normalize();
+    }
+
+    /**
+     * 获取文件的MD5摘要，元数据不存在或已失效时计算一次并保存.
+     * @param file 文件
+     * @param filePath 文件相对于根目录的路径
+     * @return MD5摘要
+     */
+    @NonNull
+    public String md5(@NonNull Path file, @NonNull String filePath) throws IOException {
+        val attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        val value = read(file, filePath);
+        if (value != null) {
+            val parts = value.split(":");
+            if (parts.length == 3 && parts[1].equals(String.valueOf(attrs.size()))
+                    && parts[2].equals(String.valueOf(attrs.lastModifiedTime().toMillis()))) {
+                return parts[0];
+            }
+        }
+        String md5;
+        try (val input = new BufferedInputStream(Files.newInputStream(file))) {
+            md5 = DigestUtils.md5DigestAsHex(input);
+        }
+        store(file, filePath, md5);
+        return md5;
+    }
+
+    /**
+     * 保存文件的MD5摘要(在文件写入完成后调用).
+     * @param file 文件
+     * @param filePath 文件相对于根目录的路径
+     * @param md5 MD5摘要
+     */
+    public void store(@NonNull Path file, @NonNull String filePath, @NonNull String md5) {
+        try {
+            val attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            val value = md5 + ":" + attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+            if (xattrSupported) {
+                val view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+                if (view != null) {
+                    try {
+                        view.write(XATTR_NAME, StandardCharsets.US_ASCII.encode(value));
+                        return;
+                    }
+                    catch (IOException | UnsupportedOperationException e) {
+                        log.debug("Extended attributes are not supported, use {} instead: {}", metaDir, e.getMessage());
+                    }
+                }
+                xattrSupported = false;
+            }
+            val sidecar = sidecar(filePath);
+            Files.createDirectories(sidecar.getParent());
+            Files.writeString(sidecar, value, StandardCharsets.US_ASCII);
+        }
+        catch (IOException e) {
+            log.warn("Cannot store metadata of {}: {}", filePath, e.getMessage());
+        }
+    }
+
+    /**
+     * 删除文件的元数据(扩展属性随文件一起删除).
+     * @param filePath 文件相对于根目录的路径
+     */
+    public void delete(@NonNull String filePath) {
+        try {
+            Files.deleteIfExists(sidecar(filePath));
+        }
+        catch (IOException e) {
+            log.warn("Cannot delete metadata of {}: {}", filePath, e.getMessage());
+        }
+    }
+
+    @Nullable
+    private String read(@NonNull Path file, @NonNull String filePath) {
+        if (xattrSupported) {
+            val view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+            if (view != null) {
+                try {
+                    if (view.list().contains(XATTR_NAME)) {
+                        val buffer = ByteBuffer.allocate(view.size(XATTR_NAME));
+                        view.read(XATTR_NAME, buffer);
+                        buffer.flip();
+                        return StandardCharsets.US_ASCII.decode(buffer).toString();
+                    }
+                }
+                catch (IOException | UnsupportedOperationException e) {
+                    log.trace("Cannot read extended attributes of {}: {}", filePath, e.getMessage());
+                }
+            }
+        }
+        val sidecar = sidecar(filePath);
+        try {
+            if (Files.isRegularFile(sidecar)) {
+                return Files.readString(sidecar, StandardCharsets.US_ASCII);
+            }
+        }
+        catch (IOException e) {
+            log.trace("Cannot read metadata of {}: {}", filePath, e.getMessage());
+        }
+        return null;
+    }
+
+    @NonNull
+    private Path sidecar(@NonNull String filePath) {
+        val sidecar = metaDir.resolve(filePath.replaceFirst("^/+", "")).normalize();
+        if (!sidecar.startsWith(metaDir)) {
+            throw new IllegalArgumentException("Invalid file path: " + filePath);
+        }
+        return sidecar;
+    }
+
+}
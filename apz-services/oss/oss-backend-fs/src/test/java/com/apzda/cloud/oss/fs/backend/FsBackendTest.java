@@ -1,14 +1,19 @@
 package com.apzda.cloud.oss.fs.backend;
 
 import cn.hutool.core.io.FileUtil;
+import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import lombok.val;
 import org.junit.jupiter.api.Test;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -31,12 +36,12 @@ class FsBackendTest {
 
         // given
         val file = new File("./pom.xml");
-        val path = backend.generatePath(file.getName(), config.getPathPatten(), null);
         // when
         val fileInfo = backend.uploadFile(file);
         // then
         assertThat(fileInfo).isNotNull();
         assertThat(fileInfo.getExt()).isEqualTo("xml");
+        val path = fileInfo.getPath();
 
         // when
         val ossFile = backend.getFile(path);
@@ -65,7 +70,40 @@ class FsBackendTest {
         assertThat(fileInfo1.getExt()).isEqualTo("xml");
         assertThat(fileInfo1.getFileId()).isEqualTo(fileInfo.getFileId());
         assertThat(fileInfo1.getFilename()).isEqualTo("pom.xml");
+        assertThat(fileInfo1.getPath()).isNotEqualTo(path);
+        assertThat(backend.delete(fileInfo1.getPath())).isTrue();
+    }
+
+    @Test
+    void same_content_should_be_deduplicated() throws IOException {
+        // given
+        val config = new BackendConfig();
+        config.setRootDir(Files.createTempDirectory("oss-dedup").toString());
+        config.setDedup(true);
+        val backend = new FsBackend();
+        backend.init(config);
+        val file = new File("./pom.xml");
+
+        // when
+        val fileInfo = backend.uploadFile(file);
+        val fileInfo1 = backend.uploadFile(new FileInputStream(file), "copy.xml", null);
+
+        // then
+        assertThat(fileInfo.getPath()).endsWith("/" + OssBackend.CONTENT_NAME_PREFIX + fileInfo.getFileId() + ".xml");
+        assertThat(fileInfo1.getPath()).isEqualTo(fileInfo.getPath());
+        assertThat(fileInfo1.getFilename()).isEqualTo("copy.xml");
 
+        // when
+        val deleted = backend.delete(fileInfo.getPath());
+        // then
+        assertThat(deleted).isTrue();
+        assertThat(backend.getFile(fileInfo1.getPath()).stat().getFileId()).isEqualTo(fileInfo.getFileId());
+
+        // when
+        val deleted1 = backend.delete(fileInfo1.getPath());
+        // then
+        assertThat(deleted1).isTrue();
+        assertThatThrownBy(() -> backend.getFile(fileInfo1.getPath()).stat()).isInstanceOf(FileNotFoundException.class);
     }
 
 }
@@ -0,0 +1,59 @@
+package com.apzda.cloud.oss.fs.file;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class FsMetadataTest {
+
+    @TempDir
+    Path rootDir;
+
+    @Test
+    void stored_digest_should_be_used() throws IOException {
+        // given
+        val file = rootDir.resolve("2024/abc.txt");
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, "hello");
+        val metadata = new FsMetadata(rootDir.toString());
+
+        // when
+        val md5 = metadata.md5(file, "/2024/abc.txt");
+        // then
+        assertThat(md5).isEqualTo("5d41402abc4b2a76b9719d911017c592");
+
+        // when: 元数据中的摘要不会被重新计算
+        metadata.store(file, "/2024/abc.txt", "stored");
+        // then
+        assertThat(metadata.md5(file, "/2024/abc.txt")).isEqualTo("stored");
+
+        // when: 文件被修改后元数据失效
+        Files.writeString(file, "hello!");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        // then
+        assertThat(metadata.md5(file, "/2024/abc.txt")).isEqualTo("5a8dd3ad0756a93ded72b823b19dd877");
+    }
+
+    @Test
+    void path_outside_meta_dir_should_be_rejected() {
+        // given
+        val metadata = new FsMetadata(rootDir.toString());
+
+        // when & then
+        assertThatThrownBy(() -> metadata.delete("/../../etc/passwd")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+}
@@ -16,14 +16,27 @@
  */
 package com.apzda.cloud.oss.minio.backend;
 
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import com.apzda.cloud.oss.backend.ContentRefs;
+import com.apzda.cloud.oss.backend.MultipartUpload;
+import com.apzda.cloud.oss.backend.MultipartUploader;
 import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.minio.file.MinioFile;
 import com.apzda.cloud.oss.proto.FileInfo;
+import io.minio.ComposeObjectArgs;
+import io.minio.ComposeSource;
+import io.minio.CopyObjectArgs;
+import io.minio.CopySource;
+import io.minio.ListObjectsArgs;
 import io.minio.MinioClient;
 import io.minio.PutObjectArgs;
 import io.minio.RemoveObjectArgs;
+import io.minio.RemoveObjectsArgs;
+import io.minio.errors.ErrorResponseException;
+import io.minio.messages.DeleteObject;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
@@ -31,7 +44,14 @@ import okhttp3.OkHttpClient;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -40,14 +60,20 @@ import java.util.HashMap;
  **/
 @Slf4j
 @Getter
-public class MinioBackend implements OssBackend {
+public class MinioBackend implements OssBackend, ChunkedUploadSupport {
 
     private MinioClient ossClient;
 
     private BackendConfig config;
 
+    private LocalFileCache localFileCache;
+
+    private MultipartUploader uploader;
+
     private String bucketName;
 
+    private final ContentRefs contentRefs = new MinioContentRefs();
+
     @Override
     public boolean init(BackendConfig config) {
         this.config = config;
@@ -70,6 +96,8 @@ public class MinioBackend implements OssBackend {
 
             builder.httpClient(httpClientBuilder.build());
 
+            localFileCache = LocalFileCache.of(config);
+            uploader = new MultipartUploader(config);
             ossClient = builder.build();
 
             return true;
@@ -98,33 +126,27 @@ public class MinioBackend implements OssBackend {
         if (ossClient == null) {
             throw new IOException("MinIO Client is not initialized");
         }
-        try (val bs = new BufferedInputStream(stream)) {
+        try (stream) {
             val filePath = generatePath(fileName, config.getPathPatten(), path);
-            val builder = PutObjectArgs.builder();
-
-            val meta = new HashMap<String, String>();
-            meta.put("filename", fileName);
-            meta.put("createtime", String.valueOf(System.currentTimeMillis()));
+            val createTime = System.currentTimeMillis();
 
-            builder.userMetadata(meta);
-
-            builder.bucket(bucketName).object(filePath.substring(1)).stream(bs, -1, 10485760);
-
-            val result = ossClient.putObject(builder.build());
-            if (result == null) {
-                throw new IOException("Cannot upload file: response is null");
+            val upload = new ComposeUpload(filePath, fileName, path, UUID.randomUUID().toString(), createTime);
+            val result = uploader.upload(stream, fileName, upload);
+            if (upload.existing != null) {
+                return FileInfo.newBuilder(upload.existing).setFilename(fileName).build();
             }
-
-            val ossFile = getFile(filePath);
-
-            return ossFile.stat();
-        }
-        catch (IOException e) {
-            throw e;
+            // 使用上传结果构建文件信息，无需再次statObject
+            val ossFile = new MinioFile(upload.filePath, this);
+            return ossFile.info(fileName, result.length(), result.fileId(), createTime);
         }
-        catch (Exception e) {
-            throw new IOException(e);
+    }
+
+    @Override
+    public boolean close() {
+        if (uploader != null) {
+            uploader.shutdown();
         }
+        return true;
     }
 
     @Override
@@ -132,15 +154,285 @@ public class MinioBackend implements OssBackend {
         if (ossClient == null) {
             throw new IOException("MinIO Client is not initialized");
         }
-        val builder = RemoveObjectArgs.builder();
-        val args = builder.bucket(bucketName).object(filePath.substring(1)).build();
+        if (OssBackend.isContentPath(filePath)) {
+            // 内容对象被多次上传共享，最后一个引用释放后才删除
+            contentRefs.release(filePath);
+            return true;
+        }
+        remove(filePath.substring(1));
+        return true;
+    }
+
+    private void remove(String objectName) throws IOException {
+        val args = RemoveObjectArgs.builder().bucket(bucketName).object(objectName).build();
         try {
             ossClient.removeObject(args);
-            return true;
         }
         catch (Exception e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * 合并(composeObject)要求除最后一个外的源对象不小于5MB.
+     */
+    @Override
+    public long minPartSize() {
+        return 5 * 1024 * 1024;
+    }
+
+    @Override
+    public Session initiateChunked(String fileName, String path) throws IOException {
+        if (ossClient == null) {
+            throw new IOException("MinIO Client is not initialized");
+        }
+        val filePath = generatePath(fileName, config.getPathPatten(), path);
+        return new Session(UUID.randomUUID().toString(), filePath, System.currentTimeMillis());
+    }
+
+    @Override
+    public String uploadChunk(Session session, int partNumber, InputStream data, long length) throws IOException {
+        if (ossClient == null) {
+            throw new IOException("MinIO Client is not initialized");
+        }
+        val upload = new ComposeUpload(session, null);
+        val part = upload.partPrefix + partNumber;
+        upload.put(part, data, length, null, null);
+        return part;
+    }
+
+    @Override
+    public FileInfo completeChunked(Session session, String fileName, List<String> parts, long length)
+            throws IOException {
+        if (ossClient == null) {
+            throw new IOException("MinIO Client is not initialized");
+        }
+        val upload = new ComposeUpload(session, fileName);
+        upload.uploaded.addAll(parts);
+        val fileId = upload.complete(parts);
+        return new MinioFile(session.filePath(), this).info(fileName, length, fileId, session.createTime());
+    }
+
+    @Override
+    public void abortChunked(Session session, List<String> parts) {
+        if (ossClient != null) {
+            val upload = new ComposeUpload(session, null);
+            upload.uploaded.addAll(parts);
+            upload.abort();
+        }
+    }
+
+    /**
+     * MinIO客户端未公开分片上传接口，分片作为临时对象并行上传后通过服务端合并(composeObject)生成目标对象.
+     */
+    private final class ComposeUpload implements MultipartUpload {
+
+        private final String fileName;
+
+        private final String path;
+
+        private final Map<String, String> meta = new HashMap<>();
+
+        private final String contentType;
+
+        private final String partPrefix;
+
+        private String filePath;
+
+        private String objectName;
+
+        private FileInfo existing;
+
+        private final Queue<String> uploaded = new ConcurrentLinkedQueue<>();
+
+        private ComposeUpload(String filePath, String fileName, String path, String uploadId, long createTime) {
+            this.filePath = filePath;
+            this.objectName = filePath.substring(1);
+            this.fileName = fileName;
+            this.path = path;
+            this.partPrefix = ".multipart/" + uploadId + "/";
+            this.contentType = OssBackend.contentType(fileName);
+            if (fileName != null) {
+                meta.put("filename", fileName);
+            }
+            meta.put("createtime", String.valueOf(createTime));
+        }
+
+        private ComposeUpload(Session session, String fileName) {
+            this(session.filePath(), fileName, null, session.uploadId(), session.createTime());
+        }
+
+        @Override
+        public String putObject(byte[] data, int length, byte[] md5) throws IOException {
+            if (!config.isDedup()) {
+                return put(objectName, new ByteArrayInputStream(data, 0, length), length, meta, contentType);
+            }
+            // 去重模式: 单个分片的文件上传前已知摘要，内容相同的文件已存在时不再上传
+            filePath = contentPath(HexFormat.of().formatHex(md5), fileName, path);
+            objectName = filePath.substring(1);
+            // 先登记引用再检查内容对象，见ContentRefs
+            val ref = contentRefs.add(filePath);
+            try {
+                try {
+                    existing = getFile(filePath).stat();
+                    return existing.getFileId();
+                }
+                catch (FileNotFoundException e) {
+                    log.trace("Content {} is not found, upload it", filePath);
+                }
+                return put(objectName, new ByteArrayInputStream(data, 0, length), length, meta, contentType);
+            }
+            catch (IOException | RuntimeException e) {
+                contentRefs.remove(ref);
+                throw e;
+            }
+        }
+
+        @Override
+        public void initiate() {
+        }
+
+        @Override
+        public String uploadPart(int partNumber, byte[] data, int length) throws IOException {
+            val part = partPrefix + partNumber;
+            put(part, new ByteArrayInputStream(data, 0, length), length, null, null);
+            uploaded.add(part);
+            return part;
+        }
+
+        @Override
+        public String complete(List<String> parts) throws IOException {
+            val sources = parts.stream()
+                .map(part -> ComposeSource.builder().bucket(bucketName).object(part).build())
+                .toList();
+            try {
+                val args = ComposeObjectArgs.builder()
+                    .bucket(bucketName)
+                    .object(objectName)
+                    .sources(sources)
+                    .userMetadata(meta)
+                    .headers(contentType == null ? Map.of() : Map.of("Content-Type", contentType))
+                    .build();
+                return ossClient.composeObject(args).etag();
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+            finally {
+                abort();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (uploaded.isEmpty()) {
+                return;
+            }
+            val objects = uploaded.stream().map(DeleteObject::new).toList();
+            uploaded.clear();
+            val args = RemoveObjectsArgs.builder().bucket(bucketName).objects(objects).build();
+            for (val result : ossClient.removeObjects(args)) {
+                try {
+                    val error = result.get();
+                    log.warn("Cannot remove part {}: {}", error.objectName(), error.message());
+                }
+                catch (Exception e) {
+                    log.warn("Cannot remove parts of {}: {}", objectName, e.getMessage());
+                }
+            }
+        }
+
+        private String put(String name, InputStream data, long length, Map<String, String> userMeta,
+                String contentType) throws IOException {
+            val builder = PutObjectArgs.builder().bucket(bucketName).object(name).stream(data, length, -1);
+            if (userMeta != null) {
+                builder.userMetadata(userMeta);
+            }
+            if (contentType != null) {
+                builder.contentType(contentType);
+            }
+            try {
+                val result = ossClient.putObject(builder.build());
+                if (result == null) {
+                    throw new IOException("Cannot upload file: response is null");
+                }
+                return result.etag();
+            }
+            catch (IOException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+    }
+
+    private final class MinioContentRefs extends ContentRefs {
+
+        @Override
+        protected void putEmpty(String objectName) throws IOException {
+            val args = PutObjectArgs.builder()
+                .bucket(bucketName)
+                .object(objectName)
+                .stream(new ByteArrayInputStream(new byte[0]), 0, -1)
+                .build();
+            try {
+                ossClient.putObject(args);
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        protected List<String> listObjects(String prefix, int limit) throws IOException {
+            val args = ListObjectsArgs.builder().bucket(bucketName).prefix(prefix).maxKeys(limit).build();
+            val objects = new ArrayList<String>(limit);
+            try {
+                for (val result : ossClient.listObjects(args)) {
+                    objects.add(result.get().objectName());
+                    if (objects.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+            return objects;
+        }
+
+        @Override
+        protected void removeObject(String objectName) throws IOException {
+            remove(objectName);
+        }
+
+        @Override
+        protected boolean copyObject(String source, String target) throws IOException {
+            val args = CopyObjectArgs.builder()
+                .bucket(bucketName)
+                .object(target)
+                .source(CopySource.builder().bucket(bucketName).object(source).build())
+                .build();
+            try {
+                ossClient.copyObject(args);
+                return true;
+            }
+            catch (ErrorResponseException e) {
+                if ("NoSuchKey".equals(e.errorResponse().code())) {
+                    return false;
+                }
+                throw new IOException(e);
+            }
+            catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+    }
+
 }
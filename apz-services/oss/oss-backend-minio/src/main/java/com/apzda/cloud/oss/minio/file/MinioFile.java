@@ -17,9 +17,10 @@
 package com.apzda.cloud.oss.minio.file;
 
 import cn.hutool.core.io.FileUtil;
-import cn.hutool.crypto.SecureUtil;
+import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.minio.backend.MinioBackend;
 import com.apzda.cloud.oss.proto.FileInfo;
 import io.minio.GetObjectArgs;
@@ -27,10 +28,8 @@ import io.minio.MinioClient;
 import io.minio.StatObjectArgs;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.util.FileCopyUtils;
 
 import java.io.*;
-import java.net.URLConnection;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -66,22 +65,17 @@ public class MinioFile implements IOssFile {
         }
     }
 
+    /**
+     * 文件的本地副本，由存储的{@link LocalFileCache}管理.
+     */
     @Override
     public File getLocalFile() throws IOException {
-        val tmpDir = config.getTmpDir();
-        val stat = stat();
-        val localFileName = tmpDir + SecureUtil.md5(stat.getFileId()) + "." + stat.getExt();
-        var localFile = new File(localFileName);
-        if (localFile.exists()) {
-            return localFile;
-        }
-        synchronized (filePath) {
-            if (localFile.exists()) {
-                return localFile;
-            }
-            FileCopyUtils.copy(getInputStream(), new BufferedOutputStream(new FileOutputStream(localFile)));
-            return localFile;
-        }
+        return backend.getLocalFileCache().get(stat(), this::getInputStream);
+    }
+
+    @Override
+    public LocalFileCache.Lease openLocalFile() throws IOException {
+        return backend.getLocalFileCache().acquire(stat(), this::getInputStream);
     }
 
     @Override
@@ -101,6 +95,23 @@ public class MinioFile implements IOssFile {
         }
     }
 
+    @Override
+    public InputStream getInputStream(long offset, long length) throws IOException {
+        val bucketName = config.getBucketName();
+        val builder = GetObjectArgs.builder();
+        val arg = builder.bucket(bucketName).object(objectName).offset(offset).length(length).build();
+        try {
+            val ossObject = ossClient.getObject(arg);
+            return new BufferedInputStream(ossObject);
+        }
+        catch (IOException ie) {
+            throw ie;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
     @Override
     public FileInfo stat() throws IOException {
         try {
@@ -109,25 +120,33 @@ public class MinioFile implements IOssFile {
             val meta = ossClient.statObject(args);
             val userMeta = meta.userMetadata();
             val filename = userMeta.getOrDefault("filename", FileUtil.getName(filePath));
-            val builder = FileInfo.newBuilder();
-            builder.setError(0);
-            builder.setExist(true);
-            builder.setPath(filePath);
-            builder.setUrl(theUrl(filePath));
-            builder.setLength(meta.size());
-            builder.setFileId(meta.etag());
-            builder.setFilename(filename);
-            builder.setContentType(URLConnection.guessContentTypeFromName(filename));
-            builder.setExt(FileUtil.extName(builder.getFilename()));
-            builder.setCreateTime(Long.parseLong(userMeta.getOrDefault("createtime", "0")));
-            builder.setBackend("minio");
-            return builder.build();
+            return info(filename, meta.size(), meta.etag(),
+                    Long.parseLong(userMeta.getOrDefault("createtime", "0")));
         }
         catch (Exception e) {
             throw new FileNotFoundException(filePath + ": " + e.getMessage());
         }
     }
 
+    /**
+     * 构建文件信息，上传完成后可直接使用上传结果构建，无需再次查询.
+     */
+    public FileInfo info(String filename, long length, String fileId, long createTime) {
+        val builder = FileInfo.newBuilder();
+        builder.setError(0);
+        builder.setExist(true);
+        builder.setPath(filePath);
+        builder.setUrl(theUrl(filePath));
+        builder.setLength(length);
+        builder.setFileId(fileId);
+        builder.setFilename(filename);
+        builder.setContentType(OssBackend.contentType(filename));
+        builder.setExt(FileUtil.extName(builder.getFilename()));
+        builder.setCreateTime(createTime);
+        builder.setBackend("minio");
+        return builder.build();
+    }
+
     @Override
     public boolean delete() throws IOException {
         return backend.delete(filePath);
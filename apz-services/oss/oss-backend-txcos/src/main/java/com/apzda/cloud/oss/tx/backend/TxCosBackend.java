@@ -16,16 +16,29 @@
  */
 package com.apzda.cloud.oss.tx.backend;
 
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import com.apzda.cloud.oss.backend.ContentRefs;
+import com.apzda.cloud.oss.backend.MultipartUpload;
+import com.apzda.cloud.oss.backend.MultipartUploader;
 import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.proto.FileInfo;
 import com.apzda.cloud.oss.tx.file.TxOssFile;
 import com.qcloud.cos.COSClient;
 import com.qcloud.cos.ClientConfig;
 import com.qcloud.cos.auth.BasicCOSCredentials;
+import com.qcloud.cos.exception.CosServiceException;
 import com.qcloud.cos.http.HttpProtocol;
+import com.qcloud.cos.model.AbortMultipartUploadRequest;
+import com.qcloud.cos.model.CompleteMultipartUploadRequest;
+import com.qcloud.cos.model.InitiateMultipartUploadRequest;
+import com.qcloud.cos.model.COSObjectSummary;
+import com.qcloud.cos.model.ListObjectsRequest;
 import com.qcloud.cos.model.ObjectMetadata;
+import com.qcloud.cos.model.PartETag;
+import com.qcloud.cos.model.UploadPartRequest;
 import com.qcloud.cos.region.Region;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -33,6 +46,10 @@ import lombok.val;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -41,14 +58,20 @@ import java.io.*;
  **/
 @Slf4j
 @Getter
-public class TxCosBackend implements OssBackend {
+public class TxCosBackend implements OssBackend, ChunkedUploadSupport {
 
     private COSClient cosClient;
 
     private BackendConfig config;
 
+    private LocalFileCache localFileCache;
+
+    private MultipartUploader uploader;
+
     private String bucketName;
 
+    private final ContentRefs contentRefs = new CosContentRefs();
+
     @Override
     public boolean init(BackendConfig config) {
         bucketName = config.getBucketName();
@@ -73,6 +96,8 @@ public class TxCosBackend implements OssBackend {
             clientConfig.setConnectionTimeout((int) config.getConnectTimeout().toMillis());
             clientConfig.setSocketTimeout((int) config.getReadTimeout().toMillis());
             clientConfig.setHttpProtocol(HttpProtocol.https);
+            localFileCache = LocalFileCache.of(config);
+            uploader = new MultipartUploader(config);
             cosClient = new COSClient(cred, clientConfig);
             return true;
         }
@@ -101,23 +126,27 @@ public class TxCosBackend implements OssBackend {
             throw new IOException("TxCos Client is not initialized");
         }
 
-        try (val bs = new BufferedInputStream(stream)) {
+        try (stream) {
             val filePath = generatePath(fileName, config.getPathPatten(), path);
+            val createTime = System.currentTimeMillis();
 
-            val meta = new ObjectMetadata();
-            meta.addUserMetadata("filename", fileName);
-            meta.addUserMetadata("createtime", String.valueOf(System.currentTimeMillis()));
-
-            val result = cosClient.putObject(bucketName, filePath.substring(1), bs, meta);
-
-            if (result == null) {
-                throw new IOException("Cannot upload file: response is null");
+            val upload = new PartUpload(filePath, fileName, path, createTime);
+            val result = uploader.upload(stream, fileName, upload);
+            if (upload.existing != null) {
+                return FileInfo.newBuilder(upload.existing).setFilename(fileName).build();
             }
+            // 使用上传结果构建文件信息，无需再次查询元数据
+            val ossFile = new TxOssFile(upload.filePath, this);
+            return ossFile.info(fileName, result.length(), result.fileId(), createTime);
+        }
+    }
 
-            val ossFile = getFile(filePath);
-
-            return ossFile.stat();
+    @Override
+    public boolean close() {
+        if (uploader != null) {
+            uploader.shutdown();
         }
+        return true;
     }
 
     @Override
@@ -125,8 +154,217 @@ public class TxCosBackend implements OssBackend {
         if (cosClient == null) {
             throw new IOException("TxCos Client is not initialized");
         }
+        if (OssBackend.isContentPath(filePath)) {
+            // 内容对象被多次上传共享，最后一个引用释放后才删除
+            contentRefs.release(filePath);
+            return true;
+        }
         cosClient.deleteObject(bucketName, filePath.substring(1));
         return true;
     }
 
+    @Override
+    public long minPartSize() {
+        return 1024 * 1024;
+    }
+
+    @Override
+    public Session initiateChunked(String fileName, String path) throws IOException {
+        if (cosClient == null) {
+            throw new IOException("TxCos Client is not initialized");
+        }
+        val filePath = generatePath(fileName, config.getPathPatten(), path);
+        val upload = new PartUpload(filePath, fileName, path, System.currentTimeMillis());
+        upload.initiate();
+        return new Session(upload.uploadId, filePath, upload.createTime);
+    }
+
+    @Override
+    public String uploadChunk(Session session, int partNumber, InputStream data, long length) throws IOException {
+        if (cosClient == null) {
+            throw new IOException("TxCos Client is not initialized");
+        }
+        return new PartUpload(session, null).uploadPart(partNumber, data, length);
+    }
+
+    @Override
+    public FileInfo completeChunked(Session session, String fileName, List<String> parts, long length)
+            throws IOException {
+        if (cosClient == null) {
+            throw new IOException("TxCos Client is not initialized");
+        }
+        val fileId = new PartUpload(session, fileName).complete(parts);
+        return new TxOssFile(session.filePath(), this).info(fileName, length, fileId, session.createTime());
+    }
+
+    @Override
+    public void abortChunked(Session session, List<String> parts) {
+        if (cosClient != null) {
+            new PartUpload(session, null).abort();
+        }
+    }
+
+    private final class PartUpload implements MultipartUpload {
+
+        private final String fileName;
+
+        private final String path;
+
+        private final long createTime;
+
+        private String filePath;
+
+        private String objectName;
+
+        private String uploadId;
+
+        private FileInfo existing;
+
+        private PartUpload(String filePath, String fileName, String path, long createTime) {
+            this.filePath = filePath;
+            this.objectName = filePath.substring(1);
+            this.fileName = fileName;
+            this.path = path;
+            this.createTime = createTime;
+        }
+
+        private PartUpload(Session session, String fileName) {
+            this(session.filePath(), fileName, null, session.createTime());
+            this.uploadId = session.uploadId();
+        }
+
+        @Override
+        public String putObject(byte[] data, int length, byte[] md5) throws IOException {
+            if (!config.isDedup()) {
+                return put(data, length, md5);
+            }
+            // 去重模式: 单个分片的文件上传前已知摘要，内容相同的文件已存在时不再上传
+            filePath = contentPath(HexFormat.of().formatHex(md5), fileName, path);
+            objectName = filePath.substring(1);
+            // 先登记引用再检查内容对象，见ContentRefs
+            val ref = contentRefs.add(filePath);
+            try {
+                try {
+                    existing = getFile(filePath).stat();
+                    return existing.getFileId();
+                }
+                catch (FileNotFoundException e) {
+                    log.trace("Content {} is not found, upload it", filePath);
+                }
+                return put(data, length, md5);
+            }
+            catch (IOException | RuntimeException e) {
+                contentRefs.remove(ref);
+                throw e;
+            }
+        }
+
+        private String put(byte[] data, int length, byte[] md5) throws IOException {
+            val contentMd5 = Base64.getEncoder().encodeToString(md5);
+            val meta = newMetadata();
+            meta.setContentLength(length);
+            meta.setContentMD5(contentMd5);
+            val input = new ByteArrayInputStream(data, 0, length);
+            val result = cosClient.putObject(bucketName, objectName, input, meta);
+            if (result == null) {
+                throw new IOException("Cannot upload file: response is null");
+            }
+            return contentMd5;
+        }
+
+        @Override
+        public void initiate() {
+            val request = new InitiateMultipartUploadRequest(bucketName, objectName, newMetadata());
+            uploadId = cosClient.initiateMultipartUpload(request).getUploadId();
+        }
+
+        @Override
+        public String uploadPart(int partNumber, byte[] data, int length) {
+            return uploadPart(partNumber, new ByteArrayInputStream(data, 0, length), length);
+        }
+
+        private String uploadPart(int partNumber, InputStream data, long length) {
+            val request = new UploadPartRequest();
+            request.setBucketName(bucketName);
+            request.setKey(objectName);
+            request.setUploadId(uploadId);
+            request.setPartNumber(partNumber);
+            request.setPartSize(length);
+            request.setInputStream(data);
+            return cosClient.uploadPart(request).getETag();
+        }
+
+        @Override
+        public String complete(List<String> parts) {
+            val partETags = new ArrayList<PartETag>(parts.size());
+            for (int i = 0; i < parts.size(); i++) {
+                partETags.add(new PartETag(i + 1, parts.get(i)));
+            }
+            val request = new CompleteMultipartUploadRequest(bucketName, objectName, uploadId, partETags);
+            return cosClient.completeMultipartUpload(request).getETag();
+        }
+
+        @Override
+        public void abort() {
+            if (uploadId == null) {
+                return;
+            }
+            try {
+                val request = new AbortMultipartUploadRequest(bucketName, objectName, uploadId);
+                cosClient.abortMultipartUpload(request);
+            }
+            catch (Exception e) {
+                log.warn("Cannot abort multipart upload of {}: {}", objectName, e.getMessage());
+            }
+        }
+
+        private ObjectMetadata newMetadata() {
+            val meta = new ObjectMetadata();
+            meta.addUserMetadata("filename", fileName);
+            meta.addUserMetadata("createtime", String.valueOf(createTime));
+            val contentType = OssBackend.contentType(fileName);
+            if (contentType != null) {
+                meta.setContentType(contentType);
+            }
+            return meta;
+        }
+
+    }
+
+    private final class CosContentRefs extends ContentRefs {
+
+        @Override
+        protected void putEmpty(String objectName) {
+            val meta = new ObjectMetadata();
+            meta.setContentLength(0);
+            cosClient.putObject(bucketName, objectName, new ByteArrayInputStream(new byte[0]), meta);
+        }
+
+        @Override
+        protected List<String> listObjects(String prefix, int limit) {
+            val request = new ListObjectsRequest(bucketName, prefix, null, null, limit);
+            return cosClient.listObjects(request).getObjectSummaries().stream().map(COSObjectSummary::getKey).toList();
+        }
+
+        @Override
+        protected void removeObject(String objectName) {
+            cosClient.deleteObject(bucketName, objectName);
+        }
+
+        @Override
+        protected boolean copyObject(String source, String target) {
+            try {
+                cosClient.copyObject(bucketName, source, bucketName, target);
+                return true;
+            }
+            catch (CosServiceException e) {
+                if (e.getStatusCode() == 404) {
+                    return false;
+                }
+                throw e;
+            }
+        }
+
+    }
+
 }
@@ -17,20 +17,19 @@
 package com.apzda.cloud.oss.tx.file;
 
 import cn.hutool.core.io.FileUtil;
-import cn.hutool.crypto.SecureUtil;
 import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.proto.FileInfo;
 import com.apzda.cloud.oss.tx.backend.TxCosBackend;
 import com.qcloud.cos.COSClient;
+import com.qcloud.cos.model.GetObjectRequest;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.util.FileCopyUtils;
 
 import java.io.*;
-import java.net.URLConnection;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -67,22 +66,17 @@ public class TxOssFile implements IOssFile {
         }
     }
 
+    /**
+     * 文件的本地副本，由存储的{@link LocalFileCache}管理.
+     */
     @Override
     public File getLocalFile() throws IOException {
-        val tmpDir = config.getTmpDir();
-        val stat = stat();
-        val localFileName = tmpDir + SecureUtil.md5(stat.getFileId()) + "." + stat.getExt();
-        var localFile = new File(localFileName);
-        if (localFile.exists()) {
-            return localFile;
-        }
-        synchronized (filePath) {
-            if (localFile.exists()) {
-                return localFile;
-            }
-            FileCopyUtils.copy(getInputStream(), new BufferedOutputStream(new FileOutputStream(localFile)));
-            return localFile;
-        }
+        return backend.getLocalFileCache().get(stat(), this::getInputStream);
+    }
+
+    @Override
+    public LocalFileCache.Lease openLocalFile() throws IOException {
+        return backend.getLocalFileCache().acquire(stat(), this::getInputStream);
     }
 
     @Override
@@ -93,31 +87,50 @@ public class TxOssFile implements IOssFile {
         return new BufferedInputStream(ossObject.getObjectContent());
     }
 
+    @Override
+    public InputStream getInputStream(long offset, long length) throws IOException {
+        val request = new GetObjectRequest(config.getBucketName(), objectName);
+        request.setRange(offset, offset + length - 1);
+        val ossObject = ossClient.getObject(request);
+
+        return new BufferedInputStream(ossObject.getObjectContent());
+    }
+
     @Override
     public FileInfo stat() throws IOException {
         try {
             val meta = ossClient.getObjectMetadata(config.getBucketName(), objectName);
             val userMeta = meta.getUserMetadata();
             val filename = userMeta.getOrDefault("filename", FileUtil.getName(filePath));
-            val builder = FileInfo.newBuilder();
-            builder.setError(0);
-            builder.setExist(true);
-            builder.setPath(filePath);
-            builder.setUrl(theUrl(filePath));
-            builder.setLength(meta.getContentLength());
-            builder.setFileId(meta.getContentMD5());
-            builder.setFilename(filename);
-            builder.setContentType(URLConnection.guessContentTypeFromName(filename));
-            builder.setExt(FileUtil.extName(builder.getFilename()));
-            builder.setCreateTime(Long.parseLong(userMeta.getOrDefault("createtime", "0")));
-            builder.setBackend("txcos");
-            return builder.build();
+            // 分片上传的对象没有Content-MD5
+            val fileId = StringUtils.defaultIfBlank(meta.getContentMD5(), meta.getETag());
+            return info(filename, meta.getContentLength(), fileId,
+                    Long.parseLong(userMeta.getOrDefault("createtime", "0")));
         }
         catch (Exception e) {
             throw new FileNotFoundException(filePath + ": " + e.getMessage());
         }
     }
 
+    /**
+     * 构建文件信息，上传完成后可直接使用上传结果构建，无需再次查询.
+     */
+    public FileInfo info(String filename, long length, String fileId, long createTime) {
+        val builder = FileInfo.newBuilder();
+        builder.setError(0);
+        builder.setExist(true);
+        builder.setPath(filePath);
+        builder.setUrl(theUrl(filePath));
+        builder.setLength(length);
+        builder.setFileId(fileId);
+        builder.setFilename(filename);
+        builder.setContentType(OssBackend.contentType(filename));
+        builder.setExt(FileUtil.extName(builder.getFilename()));
+        builder.setCreateTime(createTime);
+        builder.setBackend("txcos");
+        return builder.build();
+    }
+
     @Override
     public boolean delete() throws IOException {
         return backend.delete(filePath);
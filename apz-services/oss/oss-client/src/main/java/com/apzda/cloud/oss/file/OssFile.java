@@ -85,6 +85,14 @@ public class OssFile implements IOssFile {
         return ossFile.getLocalFile();
     }
 
+    @Override
+    public LocalFileCache.Lease openLocalFile() throws IOException {
+        if (ossFile == null) {
+            throw new FileNotFoundException(StrUtil.format("{} (Not Found)", filePath));
+        }
+        return ossFile.openLocalFile();
+    }
+
     public InputStream getInputStream() throws IOException {
         if (ossFile == null) {
             throw new FileNotFoundException(StrUtil.format("{} (Not Found)", filePath));
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.plugin;
+
+import cn.hutool.core.io.FileUtil;
+import com.apzda.cloud.gsvc.config.Props;
+import com.apzda.cloud.gsvc.ext.GsvcExt;
+import com.apzda.cloud.oss.backend.OssBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 图片处理流水线: 解码一次，依次交给各图片插件处理，最后编码一次.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public class ImagePipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(ImagePipeline.class);
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    public ImagePipeline add(ImagePlugin plugin, Props props) {
+        stages.add(new Stage(plugin, props));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    /**
+     * 执行流水线，执行后流水线被清空.
+     * @param file 上传的文件
+     * @param path 目录
+     * @param ossBackend 存储
+     * @return 处理后的文件，未做任何处理时返回file
+     */
+    public GsvcExt.UploadFile run(GsvcExt.UploadFile file, String path, OssBackend ossBackend) throws Exception {
+        if (stages.isEmpty()) {
+            return file;
+        }
+        try {
+            return process(file, path, ossBackend);
+        }
+        finally {
+            stages.clear();
+        }
+    }
+
+    private GsvcExt.UploadFile process(GsvcExt.UploadFile file, String path, OssBackend ossBackend)
+            throws Exception {
+        final String ext = file.getExt();
+        final List<Stage> supported = stages.stream().filter(stage -> stage.plugin.supported(ext)).toList();
+        if (supported.isEmpty()) {
+            log.warn("Cannot support: {}", ext);
+            return file;
+        }
+        final String originFile = file.getFile();
+        BufferedImage image = ImageIO.read(new File(originFile));
+        if (image == null) {
+            throw new IllegalArgumentException("Cannot read image: " + file.getFilename());
+        }
+        boolean altered = false;
+        for (Stage stage : supported) {
+            final BufferedImage processed = stage.plugin.process(image, file, path, ossBackend, stage.props);
+            if (processed != null) {
+                image = processed;
+                altered = true;
+            }
+        }
+        if (!altered) {
+            return file;
+        }
+        // 第一个插件的配置决定临时目录与是否保留原始文件
+        final Props props = supported.get(0).props;
+        final File tmpImg = FileUtil
+            .createTempFile("image_", "." + ext, new File(props.get(Plugin.PROP_TMPDIR_S)).toPath())
+            .toFile();
+        if (!ImageIO.write(encodable(image, ext), ext, tmpImg)) {
+            FileUtil.del(tmpImg);
+            throw new IllegalArgumentException("Cannot process image: " + file.getFilename() + ", the image format '"
+                    + ext + "' is not supported!");
+        }
+
+        final GsvcExt.UploadFile.Builder builder = GsvcExt.UploadFile.newBuilder(file);
+        builder.setFile(tmpImg.getAbsolutePath());
+        if (!props.getBool(Plugin.PROP_KEEP_B, false)) {
+            if (FileUtil.del(originFile)) {
+                log.trace("Origin file deleted: {}", originFile);
+            }
+            else {
+                log.warn("Cannot delete Origin file: {}", originFile);
+            }
+        }
+        else {
+            log.trace("Keep Origin file: {}", originFile);
+        }
+        return builder.build();
+    }
+
+    /**
+     * 逐级缩小: 每次最多缩小一半并使用双线性插值，质量接近SCALE_SMOOTH，但比getScaledInstance快得多.
+     * @param image 原图
+     * @param width 目标宽度(小于原图宽度)
+     * @param height 目标高度(小于原图高度)
+     * @return 缩小后的图片
+     */
+    public static BufferedImage scale(BufferedImage image, int width, int height) {
+        final int type = image.getType() == BufferedImage.TYPE_CUSTOM
+                ? (image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB)
+                : image.getType();
+        BufferedImage current = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+            final BufferedImage step = new BufferedImage(w, h, type);
+            final Graphics2D graphics = step.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(current, 0, 0, w, h, null);
+            graphics.dispose();
+            current = step;
+        }
+        while (w != width || h != height);
+        return current;
+    }
+
+    /**
+     * JPEG不支持透明通道，编码前去掉.
+     */
+    public static BufferedImage encodable(BufferedImage image, String ext) {
+        if (!image.getColorModel().hasAlpha() || !("jpg".equalsIgnoreCase(ext) || "jpeg".equalsIgnoreCase(ext))) {
+            return image;
+        }
+        final BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        graphics.dispose();
+        return rgb;
+    }
+
+    private record Stage(ImagePlugin plugin, Props props) {
+    }
+
+}
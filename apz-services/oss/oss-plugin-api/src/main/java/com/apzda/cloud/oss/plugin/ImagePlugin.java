@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.plugin;
+
+import com.apzda.cloud.gsvc.config.Props;
+import com.apzda.cloud.gsvc.ext.GsvcExt;
+import com.apzda.cloud.oss.backend.OssBackend;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * 图片处理插件. 处理已解码的图片，连续的图片插件由{@link ImagePipeline}串联: 图片只解码一次，全部处理完成后只编码一次.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public interface ImagePlugin extends Plugin {
+
+    /**
+     * 处理图片.
+     * @param image 已解码的图片
+     * @param file 上传的文件
+     * @param path 目录
+     * @param ossBackend 存储
+     * @param props 插件配置
+     * @return 处理后的图片(可以是被修改的image本身)，未做任何处理时返回null
+     */
+    BufferedImage process(BufferedImage image, GsvcExt.UploadFile file, String path, OssBackend ossBackend,
+            Props props) throws Exception;
+
+    @Override
+    default GsvcExt.UploadFile alter(GsvcExt.UploadFile file, String path, OssBackend ossBackend, Props props)
+            throws Exception {
+        return new ImagePipeline().add(this, props).run(file, path, ossBackend);
+    }
+
+}
@@ -16,18 +16,15 @@
  */
 package com.apzda.cloud.oss.plugin.resize;
 
-import cn.hutool.core.io.FileUtil;
 import com.apzda.cloud.gsvc.config.Props;
 import com.apzda.cloud.gsvc.ext.GsvcExt;
 import com.apzda.cloud.oss.backend.OssBackend;
-import com.apzda.cloud.oss.plugin.Plugin;
+import com.apzda.cloud.oss.plugin.ImagePipeline;
+import com.apzda.cloud.oss.plugin.ImagePlugin;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.List;
@@ -38,7 +35,7 @@ import java.util.List;
  * @since 1.0.0
  **/
 @Slf4j
-public class ResizePlugin implements Plugin {
+public class ResizePlugin implements ImagePlugin {
 
     public static final List<String> SUPPORTED_FILE_TYPES = List.of("png", "jpg", "jpeg", "webp");
 
@@ -47,20 +44,13 @@ public class ResizePlugin implements Plugin {
     public static final String PROP_HEIGHT_I = "height";
 
     @Override
-    public GsvcExt.UploadFile alter(GsvcExt.UploadFile file, String path, OssBackend ossBackend, Props props)
-            throws Exception {
-        val ext = file.getExt();
-        if (!supported(ext)) {
-            log.warn("Cannot support: {}", ext);
-            return file;
-        }
+    public BufferedImage process(BufferedImage image, GsvcExt.UploadFile file, String path, OssBackend ossBackend,
+            Props props) {
         val width = props.get(PROP_WIDTH_I);
         val height = props.get(PROP_HEIGHT_I);
         if (width == null && height == null) {
             throw new IllegalArgumentException("width or height cannot be both null");
         }
-        val originFile = file.getFile();
-        val image = ImageIO.read(new File(originFile));
         val imgWidth = image.getWidth();
         val imgHeight = image.getHeight();
 
@@ -89,42 +79,10 @@ public class ResizePlugin implements Plugin {
 
         if (dsWidth >= imgWidth || dsHeight >= imgHeight) {
             log.debug("Cannot resize from ({},{}) to ({},{})", imgWidth, imgHeight, dsWidth, dsHeight);
-            return file;
-        }
-
-        val scaledImg = image.getScaledInstance(dsWidth, dsHeight, Image.SCALE_SMOOTH);
-        val outputImage = new BufferedImage(dsWidth, dsHeight, image.getType());
-        val graphics = outputImage.getGraphics();
-        if (!graphics.drawImage(scaledImg, 0, 0, null)) {
-            graphics.dispose();
-            throw new IllegalArgumentException(
-                    "Cannot resize image: " + file.getFilename() + ", the image pixels are changing");
+            return null;
         }
-        graphics.dispose();
-        val tmpImg = FileUtil
-            .createTempFile("resize_", "." + file.getExt(), new File(props.get(PROP_TMPDIR_S)).toPath())
-            .toAbsolutePath()
-            .toString();
 
-        if (!ImageIO.write(outputImage, file.getExt(), new File(tmpImg))) {
-            throw new IllegalArgumentException("Cannot resize image: " + file.getFilename() + ", the image format '"
-                    + file.getExt() + "' is not supported!");
-        }
-
-        val builder = GsvcExt.UploadFile.newBuilder(file);
-        builder.setFile(tmpImg);
-        if (!props.getBool(PROP_KEEP_B, false)) {
-            if (FileUtil.del(originFile)) {
-                log.trace("Origin file deleted: {}", originFile);
-            }
-            else {
-                log.warn("Cannot delete Origin file: {}", originFile);
-            }
-        }
-        else {
-            log.trace("Keep Origin file: {}", originFile);
-        }
-        return builder.build();
+        return ImagePipeline.scale(image, dsWidth, dsHeight);
     }
 
     @Override
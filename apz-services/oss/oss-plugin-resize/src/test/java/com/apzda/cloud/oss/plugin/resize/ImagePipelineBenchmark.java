@@ -0,0 +1,116 @@
+package com.apzda.cloud.oss.plugin.resize;
+
+import com.apzda.cloud.oss.plugin.ImagePipeline;
+import lombok.val;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 图片处理基准测试: 手机拍摄尺寸(4032x3024)的JPEG缩放到1080宽.
+ * <ul>
+ * <li>legacy*: 原有实现，getScaledInstance缩放，两个插件各自解码、编码一次</li>
+ * <li>pipeline*: 逐级缩放，解码、编码各一次</li>
+ * </ul>
+ * 运行: 执行main方法.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImagePipelineBenchmark {
+
+    private static final int WIDTH = 1080;
+
+    private static final int HEIGHT = 810;
+
+    private byte[] jpeg;
+
+    private BufferedImage decoded;
+
+    @Setup
+    public void setup() throws IOException {
+        val image = new BufferedImage(4032, 3024, BufferedImage.TYPE_3BYTE_BGR);
+        val graphics = image.createGraphics();
+        val random = new Random(20240101);
+        for (int i = 0; i < 2000; i++) {
+            graphics.setColor(new Color(random.nextInt()));
+            graphics.fillOval(random.nextInt(4032), random.nextInt(3024), random.nextInt(400), random.nextInt(400));
+        }
+        graphics.dispose();
+        val output = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", output);
+        jpeg = output.toByteArray();
+        decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    @Benchmark
+    public BufferedImage legacyScale() {
+        return scaledInstance(decoded);
+    }
+
+    @Benchmark
+    public BufferedImage pipelineScale() {
+        return ImagePipeline.scale(decoded, WIDTH, HEIGHT);
+    }
+
+    @Benchmark
+    public byte[] legacyResizeAndWatermark() throws IOException {
+        // 缩放插件
+        val resized = encode(scaledInstance(ImageIO.read(new ByteArrayInputStream(jpeg))));
+        // 水印插件
+        val image = ImageIO.read(new ByteArrayInputStream(resized));
+        watermark(image);
+        return encode(image);
+    }
+
+    @Benchmark
+    public byte[] pipelineResizeAndWatermark() throws IOException {
+        val image = ImagePipeline.scale(ImageIO.read(new ByteArrayInputStream(jpeg)), WIDTH, HEIGHT);
+        watermark(image);
+        return encode(image);
+    }
+
+    private static BufferedImage scaledInstance(BufferedImage image) {
+        val scaled = image.getScaledInstance(WIDTH, HEIGHT, Image.SCALE_SMOOTH);
+        val output = new BufferedImage(WIDTH, HEIGHT, image.getType());
+        val graphics = output.getGraphics();
+        graphics.drawImage(scaled, 0, 0, null);
+        graphics.dispose();
+        return output;
+    }
+
+    private static void watermark(BufferedImage image) {
+        val graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(image.getWidth() - 130, image.getHeight() - 50, 120, 40);
+        graphics.dispose();
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        val output = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpeg", output);
+        return output.toByteArray();
+    }
+
+    public static void main(String[] args) throws Exception {
+        val options = new OptionsBuilder().include(ImagePipelineBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+
+}
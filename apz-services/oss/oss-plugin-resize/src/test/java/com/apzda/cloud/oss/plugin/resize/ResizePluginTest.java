@@ -3,12 +3,17 @@ package com.apzda.cloud.oss.plugin.resize;
 import cn.hutool.core.io.FileUtil;
 import com.apzda.cloud.gsvc.config.Props;
 import com.apzda.cloud.gsvc.ext.GsvcExt;
+import com.apzda.cloud.oss.backend.OssBackend;
+import com.apzda.cloud.oss.plugin.ImagePipeline;
+import com.apzda.cloud.oss.plugin.ImagePlugin;
 import lombok.val;
 import org.junit.jupiter.api.Test;
 
 import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -43,6 +48,58 @@ class ResizePluginTest {
         assertThat(height).isEqualTo((120 * 183 / 276));
     }
 
+    @Test
+    void pipeline() throws Exception {
+        // given
+        val builder = GsvcExt.UploadFile.newBuilder();
+        builder.setFile("./src/test/cat.jpeg");
+        builder.setExt("jpeg");
+        val file = builder.build();
+        val props = new Props(new HashMap<>() {
+            {
+                put(ResizePlugin.PROP_WIDTH_I, "120");
+                put(ResizePlugin.PROP_TMPDIR_S, FileUtil.getTmpDirPath());
+                put(ResizePlugin.PROP_KEEP_B, "true");
+            }
+        });
+        val widths = new AtomicInteger();
+        ImagePlugin probe = new ImagePlugin() {
+            @Override
+            public BufferedImage process(BufferedImage image, GsvcExt.UploadFile file, String path,
+                    OssBackend ossBackend, Props props) {
+                widths.set(image.getWidth());
+                return null;
+            }
+
+            @Override
+            public boolean supported(String extName) {
+                return true;
+            }
+        };
+        // when
+        val altered = new ImagePipeline().add(new ResizePlugin(), props)
+            .add(probe, props)
+            .run(file, "/", null);
+        // then
+        assertThat(widths.get()).isEqualTo(120);
+        assertThat(altered.getFile()).isNotEqualTo(file.getFile());
+        val image = ImageIO.read(new File(altered.getFile()));
+        assertThat(image.getWidth()).isEqualTo(120);
+        assertThat(image.getHeight()).isEqualTo((120 * 183 / 276));
+    }
+
+    @Test
+    void scale() {
+        // given
+        val image = new BufferedImage(4032, 3024, BufferedImage.TYPE_3BYTE_BGR);
+        // when
+        val scaled = ImagePipeline.scale(image, 1080, 810);
+        // then
+        assertThat(scaled.getWidth()).isEqualTo(1080);
+        assertThat(scaled.getHeight()).isEqualTo(810);
+        assertThat(scaled.getType()).isEqualTo(BufferedImage.TYPE_3BYTE_BGR);
+    }
+
     @Test
     void supported() {
         // given
@@ -16,12 +16,11 @@
  */
 package com.apzda.cloud.oss.plugin.watermark;
 
-import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.util.RandomUtil;
 import com.apzda.cloud.gsvc.config.Props;
 import com.apzda.cloud.gsvc.ext.GsvcExt;
 import com.apzda.cloud.oss.backend.OssBackend;
-import com.apzda.cloud.oss.plugin.Plugin;
+import com.apzda.cloud.oss.plugin.ImagePlugin;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
@@ -29,10 +28,12 @@ import org.apache.commons.lang3.StringUtils;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -40,7 +41,7 @@ import java.util.List;
  * @since 1.0.0
  **/
 @Slf4j
-public class WatermarkPlugin implements Plugin {
+public class WatermarkPlugin implements ImagePlugin {
 
     public static final List<String> SUPPORTED_POS = List.of("rd", "br", "tr", "bl", "tl", "ct");
 
@@ -58,14 +59,13 @@ public class WatermarkPlugin implements Plugin {
 
     public static final String PROP_OPACITY_D = "opacity";
 
+    private static final long WATERMARK_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static final Map<String, Watermark> WATERMARKS = new ConcurrentHashMap<>();
+
     @Override
-    public GsvcExt.UploadFile alter(GsvcExt.UploadFile file, String path, OssBackend ossBackend, Props props)
-            throws Exception {
-        val ext = file.getExt();
-        if (!supported(ext)) {
-            log.warn("Cannot support: {}", ext);
-            return file;
-        }
+    public BufferedImage process(BufferedImage image, GsvcExt.UploadFile file, String path, OssBackend ossBackend,
+            Props props) throws Exception {
         val watermark = props.get(PROP_WATERMARK_S);
         if (watermark == null || StringUtils.isEmpty(watermark)) {
             throw new IllegalArgumentException("watermark image not configured");
@@ -80,62 +80,55 @@ public class WatermarkPlugin implements Plugin {
         val rotate = props.getInt(PROP_ROTATE_I, 30);
         val opacity = props.getFloat(PROP_OPACITY_D, 1f);
 
-        val originFile = file.getFile();
-
-        val image = ImageIO.read(new File(originFile));
         val imgWidth = image.getWidth();
         val imgHeight = image.getHeight();
 
         if (imgWidth < width) {
-            return file;
-        }
-        val watermarkImg = ossBackend.getFile(watermark);
-        BufferedImage waterImg;
-        try {
-            val watermarkLocalImg = watermarkImg.getLocalFile();
-            waterImg = ImageIO.read(watermarkLocalImg);
+            return null;
         }
-        catch (Exception e) {
-            log.warn("Watermark image '{}' does not exist", watermark);
-            return file;
+        val waterImg = loadWatermark(ossBackend, watermark, opacity);
+        if (waterImg == null) {
+            return null;
         }
 
-        val waterImage = generateWaterImage(waterImg, opacity, rotate);
+        val waterImage = rotate != 0 ? rotate(waterImg, randomAngle(rotate)) : waterImg;
         val wImgWidth = waterImage.getWidth();
         val wImgHeight = waterImage.getHeight();
 
         val point = calculatePos(pos, wImgWidth, wImgHeight, imgWidth, imgHeight, noise);
 
-        val graphics = image.getGraphics();
-        if (!graphics.drawImage(waterImage, point.x, point.y, null)) {
-            graphics.dispose();
-            throw new IllegalArgumentException(
-                    "Cannot add watermark to the image: " + file.getFilename() + ", the image pixels are changing");
-        }
+        val graphics = image.createGraphics();
+        graphics.drawImage(waterImage, point.x, point.y, null);
         graphics.dispose();
-        val tmpImg = FileUtil.createTempFile("water_", "." + file.getExt(), new File(props.get(PROP_TMPDIR_S)).toPath())
-            .toAbsolutePath()
-            .toString();
+        return image;
+    }
 
-        if (!ImageIO.write(image, file.getExt(), new File(tmpImg))) {
-            throw new IllegalArgumentException("Cannot add watermark to the image: " + file.getFilename()
-                    + ", the image format '" + file.getExt() + "' is not supported!");
+    /**
+     * 加载水印图片并应用透明度. 结果按(存储,水印,透明度)缓存，过期后重新从存储读取.
+     */
+    BufferedImage loadWatermark(OssBackend ossBackend, String watermark, float opacity) {
+        val key = System.identityHashCode(ossBackend) + ":" + watermark + ":" + opacity;
+        val now = System.currentTimeMillis();
+        val cached = WATERMARKS.get(key);
+        if (cached != null && cached.expireAt > now) {
+            return cached.image;
         }
-
-        val builder = GsvcExt.UploadFile.newBuilder(file);
-        builder.setFile(tmpImg);
-        if (!props.getBool(PROP_KEEP_B, false)) {
-            if (FileUtil.del(originFile)) {
-                log.trace("Origin file deleted: {}", originFile);
+        BufferedImage waterImg;
+        try {
+            try (val input = ossBackend.getFile(watermark).getInputStream()) {
+                waterImg = ImageIO.read(input);
             }
-            else {
-                log.warn("Cannot delete Origin file: {}", originFile);
+            if (waterImg == null) {
+                throw new IllegalArgumentException("Unsupported image format");
             }
         }
-        else {
-            log.trace("Keep Origin file: {}", originFile);
+        catch (Exception e) {
+            log.warn("Watermark image '{}' does not exist", watermark);
+            return null;
         }
-        return builder.build();
+        val prepared = generateWaterImage(waterImg, opacity, 0);
+        WATERMARKS.put(key, new Watermark(prepared, now + WATERMARK_TTL));
+        return prepared;
     }
 
     @Override
@@ -206,20 +199,27 @@ public class WatermarkPlugin implements Plugin {
         graphics.drawImage(waterImg, 0, 0, null);
         graphics.dispose();
         if (rotate != 0) {
-            val random = RandomUtil.getRandom();
-            float randRotate = random.nextFloat(Math.abs(rotate));
-            if (random.nextInt() % 2 == 0) {
-                randRotate = -randRotate;
-            }
-            val angle = BigDecimal.valueOf(randRotate)
-                .multiply(BigDecimal.valueOf(Math.PI))
-                .divide(BigDecimal.valueOf(180), MathContext.DECIMAL32)
-                .doubleValue();
-            return rotate(waterG, angle);
+            return rotate(waterG, randomAngle(rotate));
         }
         return waterG;
     }
 
+    /**
+     * 在[-rotate, rotate]度之间随机取一个角度.
+     * @return 弧度
+     */
+    double randomAngle(int rotate) {
+        val random = RandomUtil.getRandom();
+        float randRotate = random.nextFloat(Math.abs(rotate));
+        if (random.nextInt() % 2 == 0) {
+            randRotate = -randRotate;
+        }
+        return BigDecimal.valueOf(randRotate)
+            .multiply(BigDecimal.valueOf(Math.PI))
+            .divide(BigDecimal.valueOf(180), MathContext.DECIMAL32)
+            .doubleValue();
+    }
+
     BufferedImage rotate(BufferedImage image, double angle) {
         double sin = Math.abs(Math.sin(angle)), cos = Math.abs(Math.cos(angle));
         int w = image.getWidth(), h = image.getHeight();
@@ -233,4 +233,7 @@ public class WatermarkPlugin implements Plugin {
         return rotated;
     }
 
+    private record Watermark(BufferedImage image, long expireAt) {
+    }
+
 }
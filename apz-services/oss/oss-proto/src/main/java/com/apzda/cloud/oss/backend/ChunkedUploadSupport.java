@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.backend;
+
+import com.apzda.cloud.oss.proto.FileInfo;
+import org.springframework.lang.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * 由存储合并的跨请求分块上传: 每个分块到达时作为一个分片直接上传到存储，所有分块上传完成后由存储合并成目标对象.
+ * <p>
+ * 分块可能由不同的节点接收，所以实现不能在内存中保存上传状态，所需的状态({@link Session})由调用方保存并传入.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public interface ChunkedUploadSupport {
+
+    /**
+     * 存储允许的最小分片大小(最后一个分片除外)，分块小于它时不能使用由存储合并的分块上传.
+     */
+    long minPartSize();
+
+    /**
+     * 开始分块上传.
+     * @param fileName 原始文件名
+     * @param path 目录
+     * @return 上传会话
+     */
+    Session initiateChunked(@NonNull String fileName, String path) throws IOException;
+
+    /**
+     * 上传一个分块. 同一分块可能被重复上传(客户端重试)，后一次覆盖前一次.
+     * @param session 上传会话
+     * @param partNumber 分块序号(从1开始)
+     * @param data 数据
+     * @param length 数据长度
+     * @return 分片标识
+     */
+    String uploadChunk(@NonNull Session session, int partNumber, @NonNull InputStream data, long length)
+            throws IOException;
+
+    /**
+     * 完成分块上传.
+     * @param session 上传会话
+     * @param fileName 原始文件名
+     * @param parts 按分块序号排列的分片标识
+     * @param length 文件长度
+     * @return 文件信息
+     */
+    FileInfo completeChunked(@NonNull Session session, @NonNull String fileName, @NonNull List<String> parts,
+            long length) throws IOException;
+
+    /**
+     * 取消分块上传并清理已上传的分片.
+     * @param session 上传会话
+     * @param parts 已上传的分片标识(可能不完整)
+     */
+    void abortChunked(@NonNull Session session, @NonNull List<String> parts);
+
+    /**
+     * 分块上传会话.
+     *
+     * @param uploadId 存储分配的上传标识
+     * @param filePath 目标文件路径
+     * @param createTime 创建时间
+     */
+    record Session(String uploadId, String filePath, long createTime) {
+
+        public String encode() {
+            return uploadId + "\n" + filePath + "\n" + createTime;
+        }
+
+        public static Session decode(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] fields = value.split("\n", 3);
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("Invalid chunked upload session: " + value);
+            }
+            return new Session(fields[0], fields[1], Long.parseLong(fields[2]));
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.backend;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 对象存储去重模式下内容对象的引用. 每次上传在{@link OssBackend#refPrefix}下登记一个空对象作为引用，
+ * 删除时释放一个引用，最后一个引用释放后才删除内容对象.
+ * <p>
+ * 对象存储没有跨对象的原子操作，上传与删除按以下顺序执行，保证被上传复用的内容对象不会丢失:
+ * <ol>
+ * <li>上传: 先登记引用，再检查内容对象是否存在，存在时复用，否则上传.</li>
+ * <li>删除: 释放引用后没有其它引用时，先把内容对象复制到{@link #TRASH_DIR}，删除内容对象后重新列出引用，
+ * 发现删除期间登记的引用时从回收区恢复内容对象，最后删除回收区中的副本.</li>
+ * </ol>
+ * 上传检查内容对象存在时其引用已登记，删除后的列出一定能看到它. 恢复之前的短暂时间内读取内容对象会失败；
+ * 删除进程在恢复前退出时副本保留在回收区中，可据此手工恢复.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public abstract class ContentRefs {
+
+    /**
+     * 删除内容对象时的回收区.
+     */
+    public static final String TRASH_DIR = ".oss-trash";
+
+    /**
+     * 登记内容对象的一个引用.
+     * @param filePath 内容对象的文件路径
+     * @return 引用的对象名，上传失败时用于{@link #remove}
+     */
+    public String add(String filePath) throws IOException {
+        val ref = OssBackend.refPrefix(filePath) + PathAllocator.nextId();
+        putEmpty(ref);
+        return ref;
+    }
+
+    /**
+     * 撤销登记的引用.
+     * @param ref {@link #add}返回的引用
+     */
+    public void remove(String ref) throws IOException {
+        removeObject(ref);
+    }
+
+    /**
+     * 释放内容对象的一个引用，最后一个引用释放后删除内容对象.
+     * @param filePath 内容对象的文件路径
+     */
+    public void release(String filePath) throws IOException {
+        val prefix = OssBackend.refPrefix(filePath);
+        val refs = listObjects(prefix, 2);
+        if (!refs.isEmpty()) {
+            removeObject(refs.get(0));
+        }
+        if (refs.size() > 1) {
+            // 仍有其它引用
+            return;
+        }
+        val objectName = filePath.substring(1);
+        val trash = TRASH_DIR + "/" + StringUtils.strip(filePath, "/") + "/" + PathAllocator.nextId();
+        if (!copyObject(objectName, trash)) {
+            // 内容对象已被删除
+            return;
+        }
+        try {
+            removeObject(objectName);
+        }
+        catch (IOException | RuntimeException e) {
+            removeObject(trash);
+            throw e;
+        }
+        if (!listObjects(prefix, 1).isEmpty()) {
+            // 删除期间有上传登记了引用并复用了内容对象. 恢复失败时保留回收区中的副本
+            log.debug("Content {} is referenced while deleting, restore it", filePath);
+            if (!copyObject(trash, objectName)) {
+                throw new IOException("Cannot restore " + filePath + " from " + trash);
+            }
+        }
+        removeObject(trash);
+    }
+
+    /**
+     * 写入一个空对象.
+     */
+    protected abstract void putEmpty(String objectName) throws IOException;
+
+    /**
+     * 列出前缀下的对象.
+     * @param prefix 前缀
+     * @param limit 最多返回的对象数
+     * @return 对象名
+     */
+    protected abstract List<String> listObjects(String prefix, int limit) throws IOException;
+
+    /**
+     * 删除对象，对象不存在时不报错.
+     */
+    protected abstract void removeObject(String objectName) throws IOException;
+
+    /**
+     * 服务端复制对象，保留内容类型与元数据.
+     * @return 源对象不存在时返回false
+     */
+    protected abstract boolean copyObject(String source, String target) throws IOException;
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.backend;
+
+import com.apzda.cloud.oss.file.IOssFile;
+import org.springframework.lang.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 一次分片上传，由具体的存储实现. 除{@link #uploadPart}可能被并发调用外，其余方法按顺序调用.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public interface MultipartUpload {
+
+    /**
+     * 文件不超过一个分片时直接上传.
+     * @param data 数据
+     * @param length 数据长度
+     * @param md5 数据的MD5摘要
+     * @return 文件标识，与{@link IOssFile#stat()}返回的fileId一致
+     */
+    String putObject(@NonNull byte[] data, int length, @NonNull byte[] md5) throws IOException;
+
+    /**
+     * 开始分片上传.
+     */
+    void initiate() throws IOException;
+
+    /**
+     * 上传一个分片.
+     * @param partNumber 分片序号(从1开始)
+     * @param data 数据，方法返回后会被复用
+     * @param length 数据长度
+     * @return 分片标识(ETag)
+     */
+    String uploadPart(int partNumber, @NonNull byte[] data, int length) throws IOException;
+
+    /**
+     * 完成分片上传.
+     * @param parts 按分片序号排列的分片标识
+     * @return 文件标识，与{@link IOssFile#stat()}返回的fileId一致
+     */
+    String complete(@NonNull List<String> parts) throws IOException;
+
+    /**
+     * 取消分片上传并清理已上传的分片.
+     */
+    void abort();
+
+}
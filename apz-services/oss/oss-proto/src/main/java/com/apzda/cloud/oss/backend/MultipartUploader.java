@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.backend;
+
+import com.apzda.cloud.oss.config.BackendConfig;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.lang.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 流式分片上传. 从输入流按分片大小读取数据并行上传，同时计算长度与MD5. 同一次上传最多并行上传concurrency个分片;
+ * 所有上传共享一个有界的分片上传线程池与分片缓冲区预算，内存占用不超过buffers×partSize，与文件大小和并发上传数无关.
+ * <p>
+ * 每个存储后端持有一个实例，关闭后端时调用{@link #shutdown()}.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class MultipartUploader {
+
+    /**
+     * 对象存储要求除最后一个分片外每个分片不小于5MB
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final int partSize;
+
+    private final int concurrency;
+
+    private final ThreadPoolExecutor executor;
+
+    private final Semaphore buffers;
+
+    private final BlockingQueue<byte[]> idleBuffers;
+
+    public MultipartUploader(@NonNull BackendConfig config) {
+        this((int) Math.min(Integer.MAX_VALUE - 8, Math.max(MIN_PART_SIZE, config.getPartSize().toBytes())),
+                Math.max(1, config.getUploadConcurrency()), Math.max(1, config.getPartThreads()),
+                Math.max(1, config.getPartBuffers()));
+    }
+
+    public MultipartUploader(int partSize, int concurrency, int threads, int buffers) {
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.buffers = new Semaphore(buffers);
+        this.idleBuffers = new ArrayBlockingQueue<>(buffers);
+        val counter = new AtomicInteger();
+        // 排队的分片数受缓冲区预算限制
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> {
+                    val thread = new Thread(r, "oss-part-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 上传输入流中的全部数据(不关闭输入流).
+     * @param input 输入流
+     * @param fileName 文件名，用于推断内容类型(与{@link OssBackend#contentType(String)}一致)
+     * @param upload 存储的分片上传实现
+     * @return 上传结果
+     */
+    @NonNull
+    public Result upload(@NonNull InputStream input, @NonNull String fileName, @NonNull MultipartUpload upload)
+            throws IOException {
+        val digest = md5();
+        val contentType = OssBackend.contentType(fileName);
+        val permits = new Semaphore(concurrency);
+        val futures = new ArrayList<CompletableFuture<String>>();
+        var initiated = false;
+        long total = 0;
+        try {
+            int partNumber = 0;
+            while (true) {
+                permits.acquire();
+                val buffer = borrow();
+                var submitted = false;
+                try {
+                    val length = input.readNBytes(buffer, 0, partSize);
+                    digest.update(buffer, 0, length);
+                    if (partNumber == 0 && length < partSize) {
+                        // 只有一个分片
+                        val md5 = digest.digest();
+                        val fileId = upload.putObject(buffer, length, md5);
+                        return new Result(length, HexFormat.of().formatHex(md5), contentType, fileId, 1);
+                    }
+                    if (length == 0) {
+                        break;
+                    }
+                    if (!initiated) {
+                        upload.initiate();
+                        initiated = true;
+                    }
+                    total += length;
+                    futures.add(submit(upload, ++partNumber, buffer, length, permits));
+                    submitted = true;
+                    // 最后一个分片或分片上传失败时结束
+                    if (length < partSize || futures.stream().anyMatch(CompletableFuture::isCompletedExceptionally)) {
+                        break;
+                    }
+                }
+                finally {
+                    if (!submitted) {
+                        giveBack(buffer);
+                        permits.release();
+                    }
+                }
+            }
+            val parts = new ArrayList<String>(futures.size());
+            for (val future : futures) {
+                parts.add(future.get());
+            }
+            val fileId = upload.complete(parts);
+            return new Result(total, HexFormat.of().formatHex(digest.digest()), contentType, fileId, parts.size());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(upload, futures, initiated);
+            throw new IOException("Upload is interrupted", e);
+        }
+        catch (ExecutionException e) {
+            abort(upload, futures, initiated);
+            if (e.getCause() instanceof IOException ie) {
+                throw ie;
+            }
+            throw new IOException(e.getCause());
+        }
+        catch (IOException | RuntimeException e) {
+            abort(upload, futures, initiated);
+            throw e;
+        }
+    }
+
+    /**
+     * 停止分片上传线程池.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 等待正在上传的分片结束后再取消，避免取消后仍有分片写入.
+     */
+    private static void abort(@NonNull MultipartUpload upload, @NonNull List<CompletableFuture<String>> futures,
+            boolean initiated) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).handle((r, e) -> null).join();
+        }
+        finally {
+            if (initiated) {
+                upload.abort();
+            }
+        }
+    }
+
+    /**
+     * 从共享预算中借用一个分片缓冲区，预算用完时等待其它分片上传结束.
+     */
+    @NonNull
+    private byte[] borrow() throws InterruptedException {
+        buffers.acquire();
+        val buffer = idleBuffers.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    private void giveBack(@NonNull byte[] buffer) {
+        idleBuffers.offer(buffer);
+        buffers.release();
+    }
+
+    @NonNull
+    private CompletableFuture<String> submit(@NonNull MultipartUpload upload, int partNumber, @NonNull byte[] buffer,
+            int length, @NonNull Semaphore permits) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return upload.uploadPart(partNumber, buffer, length);
+            }
+            catch (IOException e) {
+                throw new CompletionException(e);
+            }
+            finally {
+                giveBack(buffer);
+                permits.release();
+            }
+        }, executor);
+    }
+
+    @NonNull
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 上传结果.
+     *
+     * @param length 文件长度
+     * @param md5 文件的MD5摘要(十六进制)
+     * @param contentType 内容类型
+     * @param fileId 文件标识
+     * @param parts 分片数
+     */
+    public record Result(long length, String md5, String contentType, String fileId, int parts) {
+    }
+
+}
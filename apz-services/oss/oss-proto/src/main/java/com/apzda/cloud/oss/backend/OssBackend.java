@@ -22,18 +22,17 @@ import cn.hutool.core.util.ReUtil;
 import cn.hutool.core.util.StrUtil;
 import com.apzda.cloud.oss.config.BackendConfig;
 import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.proto.FileInfo;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.util.DigestUtils;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.net.URLConnection;
 import java.util.Date;
 import java.util.regex.Pattern;
 
@@ -48,6 +47,18 @@ public interface OssBackend {
 
     Pattern FILE_NAME_INVALID_PATTERN_WIN = Pattern.compile("[\\\\:*?\"<>|\r\n]");
 
+    /**
+     * 去重模式下内容对象的文件名前缀，与旧版本以MD5命名的文件区分.
+     */
+    String CONTENT_NAME_PREFIX = "cas-";
+
+    Pattern CONTENT_NAME_PATTERN = Pattern.compile(CONTENT_NAME_PREFIX + "[0-9a-f]{32}");
+
+    /**
+     * 去重模式下内容对象的引用目录.
+     */
+    String REFS_DIR = ".oss-refs";
+
     default boolean init(BackendConfig config) {
         return true;
     }
@@ -72,42 +83,82 @@ public interface OssBackend {
         return true;
     }
 
+    /**
+     * 远程存储的本地文件缓存，本地存储返回null.
+     */
+    default LocalFileCache getLocalFileCache() {
+        return null;
+    }
+
+    /**
+     * 生成文件路径. 文件名为唯一标识({@link PathAllocator#nextId()})，无需查询存储中是否已存在同名文件.
+     * @param fileName 原始文件名，用于获取扩展名
+     * @param pathPatten 未指定目录时使用的日期格式
+     * @param path 目录
+     * @return 以/开头的文件路径
+     */
     default String generatePath(String fileName, String pathPatten, String path) {
+        return directory(pathPatten, path) + "/" + PathAllocator.nextId() + extension(fileName);
+    }
+
+    /**
+     * 生成基于内容摘要的文件路径(去重模式)，内容相同的文件路径相同.
+     * @param md5 文件内容的MD5摘要
+     * @param fileName 原始文件名，用于获取扩展名
+     * @param path 目录，未指定时使用摘要的前两位作为目录
+     * @return 以/开头的文件路径
+     */
+    default String contentPath(String md5, String fileName, String path) {
+        val directory = StringUtils.isBlank(path) ? "/" + md5.substring(0, 2) : directory(null, path);
+        return directory + "/" + CONTENT_NAME_PREFIX + md5 + extension(fileName);
+    }
+
+    /**
+     * 是否为基于内容摘要的文件路径({@link #contentPath}的文件名为{@link #CONTENT_NAME_PREFIX}加32位MD5，
+     * {@link #generatePath}的为26位ULID).
+     * <p>
+     * 去重模式下内容对象被多次上传共享，每次上传在{@link #refPrefix}下登记一个引用，删除时只释放一个引用，
+     * 最后一个引用释放后才删除内容对象.
+     * @param filePath 文件路径
+     * @return 是否为基于内容摘要的文件路径
+     */
+    static boolean isContentPath(String filePath) {
+        val name = FileUtil.mainName(filePath);
+        return name != null && CONTENT_NAME_PATTERN.matcher(name).matches();
+    }
+
+    /**
+     * 内容对象的引用前缀，引用名为{@link PathAllocator#nextId()}.
+     * @param filePath 内容对象的文件路径
+     * @return 不以/开头、以/结尾的引用前缀
+     */
+    static String refPrefix(String filePath) {
+        return REFS_DIR + "/" + StringUtils.strip(filePath, "/") + "/";
+    }
+
+    /**
+     * 文件的内容类型. 上传时写入对象元数据与查询文件信息时都使用它，保证两者一致.
+     * @param fileName 文件名
+     * @return 内容类型，无法识别时为null
+     */
+    static String contentType(String fileName) {
+        return fileName == null ? null : URLConnection.guessContentTypeFromName(fileName);
+    }
+
+    default String directory(String pathPatten, String path) {
         if (StringUtils.isBlank(path)) {
             path = DateUtil.format(new Date(), StringUtils.defaultIfBlank(pathPatten, "yyyy/MM/dd"));
         }
         else {
             path = StringUtils.strip(path, "./");
         }
-        try {
-            path = cleanInvalid(path);
-            String fileId = DigestUtils.md5DigestAsHex(fileName.getBytes(StandardCharsets.UTF_8));
-            val fName = fileId.substring(0, 10);
-            val extName = "." + FileUtil.extName(fileName);
-            val destFile = "/" + StringUtils.strip(path, "/") + "/" + fName;
-            int i = 1;
-            var finalFileName = destFile + extName;
-            var ossFile = getFile(finalFileName);
-            do {
-                try {
-                    val stat = ossFile.stat();
-                    if (!stat.getExist()) {
-                        break;
-                    }
-                    finalFileName = destFile + "-" + (i++) + extName;
-                    ossFile = getFile(finalFileName);
-                }
-                catch (FileNotFoundException e) {
-                    break;
-                }
-            }
-            while (true);
-
-            return finalFileName;
-        }
-        catch (IOException e) {
-            return "/" + StringUtils.strip(path, "/") + "/" + fileName;
-        }
+        path = StringUtils.strip(cleanInvalid(path), "/");
+        return StringUtils.isBlank(path) ? "" : "/" + path;
+    }
+
+    default String extension(String fileName) {
+        val extName = FileUtil.extName(fileName);
+        return StringUtils.isBlank(extName) ? "" : "." + extName;
     }
 
     default String cleanInvalid(String path) {
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.backend;
+
+import org.springframework.lang.NonNull;
+
+import java.security.SecureRandom;
+
+/**
+ * 文件名分配器. 生成按时间排序的唯一标识(ULID: 48位毫秒时间戳 + 80位随机数，Crockford Base32编码)，
+ * 同一毫秒内递增随机部分，无需查询存储即可保证文件名不冲突.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public final class PathAllocator {
+
+    private static final char[] ALPHABET = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static long lastTime;
+
+    private static long randomHi;
+
+    private static long randomLo;
+
+    private PathAllocator() {
+    }
+
+    /**
+     * 生成一个新的唯一标识.
+     * @return 26位小写ULID
+     */
+    @NonNull
+    public static String nextId() {
+        long time;
+        long hi;
+        long lo;
+        synchronized (PathAllocator.class) {
+            time = Math.max(System.currentTimeMillis(), lastTime);
+            if (time == lastTime) {
+                // 同一毫秒内递增(80位: 高16位 + 低64位)
+                randomLo++;
+                if (randomLo == 0) {
+                    randomHi = (randomHi + 1) & 0xFFFF;
+                    if (randomHi == 0) {
+                        time++;
+                    }
+                }
+            }
+            else {
+                randomHi = RANDOM.nextInt() & 0xFFFF;
+                randomLo = RANDOM.nextLong();
+            }
+            lastTime = time;
+            hi = randomHi;
+            lo = randomLo;
+        }
+        return encode(time, hi, lo);
+    }
+
+    @NonNull
+    static String encode(long time, long randomHi, long randomLo) {
+        final char[] chars = new char[26];
+        // 时间戳: 48位 -> 10个字符(最高位字符只用3位)
+        for (int i = 9; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (time & 0x1F)];
+            time >>>= 5;
+        }
+        // 随机数: 80位 -> 16个字符
+        for (int i = 25; i >= 10; i--) {
+            chars[i] = ALPHABET[(int) (randomLo & 0x1F)];
+            randomLo = (randomLo >>> 5) | ((randomHi & 0x1F) << 59);
+            randomHi >>>= 5;
+        }
+        return new String(chars);
+    }
+
+}
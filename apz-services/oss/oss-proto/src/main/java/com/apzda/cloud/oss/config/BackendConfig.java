@@ -21,6 +21,7 @@ import com.apzda.cloud.oss.backend.OssBackend;
 import lombok.Data;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.boot.convert.DurationUnit;
+import org.springframework.util.unit.DataSize;
 
 import java.io.File;
 import java.time.Duration;
@@ -66,6 +67,46 @@ public class BackendConfig {
     @DurationUnit(ChronoUnit.SECONDS)
     private Duration connectTimeout = Duration.ofSeconds(5);
 
+    /**
+     * 分片上传的分片大小(不小于5MB)
+     */
+    private DataSize partSize = DataSize.ofMegabytes(8);
+
+    /**
+     * 单个文件并行上传的分片数
+     */
+    private int uploadConcurrency = 4;
+
+    /**
+     * 所有上传共享的分片上传线程数
+     */
+    private int partThreads = 8;
+
+    /**
+     * 所有上传共享的分片缓冲区数，分片上传占用的内存不超过partBuffers×partSize
+     */
+    private int partBuffers = 16;
+
+    /**
+     * 去重模式: 文件路径由内容摘要生成，内容相同的文件只保存一份
+     */
+    private boolean dedup;
+
+    /**
+     * 远程文件本地缓存目录，默认为临时目录下的oss-cache
+     */
+    private String localCacheDir;
+
+    /**
+     * 远程文件本地缓存的大小上限，超出后删除最久未访问的文件
+     */
+    private DataSize localCacheSize = DataSize.ofGigabytes(1);
+
+    /**
+     * 下载后使用ETag校验MD5(ETag不是MD5时跳过)，开启服务端加密等导致ETag不是内容MD5时应关闭
+     */
+    private boolean localCacheVerify = true;
+
     private final Map<String, String> props = new HashMap<>();
 
     public String getRootDir() {
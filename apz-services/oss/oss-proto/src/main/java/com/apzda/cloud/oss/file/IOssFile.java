@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -32,8 +33,53 @@ public interface IOssFile {
 
     File getLocalFile() throws IOException;
 
+    /**
+     * 获取文件的本地副本，租约关闭前远程存储的本地缓存不会删除它.
+     * @return 租约，使用后必须关闭
+     */
+    default LocalFileCache.Lease openLocalFile() throws IOException {
+        return LocalFileCache.Lease.of(getLocalFile());
+    }
+
     InputStream getInputStream() throws IOException;
 
+    /**
+     * 读取文件的一部分，支持范围读取的存储应覆盖此方法.
+     * @param offset 起始位置
+     * @param length 读取长度
+     */
+    default InputStream getInputStream(long offset, long length) throws IOException {
+        InputStream input = getInputStream();
+        try {
+            input.skipNBytes(offset);
+        }
+        catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        return new RangeInputStream(input, length);
+    }
+
+    /**
+     * 将文件的一部分写入输出流.
+     * @param offset 起始位置
+     * @param length 写入长度
+     * @param out 输出流(不会被关闭)
+     * @return 实际写入的字节数
+     */
+    default long transferTo(long offset, long length, OutputStream out) throws IOException {
+        try (InputStream input = getInputStream(offset, length)) {
+            return input.transferTo(out);
+        }
+    }
+
+    /**
+     * 文件是否保存在本地文件系统中(getLocalFile无需下载).
+     */
+    default boolean isLocal() {
+        return false;
+    }
+
     FileInfo stat() throws IOException;
 
     boolean delete() throws IOException;
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.file;
+
+import cn.hutool.core.io.FileUtil;
+import com.apzda.cloud.oss.config.BackendConfig;
+import com.apzda.cloud.oss.proto.FileInfo;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.lang.NonNull;
+import org.springframework.util.unit.DataSize;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * 远程存储的本地文件缓存: 总大小超过上限时删除最久未访问的文件.
+ * <p>
+ * 同一文件的并发请求只下载一次；下载到临时文件，校验长度(及可用时的MD5)后原子重命名，不会读到下载了一半的文件.
+ * 通过{@link #acquire}获取的文件在租约关闭前被固定，期间被淘汰时延迟到最后一个租约关闭后删除.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class LocalFileCache {
+
+    private static final Pattern CACHE_FILE = Pattern.compile("^[0-9a-f]{32}(\\.[^.]+)?$");
+
+    private static final Pattern MD5 = Pattern.compile("^[0-9a-f]{32}$");
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final Path dir;
+
+    private final long maxSize;
+
+    private final boolean verify;
+
+    /**
+     * 按访问顺序排列，由this保护.
+     */
+    private final LinkedHashMap<String, Cached> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 租约未关闭的文件，由this保护.
+     */
+    private final Map<String, Pin> pins = new HashMap<>();
+
+    private final ConcurrentHashMap<String, CompletableFuture<File>> downloads = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder waits = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private long size;
+
+    public LocalFileCache(@NonNull Path dir, @NonNull DataSize maxSize, boolean verify) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.maxSize = maxSize.toBytes();
+        this.verify = verify;
+        load();
+    }
+
+    @NonNull
+    public static LocalFileCache of(@NonNull BackendConfig config) throws IOException {
+        val dir = StringUtils.isNotBlank(config.getLocalCacheDir()) ? Path.of(config.getLocalCacheDir())
+                : Path.of(config.getTmpDir(), "oss-cache");
+        return new LocalFileCache(dir, config.getLocalCacheSize(), config.isLocalCacheVerify());
+    }
+
+    /**
+     * 获取文件的本地副本，不存在时下载. 返回的文件随时可能被淘汰删除，读取期间需要保留时使用{@link #acquire}.
+     * @param stat 文件信息，fileId(ETag)变化后会重新下载
+     * @param downloader 打开远程文件的输入流
+     * @return 本地文件
+     */
+    @NonNull
+    public File get(@NonNull FileInfo stat, @NonNull Downloader downloader) throws IOException {
+        return get(key(stat), stat, downloader);
+    }
+
+    /**
+     * 获取文件的本地副本，不存在时下载. 租约关闭前文件不会因淘汰而被删除.
+     * @param stat 文件信息，fileId(ETag)变化后会重新下载
+     * @param downloader 打开远程文件的输入流
+     * @return 租约，使用后必须关闭
+     */
+    @NonNull
+    public Lease acquire(@NonNull FileInfo stat, @NonNull Downloader downloader) throws IOException {
+        val key = key(stat);
+        for (int i = 0; i < 3; i++) {
+            val file = get(key, stat, downloader);
+            if (pin(key, file)) {
+                return new Lease(file, () -> unpin(key, file));
+            }
+            // 获取后固定前被淘汰并删除，重新下载
+        }
+        throw new FileNotFoundException("Cached file is not available: " + stat.getPath());
+    }
+
+    private File get(String key, FileInfo stat, Downloader downloader) throws IOException {
+        val cached = lookup(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+
+        val download = new CompletableFuture<File>();
+        val inflight = downloads.putIfAbsent(key, download);
+        if (inflight != null) {
+            // 等待其它线程的下载，既不是命中也不产生下载
+            waits.increment();
+            return await(inflight);
+        }
+        try {
+            // 其它线程可能在lookup之后刚完成下载
+            var file = lookup(key);
+            if (file == null) {
+                misses.increment();
+                file = download(key, stat, downloader);
+                add(key, file);
+            }
+            download.complete(file);
+            return file;
+        }
+        catch (IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            downloads.remove(key, download);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * 等待其它线程下载同一文件的请求数.
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getCount() {
+        return files.size();
+    }
+
+    private synchronized File lookup(String key) {
+        val cached = files.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (!cached.file.exists()) {
+            // 被外部删除
+            files.remove(key);
+            size -= cached.length;
+            return null;
+        }
+        return cached.file;
+    }
+
+    private synchronized boolean pin(String key, File file) {
+        if (!file.isFile()) {
+            return false;
+        }
+        pins.computeIfAbsent(key, k -> new Pin()).count++;
+        return true;
+    }
+
+    private synchronized void unpin(String key, File file) {
+        val pin = pins.get(key);
+        if (pin == null || --pin.count > 0) {
+            return;
+        }
+        pins.remove(key);
+        if (pin.evicted) {
+            delete(file);
+        }
+    }
+
+    private synchronized void add(String key, File file) {
+        val pin = pins.get(key);
+        if (pin != null) {
+            // 被淘汰但仍在使用的文件重新加入缓存，不再删除
+            pin.evicted = false;
+        }
+        val previous = files.put(key, new Cached(file, file.length()));
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += file.length();
+        val iterator = files.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            val eldest = iterator.next();
+            if (eldest.getKey().equals(key)) {
+                // 刚加入的文件即使超过上限也保留，调用者马上要使用它
+                continue;
+            }
+            val evicted = eldest.getValue();
+            iterator.remove();
+            size -= evicted.length;
+            evictions.increment();
+            val evictedPin = pins.get(eldest.getKey());
+            if (evictedPin != null) {
+                // 租约未关闭，最后一个租约关闭后删除
+                evictedPin.evicted = true;
+                continue;
+            }
+            delete(evicted.file);
+        }
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            log.warn("Cannot delete cached file: {}", file);
+        }
+    }
+
+    private File download(String key, FileInfo stat, Downloader downloader) throws IOException {
+        val target = dir.resolve(key);
+        val tmp = Files.createTempFile(dir, key, TEMP_FILE_SUFFIX);
+        try {
+            val digest = md5();
+            long length;
+            try (val input = new DigestInputStream(downloader.open(), digest)) {
+                length = Files.copy(input, tmp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (length != stat.getLength()) {
+                throw new IOException("Incomplete download of " + stat.getPath() + ": " + length + "/"
+                        + stat.getLength() + " bytes");
+            }
+            val etag = StringUtils.strip(stat.getFileId(), "\"").toLowerCase(Locale.ROOT);
+            if (verify && MD5.matcher(etag).matches()) {
+                val md5 = HexFormat.of().formatHex(digest.digest());
+                if (!md5.equals(etag)) {
+                    throw new IOException("Corrupted download of " + stat.getPath() + ": md5 " + md5 + " != " + etag);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.trace("File cached: {} -> {}", stat.getPath(), target);
+            return target.toFile();
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static File await(CompletableFuture<File> download) throws IOException {
+        try {
+            return download.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioe) {
+                throw ioe;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String key(FileInfo stat) {
+        val ext = FileUtil.extName(stat.getFilename());
+        val id = (stat.getFileId() + ":" + stat.getLength()).getBytes(StandardCharsets.UTF_8);
+        val key = HexFormat.of().formatHex(md5().digest(id));
+        return StringUtils.isBlank(ext) ? key : key + "." + ext.toLowerCase(Locale.ROOT);
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 按最后修改时间从旧到新索引已有文件.
+     */
+    private void load() throws IOException {
+        try (val list = Files.list(dir)) {
+            list.filter(Files::isRegularFile).map(Path::toFile).filter(file -> {
+                if (CACHE_FILE.matcher(file.getName()).matches()) {
+                    return true;
+                }
+                if (file.getName().endsWith(TEMP_FILE_SUFFIX) && !file.delete()) {
+                    log.warn("Cannot delete stale download: {}", file);
+                }
+                return false;
+            }).sorted(Comparator.comparingLong(File::lastModified)).forEach(file -> add(file.getName(), file));
+        }
+        log.debug("Local file cache loaded: {} files, {} bytes in {}", getCount(), getSize(), dir);
+    }
+
+    private record Cached(File file, long length) {
+    }
+
+    private static final class Pin {
+
+        private int count;
+
+        private boolean evicted;
+
+    }
+
+    /**
+     * 本地文件的租约，关闭前文件不会因淘汰而被删除.
+     */
+    public static final class Lease implements Closeable {
+
+        private final File file;
+
+        private final Runnable release;
+
+        private boolean closed;
+
+        private Lease(File file, Runnable release) {
+            this.file = file;
+            this.release = release;
+        }
+
+        /**
+         * 不受缓存管理的文件(如本地存储中的文件)的租约，关闭时不做任何事.
+         */
+        @NonNull
+        public static Lease of(@NonNull File file) {
+            return new Lease(file, null);
+        }
+
+        @NonNull
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                if (release != null) {
+                    release.run();
+                }
+            }
+        }
+
+    }
+
+    @FunctionalInterface
+    public interface Downloader {
+
+        InputStream open() throws IOException;
+
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.apzda.cloud.oss.backend;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class ContentRefsTest {
+
+    private static final String CONTENT = "/ab/cas-ab0123456789abcdef0123456789abcd.png";
+
+    @Test
+    void content_path_should_not_match_legacy_names() {
+        assertThat(OssBackend.isContentPath(CONTENT)).isTrue();
+        assertThat(OssBackend.isContentPath("/2024/ab0123456789abcdef0123456789abcd.png")).isFalse();
+        assertThat(OssBackend.isContentPath("/2024/01hq3v8x9k2m4n6p8r0t2v4x6z.png")).isFalse();
+    }
+
+    @Test
+    void content_should_be_deleted_with_the_last_ref() throws IOException {
+        // given
+        val refs = new MemoryRefs();
+        refs.objects.put(CONTENT.substring(1), "data");
+        val ref = refs.add(CONTENT);
+        refs.add(CONTENT);
+
+        // when
+        refs.release(CONTENT);
+
+        // then
+        assertThat(refs.objects).containsKey(CONTENT.substring(1)).doesNotContainKey(ref);
+
+        // when
+        refs.release(CONTENT);
+
+        // then
+        assertThat(refs.objects).isEmpty();
+    }
+
+    @Test
+    void content_reused_while_deleting_should_be_restored() throws IOException {
+        // given
+        val refs = new MemoryRefs();
+        refs.objects.put(CONTENT.substring(1), "data");
+        refs.add(CONTENT);
+        refs.beforeRemove = objectName -> {
+            if (objectName.equals(CONTENT.substring(1))) {
+                // 上传在删除内容对象之前登记引用并复用了内容对象
+                refs.beforeRemove = name -> {
+                };
+                refs.add(CONTENT);
+                assertThat(refs.objects).containsKey(CONTENT.substring(1));
+            }
+        };
+
+        // when
+        refs.release(CONTENT);
+
+        // then
+        assertThat(refs.objects).containsEntry(CONTENT.substring(1), "data");
+        assertThat(refs.objects.keySet()).noneMatch(name -> name.startsWith(ContentRefs.TRASH_DIR));
+        assertThat(refs.objects.keySet()).filteredOn(name -> name.startsWith(OssBackend.refPrefix(CONTENT)))
+            .hasSize(1);
+    }
+
+    @Test
+    void releasing_deleted_content_should_be_ignored() throws IOException {
+        // given
+        val refs = new MemoryRefs();
+
+        // when
+        refs.release(CONTENT);
+
+        // then
+        assertThat(refs.objects).isEmpty();
+    }
+
+    private interface Hook {
+
+        void run(String objectName) throws IOException;
+
+    }
+
+    private static class MemoryRefs extends ContentRefs {
+
+        private final Map<String, String> objects = new ConcurrentSkipListMap<>();
+
+        private Hook beforeRemove = name -> {
+        };
+
+        @Override
+        protected void putEmpty(String objectName) {
+            objects.put(objectName, "");
+        }
+
+        @Override
+        protected List<String> listObjects(String prefix, int limit) {
+            return objects.keySet().stream().filter(name -> name.startsWith(prefix)).limit(limit).toList();
+        }
+
+        @Override
+        protected void removeObject(String objectName) throws IOException {
+            beforeRemove.run(objectName);
+            objects.remove(objectName);
+        }
+
+        @Override
+        protected boolean copyObject(String source, String target) {
+            val data = objects.get(source);
+            if (data == null) {
+                return false;
+            }
+            objects.put(target, data);
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.apzda.cloud.oss.file;
+
+import com.apzda.cloud.oss.proto.FileInfo;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class LocalFileCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void eldest_file_should_be_evicted_and_deleted() throws IOException {
+        // given
+        val cache = new LocalFileCache(dir, DataSize.ofBytes(10), false);
+        val a = cache.get(stat("a", "aaaa"), () -> stream("aaaa"));
+        val b = cache.get(stat("b", "bbbb"), () -> stream("bbbb"));
+
+        // when
+        val c = cache.get(stat("c", "cccc"), () -> stream("cccc"));
+
+        // then
+        assertThat(a).doesNotExist();
+        assertThat(b).hasContent("bbbb");
+        assertThat(c).hasContent("cccc");
+        assertThat(cache.getCount()).isEqualTo(2);
+        assertThat(cache.getSize()).isEqualTo(8);
+        assertThat(cache.getEvictions()).isEqualTo(1);
+    }
+
+    @Test
+    void leased_file_should_be_deleted_after_the_lease_is_closed() throws IOException {
+        // given
+        val cache = new LocalFileCache(dir, DataSize.ofBytes(10), false);
+        val lease = cache.acquire(stat("a", "aaaa"), () -> stream("aaaa"));
+        cache.get(stat("b", "bbbb"), () -> stream("bbbb"));
+
+        // when
+        cache.get(stat("c", "cccc"), () -> stream("cccc"));
+
+        // then
+        assertThat(cache.getEvictions()).isEqualTo(1);
+        assertThat(lease.getFile()).hasContent("aaaa");
+
+        // when
+        lease.close();
+
+        // then
+        assertThat(lease.getFile()).doesNotExist();
+    }
+
+    @Test
+    void re_cached_file_should_survive_the_lease() throws IOException {
+        // given
+        val cache = new LocalFileCache(dir, DataSize.ofBytes(10), false);
+        val a = stat("a", "aaaa");
+        val lease = cache.acquire(a, () -> stream("aaaa"));
+        cache.get(stat("b", "bbbb"), () -> stream("bbbb"));
+        cache.get(stat("c", "cccc"), () -> stream("cccc"));
+
+        // when: 被淘汰后再次访问
+        val file = cache.get(a, () -> stream("aaaa"));
+        lease.close();
+
+        // then
+        assertThat(file).isEqualTo(lease.getFile()).hasContent("aaaa");
+    }
+
+    @Test
+    void concurrent_requests_should_download_once() throws Exception {
+        // given
+        val cache = new LocalFileCache(dir, DataSize.ofMegabytes(1), false);
+        val stat = stat("a", "aaaa");
+        val opens = new AtomicInteger();
+        val started = new CountDownLatch(1);
+        val proceed = new CountDownLatch(1);
+        LocalFileCache.Downloader downloader = () -> {
+            opens.incrementAndGet();
+            started.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return stream("aaaa");
+        };
+        val executor = Executors.newFixedThreadPool(2);
+
+        try {
+            // when
+            val first = executor.submit(() -> cache.get(stat, downloader));
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            val second = executor.submit(() -> cache.get(stat, downloader));
+            while (cache.getWaits() == 0) {
+                Thread.sleep(10);
+            }
+            proceed.countDown();
+
+            // then
+            val file = first.get(5, TimeUnit.SECONDS);
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(file).hasContent("aaaa");
+            assertThat(opens).hasValue(1);
+            assertThat(cache.getMisses()).isEqualTo(1);
+            assertThat(cache.getWaits()).isEqualTo(1);
+            assertThat(cache.getHits()).isZero();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // when
+        cache.get(stat, downloader);
+
+        // then
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(opens).hasValue(1);
+    }
+
+    @Test
+    void incomplete_download_should_not_be_cached() throws IOException {
+        // given
+        val cache = new LocalFileCache(dir, DataSize.ofMegabytes(1), false);
+        val stat = stat("a", "aaaa").toBuilder().setLength(10).build();
+
+        // when
+        assertThatThrownBy(() -> cache.get(stat, () -> stream("aaaa"))).isInstanceOf(IOException.class)
+            .hasMessageContaining("Incomplete");
+
+        // then
+        assertThat(cache.getCount()).isZero();
+        try (val files = Files.list(dir)) {
+            assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    void corrupted_download_should_not_be_cached_when_verifying() throws IOException {
+        // given
+        val cache = new LocalFileCache(dir, DataSize.ofMegabytes(1), true);
+        val stat = stat("a", "aaaa");
+
+        // when
+        assertThatThrownBy(() -> cache.get(stat, () -> stream("abcd"))).isInstanceOf(IOException.class)
+            .hasMessageContaining("Corrupted");
+        val file = cache.get(stat, () -> stream("aaaa"));
+
+        // then
+        assertThat(file).hasContent("aaaa");
+        assertThat(cache.getCount()).isEqualTo(1);
+    }
+
+    private static FileInfo stat(String name, String content) {
+        return FileInfo.newBuilder()
+            .setPath("/test/" + name + ".txt")
+            .setFilename(name + ".txt")
+            .setFileId("\"" + md5(content) + "\"")
+            .setLength(content.length())
+            .build();
+    }
+
+    private static ByteArrayInputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String md5(String content) {
+        try {
+            val digest = MessageDigest.getInstance("MD5");
+            return HexFormat.of().formatHex(digest.digest(content.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
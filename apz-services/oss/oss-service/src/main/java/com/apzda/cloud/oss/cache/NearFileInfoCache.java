@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.cache;
+
+import com.apzda.cloud.oss.proto.FileInfo;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.val;
+
+import java.time.Duration;
+
+/**
+ * 两级文件信息缓存: 先查本地缓存，未命中时查共享缓存并回填本地.
+ * <p>
+ * 其它节点修改文件信息时通过{@link #invalidate(String)}清除本地副本，本地副本的有效期应较短以限制不一致的时间窗口.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public class NearFileInfoCache implements FileInfoCache {
+
+    private final Cache<String, FileInfo> near;
+
+    private final FileInfoCache far;
+
+    public NearFileInfoCache(FileInfoCache far, Duration ttl, long maximumSize) {
+        this.far = far;
+        this.near = CacheBuilder.newBuilder().expireAfterWrite(ttl).maximumSize(maximumSize).build();
+    }
+
+    @Override
+    public FileInfo getFileInfo(String fileId) {
+        val cached = near.getIfPresent(fileId);
+        if (cached != null) {
+            return cached;
+        }
+        val info = far.getFileInfo(fileId);
+        if (info != null) {
+            near.put(fileId, info);
+        }
+        return info;
+    }
+
+    @Override
+    public void setFileInfo(String fileId, FileInfo info) {
+        far.setFileInfo(fileId, info);
+        near.put(fileId, info);
+    }
+
+    @Override
+    public void remove(String fileId) {
+        far.remove(fileId);
+        near.invalidate(fileId);
+    }
+
+    public void invalidate(String fileId) {
+        near.invalidate(fileId);
+    }
+
+}
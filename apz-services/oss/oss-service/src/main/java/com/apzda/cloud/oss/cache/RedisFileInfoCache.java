@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.cache;
+
+import com.apzda.cloud.oss.proto.FileInfo;
+import com.google.protobuf.InvalidProtocolBufferException;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.Duration;
+import java.util.Base64;
+
+/**
+ * 基于Redis的文件信息缓存，所有节点共享. FileInfo以protobuf序列化(base64编码)保存.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class RedisFileInfoCache implements FileInfoCache {
+
+    private static final String KEY_PREFIX = "oss.file.";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Duration ttl;
+
+    public RedisFileInfoCache(StringRedisTemplate stringRedisTemplate, Duration ttl) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.ttl = ttl;
+    }
+
+    @Override
+    public FileInfo getFileInfo(String fileId) {
+        val value = stringRedisTemplate.opsForValue().get(KEY_PREFIX + fileId);
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+        try {
+            return FileInfo.parseFrom(Base64.getDecoder().decode(value));
+        }
+        catch (InvalidProtocolBufferException | IllegalArgumentException e) {
+            log.warn("Cannot parse FileInfo of {}: {}", fileId, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void setFileInfo(String fileId, FileInfo info) {
+        val value = Base64.getEncoder().encodeToString(info.toByteArray());
+        stringRedisTemplate.opsForValue().set(KEY_PREFIX + fileId, value, ttl);
+    }
+
+    @Override
+    public void remove(String fileId) {
+        stringRedisTemplate.delete(KEY_PREFIX + fileId);
+    }
+
+}
@@ -19,17 +19,31 @@ package com.apzda.cloud.oss.config;
 import com.apzda.cloud.gsvc.i18n.MessageSourceNameResolver;
 import com.apzda.cloud.oss.cache.FileInfoCache;
 import com.apzda.cloud.oss.cache.LocalFileInfoCache;
+import com.apzda.cloud.oss.event.FileUploadedWaiters;
+import com.apzda.cloud.oss.file.LocalFileCache;
 import com.apzda.cloud.oss.func.DownloadHandlerFunction;
 import com.apzda.cloud.oss.func.PreviewHandlerFunction;
 import com.apzda.cloud.oss.plugin.Plugin;
+import com.apzda.cloud.oss.resumable.LocalResumableStorage;
+import com.apzda.cloud.oss.resumable.ResumableStorage;
+import com.apzda.cloud.oss.service.UploadExecutor;
+import com.apzda.cloud.oss.variant.VariantService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.ApplicationContext;
@@ -41,6 +55,9 @@ import org.springframework.web.servlet.function.RouterFunction;
 import org.springframework.web.servlet.function.RouterFunctions;
 import org.springframework.web.servlet.function.ServerResponse;
 
+import java.io.IOException;
+import java.nio.file.Path;
+
 /**
  * @author fengz (windywany@gmail.com)
  * @version 1.0.0
@@ -48,11 +65,13 @@ import org.springframework.web.servlet.function.ServerResponse;
  **/
 @Configuration(proxyBeanMethods = false)
 @EnableConfigurationProperties(OssServiceProperties.class)
-@Import({ ResizePluginConfiguration.class, WatermarkPluginConfiguration.class })
+@Import({ ResizePluginConfiguration.class, WatermarkPluginConfiguration.class, RedisConfiguration.class })
 @RequiredArgsConstructor
 @Slf4j
 public class OssServiceConfiguration implements InitializingBean {
 
+    private static final String REDIS_TEMPLATE_CLASS = "org.springframework.data.redis.core.StringRedisTemplate";
+
     private final ApplicationContext applicationContext;
 
     private final OssServiceProperties properties;
@@ -93,21 +112,108 @@ public class OssServiceConfiguration implements InitializingBean {
 
     @Bean
     @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "apzda.cloud.oss.server.file-info-cache.type", havingValue = "local",
+            matchIfMissing = true)
     FileInfoCache fileInfoCache() {
         return new LocalFileInfoCache();
     }
 
+    /**
+     * redis与near缓存由{@link RedisConfiguration}提供，缺少spring-data-redis时启动失败，而不是缺少FileInfoCache.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnMissingClass(REDIS_TEMPLATE_CLASS)
+    @ConditionalOnExpression("'${apzda.cloud.oss.server.file-info-cache.type:local}' != 'local'")
+    FileInfoCache unavailableFileInfoCache() {
+        throw new IllegalStateException("apzda.cloud.oss.server.file-info-cache.type="
+                + properties.getFileInfoCache().getType() + " requires spring-boot-starter-data-redis");
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "apzda.cloud.oss.server.resumable.store", havingValue = "local",
+            matchIfMissing = true)
+    ResumableStorage resumableStorage() {
+        val resumable = properties.getResumable();
+        return new LocalResumableStorage(ossConfigProperties.getTmpDir(), resumable.getTtl());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnMissingClass(REDIS_TEMPLATE_CLASS)
+    @ConditionalOnProperty(name = "apzda.cloud.oss.server.resumable.store", havingValue = "redis")
+    ResumableStorage unavailableResumableStorage() {
+        throw new IllegalStateException(
+                "apzda.cloud.oss.server.resumable.store=redis requires spring-boot-starter-data-redis");
+    }
+
+    /**
+     * 等待分块上传完成的query，多节点时由{@link RedisConfiguration}转发其它节点的完成通知.
+     */
+    @Bean
+    @ConditionalOnMissingBean
+    FileUploadedWaiters ossFileUploadedWaiters() {
+        return new FileUploadedWaiters();
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    UploadExecutor ossUploadExecutor(ObjectProvider<MeterRegistry> meterRegistry) {
+        return new UploadExecutor(properties.getExecutor(), meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+    }
+
+    /**
+     * 远程存储本地文件缓存的命中率、淘汰数与占用空间. 等待其它请求下载的请求单独计数(result=wait).
+     */
+    @Bean
+    @ConditionalOnMissingBean(name = "ossLocalFileCacheMetrics")
+    MeterBinder ossLocalFileCacheMetrics() {
+        return (registry) -> {
+            val cache = OssContext.getOssBackend().getLocalFileCache();
+            if (cache == null) {
+                return;
+            }
+            FunctionCounter.builder("oss.local.cache.requests", cache, LocalFileCache::getHits)
+                .tag("result", "hit")
+                .register(registry);
+            FunctionCounter.builder("oss.local.cache.requests", cache, LocalFileCache::getMisses)
+                .tag("result", "miss")
+                .register(registry);
+            FunctionCounter.builder("oss.local.cache.requests", cache, LocalFileCache::getWaits)
+                .tag("result", "wait")
+                .register(registry);
+            FunctionCounter.builder("oss.local.cache.evictions", cache, LocalFileCache::getEvictions)
+                .register(registry);
+            Gauge.builder("oss.local.cache.size", cache, LocalFileCache::getSize).baseUnit("bytes").register(registry);
+            Gauge.builder("oss.local.cache.files", cache, LocalFileCache::getCount).register(registry);
+        };
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnExpression("'${apzda.cloud.oss.server.preview-path:}' != ''"
+            + " && ${apzda.cloud.oss.server.variant.enabled:true}")
+    VariantService ossVariantService() throws IOException {
+        val variant = properties.getVariant();
+        val cacheDir = StringUtils.isNotBlank(variant.getCacheDir()) ? Path.of(variant.getCacheDir())
+                : Path.of(ossConfigProperties.getTmpDir(), "oss-variants");
+        return new VariantService(variant, cacheDir);
+    }
+
     @Bean("previewOssImageFunc")
     @ConditionalOnProperty(value = "apzda.cloud.oss.server.preview-path")
     @ConditionalOnMissingBean(name = "previewOssImageFunc")
     RouterFunction<ServerResponse> previewOssImageFunc(
-            @Value("${apzda.cloud.oss.server.preview-path}") String previewPath) {
+            @Value("${apzda.cloud.oss.server.preview-path}") String previewPath,
+            ObjectProvider<VariantService> variantService) {
         val path = "/" + StringUtils.strip(previewPath, "/") + "/";
         log.info("Setup Oss file preview path: {}", previewPath);
         val ant = new AntPathMatcher();
         val pathPattern = path + "**";
+        val handler = new PreviewHandlerFunction(path, variantService.getIfAvailable());
         return RouterFunctions.route()
-            .GET((request) -> ant.match(pathPattern, request.path()), new PreviewHandlerFunction(path))
+            .GET((request) -> ant.match(pathPattern, request.path()), handler)
             .build();
     }
 
@@ -24,6 +24,7 @@ import org.springframework.boot.convert.DataSizeUnit;
 import org.springframework.util.unit.DataSize;
 import org.springframework.util.unit.DataUnit;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -53,6 +54,19 @@ public class OssServiceProperties {
 
     private List<PluginConfig> plugins = new ArrayList<>();
 
+    private ExecutorConfig executor = new ExecutorConfig();
+
+    private ResumableConfig resumable = new ResumableConfig();
+
+    private FileInfoCacheConfig fileInfoCache = new FileInfoCacheConfig();
+
+    private VariantConfig variant = new VariantConfig();
+
+    /**
+     * query等待上传完成的最长时间，等待期间占用一个请求线程.
+     */
+    private Duration queryMaxWait = Duration.ofSeconds(30);
+
     public List<String> getFileTypes() {
         if (fileTypes == null) {
             fileTypes = DEFAULT_FILE_TYPES;
@@ -60,6 +74,104 @@ public class OssServiceProperties {
         return fileTypes;
     }
 
+    /**
+     * 上传线程池配置: 队列满时由提交线程自己执行上传(背压)，从而限制同时进行的上传数量.
+     */
+    @Data
+    public static class ExecutorConfig {
+
+        private int coreSize = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        private int maxSize = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+        private int queueCapacity = 256;
+
+        private Duration keepAlive = Duration.ofSeconds(60);
+
+    }
+
+    /**
+     * 分块上传状态存储配置: local只适用于单节点，多节点部署请使用redis.
+     */
+    @Data
+    public static class ResumableConfig {
+
+        private String store = "local";
+
+        private Duration ttl = Duration.ofHours(24);
+
+    }
+
+    /**
+     * 分块上传结果缓存配置: local只适用于单节点; redis为共享缓存; near为本地+共享的两级缓存.
+     */
+    @Data
+    public static class FileInfoCacheConfig {
+
+        private String type = "local";
+
+        private Duration ttl = Duration.ofHours(2);
+
+        private Duration nearTtl = Duration.ofMinutes(1);
+
+        private long nearSize = 10000;
+
+    }
+
+    /**
+     * 图片变体配置: 预览时按需生成缩略图等变体，保存在大小受限的磁盘LRU缓存中.
+     */
+    @Data
+    public static class VariantConfig {
+
+        private boolean enabled = true;
+
+        /**
+         * 缓存目录，默认为临时目录下的oss-variants.
+         */
+        private String cacheDir;
+
+        @DataSizeUnit(DataUnit.MEGABYTES)
+        private DataSize cacheSize = DataSize.ofGigabytes(1);
+
+        private int maxWidth = 4096;
+
+        private int maxHeight = 4096;
+
+        /**
+         * 源图片的最大像素数(宽x高). 解码前从文件头读取尺寸，超过时不生成变体，避免解码超大图片耗尽内存.
+         */
+        private long maxSourcePixels = 40_000_000;
+
+        private int quality = 85;
+
+        /**
+         * 允许的宽高，请求的宽高向上取其中最接近的值(超过最大值时取最大值)，限制同一图片的变体数量.
+         */
+        private List<Integer> sizes = List.of(64, 128, 256, 512, 1024, 2048, 4096);
+
+        /**
+         * 允许的JPEG质量，请求的质量取其中最接近的值.
+         */
+        private List<Integer> qualities = List.of(50, 75, 85, 95);
+
+        /**
+         * 允许的输出格式，未指定格式且源文件格式不在其中时使用第一个.
+         */
+        private List<String> formats = List.of("jpg", "jpeg", "png");
+
+        /**
+         * 同时生成变体的最大数量.
+         */
+        private int renderConcurrency = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+        /**
+         * 等待生成的最长时间，超时返回503.
+         */
+        private Duration renderTimeout = Duration.ofSeconds(10);
+
+    }
+
     @Data
     @ToString(exclude = { "pluginClass" })
     public static class PluginConfig {
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.config;
+
+import com.apzda.cloud.oss.cache.FileInfoCache;
+import com.apzda.cloud.oss.cache.NearFileInfoCache;
+import com.apzda.cloud.oss.cache.RedisFileInfoCache;
+import com.apzda.cloud.oss.event.FileUploadedEvent;
+import com.apzda.cloud.oss.event.FileUploadedWaiters;
+import com.apzda.cloud.oss.resumable.RedisResumableStorage;
+import com.apzda.cloud.oss.resumable.ResumableStorage;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnClass(StringRedisTemplate.class)
+@Slf4j
+class RedisConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "apzda.cloud.oss.server.resumable.store", havingValue = "redis")
+    ResumableStorage redisResumableStorage(StringRedisTemplate stringRedisTemplate, OssServiceProperties properties,
+            OssConfigProperties ossConfigProperties) {
+        log.trace("ResumableStorage class: {}", RedisResumableStorage.class.getCanonicalName());
+        return new RedisResumableStorage(stringRedisTemplate, ossConfigProperties.getTmpDir(),
+                properties.getResumable().getTtl());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(name = "apzda.cloud.oss.server.file-info-cache.type", havingValue = "redis")
+    FileInfoCache redisFileInfoCache(StringRedisTemplate stringRedisTemplate, OssServiceProperties properties) {
+        log.trace("FileInfoCache class: {}", RedisFileInfoCache.class.getCanonicalName());
+        return new RedisFileInfoCache(stringRedisTemplate, properties.getFileInfoCache().getTtl());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(FileInfoCache.class)
+    @ConditionalOnProperty(name = "apzda.cloud.oss.server.file-info-cache.type", havingValue = "near")
+    NearFileInfoCache nearFileInfoCache(StringRedisTemplate stringRedisTemplate, OssServiceProperties properties) {
+        log.trace("FileInfoCache class: {}", NearFileInfoCache.class.getCanonicalName());
+        val config = properties.getFileInfoCache();
+        return new NearFileInfoCache(new RedisFileInfoCache(stringRedisTemplate, config.getTtl()),
+                config.getNearTtl(), config.getNearSize());
+    }
+
+    /**
+     * 文件保存完成后通过Redis广播fileId，各节点据此清除本地缓存并唤醒等待该文件的query(长轮询).
+     */
+    @Bean
+    @ConditionalOnExpression("'${apzda.cloud.oss.server.file-info-cache.type:local}' != 'local'")
+    ApplicationListener<FileUploadedEvent> ossFileUploadedListener(StringRedisTemplate stringRedisTemplate,
+            @Qualifier("ossFileUploadedMessageTopic") ChannelTopic topic) {
+        return event -> stringRedisTemplate.convertAndSend(topic.getTopic(), event.getFileId());
+    }
+
+    @Bean
+    @ConditionalOnExpression("'${apzda.cloud.oss.server.file-info-cache.type:local}' != 'local'")
+    RedisMessageListenerContainer ossFileInfoMessageListenerContainer(RedisConnectionFactory redisConnectionFactory,
+            ObjectProvider<NearFileInfoCache> nearFileInfoCache, FileUploadedWaiters fileUploadedWaiters,
+            @Qualifier("ossFileUploadedMessageTopic") ChannelTopic topic) {
+        val nearCache = nearFileInfoCache.getIfAvailable();
+        val container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener((MessageListener) (message, pattern) -> {
+            val fileId = message.toString();
+            log.debug("File uploaded message received: {}", fileId);
+            if (nearCache != null) {
+                // 先清除本地缓存，被唤醒的query才能读到结果
+                nearCache.invalidate(fileId);
+            }
+            fileUploadedWaiters.notify(fileId);
+        }, topic);
+        return container;
+    }
+
+    @Bean
+    @Qualifier("ossFileUploadedMessageTopic")
+    ChannelTopic ossFileUploadedMessageTopic() {
+        return new ChannelTopic("ossFileUploadedMessageQueue");
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.event;
+
+import com.apzda.cloud.oss.proto.FileInfo;
+import lombok.Getter;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * 分块上传的文件已保存到存储(或保存失败)，source为分块上传的fileId.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Getter
+public class FileUploadedEvent extends ApplicationEvent {
+
+    private final FileInfo fileInfo;
+
+    public FileUploadedEvent(String fileId, FileInfo fileInfo) {
+        super(fileId);
+        this.fileInfo = fileInfo;
+    }
+
+    public String getFileId() {
+        return (String) getSource();
+    }
+
+}
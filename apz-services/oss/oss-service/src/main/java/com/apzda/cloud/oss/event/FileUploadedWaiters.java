@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.event;
+
+import lombok.val;
+import org.springframework.context.ApplicationListener;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 等待分块上传完成的查询(长轮询). 本节点的{@link FileUploadedEvent}直接唤醒等待者；
+ * 多节点部署时其它节点的完成通知通过Redis频道到达后调用{@link #notify(String)}.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public class FileUploadedWaiters implements ApplicationListener<FileUploadedEvent> {
+
+    private final Map<String, Waiter> waiters = new ConcurrentHashMap<>();
+
+    @Override
+    public void onApplicationEvent(FileUploadedEvent event) {
+        notify(event.getFileId());
+    }
+
+    /**
+     * 唤醒等待fileId的查询.
+     */
+    public void notify(String fileId) {
+        val waiter = waiters.get(fileId);
+        if (waiter != null) {
+            waiter.future.complete(null);
+        }
+    }
+
+    /**
+     * 等待上传完成.
+     * @param fileId 分块上传的fileId
+     * @param timeout 最长等待时间
+     * @param done 上传是否已完成，登记等待后检查一次，避免错过登记前发出的通知
+     * @return 在超时前完成返回true
+     */
+    public boolean await(String fileId, Duration timeout, BooleanSupplier done) throws InterruptedException {
+        val waiter = waiters.compute(fileId, (key, w) -> {
+            w = w == null ? new Waiter() : w;
+            w.count++;
+            return w;
+        });
+        try {
+            if (done.getAsBoolean()) {
+                return true;
+            }
+            waiter.future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (TimeoutException | ExecutionException e) {
+            return false;
+        }
+        finally {
+            waiters.computeIfPresent(fileId, (key, w) -> --w.count == 0 ? null : w);
+        }
+    }
+
+    /**
+     * 正在等待的fileId数量.
+     */
+    public int size() {
+        return waiters.size();
+    }
+
+    private static class Waiter {
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        // 仅在ConcurrentHashMap.compute中读写
+        private int count;
+
+    }
+
+}
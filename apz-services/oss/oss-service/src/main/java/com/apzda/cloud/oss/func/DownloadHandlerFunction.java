@@ -21,7 +21,6 @@ import com.apzda.cloud.oss.config.OssContext;
 import lombok.val;
 import org.springframework.http.CacheControl;
 import org.springframework.lang.NonNull;
-import org.springframework.util.StreamUtils;
 import org.springframework.web.servlet.function.HandlerFunction;
 import org.springframework.web.servlet.function.ServerRequest;
 import org.springframework.web.servlet.function.ServerResponse;
@@ -49,17 +48,11 @@ public class DownloadHandlerFunction implements HandlerFunction<ServerResponse>
             val ossBackend = OssContext.getOssBackend();
             val ossFile = ossBackend.getFile(file);
             val stat = ossFile.stat();
-            return ServerResponse.ok()
-                .cacheControl(CacheControl.noCache())
-                .contentLength(stat.getLength())
+            return FileResponses.of(request, ossFile, stat, (builder) -> builder.cacheControl(CacheControl.noCache())
                 .header("Content-type", "application/force-download", "application/download", stat.getContentType())
                 .header("Content-Transfer-Encoding", "binary")
                 .header("Content-Disposition",
-                        "attachment;filename=" + URLUtil.encode(stat.getFilename(), StandardCharsets.UTF_8))
-                .build((servletRequest, servletResponse) -> {
-                    StreamUtils.copy(ossFile.getInputStream(), servletResponse.getOutputStream());
-                    return null;
-                });
+                        "attachment;filename=" + URLUtil.encode(stat.getFilename(), StandardCharsets.UTF_8)));
         }
         catch (Exception e) {
             return ServerResponse.status(404).build();
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.func;
+
+import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.proto.FileInfo;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.function.ServerRequest;
+import org.springframework.web.servlet.function.ServerResponse;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * 文件响应: 支持ETag/Last-Modified条件请求与单个Range的分段响应. 本地文件优先使用Tomcat的sendfile，
+ * 否则通过{@link IOssFile#transferTo}写入(fs存储使用FileChannel.transferTo，对象存储使用范围读取).
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+final class FileResponses {
+
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private FileResponses() {
+    }
+
+    @NonNull
+    static ServerResponse of(@NonNull ServerRequest request, @NonNull IOssFile ossFile, @NonNull FileInfo stat,
+            @NonNull Consumer<ServerResponse.BodyBuilder> headers) {
+        val length = stat.getLength();
+        val etag = StringUtils.isNotBlank(stat.getFileId()) ? "\"" + stat.getFileId() + "\"" : null;
+        val lastModified = stat.getCreateTime() > 0 ? Instant.ofEpochMilli(stat.getCreateTime()) : null;
+
+        val notModified = checkNotModified(request, etag, lastModified);
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
+
+        long start = 0;
+        long end = length - 1;
+        boolean partial = false;
+        val ranges = ranges(request);
+        if (ranges.size() == 1 && length > 0 && ifRange(request, etag, lastModified)) {
+            try {
+                start = ranges.get(0).getRangeStart(length);
+                end = ranges.get(0).getRangeEnd(length);
+                partial = true;
+            }
+            catch (IllegalArgumentException e) {
+                return ServerResponse.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length)
+                    .build();
+            }
+        }
+
+        val builder = ServerResponse.status(partial ? HttpStatus.PARTIAL_CONTENT : HttpStatus.OK);
+        headers.accept(builder);
+        builder.header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (etag != null) {
+            builder.eTag(etag);
+        }
+        if (lastModified != null) {
+            builder.lastModified(lastModified);
+        }
+        val offset = start;
+        val count = end - start + 1;
+        builder.contentLength(count);
+        if (partial) {
+            builder.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length);
+        }
+        if (HttpMethod.HEAD.equals(request.method()) || count <= 0) {
+            return builder.build();
+        }
+
+        return builder.build((servletRequest, servletResponse) -> {
+            if (!sendfile(servletRequest, ossFile, offset, count)) {
+                ossFile.transferTo(offset, count, servletResponse.getOutputStream());
+            }
+            return null;
+        });
+    }
+
+    @NonNull
+    private static Optional<ServerResponse> checkNotModified(@NonNull ServerRequest request, @Nullable String etag,
+            @Nullable Instant lastModified) {
+        if (etag != null && lastModified != null) {
+            return request.checkNotModified(lastModified, etag);
+        }
+        else if (etag != null) {
+            return request.checkNotModified(etag);
+        }
+        else if (lastModified != null) {
+            return request.checkNotModified(lastModified);
+        }
+        return Optional.empty();
+    }
+
+    @NonNull
+    private static List<HttpRange> ranges(@NonNull ServerRequest request) {
+        try {
+            return request.headers().range();
+        }
+        catch (IllegalArgumentException e) {
+            // 无法解析的Range头按RFC 9110忽略
+            return List.of();
+        }
+    }
+
+    /**
+     * If-Range不存在或与当前文件一致时才返回分段内容，否则返回完整内容.
+     */
+    private static boolean ifRange(@NonNull ServerRequest request, @Nullable String etag,
+            @Nullable Instant lastModified) {
+        val ifRange = request.headers().firstHeader(HttpHeaders.IF_RANGE);
+        if (StringUtils.isBlank(ifRange)) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        try {
+            val date = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return lastModified != null && date.getEpochSecond() == lastModified.getEpochSecond();
+        }
+        catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private static boolean sendfile(@NonNull HttpServletRequest request, @NonNull IOssFile ossFile, long offset,
+            long count) throws IOException {
+        if (!ossFile.isLocal() || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME, ossFile.getLocalFile().getCanonicalPath());
+        request.setAttribute(SENDFILE_START, offset);
+        request.setAttribute(SENDFILE_END, offset + count);
+        return true;
+    }
+
+}
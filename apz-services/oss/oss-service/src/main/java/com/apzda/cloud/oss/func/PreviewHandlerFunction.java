@@ -17,25 +17,47 @@
 package com.apzda.cloud.oss.func;
 
 import com.apzda.cloud.oss.config.OssContext;
+import com.apzda.cloud.oss.exception.FileSizeNotAllowedException;
+import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.proto.FileInfo;
+import com.apzda.cloud.oss.variant.ImageVariant;
+import com.apzda.cloud.oss.variant.VariantFile;
+import com.apzda.cloud.oss.variant.VariantService;
+import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.lang.NonNull;
-import org.springframework.util.StreamUtils;
+import org.springframework.lang.Nullable;
 import org.springframework.web.servlet.function.HandlerFunction;
 import org.springframework.web.servlet.function.ServerRequest;
 import org.springframework.web.servlet.function.ServerResponse;
 
+import java.util.concurrent.RejectedExecutionException;
+
 /**
+ * 文件预览. 配置了{@link VariantService}时，图片可通过参数获取缩略图等变体.
+ *
  * @author fengz (windywany@gmail.com)
  * @version 1.0.0
  * @since 1.0.0
  **/
+@Slf4j
 public class PreviewHandlerFunction implements HandlerFunction<ServerResponse> {
 
     private final String pathPrefix;
 
+    private final VariantService variantService;
+
     public PreviewHandlerFunction(String pathPrefix) {
+        this(pathPrefix, null);
+    }
+
+    public PreviewHandlerFunction(String pathPrefix, @Nullable VariantService variantService) {
         this.pathPrefix = pathPrefix;
+        this.variantService = variantService;
     }
 
     @NonNull
@@ -46,17 +68,51 @@ public class PreviewHandlerFunction implements HandlerFunction<ServerResponse> {
             val ossBackend = OssContext.getOssBackend();
             val ossFile = ossBackend.getFile(file);
             val stat = ossFile.stat();
-            return ServerResponse.ok()
-                .contentLength(stat.getLength())
-                .contentType(MediaType.valueOf(stat.getContentType()))
-                .build((servletRequest, servletResponse) -> {
-                    StreamUtils.copy(ossFile.getInputStream(), servletResponse.getOutputStream());
-                    return null;
-                });
+            if (variantService != null) {
+                return variant(request, ossFile, stat);
+            }
+            return preview(request, ossFile, stat);
         }
         catch (Exception e) {
             return ServerResponse.status(404).build();
         }
     }
 
+    private ServerResponse variant(ServerRequest request, IOssFile ossFile, FileInfo stat) throws Exception {
+        final ImageVariant variant;
+        try {
+            variant = variantService.variant(request, stat);
+        }
+        catch (IllegalArgumentException e) {
+            log.debug("Invalid image variant: {} - {}", request.path(), e.getMessage());
+            return ServerResponse.badRequest().build();
+        }
+        if (variant == null) {
+            return preview(request, ossFile, stat);
+        }
+        // 变体未变化时无需生成
+        val notModified = request.checkNotModified("\"" + variant.key() + "\"");
+        if (notModified.isPresent()) {
+            return notModified.get();
+        }
+        final VariantFile variantFile;
+        try {
+            variantFile = variantService.render(ossFile, stat, variant);
+        }
+        catch (RejectedExecutionException e) {
+            log.debug("Image variant is not rendered: {} - {}", request.path(), e.getMessage());
+            return ServerResponse.status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").build();
+        }
+        catch (FileSizeNotAllowedException e) {
+            log.debug("Image is too large to render a variant: {} - {}", request.path(), e.getMessage());
+            return ServerResponse.badRequest().build();
+        }
+        return preview(request, variantFile, variantFile.stat());
+    }
+
+    private static ServerResponse preview(ServerRequest request, IOssFile ossFile, FileInfo stat) {
+        return FileResponses.of(request, ossFile, stat, (builder) -> builder.cacheControl(CacheControl.noCache())
+            .contentType(MediaType.valueOf(stat.getContentType())));
+    }
+
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.resumable;
+
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * 定时清理过期上传状态及其临时文件. 临时文件以最后修改时间判断是否被放弃: 正在上传的文件会被不断写入.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public abstract class AbstractResumableStorage implements ResumableStorage, DisposableBean {
+
+    private static final Pattern TEMP_FILE = Pattern.compile("^[0-9a-f]{32}\\.temp$");
+
+    protected final Duration ttl;
+
+    private final File tmpDir;
+
+    private final ScheduledExecutorService scheduler;
+
+    protected AbstractResumableStorage(String tmpDir, Duration ttl) {
+        this.tmpDir = new File(tmpDir);
+        this.ttl = ttl;
+        val period = Math.max(Duration.ofMinutes(1).toMillis(), ttl.toMillis() / 4);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor((r) -> {
+            val thread = new Thread(r, "oss-resumable-gc");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void evictExpired() {
+        val expiredBefore = System.currentTimeMillis() - ttl.toMillis();
+        try {
+            evictExpired(expiredBefore);
+            val files = tmpDir.listFiles((dir, name) -> TEMP_FILE.matcher(name).matches());
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (file.lastModified() < expiredBefore) {
+                    val deleted = file.delete();
+                    log.debug("Delete the abandoned chunk file: {} - {}", deleted, file);
+                }
+            }
+        }
+        catch (Exception e) {
+            log.warn("Cannot evict expired resumable uploads: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 清理最后访问时间早于expiredBefore的上传状态.
+     * @param expiredBefore 过期时间点(毫秒)
+     */
+    protected abstract void evictExpired(long expiredBefore);
+
+    @Override
+    public void destroy() throws Exception {
+        scheduler.shutdownNow();
+    }
+
+}
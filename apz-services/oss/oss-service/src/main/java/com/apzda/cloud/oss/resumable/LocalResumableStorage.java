@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.resumable;
+
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 单节点分块上传状态存储. 已上传的分块记录在一个无锁的位图中，并单独计数，完成判断为常数时间.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class LocalResumableStorage extends AbstractResumableStorage {
+
+    private final ConcurrentMap<String, State> states = new ConcurrentHashMap<>();
+
+    public LocalResumableStorage(String tmpDir, Duration ttl) {
+        super(tmpDir, ttl);
+    }
+
+    @Override
+    public ResumableInfo load(ResumableInfo info) {
+        val state = states.computeIfAbsent(info.resumableIdentifier, (id) -> new State(info));
+        state.accessedAt = System.currentTimeMillis();
+        return state.info;
+    }
+
+    @Override
+    public boolean isUploaded(ResumableInfo info, int chunkNumber) {
+        val state = states.get(info.resumableIdentifier);
+        return state != null && info.validChunk(chunkNumber) && state.isSet(chunkNumber - 1);
+    }
+
+    @Override
+    public boolean markUploaded(ResumableInfo info, int chunkNumber, String part) {
+        val state = states.get(info.resumableIdentifier);
+        if (state == null || !state.info.validChunk(chunkNumber)) {
+            return false;
+        }
+        state.accessedAt = System.currentTimeMillis();
+        if (part != null) {
+            // 先于计数写入，完成者读取分片标识时一定可见
+            state.parts.set(chunkNumber - 1, part);
+        }
+        return state.set(chunkNumber - 1) && state.uploaded.incrementAndGet() == state.info.chunkCount();
+    }
+
+    @Override
+    public List<String> parts(ResumableInfo info) {
+        val state = states.get(info.resumableIdentifier);
+        val count = info.chunkCount();
+        val parts = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            parts.add(state == null ? null : state.parts.get(i));
+        }
+        return parts;
+    }
+
+    @Override
+    public ChunkedUploadSupport.Session bindSession(ResumableInfo info, ChunkedUploadSupport.Session session) {
+        val state = states.get(info.resumableIdentifier);
+        if (state == null) {
+            return session;
+        }
+        val bound = state.session.compareAndExchange(null, session);
+        state.info.session = bound == null ? session : bound;
+        return state.info.session;
+    }
+
+    @Override
+    public void remove(ResumableInfo info) {
+        states.remove(info.resumableIdentifier);
+    }
+
+    @Override
+    protected void evictExpired(long expiredBefore) {
+        states.values().removeIf((state) -> {
+            if (state.accessedAt < expiredBefore) {
+                log.debug("Resumable upload expired: {}", state.info);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    static final class State {
+
+        final ResumableInfo info;
+
+        final AtomicLongArray chunks;
+
+        final AtomicReferenceArray<String> parts;
+
+        final AtomicReference<ChunkedUploadSupport.Session> session = new AtomicReference<>();
+
+        final AtomicInteger uploaded = new AtomicInteger();
+
+        volatile long accessedAt;
+
+        State(ResumableInfo info) {
+            this.info = info;
+            this.chunks = new AtomicLongArray((info.chunkCount() + 63) >>> 6);
+            this.parts = new AtomicReferenceArray<>(info.chunkCount());
+        }
+
+        boolean isSet(int index) {
+            return (chunks.get(index >>> 6) & (1L << index)) != 0;
+        }
+
+        /**
+         * @return 分块之前未被标记时返回true.
+         */
+        boolean set(int index) {
+            val word = index >>> 6;
+            val bit = 1L << index;
+            long current;
+            do {
+                current = chunks.get(word);
+                if ((current & bit) != 0) {
+                    return false;
+                }
+            }
+            while (!chunks.compareAndSet(word, current, current | bit));
+            return true;
+        }
+
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.resumable;
+
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于Redis的分块上传状态存储，同一文件的分块可以上传到不同的节点.
+ * <p>
+ * 状态保存在hash中，已上传的分块保存在位图中. 标记分块与计数在一个脚本中完成，完成判断为常数时间.
+ * 过期由Redis的TTL负责，每次访问都会续期. 注意: 分块仍写入各节点的tmp-dir，多节点部署时tmp-dir须为共享存储.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class RedisResumableStorage extends AbstractResumableStorage {
+
+    private static final String KEY_PREFIX = "oss.resumable.";
+
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> LOAD_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[1]) == 0 then
+                redis.call('HSET', KEYS[1], 'chunkSize', ARGV[1], 'totalSize', ARGV[2], 'totalChunks', ARGV[3],
+                    'filename', ARGV[4], 'uploaded', 0)
+            end
+            redis.call('PEXPIRE', KEYS[1], ARGV[5])
+            redis.call('PEXPIRE', KEYS[2], ARGV[5])
+            return redis.call('HMGET', KEYS[1], 'chunkSize', 'totalSize', 'totalChunks', 'filename', 'session')
+            """, List.class);
+
+    private static final RedisScript<Long> MARK_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[1]) == 0 then
+                return -1
+            end
+            if ARGV[3] ~= '' then
+                redis.call('HSET', KEYS[1], 'part.' .. ARGV[1], ARGV[3])
+            end
+            if redis.call('SETBIT', KEYS[2], ARGV[1], 1) == 1 then
+                return 0
+            end
+            local uploaded = redis.call('HINCRBY', KEYS[1], 'uploaded', 1)
+            redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            redis.call('PEXPIRE', KEYS[2], ARGV[2])
+            return uploaded
+            """, Long.class);
+
+    private static final RedisScript<String> BIND_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('EXISTS', KEYS[1]) == 0 then
+                return ARGV[1]
+            end
+            redis.call('HSETNX', KEYS[1], 'session', ARGV[1])
+            return redis.call('HGET', KEYS[1], 'session')
+            """, String.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisResumableStorage(StringRedisTemplate stringRedisTemplate, String tmpDir, Duration ttl) {
+        super(tmpDir, ttl);
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ResumableInfo load(ResumableInfo info) {
+        val keys = keys(info);
+        List<String> stored = stringRedisTemplate.execute(LOAD_SCRIPT, keys,
+                String.valueOf(info.resumableChunkSize), String.valueOf(info.resumableTotalSize),
+                String.valueOf(info.resumableTotalChunks), info.resumableFilename, String.valueOf(ttl.toMillis()));
+        if (stored == null || stored.size() != 5 || stored.subList(0, 4).contains(null)) {
+            return info;
+        }
+        val loaded = new ResumableInfo();
+        loaded.resumableChunkSize = Integer.parseInt(stored.get(0));
+        loaded.resumableTotalSize = Long.parseLong(stored.get(1));
+        loaded.resumableTotalChunks = Integer.parseInt(stored.get(2));
+        loaded.resumableFilename = stored.get(3);
+        loaded.resumableIdentifier = info.resumableIdentifier;
+        loaded.resumableFilePath = info.resumableFilePath;
+        loaded.session = ChunkedUploadSupport.Session.decode(stored.get(4));
+        return loaded;
+    }
+
+    @Override
+    public boolean isUploaded(ResumableInfo info, int chunkNumber) {
+        if (!info.validChunk(chunkNumber)) {
+            return false;
+        }
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().getBit(keys(info).get(1), chunkNumber - 1));
+    }
+
+    @Override
+    public boolean markUploaded(ResumableInfo info, int chunkNumber, String part) {
+        if (!info.validChunk(chunkNumber)) {
+            return false;
+        }
+        val uploaded = stringRedisTemplate.execute(MARK_SCRIPT, keys(info), String.valueOf(chunkNumber - 1),
+                String.valueOf(ttl.toMillis()), part == null ? "" : part);
+        return uploaded != null && uploaded == info.chunkCount();
+    }
+
+    @Override
+    public List<String> parts(ResumableInfo info) {
+        val count = info.chunkCount();
+        val fields = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            fields.add("part." + i);
+        }
+        val parts = stringRedisTemplate.<String, String>opsForHash().multiGet(keys(info).get(0), fields);
+        return new ArrayList<>(parts);
+    }
+
+    @Override
+    public ChunkedUploadSupport.Session bindSession(ResumableInfo info, ChunkedUploadSupport.Session session) {
+        val bound = stringRedisTemplate.execute(BIND_SCRIPT, keys(info).subList(0, 1), session.encode());
+        info.session = bound == null ? session : ChunkedUploadSupport.Session.decode(bound);
+        return info.session;
+    }
+
+    @Override
+    public void remove(ResumableInfo info) {
+        try {
+            stringRedisTemplate.delete(keys(info));
+        }
+        catch (Exception e) {
+            log.warn("Cannot delete resumable upload: {} - {}", info, e.getMessage());
+        }
+    }
+
+    @Override
+    protected void evictExpired(long expiredBefore) {
+        // 由Redis的TTL负责
+    }
+
+    private static List<String> keys(ResumableInfo info) {
+        // 使用hash tag保证两个key在集群模式下位于同一个slot
+        val id = DigestUtils.md5DigestAsHex(info.resumableIdentifier.getBytes(StandardCharsets.UTF_8));
+        val key = KEY_PREFIX + "{" + id + "}";
+        return List.of(key, key + ".chunks");
+    }
+
+}
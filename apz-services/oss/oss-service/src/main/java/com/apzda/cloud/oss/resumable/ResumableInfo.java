@@ -1,58 +1,58 @@
 package com.apzda.cloud.oss.resumable;
 
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import lombok.val;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.HashSet;
-
 public class ResumableInfo {
 
     public int resumableChunkSize;
 
     public long resumableTotalSize;
 
+    public int resumableTotalChunks;
+
     public String resumableIdentifier;
 
     public String resumableFilename;
 
-    public static class ResumableChunkNumber {
-
-        public ResumableChunkNumber(int number) {
-            this.number = number;
-        }
+    public String resumableFilePath;
 
-        public int number;
+    /**
+     * 由存储合并的分块上传会话，分块写入本地临时文件时为null.
+     */
+    public volatile ChunkedUploadSupport.Session session;
 
-        @Override
-        public boolean equals(Object obj) {
-            return obj instanceof ResumableChunkNumber && ((ResumableChunkNumber) obj).number == this.number;
+    public boolean valid() {
+        if (resumableChunkSize <= 0 || resumableTotalSize < 0 || StringUtils.isEmpty(resumableIdentifier)
+                || StringUtils.isEmpty(resumableFilename)) {
+            return false;
         }
+        // 客户端提供的分块总数只能是按分块大小计算的结果，或将余下数据合并到最后一个分块后的结果
+        val max = Math.max(1, (resumableTotalSize + resumableChunkSize - 1) / resumableChunkSize);
+        val min = Math.max(1, resumableTotalSize / resumableChunkSize);
+        return resumableTotalChunks <= 0 || (resumableTotalChunks >= min && resumableTotalChunks <= max);
+    }
 
-        @Override
-        public int hashCode() {
-            return number;
+    /**
+     * 分块总数(至少为1). 以客户端提供的总数为准: 客户端可能将余下的数据合并到最后一个分块.
+     */
+    public int chunkCount() {
+        if (resumableTotalChunks > 0) {
+            return resumableTotalChunks;
         }
-
+        return (int) Math.max(1, (resumableTotalSize + resumableChunkSize - 1) / resumableChunkSize);
     }
 
-    public HashSet<ResumableChunkNumber> uploadedChunks = new HashSet<>();
-
-    public String resumableFilePath;
-
-    public boolean valid() {
-        return resumableChunkSize >= 0 && resumableTotalSize >= 0 && StringUtils.isNotEmpty(resumableIdentifier)
-                && StringUtils.isNotEmpty(resumableFilename);
+    public boolean validChunk(int chunkNumber) {
+        return chunkNumber >= 1 && chunkNumber <= chunkCount();
     }
 
-    public boolean checkIfUploadFinished() {
-        // check if upload finished
-        int count = (int) Math.ceil(((double) resumableTotalSize) / ((double) resumableChunkSize));
-        for (int i = 1; i < count; i++) {
-            if (!uploadedChunks.contains(new ResumableChunkNumber(i))) {
-                return false;
-            }
-        }
-
-        return true;
+    @Override
+    public String toString() {
+        return "ResumableInfo{" + "identifier='" + resumableIdentifier + '\'' + ", filename='" + resumableFilename
+                + '\'' + ", chunkSize=" + resumableChunkSize + ", totalSize=" + resumableTotalSize + ", totalChunks="
+                + resumableTotalChunks + ", filePath='" + resumableFilePath + '\'' + '}';
     }
 
 }
@@ -1,69 +1,93 @@
 package com.apzda.cloud.oss.resumable;
 
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
 import com.apzda.cloud.oss.proto.ChunkUploadReq;
 import org.springframework.http.HttpStatus;
+import org.springframework.lang.Nullable;
+import org.springframework.util.DigestUtils;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.File;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
-public class ResumableStorage {
+/**
+ * 分块上传状态存储. 所有方法都必须是线程安全的，同一文件的分块可能被并发上传.
+ */
+public interface ResumableStorage {
 
-    private ResumableStorage() {
-    }
+    String TEMP_FILE_SUFFIX = ".temp";
 
-    private static ResumableStorage sInstance;
+    default ResumableInfo getResumableInfo(ChunkUploadReq req, String baseDir) {
+        ResumableInfo info = new ResumableInfo();
+        info.resumableChunkSize = req.getChunkSize();
+        info.resumableTotalSize = req.getTotalSize();
+        info.resumableTotalChunks = req.getTotalChunks();
+        info.resumableIdentifier = req.getFileId();
+        info.resumableFilename = req.getFileName();
 
-    public static synchronized ResumableStorage getInstance() {
-        if (sInstance == null) {
-            sInstance = new ResumableStorage();
+        if (!info.valid()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("Invalid request params: chunkSize=%d, totalSize=%d, fileId=%s,fileName=%s ",
+                            info.resumableChunkSize, info.resumableTotalSize, info.resumableIdentifier,
+                            info.resumableFilename));
         }
-        return sInstance;
-    }
-
-    private final HashMap<String, ResumableInfo> mMap = new HashMap<>();
-
-    public synchronized ResumableInfo get(int resumableChunkSize, long resumableTotalSize, String resumableIdentifier,
-            String resumableFilename, String resumableFilePath) {
-
-        ResumableInfo info = mMap.get(resumableIdentifier);
-
-        if (info == null) {
-            info = new ResumableInfo();
+        // 以fileId命名临时文件，同名文件的并发上传不会相互覆盖
+        info.resumableFilePath = new File(baseDir, tempFileName(info.resumableIdentifier)).getAbsolutePath();
 
-            info.resumableChunkSize = resumableChunkSize;
-            info.resumableTotalSize = resumableTotalSize;
-            info.resumableIdentifier = resumableIdentifier;
-            info.resumableFilename = resumableFilename;
-            info.resumableFilePath = resumableFilePath;
-
-            mMap.put(resumableIdentifier, info);
-        }
-        return info;
+        return load(info);
     }
 
-    public void remove(ResumableInfo info) {
-        mMap.remove(info.resumableIdentifier);
+    /**
+     * 加载分块上传状态，不存在时以info创建. 每次加载都会刷新状态的过期时间.
+     * @param info 新的状态
+     * @return 已存在的状态或info
+     */
+    ResumableInfo load(ResumableInfo info);
+
+    boolean isUploaded(ResumableInfo info, int chunkNumber);
+
+    /**
+     * 标记分块已上传.
+     * @param info 分块上传状态
+     * @param chunkNumber 分块号(从1开始)
+     * @return 当且仅当这次标记使所有分块都上传完成时返回true(只有一个调用者会得到true).
+     */
+    default boolean markUploaded(ResumableInfo info, int chunkNumber) {
+        return markUploaded(info, chunkNumber, null);
     }
 
-    public ResumableInfo getResumableInfo(ChunkUploadReq req, String baseDir) {
-
-        int resumableChunkSize = req.getChunkSize();
-        long resumableTotalSize = req.getTotalSize();
-        String resumableIdentifier = req.getFileId();
-        String resumableFilename = req.getFileName();
-        String resumableFilePath = new File(baseDir, resumableFilename).getAbsolutePath() + ".temp";
-
-        ResumableInfo info = get(resumableChunkSize, resumableTotalSize, resumableIdentifier, resumableFilename,
-                resumableFilePath);
-
-        if (!info.valid()) {
-            remove(info);
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
-                    String.format("Invalid request params: chunkSize=%d, totalSize=%d, fileId=%s,fileName=%s ",
-                            resumableChunkSize, resumableTotalSize, resumableIdentifier, resumableFilename));
-        }
-        return info;
+    /**
+     * 标记分块已上传，并记录它在存储中的分片标识.
+     * @param info 分块上传状态
+     * @param chunkNumber 分块号(从1开始)
+     * @param part 分片标识
+     * @return 当且仅当这次标记使所有分块都上传完成时返回true(只有一个调用者会得到true).
+     */
+    boolean markUploaded(ResumableInfo info, int chunkNumber, @Nullable String part);
+
+    /**
+     * 按分块号排列的分片标识，未上传的分块为null.
+     */
+    List<String> parts(ResumableInfo info);
+
+    /**
+     * 为上传绑定存储端的会话. 多个分块并发开始上传时只有一个会话能绑定成功.
+     * @param info 分块上传状态
+     * @param session 新创建的会话
+     * @return 已绑定的会话，不是session时调用方应取消session
+     */
+    ChunkedUploadSupport.Session bindSession(ResumableInfo info, ChunkedUploadSupport.Session session);
+
+    void remove(ResumableInfo info);
+
+    /**
+     * 清理过期(被放弃)的上传状态及其临时文件.
+     */
+    void evictExpired();
+
+    static String tempFileName(String identifier) {
+        return DigestUtils.md5DigestAsHex(identifier.getBytes(StandardCharsets.UTF_8)) + TEMP_FILE_SUFFIX;
     }
 
 }
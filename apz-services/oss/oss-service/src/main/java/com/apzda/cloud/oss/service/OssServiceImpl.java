@@ -19,14 +19,19 @@ package com.apzda.cloud.oss.service;
 import cn.hutool.core.io.FileUtil;
 import com.apzda.cloud.gsvc.ext.GsvcExt;
 import com.apzda.cloud.gsvc.io.Base64DecodeMultipartFile;
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
 import com.apzda.cloud.oss.backend.OssBackend;
 import com.apzda.cloud.oss.cache.FileInfoCache;
 import com.apzda.cloud.oss.config.OssConfigProperties;
 import com.apzda.cloud.oss.config.OssContext;
 import com.apzda.cloud.oss.config.OssServiceProperties;
+import com.apzda.cloud.oss.event.FileUploadedEvent;
+import com.apzda.cloud.oss.event.FileUploadedWaiters;
 import com.apzda.cloud.oss.exception.ChunkNotFoundException;
 import com.apzda.cloud.oss.exception.FileExtNameNotAllowedException;
 import com.apzda.cloud.oss.exception.FileSizeNotAllowedException;
+import com.apzda.cloud.oss.plugin.ImagePipeline;
+import com.apzda.cloud.oss.plugin.ImagePlugin;
 import com.apzda.cloud.oss.proto.*;
 import com.apzda.cloud.oss.resumable.ResumableInfo;
 import com.apzda.cloud.oss.resumable.ResumableStorage;
@@ -36,12 +41,14 @@ import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.util.unit.DataSize;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.*;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -63,6 +70,14 @@ public class OssServiceImpl implements OssService, InitializingBean {
 
     private final FileInfoCache fileInfoCache;
 
+    private final UploadExecutor uploadExecutor;
+
+    private final ResumableStorage resumableStorage;
+
+    private final ApplicationEventPublisher eventPublisher;
+
+    private final FileUploadedWaiters fileUploadedWaiters;
+
     private List<OssServiceProperties.PluginConfig> plugins;
 
     @Override
@@ -121,7 +136,11 @@ public class OssServiceImpl implements OssService, InitializingBean {
                         checkFileValid(file);
                         file = applyPlugins(file, path, ossBackend, disables);
                         val tmpFilePath = file.getFile();
-                        val result = ossBackend.uploadFile(new FileInputStream(tmpFilePath), filename, path);
+                        val result = uploadExecutor.record(properties.getBackend(), () -> {
+                            try (val stream = new FileInputStream(tmpFilePath)) {
+                                return ossBackend.uploadFile(stream, filename, path);
+                            }
+                        });
                         fileInfo = FileInfo.newBuilder(result);
                         log.debug("Upload success: fileName = {}, path = {}, size = {}", filename, fileInfo.getPath(),
                                 DataSize.ofBytes(fileInfo.getLength()));
@@ -149,7 +168,7 @@ public class OssServiceImpl implements OssService, InitializingBean {
                     fileInfo.setFilename(filename);
                     fileInfo.setIndex(index);
                     return fileInfo.build();
-                });
+                }, uploadExecutor);
                 futures.add(uploaded);
             }
             CompletableFuture.allOf(futures.toArray(new CompletableFuture[fileCount])).join();
@@ -173,7 +192,11 @@ public class OssServiceImpl implements OssService, InitializingBean {
         }
 
         val chunkNumber = request.getChunkNumber();
-        val resumableStorage = ResumableStorage.getInstance();
+        if (request.getTotalSize() > serviceProperties.getMaxFileSize().toBytes()) {
+            log.warn("The size of {} is larger than {}", request.getFileName(), serviceProperties.getMaxFileSize());
+            throw new FileSizeNotAllowedException("The size is larger than " + serviceProperties.getMaxFileSize());
+        }
+
         val info = resumableStorage.getResumableInfo(request, properties.getTmpDir());
         val file = request.getFile();
         val path = request.getPath();
@@ -182,12 +205,19 @@ public class OssServiceImpl implements OssService, InitializingBean {
                     properties.getBackend());
         }
 
-        if (info.resumableTotalSize > serviceProperties.getMaxFileSize().toBytes()) {
-            log.warn("The size of {} is larger than {}", request.getFileName(), serviceProperties.getMaxFileSize());
-            throw new FileSizeNotAllowedException("The size is larger than " + serviceProperties.getMaxFileSize());
+        if (!info.validChunk(chunkNumber)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                    String.format("Invalid chunk number: %d/%d", chunkNumber, info.chunkCount()));
         }
 
         checkFileValid(file);
+        val backend = OssContext.getOssBackend();
+        if (backend instanceof ChunkedUploadSupport chunked && info.chunkCount() > 1
+                && info.resumableChunkSize >= chunked.minPartSize()) {
+            // 分块直接作为分片上传到存储，由存储合并
+            return chunkUploadToBackend(request, info, chunked);
+        }
+
         try (val is = new FileInputStream(file.getFile());
                 val raf = new RandomAccessFile(info.resumableFilePath, "rw")) {
             // Seek to position
@@ -205,24 +235,12 @@ public class OssServiceImpl implements OssService, InitializingBean {
             }
             raf.close();
 
-            info.uploadedChunks.add(new ResumableInfo.ResumableChunkNumber(chunkNumber));
-            val builder = ChunkUploadRes.newBuilder();
-            builder.setChunkNumber(chunkNumber);
-            builder.setErrCode(0);
-            val fInfo = FileInfo.newBuilder();
-            fInfo.setFileId(info.resumableIdentifier);
-            fInfo.setError(0);
-            fInfo.setBackend(properties.getBackend());
-            fInfo.setLength(contentLength);
-            fInfo.setExt(file.getExt());
-            fInfo.setFilename(request.getFileName());
-            fInfo.setContentType(file.getContentType());
-            fInfo.setMessage(file.getError());
-            builder.setFile(fInfo.build());
-
-            if (info.checkIfUploadFinished()) {
-                // Check if all chunks uploaded, and change filename
-                ResumableStorage.getInstance().remove(info);
+            val finished = resumableStorage.markUploaded(info, chunkNumber);
+            val res = chunkUploadRes(request, info);
+
+            if (finished) {
+                // 所有分块都已上传，并发上传时只有一个请求会走到这里
+                resumableStorage.remove(info);
 
                 CompletableFuture.runAsync(() -> {
                     if (log.isDebugEnabled()) {
@@ -242,8 +260,9 @@ public class OssServiceImpl implements OssService, InitializingBean {
                         val uploadFile = applyPlugins(fBuilder.build(), path, ossBackend, disables);
                         info.resumableFilePath = uploadFile.getFile();
                         try (val fileStream = new FileInputStream(info.resumableFilePath)) {
-                            val fileInfo = ossBackend.uploadFile(fileStream, info.resumableFilename, path);
-                            fileInfoCache.setFileInfo(info.resumableIdentifier, fileInfo);
+                            val fileInfo = uploadExecutor.record(properties.getBackend(),
+                                    () -> ossBackend.uploadFile(fileStream, info.resumableFilename, path));
+                            saveResult(info, fileInfo);
                             if (log.isDebugEnabled()) {
                                 log.debug("File saved to backend[{}]: {}", properties.getBackend(), info);
                             }
@@ -254,7 +273,7 @@ public class OssServiceImpl implements OssService, InitializingBean {
                         val fileInfo = FileInfo.newBuilder();
                         fileInfo.setError(1);
                         fileInfo.setMessage(e.getMessage());
-                        fileInfoCache.setFileInfo(info.resumableIdentifier, fileInfo.build());
+                        saveResult(info, fileInfo.build());
                     }
                     finally {
                         val f = new File(info.resumableFilePath);
@@ -263,9 +282,9 @@ public class OssServiceImpl implements OssService, InitializingBean {
                             log.debug("Delete the original file: {} - {}", deleted, f);
                         }
                     }
-                });
+                }, uploadExecutor);
             }
-            return builder.build();
+            return res;
         }
         catch (FileNotFoundException fne) {
             log.error("File not found: {} - {}", info, fne.getMessage());
@@ -277,14 +296,174 @@ public class OssServiceImpl implements OssService, InitializingBean {
         }
     }
 
+    private ChunkUploadRes chunkUploadToBackend(ChunkUploadReq request, ResumableInfo info,
+            ChunkedUploadSupport chunked) {
+        val chunkNumber = request.getChunkNumber();
+        val file = request.getFile();
+        try {
+            ChunkedUploadSupport.Session session = info.session;
+            if (session == null) {
+                // 多个分块可能同时到达，只有一个会话能绑定成功，其余的取消
+                val created = chunked.initiateChunked(info.resumableFilename, request.getPath());
+                session = resumableStorage.bindSession(info, created);
+                if (!created.equals(session)) {
+                    chunked.abortChunked(created, List.of());
+                }
+            }
+            val uploadSession = session;
+            String part;
+            try (val stream = new FileInputStream(file.getFile())) {
+                part = uploadExecutor.record(properties.getBackend(),
+                        () -> chunked.uploadChunk(uploadSession, chunkNumber, stream, file.getSize()));
+            }
+
+            if (resumableStorage.markUploaded(info, chunkNumber, part)) {
+                // 所有分块都已上传，并发上传时只有一个请求会走到这里
+                val parts = resumableStorage.parts(info);
+                resumableStorage.remove(info);
+                CompletableFuture.runAsync(() -> completeChunked(request, info, uploadSession, parts), uploadExecutor);
+            }
+            return chunkUploadRes(request, info);
+        }
+        catch (IOException e) {
+            log.error("File cannot upload: {} - {}", info, e.getMessage());
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+        finally {
+            val f = new File(file.getFile());
+            if (f.exists()) {
+                val deleted = f.delete();
+                log.debug("Delete the chunk file: {} - {}", deleted, f);
+            }
+        }
+    }
+
+    private void completeChunked(ChunkUploadReq request, ResumableInfo info, ChunkedUploadSupport.Session session,
+            List<String> parts) {
+        if (log.isDebugEnabled()) {
+            log.debug("All chunks are uploaded, now complete it on backend[{}]: {}", properties.getBackend(), info);
+        }
+        val ossBackend = OssContext.getOssBackend();
+        val chunked = (ChunkedUploadSupport) ossBackend;
+        try {
+            if (parts.contains(null)) {
+                throw new IllegalStateException("Some chunks are missing: " + info);
+            }
+            FileInfo fileInfo = uploadExecutor.record(properties.getBackend(),
+                    () -> chunked.completeChunked(session, info.resumableFilename, parts, info.resumableTotalSize));
+            val disables = Splitter.on(",").omitEmptyStrings().trimResults().splitToList(request.getDisables());
+            if (hasPlugins(request.getFile().getExt(), disables)) {
+                fileInfo = applyPlugins(fileInfo, request, info, ossBackend, disables);
+            }
+            saveResult(info, fileInfo);
+            if (log.isDebugEnabled()) {
+                log.debug("File saved to backend[{}]: {}", properties.getBackend(), info);
+            }
+        }
+        catch (Exception e) {
+            log.error("Cannot save file to backend: {} - {}", info, e.getMessage());
+            chunked.abortChunked(session, parts.stream().filter(Objects::nonNull).toList());
+            val fileInfo = FileInfo.newBuilder();
+            fileInfo.setError(1);
+            fileInfo.setMessage(e.getMessage());
+            saveResult(info, fileInfo.build());
+        }
+    }
+
+    /**
+     * 插件只能处理本地文件: 将存储合并好的文件拉取到本地，处理后重新上传，并删除合并好的文件.
+     */
+    private FileInfo applyPlugins(FileInfo fileInfo, ChunkUploadReq request, ResumableInfo info,
+            OssBackend ossBackend, List<String> disables) throws Exception {
+        val path = request.getPath();
+        val tmpFile = File.createTempFile("UP_LD_", ".part", new File(properties.getTmpDir()));
+        String altered = null;
+        try {
+            try (val input = ossBackend.getFile(fileInfo.getPath()).getInputStream();
+                    val output = new FileOutputStream(tmpFile)) {
+                input.transferTo(output);
+            }
+            val fBuilder = GsvcExt.UploadFile.newBuilder(request.getFile());
+            fBuilder.setFile(tmpFile.getAbsolutePath());
+            fBuilder.setSize(tmpFile.length());
+            altered = applyPlugins(fBuilder.build(), path, ossBackend, disables).getFile();
+            val alteredFile = altered;
+            val result = uploadExecutor.record(properties.getBackend(), () -> {
+                try (val stream = new FileInputStream(alteredFile)) {
+                    return ossBackend.uploadFile(stream, info.resumableFilename, path);
+                }
+            });
+            ossBackend.delete(fileInfo.getPath());
+            return result;
+        }
+        finally {
+            for (File f : new File[] { tmpFile, altered == null ? null : new File(altered) }) {
+                if (f != null && f.exists()) {
+                    val deleted = f.delete();
+                    log.debug("Delete the original file: {} - {}", deleted, f);
+                }
+            }
+        }
+    }
+
+    /**
+     * 保存分块上传的结果供客户端查询，并发布{@link FileUploadedEvent}.
+     */
+    private void saveResult(ResumableInfo info, FileInfo fileInfo) {
+        fileInfoCache.setFileInfo(info.resumableIdentifier, fileInfo);
+        try {
+            eventPublisher.publishEvent(new FileUploadedEvent(info.resumableIdentifier, fileInfo));
+        }
+        catch (Exception e) {
+            log.warn("Cannot publish FileUploadedEvent: {} - {}", info, e.getMessage());
+        }
+    }
+
+    private ChunkUploadRes chunkUploadRes(ChunkUploadReq request, ResumableInfo info) {
+        val file = request.getFile();
+        val builder = ChunkUploadRes.newBuilder();
+        builder.setChunkNumber(request.getChunkNumber());
+        builder.setErrCode(0);
+        val fInfo = FileInfo.newBuilder();
+        fInfo.setFileId(info.resumableIdentifier);
+        fInfo.setError(0);
+        fInfo.setBackend(properties.getBackend());
+        fInfo.setLength(file.getSize());
+        fInfo.setExt(file.getExt());
+        fInfo.setFilename(request.getFileName());
+        fInfo.setContentType(file.getContentType());
+        fInfo.setMessage(file.getError());
+        builder.setFile(fInfo.build());
+        return builder.build();
+    }
+
+    /**
+     * 等待上传完成后读取结果，最长等待query-max-wait.
+     * @param fileId 分块上传的fileId
+     * @param wait 客户端指定的等待秒数
+     * @return 超时返回null
+     */
+    private FileInfo awaitFileInfo(String fileId, int wait) {
+        val maxWait = serviceProperties.getQueryMaxWait();
+        val timeout = Duration.ofSeconds(Integer.toUnsignedLong(wait));
+        try {
+            val done = fileUploadedWaiters.await(fileId, timeout.compareTo(maxWait) > 0 ? maxWait : timeout,
+                    () -> fileInfoCache.getFileInfo(fileId) != null);
+            return done ? fileInfoCache.getFileInfo(fileId) : null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
     @Override
     public ChunkUploadRes chunkCheck(ChunkUploadReq request) {
         int chunkNumber = request.getChunkNumber();
 
-        val resumableStorage = ResumableStorage.getInstance();
         val info = resumableStorage.getResumableInfo(request, properties.getTmpDir());
 
-        if (info.uploadedChunks.contains(new ResumableInfo.ResumableChunkNumber(chunkNumber))) {
+        if (resumableStorage.isUploaded(info, chunkNumber)) {
             val builder = ChunkUploadRes.newBuilder();
             builder.setErrCode(0);
             builder.setChunkNumber(chunkNumber);
@@ -298,7 +477,10 @@ public class OssServiceImpl implements OssService, InitializingBean {
     @Override
     public ChunkUploadRes query(Query request) {
         val fileId = request.getFileId();
-        val fileInfo = fileInfoCache.getFileInfo(fileId);
+        var fileInfo = fileInfoCache.getFileInfo(fileId);
+        if (fileInfo == null && request.getWait() > 0) {
+            fileInfo = awaitFileInfo(fileId, request.getWait());
+        }
         val builder = ChunkUploadRes.newBuilder();
         builder.setErrCode(0);
         if (fileInfo != null) {
@@ -307,6 +489,26 @@ public class OssServiceImpl implements OssService, InitializingBean {
         return builder.build();
     }
 
+    /**
+     * 等待上传完成后读取结果，最长等待query-max-wait.
+     * @param fileId 分块上传的fileId
+     * @param wait 客户端指定的等待秒数
+     * @return 超时返回null
+     */
+    private FileInfo awaitFileInfo(String fileId, int wait) {
+        val maxWait = serviceProperties.getQueryMaxWait();
+        val timeout = Duration.ofSeconds(Integer.toUnsignedLong(wait));
+        try {
+            val done = fileUploadedWaiters.await(fileId, timeout.compareTo(maxWait) > 0 ? maxWait : timeout,
+                    () -> fileInfoCache.getFileInfo(fileId) != null);
+            return done ? fileInfoCache.getFileInfo(fileId) : null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
     private void checkFileValid(GsvcExt.UploadFile file) {
         try {
             val error = file.getError();
@@ -339,19 +541,37 @@ public class OssServiceImpl implements OssService, InitializingBean {
         }
     }
 
+    private boolean hasPlugins(String ext, List<String> disabledPlugins) {
+        for (OssServiceProperties.PluginConfig plugin : plugins) {
+            if (!disabledPlugins.contains(plugin.getId()) && plugin.getFileTypes().contains(ext)
+                    && plugin.instance().supported(ext)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private GsvcExt.UploadFile applyPlugins(final GsvcExt.UploadFile file, final String path,
             final OssBackend ossBackend, List<String> disabledPlugins) throws Exception {
 
         val ext = file.getExt();
         GsvcExt.UploadFile alteredFile = file;
         log.debug("Disabled plugins: {}", disabledPlugins);
+        // 连续的图片插件共享一次解码与编码
+        val pipeline = new ImagePipeline();
         for (OssServiceProperties.PluginConfig plugin : plugins) {
             if (!disabledPlugins.contains(plugin.getId()) && plugin.getFileTypes().contains(ext)
                     && plugin.instance().supported(ext)) {
-                alteredFile = plugin.instance().alter(alteredFile, path, ossBackend, plugin.props());
+                if (plugin.instance() instanceof ImagePlugin imagePlugin) {
+                    pipeline.add(imagePlugin, plugin.props());
+                }
+                else {
+                    alteredFile = pipeline.run(alteredFile, path, ossBackend);
+                    alteredFile = plugin.instance().alter(alteredFile, path, ossBackend, plugin.props());
+                }
             }
         }
-        return alteredFile;
+        return pipeline.run(alteredFile, path, ossBackend);
     }
 
 }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.service;
+
+import com.apzda.cloud.oss.config.OssServiceProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.beans.factory.DisposableBean;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OSS上传专用线程池. 文件上传是阻塞I/O，不能跑在{@link ForkJoinPool#commonPool()}上.
+ * <p>
+ * 线程池有界，队列满时由提交线程自己执行(CallerRuns)，以此对上传请求形成背压. 同时暴露以下指标:
+ * <ul>
+ * <li>oss.upload.queue: 排队中的任务数</li>
+ * <li>oss.upload.active: 正在执行的上传数</li>
+ * <li>oss.upload: 按存储后端(backend)统计的上传耗时</li>
+ * </ul>
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class UploadExecutor implements Executor, DisposableBean {
+
+    private final ThreadPoolExecutor executor;
+
+    private final MeterRegistry registry;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public UploadExecutor(OssServiceProperties.ExecutorConfig config, MeterRegistry registry) {
+        val maxSize = Math.max(config.getMaxSize(), config.getCoreSize());
+        val counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(config.getCoreSize(), maxSize, config.getKeepAlive().toMillis(),
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, config.getQueueCapacity())), (r) -> {
+                    val thread = new Thread(r, "oss-upload-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.registry = registry;
+
+        Gauge.builder("oss.upload.queue", executor, (e) -> e.getQueue().size())
+            .description("The number of upload tasks waiting in the queue")
+            .register(registry);
+        Gauge.builder("oss.upload.active", active, AtomicInteger::get)
+            .description("The number of uploads in progress")
+            .register(registry);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(() -> {
+            active.incrementAndGet();
+            try {
+                command.run();
+            }
+            finally {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * 记录上传到指定存储后端的耗时.
+     * @param backend 存储后端
+     * @param upload 上传操作
+     * @return 上传结果
+     */
+    public <T> T record(String backend, Upload<T> upload) throws IOException {
+        val timer = timers.computeIfAbsent(backend, (b) -> Timer.builder("oss.upload")
+            .description("The time taken to upload a file to the backend")
+            .tag("backend", b)
+            .register(registry));
+        val sample = Timer.start(registry);
+        try {
+            return upload.get();
+        }
+        finally {
+            sample.stop(timer);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Upload<T> {
+
+        T get() throws IOException;
+
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Upload executor did not terminate in 30s, {} tasks are dropped",
+                    executor.shutdownNow().size());
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.variant;
+
+/**
+ * 图片变体参数.
+ *
+ * @param key 缓存键，由源文件与参数计算得出
+ * @param width 最大宽度，0表示按高度等比缩放
+ * @param height 最大高度，0表示按宽度等比缩放
+ * @param format 输出格式
+ * @param quality 输出质量(1-100)，只对JPEG有效，其它格式为0
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public record ImageVariant(String key, int width, int height, String format, int quality) {
+
+    public boolean isJpeg() {
+        return "jpg".equals(format) || "jpeg".equals(format);
+    }
+
+    public String contentType() {
+        return "image/" + (isJpeg() ? "jpeg" : format);
+    }
+
+}
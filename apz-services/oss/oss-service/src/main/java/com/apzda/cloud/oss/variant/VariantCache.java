@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.variant;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.util.unit.DataSize;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * 磁盘LRU缓存: 总大小超过上限时删除最久未访问的文件.
+ * <p>
+ * 同一个key的并发请求只会生成一次，其它请求等待生成结果. 重启后会重新索引缓存目录中已有的文件.
+ * 通过{@link #open}读取的文件在输入流关闭前被固定，期间被淘汰时延迟到最后一个输入流关闭后删除.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class VariantCache {
+
+    private static final Pattern KEY = Pattern.compile("^[0-9a-f]{32}$");
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private final Path dir;
+
+    private final Cache<String, File> cache;
+
+    /**
+     * 正在读取的文件，所有修改都在其锁内进行.
+     */
+    private final Map<String, Pin> pins = new HashMap<>();
+
+    public VariantCache(Path dir, DataSize maxSize) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.cache = CacheBuilder.newBuilder()
+            .maximumWeight(maxSize.toBytes())
+            .<String, File>weigher((key, file) -> (int) Math.min(Integer.MAX_VALUE, Math.max(1, file.length())))
+            .removalListener(notification -> {
+                if (notification.getCause() != RemovalCause.REPLACED && notification.getValue() != null) {
+                    evict(notification.getKey(), notification.getValue());
+                }
+            })
+            .build();
+        load();
+    }
+
+    /**
+     * 获取缓存文件，不存在时调用renderer生成.
+     * @param key 缓存键(32位小写十六进制)
+     * @param renderer 生成器，将内容写入给定的文件
+     * @return 缓存文件
+     */
+    public File get(String key, Renderer renderer) throws IOException {
+        if (!KEY.matcher(key).matches()) {
+            throw new IllegalArgumentException("Invalid variant key: " + key);
+        }
+        try {
+            return cache.get(key, () -> render(key, renderer));
+        }
+        catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            val cause = e.getCause();
+            if (cause instanceof IOException ioe) {
+                throw ioe;
+            }
+            else if (cause instanceof RuntimeException re) {
+                throw re;
+            }
+            else if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * 打开缓存文件，不存在时调用renderer生成. 输入流关闭前文件不会因淘汰而被删除.
+     * @param key 缓存键(32位小写十六进制)
+     * @param renderer 生成器，将内容写入给定的文件
+     * @return 输入流，使用后必须关闭
+     */
+    public InputStream open(String key, Renderer renderer) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            val file = get(key, renderer);
+            if (pin(key, file)) {
+                try {
+                    return new FilterInputStream(new BufferedInputStream(new FileInputStream(file))) {
+                        private boolean closed;
+
+                        @Override
+                        public void close() throws IOException {
+                            try {
+                                super.close();
+                            }
+                            finally {
+                                if (!closed) {
+                                    closed = true;
+                                    unpin(key);
+                                }
+                            }
+                        }
+                    };
+                }
+                catch (IOException | RuntimeException e) {
+                    unpin(key);
+                    throw e;
+                }
+            }
+            // 获取后固定前被淘汰并删除，重新生成
+            cache.asMap().remove(key, file);
+        }
+        throw new FileNotFoundException("Variant is not available: " + key);
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private boolean pin(String key, File file) {
+        synchronized (pins) {
+            if (!file.isFile()) {
+                return false;
+            }
+            pins.computeIfAbsent(key, k -> new Pin()).count++;
+            return true;
+        }
+    }
+
+    private void unpin(String key) {
+        synchronized (pins) {
+            val pin = pins.get(key);
+            if (pin == null || --pin.count > 0) {
+                return;
+            }
+            pins.remove(key);
+            if (pin.evicted) {
+                delete(file(key).toFile());
+            }
+        }
+    }
+
+    private void evict(String key, File file) {
+        synchronized (pins) {
+            val pin = pins.get(key);
+            if (pin != null) {
+                // 正在读取，最后一个输入流关闭后删除
+                pin.evicted = true;
+                return;
+            }
+            delete(file);
+        }
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        }
+        catch (IOException e) {
+            log.warn("Cannot delete variant: {} - {}", file, e.getMessage());
+        }
+    }
+
+    private File render(String key, Renderer renderer) throws IOException {
+        val target = file(key);
+        synchronized (pins) {
+            val pin = pins.get(key);
+            if (pin != null) {
+                // 被淘汰但仍在读取的文件重新加入缓存，不再删除
+                pin.evicted = false;
+            }
+            if (Files.isRegularFile(target)) {
+                return target.toFile();
+            }
+        }
+        Files.createDirectories(target.getParent());
+        val tmp = Files.createTempFile(target.getParent(), key, TEMP_FILE_SUFFIX);
+        try {
+            renderer.render(tmp.toFile());
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.trace("Variant rendered: {}", target);
+        return target.toFile();
+    }
+
+    private Path file(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    /**
+     * 按最后修改时间从旧到新索引已有文件，超出上限的旧文件会被立即淘汰.
+     */
+    private void load() throws IOException {
+        try (val files = Files.walk(dir, 2)) {
+            files.filter(Files::isRegularFile)
+                .map(Path::toFile)
+                .filter(file -> {
+                    if (KEY.matcher(file.getName()).matches()) {
+                        return true;
+                    }
+                    if (file.getName().endsWith(TEMP_FILE_SUFFIX) && !file.delete()) {
+                        log.warn("Cannot delete stale variant: {}", file);
+                    }
+                    return false;
+                })
+                .sorted(Comparator.comparingLong(File::lastModified))
+                .forEach(file -> cache.put(file.getName(), file));
+        }
+        log.debug("Variant cache loaded: {} files in {}", cache.size(), dir);
+    }
+
+    private static final class Pin {
+
+        private int count;
+
+        private boolean evicted;
+
+    }
+
+    @FunctionalInterface
+    public interface Renderer {
+
+        void render(File target) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.variant;
+
+import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.proto.FileInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 缓存目录中的图片变体，由{@link VariantCache}管理，不能删除.
+ * <p>
+ * 读取时通过{@link VariantCache#open}固定缓存文件，因此不使用sendfile(无法得知发送何时结束);
+ * 文件在生成后、读取前被淘汰时重新生成.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public class VariantFile implements IOssFile {
+
+    private final File file;
+
+    private final FileInfo stat;
+
+    private final VariantCache cache;
+
+    private final VariantCache.Renderer renderer;
+
+    public VariantFile(File file, FileInfo stat, VariantCache cache, VariantCache.Renderer renderer) {
+        this.file = file;
+        this.stat = stat;
+        this.cache = cache;
+        this.renderer = renderer;
+    }
+
+    @Override
+    public File getLocalFile() {
+        return file;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return cache.open(stat.getFileId(), renderer);
+    }
+
+    @Override
+    public FileInfo stat() {
+        return stat;
+    }
+
+    @Override
+    public boolean delete() {
+        return false;
+    }
+
+}
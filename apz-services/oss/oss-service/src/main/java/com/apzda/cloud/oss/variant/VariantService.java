@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2023-2023 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.oss.variant;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.crypto.SecureUtil;
+import com.apzda.cloud.oss.config.OssServiceProperties;
+import com.apzda.cloud.oss.exception.FileSizeNotAllowedException;
+import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.plugin.ImagePipeline;
+import com.apzda.cloud.oss.proto.FileInfo;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按需生成图片变体(缩略图、格式转换等)，生成结果保存在磁盘LRU缓存中.
+ * <p>
+ * 预览地址支持以下参数: w(最大宽度)、h(最大高度)、fm(输出格式)、q(JPEG质量，1-100). 同时指定宽高时按比例缩放至不超过该尺寸，不会放大原图.
+ * 宽高与质量取配置的sizes与qualities中最接近的值，同一图片的变体数量有限; 同时生成的变体数不超过renderConcurrency.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Slf4j
+public class VariantService {
+
+    public static final String PARAM_WIDTH = "w";
+
+    public static final String PARAM_HEIGHT = "h";
+
+    public static final String PARAM_FORMAT = "fm";
+
+    public static final String PARAM_QUALITY = "q";
+
+    private final OssServiceProperties.VariantConfig config;
+
+    private final VariantCache cache;
+
+    private final Semaphore renders;
+
+    private final List<Integer> sizes;
+
+    private final List<Integer> qualities;
+
+    public VariantService(OssServiceProperties.VariantConfig config, Path cacheDir) throws IOException {
+        this.config = config;
+        this.cache = new VariantCache(cacheDir, config.getCacheSize());
+        this.renders = new Semaphore(Math.max(1, config.getRenderConcurrency()));
+        this.sizes = config.getSizes().stream().filter(size -> size > 0).sorted().toList();
+        this.qualities = config.getQualities().stream().filter(q -> q >= 1 && q <= 100).sorted().toList();
+        log.info("Oss image variant cache: {}, max size: {}", cacheDir, config.getCacheSize());
+    }
+
+    /**
+     * 解析请求中的变体参数.
+     * @param request 请求
+     * @param stat 源文件
+     * @return 变体参数，请求未指定任何参数或源文件不是图片时返回null
+     * @throws IllegalArgumentException 参数无效
+     */
+    @Nullable
+    public ImageVariant variant(@NonNull ServerRequest request, @NonNull FileInfo stat) {
+        val width = request.param(PARAM_WIDTH);
+        val height = request.param(PARAM_HEIGHT);
+        val format = request.param(PARAM_FORMAT);
+        val quality = request.param(PARAM_QUALITY);
+        if (width.isEmpty() && height.isEmpty() && format.isEmpty() && quality.isEmpty()) {
+            return null;
+        }
+        val ext = StringUtils.lowerCase(stat.getExt(), Locale.ROOT);
+        if (StringUtils.isBlank(ext) || !ImageIO.getImageReadersBySuffix(ext).hasNext()) {
+            return null;
+        }
+
+        val w = width.map(value -> dimension(PARAM_WIDTH, value, config.getMaxWidth())).orElse(0);
+        val h = height.map(value -> dimension(PARAM_HEIGHT, value, config.getMaxHeight())).orElse(0);
+        val fm = format.map(value -> value.toLowerCase(Locale.ROOT))
+            .orElse(config.getFormats().contains(ext) ? ext : config.getFormats().get(0));
+        if (!config.getFormats().contains(fm) || !ImageIO.getImageWritersByFormatName(fm).hasNext()) {
+            throw new IllegalArgumentException("Unsupported format: " + fm);
+        }
+        val jpeg = "jpg".equals(fm) || "jpeg".equals(fm);
+        val q = !jpeg ? 0 : quality.map(value -> {
+            val number = parseInt(PARAM_QUALITY, value);
+            if (number < 1 || number > 100) {
+                throw new IllegalArgumentException("Invalid quality: " + value);
+            }
+            return nearest(qualities, number);
+        }).orElse(config.getQuality());
+
+        val key = SecureUtil.md5(String.join("|", stat.getPath(), stat.getFileId(), String.valueOf(stat.getLength()),
+                String.valueOf(stat.getCreateTime()), w + "x" + h, fm, String.valueOf(q)));
+        return new ImageVariant(key, w, h, fm, q);
+    }
+
+    /**
+     * 获取变体，缓存中不存在时生成. 同一变体的并发请求只会生成一次.
+     * @param ossFile 源文件
+     * @param stat 源文件信息
+     * @param variant 变体参数
+     * @return 变体文件
+     */
+    @NonNull
+    public VariantFile render(@NonNull IOssFile ossFile, @NonNull FileInfo stat, @NonNull ImageVariant variant)
+            throws IOException {
+        final VariantCache.Renderer renderer = (target) -> render(ossFile, variant, target);
+        val file = cache.get(variant.key(), renderer);
+        val filename = FileUtil.mainName(stat.getFilename()) + "." + variant.format();
+        val info = FileInfo.newBuilder(stat)
+            .setFileId(variant.key())
+            .setLength(file.length())
+            .setExt(variant.format())
+            .setFilename(filename)
+            .setContentType(variant.contentType())
+            .build();
+        return new VariantFile(file, info, cache, renderer);
+    }
+
+    /**
+     * 生成变体. 同时生成的数量受限，等待超时抛出{@link RejectedExecutionException};
+     * 源图片超过maxSourcePixels时抛出{@link FileSizeNotAllowedException}.
+     */
+    private void render(IOssFile ossFile, ImageVariant variant, File target) throws IOException {
+        try {
+            if (!renders.tryAcquire(config.getRenderTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new RejectedExecutionException("Too many variants are being rendered");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to render " + variant.key());
+        }
+        try {
+            doRender(ossFile, variant, target);
+        }
+        finally {
+            renders.release();
+        }
+    }
+
+    private void doRender(IOssFile ossFile, ImageVariant variant, File target) throws IOException {
+        BufferedImage image;
+        try (val source = ossFile.getInputStream(); val input = ImageIO.createImageInputStream(source)) {
+            image = read(input, variant);
+        }
+        val imgWidth = image.getWidth();
+        val imgHeight = image.getHeight();
+        double ratio = 1;
+        if (variant.width() > 0) {
+            ratio = Math.min(ratio, (double) variant.width() / imgWidth);
+        }
+        if (variant.height() > 0) {
+            ratio = Math.min(ratio, (double) variant.height() / imgHeight);
+        }
+        if (ratio < 1) {
+            val width = Math.max(1, (int) Math.round(imgWidth * ratio));
+            val height = Math.max(1, (int) Math.round(imgHeight * ratio));
+            image = ImagePipeline.scale(image, width, height);
+        }
+        write(ImagePipeline.encodable(image, variant.format()), variant, target);
+    }
+
+    /**
+     * 解码源图片. 先从文件头读取尺寸，超过maxSourcePixels时不解码.
+     * @throws FileSizeNotAllowedException 源图片过大
+     */
+    private BufferedImage read(ImageInputStream input, ImageVariant variant) throws IOException {
+        val readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("Cannot read image: " + variant.key());
+        }
+        val reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            val width = reader.getWidth(0);
+            val height = reader.getHeight(0);
+            if ((long) width * height > config.getMaxSourcePixels()) {
+                throw new FileSizeNotAllowedException("Image is too large to render: " + width + "x" + height);
+            }
+            return reader.read(0);
+        }
+        finally {
+            reader.dispose();
+        }
+    }
+
+    private static void write(BufferedImage image, ImageVariant variant, File target) throws IOException {
+        val writers = ImageIO.getImageWritersByFormatName(variant.format());
+        if (!writers.hasNext()) {
+            throw new IOException("Unsupported format: " + variant.format());
+        }
+        val writer = writers.next();
+        try (val output = ImageIO.createImageOutputStream(target)) {
+            writer.setOutput(output);
+            val param = writer.getDefaultWriteParam();
+            if (variant.isJpeg() && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(variant.quality() / 100f);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        }
+        finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * 解析宽高并向上取最接近的允许值，0表示不限制.
+     */
+    private int dimension(String name, String value, int max) {
+        val number = parseInt(name, value);
+        if (number < 0 || number > max) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+        if (number == 0 || sizes.isEmpty()) {
+            return number;
+        }
+        for (val size : sizes) {
+            if (size >= number) {
+                return size;
+            }
+        }
+        return sizes.get(sizes.size() - 1);
+    }
+
+    private static int nearest(List<Integer> values, int number) {
+        int nearest = number;
+        int distance = Integer.MAX_VALUE;
+        for (val value : values) {
+            if (Math.abs(value - number) < distance) {
+                distance = Math.abs(value - number);
+                nearest = value;
+            }
+        }
+        return nearest;
+    }
+
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+}
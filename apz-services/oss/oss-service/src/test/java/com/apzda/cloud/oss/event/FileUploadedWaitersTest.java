@@ -0,0 +1,76 @@
+package com.apzda.cloud.oss.event;
+
+import com.apzda.cloud.oss.proto.FileInfo;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class FileUploadedWaitersTest {
+
+    @Test
+    void uploaded_event_should_wake_all_waiters() throws Exception {
+        // given
+        val waiters = new FileUploadedWaiters();
+        val uploaded = new AtomicBoolean();
+        val executor = Executors.newFixedThreadPool(2);
+
+        try {
+            val first = executor.submit(() -> waiters.await("a", Duration.ofSeconds(5), uploaded::get));
+            val second = executor.submit(() -> waiters.await("a", Duration.ofSeconds(5), uploaded::get));
+            while (waiters.size() == 0) {
+                Thread.sleep(10);
+            }
+
+            // when
+            uploaded.set(true);
+            waiters.onApplicationEvent(new FileUploadedEvent("a", FileInfo.getDefaultInstance()));
+
+            // then
+            assertThat(first.get(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(second.get(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(waiters.size()).isZero();
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void waiter_should_time_out_when_not_notified() throws InterruptedException {
+        // given
+        val waiters = new FileUploadedWaiters();
+        waiters.notify("a");
+
+        // when
+        val done = waiters.await("a", Duration.ofMillis(50), () -> false);
+
+        // then
+        assertThat(done).isFalse();
+        assertThat(waiters.size()).isZero();
+    }
+
+    @Test
+    void upload_completed_before_waiting_should_not_block() throws InterruptedException {
+        // given
+        val waiters = new FileUploadedWaiters();
+
+        // when
+        val done = waiters.await("a", Duration.ofMinutes(1), () -> true);
+
+        // then
+        assertThat(done).isTrue();
+        assertThat(waiters.size()).isZero();
+    }
+
+}
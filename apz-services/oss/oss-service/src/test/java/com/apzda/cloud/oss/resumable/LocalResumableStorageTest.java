@@ -0,0 +1,191 @@
+package com.apzda.cloud.oss.resumable;
+
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class LocalResumableStorageTest {
+
+    @TempDir
+    Path tmpDir;
+
+    LocalResumableStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        storage = new LocalResumableStorage(tmpDir.toString(), Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        storage.destroy();
+    }
+
+    @Test
+    void concurrent_marks_should_complete_the_upload_exactly_once() throws Exception {
+        // given: 分块数跨越多个位图字，每个分块被多个线程重复标记
+        val info = storage.load(info("a", 200));
+        val threads = 8;
+        val executor = Executors.newFixedThreadPool(threads);
+        val start = new CountDownLatch(1);
+        val completed = new AtomicInteger();
+        val tasks = new ArrayList<Future<?>>();
+
+        try {
+            // when
+            for (int t = 0; t < threads; t++) {
+                tasks.add(executor.submit((Callable<Void>) () -> {
+                    start.await();
+                    for (int chunk = 1; chunk <= 200; chunk++) {
+                        if (storage.markUploaded(info, chunk, "part-" + chunk)) {
+                            completed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : tasks) {
+                task.get(10, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertThat(completed).hasValue(1);
+        for (int chunk = 1; chunk <= 200; chunk++) {
+            assertThat(storage.isUploaded(info, chunk)).isTrue();
+        }
+        assertThat(storage.parts(info)).hasSize(200).doesNotContainNull().startsWith("part-1", "part-2");
+    }
+
+    @Test
+    void duplicate_marks_should_not_complete_the_upload() {
+        // given
+        val info = storage.load(info("a", 3));
+
+        // when
+        val first = storage.markUploaded(info, 1);
+        val duplicate = storage.markUploaded(info, 1);
+        val second = storage.markUploaded(info, 2);
+        val last = storage.markUploaded(info, 3);
+
+        // then
+        assertThat(first).isFalse();
+        assertThat(duplicate).isFalse();
+        assertThat(second).isFalse();
+        assertThat(last).isTrue();
+        assertThat(storage.markUploaded(info, 3)).isFalse();
+    }
+
+    @Test
+    void invalid_chunks_should_be_rejected() {
+        // given
+        val info = storage.load(info("a", 2));
+
+        // then
+        assertThat(storage.markUploaded(info, 0)).isFalse();
+        assertThat(storage.markUploaded(info, 3)).isFalse();
+        assertThat(storage.isUploaded(info, 3)).isFalse();
+        assertThat(storage.markUploaded(info("b", 2), 1)).isFalse();
+    }
+
+    @Test
+    @Timeout(10)
+    void completion_should_be_detected_without_scanning_the_chunks() {
+        // given: 逐块扫描判断完成时需要约5*10^11次检查
+        val chunks = 1_000_000;
+        val info = storage.load(info("a", chunks));
+
+        // when
+        var completed = 0;
+        for (int chunk = chunks; chunk >= 1; chunk--) {
+            if (storage.markUploaded(info, chunk)) {
+                completed = chunk;
+            }
+        }
+
+        // then
+        assertThat(completed).isEqualTo(1);
+    }
+
+    @Test
+    void expired_uploads_should_be_evicted() {
+        // given
+        val info = storage.load(info("a", 2));
+        storage.markUploaded(info, 1);
+
+        // when: 未过期
+        storage.evictExpired(System.currentTimeMillis() - Duration.ofHours(1).toMillis());
+
+        // then
+        assertThat(storage.isUploaded(info, 1)).isTrue();
+
+        // when: 最后访问时间早于过期时间点
+        storage.evictExpired(System.currentTimeMillis() + 1);
+
+        // then
+        assertThat(storage.isUploaded(info, 1)).isFalse();
+        val reloaded = info("a", 2);
+        assertThat(storage.load(reloaded)).isSameAs(reloaded);
+    }
+
+    @Test
+    void abandoned_chunk_files_should_be_deleted() throws IOException {
+        // given
+        val abandoned = touch(ResumableStorage.tempFileName("a"), Duration.ofHours(2));
+        val uploading = touch(ResumableStorage.tempFileName("b"), Duration.ZERO);
+        val other = touch("other.temp", Duration.ofHours(2));
+
+        // when
+        storage.evictExpired();
+
+        // then
+        assertThat(abandoned).doesNotExist();
+        assertThat(uploading).exists();
+        assertThat(other).exists();
+    }
+
+    private File touch(String name, Duration age) throws IOException {
+        val file = Files.createFile(tmpDir.resolve(name)).toFile();
+        assertThat(file.setLastModified(System.currentTimeMillis() - age.toMillis())).isTrue();
+        return file;
+    }
+
+    private ResumableInfo info(String id, int chunks) {
+        val info = new ResumableInfo();
+        info.resumableIdentifier = id;
+        info.resumableFilename = id + ".txt";
+        info.resumableChunkSize = 1;
+        info.resumableTotalSize = chunks;
+        info.resumableTotalChunks = chunks;
+        info.resumableFilePath = tmpDir.resolve(ResumableStorage.tempFileName(id)).toString();
+        return info;
+    }
+
+}
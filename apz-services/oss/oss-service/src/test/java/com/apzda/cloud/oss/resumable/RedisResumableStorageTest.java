@@ -0,0 +1,221 @@
+package com.apzda.cloud.oss.resumable;
+
+import com.apzda.cloud.oss.backend.ChunkedUploadSupport;
+import lombok.val;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Testcontainers(disabledWithoutDocker = true)
+class RedisResumableStorageTest {
+
+    @Container
+    static final GenericContainer<?> redis = new GenericContainer<>(DockerImageName.parse("redis:7-alpine"))
+        .withExposedPorts(6379);
+
+    static LettuceConnectionFactory connectionFactory;
+
+    static StringRedisTemplate redisTemplate;
+
+    @TempDir
+    Path tmpDir;
+
+    // 两个节点共享同一个Redis
+    RedisResumableStorage node1;
+
+    RedisResumableStorage node2;
+
+    @BeforeAll
+    static void connect() {
+        connectionFactory = new LettuceConnectionFactory(redis.getHost(), redis.getMappedPort(6379));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterAll
+    static void disconnect() {
+        connectionFactory.destroy();
+    }
+
+    @BeforeEach
+    void setUp() {
+        node1 = new RedisResumableStorage(redisTemplate, tmpDir.toString(), Duration.ofHours(1));
+        node2 = new RedisResumableStorage(redisTemplate, tmpDir.toString(), Duration.ofHours(1));
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        node1.destroy();
+        node2.destroy();
+    }
+
+    @Test
+    void concurrent_marks_on_all_nodes_should_complete_the_upload_exactly_once() throws Exception {
+        // given
+        val chunks = 100;
+        val info = node1.load(info(chunks));
+        val threads = 8;
+        val executor = Executors.newFixedThreadPool(threads);
+        val start = new CountDownLatch(1);
+        val completed = new AtomicInteger();
+        val tasks = new ArrayList<Future<?>>();
+
+        try {
+            // when
+            for (int t = 0; t < threads; t++) {
+                val storage = t % 2 == 0 ? node1 : node2;
+                tasks.add(executor.submit((Callable<Void>) () -> {
+                    start.await();
+                    for (int chunk = 1; chunk <= chunks; chunk++) {
+                        if (storage.markUploaded(info, chunk, "part-" + chunk)) {
+                            completed.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : tasks) {
+                task.get(30, TimeUnit.SECONDS);
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertThat(completed).hasValue(1);
+        for (int chunk = 1; chunk <= chunks; chunk++) {
+            assertThat(node2.isUploaded(info, chunk)).isTrue();
+        }
+        assertThat(node2.parts(info)).hasSize(chunks).doesNotContainNull().startsWith("part-1", "part-2");
+    }
+
+    @Test
+    void upload_should_be_completed_by_the_counter() {
+        // given
+        val info = node1.load(info(3));
+
+        // when
+        node1.markUploaded(info, 3);
+        node2.markUploaded(info, 3);
+        node2.markUploaded(info, 1);
+
+        // then: 重复标记不计数，完成由计数判断
+        assertThat(uploadedCounter(info)).isEqualTo("2");
+        assertThat(node1.markUploaded(info, 2)).isTrue();
+        assertThat(uploadedCounter(info)).isEqualTo("3");
+        assertThat(node2.markUploaded(info, 2)).isFalse();
+    }
+
+    @Test
+    void state_should_be_shared_between_nodes() {
+        // given
+        val info = info(2);
+        val session = new ChunkedUploadSupport.Session("upload-1", "/a.txt", 1L);
+        node1.load(info);
+        node1.bindSession(info, session);
+
+        // when
+        val loaded = node2.load(info(2, info.resumableIdentifier));
+        val bound = node2.bindSession(loaded, new ChunkedUploadSupport.Session("upload-2", "/a.txt", 2L));
+
+        // then
+        assertThat(loaded.session).isEqualTo(session);
+        assertThat(bound).isEqualTo(session);
+    }
+
+    @Test
+    void state_should_expire_after_ttl() throws InterruptedException {
+        // given
+        val storage = new RedisResumableStorage(redisTemplate, tmpDir.toString(), Duration.ofMillis(500));
+        try {
+            val info = storage.load(info(2));
+            storage.markUploaded(info, 1);
+            assertThat(storage.isUploaded(info, 1)).isTrue();
+
+            // when
+            Thread.sleep(1000);
+
+            // then
+            assertThat(storage.isUploaded(info, 1)).isFalse();
+            assertThat(storage.markUploaded(info, 2)).isFalse();
+            assertThat(redisTemplate.keys("oss.resumable.*")).noneMatch(key -> key.contains(digest(info)));
+        }
+        finally {
+            storage.destroy();
+        }
+    }
+
+    @Test
+    void access_should_renew_ttl() throws InterruptedException {
+        // given
+        val storage = new RedisResumableStorage(redisTemplate, tmpDir.toString(), Duration.ofMillis(800));
+        try {
+            val info = storage.load(info(3));
+
+            // when: 每次访问都续期，总时长超过ttl
+            Thread.sleep(500);
+            storage.markUploaded(info, 1);
+            Thread.sleep(500);
+            storage.load(info);
+
+            // then
+            assertThat(storage.isUploaded(info, 1)).isTrue();
+        }
+        finally {
+            storage.destroy();
+        }
+    }
+
+    private static String uploadedCounter(ResumableInfo info) {
+        return (String) redisTemplate.opsForHash().get("oss.resumable.{" + digest(info) + "}", "uploaded");
+    }
+
+    private static String digest(ResumableInfo info) {
+        return ResumableStorage.tempFileName(info.resumableIdentifier).replace(ResumableStorage.TEMP_FILE_SUFFIX, "");
+    }
+
+    private ResumableInfo info(int chunks) {
+        return info(chunks, UUID.randomUUID().toString());
+    }
+
+    private ResumableInfo info(int chunks, String id) {
+        val info = new ResumableInfo();
+        info.resumableIdentifier = id;
+        info.resumableFilename = "a.txt";
+        info.resumableChunkSize = 1;
+        info.resumableTotalSize = chunks;
+        info.resumableTotalChunks = chunks;
+        info.resumableFilePath = tmpDir.resolve(ResumableStorage.tempFileName(id)).toString();
+        return info;
+    }
+
+}
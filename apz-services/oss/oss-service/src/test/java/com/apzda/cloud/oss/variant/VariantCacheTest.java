@@ -0,0 +1,209 @@
+package com.apzda.cloud.oss.variant;
+
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class VariantCacheTest {
+
+    private static final String A = "aa000000000000000000000000000000";
+
+    private static final String B = "bb000000000000000000000000000000";
+
+    private static final String C = "cc000000000000000000000000000000";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void eldest_variant_should_be_evicted_and_deleted() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofBytes(10));
+        val a = cache.get(A, renderer("aaaa"));
+        cache.get(B, renderer("bbbb"));
+
+        // when
+        cache.get(C, renderer("cccc"));
+
+        // then
+        assertThat(a).doesNotExist();
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    void pinned_variant_should_be_deleted_after_the_stream_is_closed() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofBytes(10));
+        val input = cache.open(A, renderer("aaaa"));
+        val a = file(A);
+
+        // when: 读取期间被淘汰
+        cache.get(B, renderer("bbbb"));
+        cache.get(C, renderer("cccc"));
+
+        // then
+        assertThat(a).exists();
+        assertThat(new String(input.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo("aaaa");
+
+        // when
+        input.close();
+        input.close();
+
+        // then
+        assertThat(a).doesNotExist();
+    }
+
+    @Test
+    void pinned_variant_should_be_deleted_after_the_last_stream_is_closed() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofBytes(10));
+        val first = cache.open(A, renderer("aaaa"));
+        val second = cache.open(A, renderer("aaaa"));
+        cache.get(B, renderer("bbbb"));
+        cache.get(C, renderer("cccc"));
+
+        // when
+        first.close();
+
+        // then
+        assertThat(file(A)).exists();
+
+        // when
+        second.close();
+
+        // then
+        assertThat(file(A)).doesNotExist();
+    }
+
+    @Test
+    void re_cached_variant_should_survive_the_stream() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofBytes(10));
+        val renders = new AtomicInteger();
+        val input = cache.open(A, renderer("aaaa"));
+        cache.get(B, renderer("bbbb"));
+        cache.get(C, renderer("cccc"));
+
+        // when: 被淘汰后再次访问，复用仍在读取的文件
+        val a = cache.get(A, target -> {
+            renders.incrementAndGet();
+            Files.writeString(target.toPath(), "aaaa");
+        });
+        input.close();
+
+        // then
+        assertThat(a).hasContent("aaaa");
+        assertThat(renders).hasValue(0);
+    }
+
+    @Test
+    void concurrent_requests_should_render_once() throws Exception {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofMegabytes(1));
+        val renders = new AtomicInteger();
+        val started = new CountDownLatch(1);
+        val proceed = new CountDownLatch(1);
+        VariantCache.Renderer renderer = target -> {
+            renders.incrementAndGet();
+            started.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Files.writeString(target.toPath(), "aaaa");
+        };
+        val executor = Executors.newFixedThreadPool(2);
+
+        try {
+            // when
+            val first = executor.submit(() -> cache.get(A, renderer));
+            assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+            val second = executor.submit(() -> cache.get(A, renderer));
+            Thread.sleep(100);
+            proceed.countDown();
+
+            // then
+            assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo(first.get(5, TimeUnit.SECONDS)).hasContent("aaaa");
+            assertThat(renders).hasValue(1);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failed_render_should_not_be_cached() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofMegabytes(1));
+
+        // when
+        assertThatThrownBy(() -> cache.get(A, target -> {
+            Files.writeString(target.toPath(), "aa");
+            throw new IOException("Cannot render");
+        })).isInstanceOf(IOException.class).hasMessage("Cannot render");
+
+        // then
+        assertThat(cache.size()).isZero();
+        try (val files = Files.list(dir.resolve("aa"))) {
+            assertThat(files).isEmpty();
+        }
+        assertThat(cache.get(A, renderer("aaaa"))).hasContent("aaaa");
+    }
+
+    @Test
+    void existing_variants_should_be_indexed_on_restart() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofMegabytes(1));
+        cache.get(A, renderer("aaaa"));
+        val stale = Files.writeString(dir.resolve("aa").resolve(A + "123.tmp"), "a");
+
+        // when
+        val restarted = new VariantCache(dir, DataSize.ofMegabytes(1));
+
+        // then
+        assertThat(restarted.size()).isEqualTo(1);
+        assertThat(restarted.get(A, target -> {
+            throw new IOException("Should not render");
+        })).hasContent("aaaa");
+        assertThat(stale).doesNotExist();
+    }
+
+    @Test
+    void invalid_key_should_be_rejected() throws IOException {
+        // given
+        val cache = new VariantCache(dir, DataSize.ofMegabytes(1));
+
+        // then
+        assertThatThrownBy(() -> cache.get("../a", renderer("a"))).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private File file(String key) {
+        return dir.resolve(key.substring(0, 2)).resolve(key).toFile();
+    }
+
+    private static VariantCache.Renderer renderer(String content) {
+        return target -> Files.writeString(target.toPath(), content);
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.apzda.cloud.oss.variant;
+
+import com.apzda.cloud.oss.config.OssServiceProperties;
+import com.apzda.cloud.oss.exception.FileSizeNotAllowedException;
+import com.apzda.cloud.oss.file.IOssFile;
+import com.apzda.cloud.oss.proto.FileInfo;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.web.servlet.function.ServerRequest;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class VariantServiceTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void request_without_variant_params_should_be_ignored() throws IOException {
+        // given
+        val service = service(new OssServiceProperties.VariantConfig());
+
+        // then
+        assertThat(service.variant(request(Map.of()), stat("png"))).isNull();
+        assertThat(service.variant(request(Map.of("w", "100")), stat("txt"))).isNull();
+    }
+
+    @Test
+    void dimensions_should_be_snapped_up_to_allowed_sizes() throws IOException {
+        // given
+        val service = service(new OssServiceProperties.VariantConfig());
+        val stat = stat("png");
+
+        // when
+        val small = service.variant(request(Map.of("w", "100")), stat);
+        val same = service.variant(request(Map.of("w", "120")), stat);
+        val large = service.variant(request(Map.of("w", "3000", "h", "4096")), stat);
+        val heightOnly = service.variant(request(Map.of("h", "1")), stat);
+
+        // then
+        assertThat(small.width()).isEqualTo(128);
+        assertThat(small.height()).isZero();
+        assertThat(same.key()).isEqualTo(small.key());
+        assertThat(large.width()).isEqualTo(4096);
+        assertThat(large.height()).isEqualTo(4096);
+        assertThat(heightOnly.width()).isZero();
+        assertThat(heightOnly.height()).isEqualTo(64);
+    }
+
+    @Test
+    void dimensions_above_the_largest_size_should_be_snapped_down() throws IOException {
+        // given
+        val config = new OssServiceProperties.VariantConfig();
+        config.setSizes(List.of(100, 200));
+        val service = service(config);
+
+        // when
+        val variant = service.variant(request(Map.of("w", "300")), stat("png"));
+
+        // then
+        assertThat(variant.width()).isEqualTo(200);
+    }
+
+    @Test
+    void invalid_dimensions_should_be_rejected() throws IOException {
+        // given
+        val service = service(new OssServiceProperties.VariantConfig());
+        val stat = stat("png");
+
+        // then
+        assertThatThrownBy(() -> service.variant(request(Map.of("w", "4097")), stat))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.variant(request(Map.of("h", "-1")), stat))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.variant(request(Map.of("w", "abc")), stat))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void jpeg_quality_should_be_snapped_to_the_nearest_allowed_value() throws IOException {
+        // given
+        val service = service(new OssServiceProperties.VariantConfig());
+        val stat = stat("jpg");
+
+        // when
+        val low = service.variant(request(Map.of("q", "60")), stat);
+        val high = service.variant(request(Map.of("q", "99")), stat);
+        val defaults = service.variant(request(Map.of("w", "64")), stat);
+        val png = service.variant(request(Map.of("q", "60", "fm", "png")), stat);
+
+        // then
+        assertThat(low.quality()).isEqualTo(50);
+        assertThat(high.quality()).isEqualTo(95);
+        assertThat(defaults.quality()).isEqualTo(85);
+        assertThat(png.format()).isEqualTo("png");
+        assertThat(png.quality()).isZero();
+        assertThatThrownBy(() -> service.variant(request(Map.of("q", "0")), stat))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> service.variant(request(Map.of("q", "101")), stat))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void format_should_default_to_the_source_or_the_first_allowed_format() throws IOException {
+        // given
+        val service = service(new OssServiceProperties.VariantConfig());
+
+        // then
+        assertThat(service.variant(request(Map.of("w", "64")), stat("png")).format()).isEqualTo("png");
+        assertThat(service.variant(request(Map.of("w", "64")), stat("bmp")).format()).isEqualTo("jpg");
+        assertThat(service.variant(request(Map.of("fm", "PNG")), stat("jpg")).format()).isEqualTo("png");
+        assertThatThrownBy(() -> service.variant(request(Map.of("fm", "gif")), stat("png")))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void image_should_be_scaled_within_the_variant_size() throws IOException {
+        // given
+        val service = service(new OssServiceProperties.VariantConfig());
+        val stat = stat("png");
+        val source = image(300, 200);
+        val variant = service.variant(request(Map.of("w", "64")), stat);
+
+        // when
+        val file = service.render(ossFile(source), stat, variant);
+
+        // then
+        val image = ImageIO.read(file.getLocalFile());
+        assertThat(image.getWidth()).isEqualTo(64);
+        assertThat(image.getHeight()).isEqualTo(43);
+        assertThat(file.stat().getFileId()).isEqualTo(variant.key());
+        assertThat(file.stat().getContentType()).isEqualTo("image/png");
+    }
+
+    @Test
+    void oversized_source_should_not_be_decoded() throws IOException {
+        // given
+        val config = new OssServiceProperties.VariantConfig();
+        config.setMaxSourcePixels(300 * 200 - 1);
+        val service = service(config);
+        val stat = stat("png");
+        val variant = service.variant(request(Map.of("w", "64")), stat);
+        val source = ossFile(image(300, 200));
+
+        // then
+        assertThatThrownBy(() -> service.render(source, stat, variant))
+            .isInstanceOf(FileSizeNotAllowedException.class);
+    }
+
+    private VariantService service(OssServiceProperties.VariantConfig config) throws IOException {
+        return new VariantService(config, dir.resolve("variants"));
+    }
+
+    private File image(int width, int height) throws IOException {
+        val file = dir.resolve("source.png").toFile();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", file);
+        return file;
+    }
+
+    private static IOssFile ossFile(File file) throws IOException {
+        val ossFile = mock(IOssFile.class);
+        when(ossFile.getInputStream()).thenAnswer(invocation -> new FileInputStream(file));
+        return ossFile;
+    }
+
+    private static ServerRequest request(Map<String, String> params) {
+        val request = mock(ServerRequest.class);
+        params.forEach((name, value) -> when(request.param(name)).thenReturn(Optional.of(value)));
+        return request;
+    }
+
+    private static FileInfo stat(String ext) {
+        return FileInfo.newBuilder()
+            .setPath("/test/a." + ext)
+            .setFilename("a." + ext)
+            .setExt(ext)
+            .setFileId("a")
+            .setLength(100)
+            .setContentType("image/" + ext)
+            .build();
+    }
+
+}
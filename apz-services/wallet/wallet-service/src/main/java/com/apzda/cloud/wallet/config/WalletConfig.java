@@ -17,6 +17,8 @@
 package com.apzda.cloud.wallet.config;
 
 import com.apzda.cloud.gsvc.mybatis.MybatisCustomizer;
+import com.apzda.cloud.wallet.domain.entity.BlockHasher;
+import com.google.common.util.concurrent.Striped;
 import lombok.val;
 import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.beans.BeansException;
@@ -28,6 +30,7 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.lang.NonNull;
 
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -73,6 +76,19 @@ public class WalletConfig implements ApplicationContextAware {
         return currencyConfig;
     }
 
+    @NonNull
+    public static BlockHasher.Algorithm getBlockAlgorithm() {
+        if (properties == null) {
+            return BlockHasher.Algorithm.MD5;
+        }
+        return properties.getBlockAlgorithm();
+    }
+
+    @Bean
+    Striped<Lock> walletLocks(WalletProperties properties) {
+        return Striped.lazyWeakLock(properties.getLockStripes());
+    }
+
     @Bean
     MybatisCustomizer mybatisCustomizer() {
         return new MybatisCustomizer() {
@@ -86,6 +102,7 @@ public class WalletConfig implements ApplicationContextAware {
                 tables.add("wallet");
                 tables.add("wallet_transaction");
                 tables.add("wallet_outlay_log");
+                tables.add("wallet_outlay_log_archive");
             }
         };
     }
@@ -16,6 +16,7 @@
  */
 package com.apzda.cloud.wallet.config;
 
+import com.apzda.cloud.wallet.domain.entity.BlockHasher;
 import com.apzda.cloud.wallet.error.WalletError;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotEmpty;
@@ -25,6 +26,7 @@ import lombok.val;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.lang.NonNull;
 
+import java.time.Duration;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -41,6 +43,45 @@ public class WalletProperties {
 
     private String format = "#";
 
+    /**
+     * 钱包锁分段数，同一钱包的操作使用同一把锁，不同钱包的操作可并行执行
+     */
+    @Min(value = 1)
+    private int lockStripes = 256;
+
+    /**
+     * 变更日志链头缓存的最大钱包数
+     */
+    @Min(value = 0)
+    private long headCacheSize = 100000;
+
+    /**
+     * 钱包余额读缓存的最大钱包数
+     */
+    @Min(value = 0)
+    private long walletCacheSize = 100000;
+
+    /**
+     * 钱包余额读缓存的有效期，即其它节点上的交易及绕过钱包服务的数据修改最迟多久可见，0表示不过期
+     */
+    private Duration walletCacheTtl = Duration.ofSeconds(30);
+
+    /**
+     * 新区块使用的算法，已有区块按其版本标记校验
+     */
+    @NotNull
+    private BlockHasher.Algorithm blockAlgorithm = BlockHasher.Algorithm.MD5;
+
+    /**
+     * 过期收入回收任务
+     */
+    private final ExpireConfig expire = new ExpireConfig();
+
+    /**
+     * 变更日志链审计
+     */
+    private final AuditConfig audit = new AuditConfig();
+
     @Data
     public static final class CurrencyConfig {
 
@@ -151,4 +192,75 @@ public class WalletProperties {
 
     }
 
+    @Data
+    public static final class ExpireConfig {
+
+        /**
+         * 是否启用过期收入回收任务
+         */
+        private boolean enabled = false;
+
+        /**
+         * 首次执行延迟
+         */
+        private Duration delay = Duration.ofMinutes(1);
+
+        /**
+         * 执行间隔
+         */
+        private Duration period = Duration.ofMinutes(5);
+
+        /**
+         * 每次扫描的钱包数
+         */
+        @Min(value = 1)
+        private int walletBatch = 100;
+
+        /**
+         * 每个事务回收的收入记录数(钱包锁最多持有一个分片的时间)
+         */
+        @Min(value = 1)
+        private int chunkSize = 200;
+
+        /**
+         * 分区总数(一般为节点数)，按uid取模分区
+         */
+        @Min(value = 1)
+        private int partitions = 1;
+
+        /**
+         * 当前节点负责的分区，取值[0, partitions)
+         */
+        @Min(value = 0)
+        private int partition = 0;
+
+        /**
+         * 是否归档已用完或已过期的收入及其支出日志，保持支出日志表只包含可用的收入
+         */
+        private boolean archive = true;
+
+    }
+
+    @Data
+    public static final class AuditConfig {
+
+        /**
+         * 并行审计的钱包数，小于1时使用CPU核数; 每个钱包占用一个连接，不超过连接池大小的一半
+         */
+        private int parallelism = 0;
+
+        /**
+         * 每批审计的钱包数，每批完成后保存检查点
+         */
+        @Min(value = 1)
+        private int pageSize = 500;
+
+        /**
+         * 日志中输出的断链数，超出后只计数. 检查点中只保留第一条断链
+         */
+        @Min(value = 1)
+        private int maxBroken = 100;
+
+    }
+
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.wallet.domain.entity;
+
+import com.baomidou.mybatisplus.annotation.*;
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * 变更日志链审计检查点.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Data
+@TableName("wallet_audit_checkpoint")
+public class AuditCheckpoint implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 3902311624375880172L;
+
+    @TableId(type = IdType.INPUT)
+    private String name;
+
+    @TableField(fill = FieldFill.INSERT)
+    private Long createdAt;
+
+    @TableField(fill = FieldFill.INSERT)
+    private String createdBy;
+
+    @TableField(fill = FieldFill.INSERT_UPDATE)
+    private Long updatedAt;
+
+    @TableField(fill = FieldFill.INSERT_UPDATE)
+    private String updatedBy;
+
+    /**
+     * 最后一个审计完成的钱包ID
+     */
+    @NotNull
+    private Long lastWalletId;
+
+    /**
+     * 已审计的钱包数
+     */
+    @NotNull
+    private Long wallets;
+
+    /**
+     * 已审计的日志数
+     */
+    @NotNull
+    private Long logs;
+
+    /**
+     * 断链的钱包数
+     */
+    @NotNull
+    private Long broken;
+
+    /**
+     * 累计耗时(毫秒)
+     */
+    @NotNull
+    private Long elapsed;
+
+    /**
+     * 是否已完成
+     */
+    private boolean finished;
+
+    /**
+     * 第一个断链的钱包
+     */
+    private Long brokenUid;
+
+    private String brokenCurrency;
+
+    /**
+     * 第一个断链的日志ID
+     */
+    private Long brokenLogId;
+
+    private String brokenReason;
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.wallet.domain.entity;
+
+import lombok.Getter;
+import lombok.val;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 变更日志区块计算器. 直接将各字段的UTF-8编码写入可复用的MessageDigest，不生成中间字符串.
+ * 每个线程为每种算法持有一个实例.
+ * <p>
+ * 不同算法生成的区块使用不同的前缀(版本标记)，校验时根据区块前缀选择算法，因此切换算法后旧的日志链依然可以校验.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+public final class BlockHasher {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final ThreadLocal<BlockHasher[]> HASHERS = ThreadLocal
+        .withInitial(() -> new BlockHasher[Algorithm.values().length]);
+
+    private final Algorithm algorithm;
+
+    private final MessageDigest digest;
+
+    private final byte[] buffer = new byte[512];
+
+    private final byte[] hash;
+
+    private final char[] chars;
+
+    private int pos;
+
+    private BlockHasher(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        try {
+            this.digest = MessageDigest.getInstance(algorithm.getJcaName());
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Digest algorithm " + algorithm.getJcaName() + " is not supported", e);
+        }
+        this.hash = new byte[digest.getDigestLength()];
+        this.chars = new char[algorithm.getPrefix().length() + hash.length * 2];
+        algorithm.getPrefix().getChars(0, algorithm.getPrefix().length(), chars, 0);
+    }
+
+    /**
+     * 使用指定算法计算区块.
+     */
+    @NonNull
+    public static String hash(@NonNull ChangeLog changeLog, @NonNull String preBlock, @NonNull Algorithm algorithm) {
+        val hashers = HASHERS.get();
+        var hasher = hashers[algorithm.ordinal()];
+        if (hasher == null) {
+            hasher = new BlockHasher(algorithm);
+            hashers[algorithm.ordinal()] = hasher;
+        }
+        return hasher.digest(changeLog, preBlock);
+    }
+
+    /**
+     * 根据区块的版本标记识别生成它的算法.
+     */
+    @NonNull
+    public static Algorithm algorithmOf(@Nullable String block) {
+        if (block != null) {
+            for (val algorithm : Algorithm.values()) {
+                val prefix = algorithm.getPrefix();
+                if (!prefix.isEmpty() && block.startsWith(prefix)) {
+                    return algorithm;
+                }
+            }
+        }
+        return Algorithm.MD5;
+    }
+
+    private String digest(ChangeLog changeLog, String preBlock) {
+        digest.reset();
+        pos = 0;
+        // @formatter:off
+        put(preBlock).comma()
+            .put(changeLog.getCreatedAt()).comma()
+            .put(changeLog.getCreatedBy()).comma()
+            .put(changeLog.getUpdatedAt()).comma()
+            .put(changeLog.getUpdatedBy()).comma()
+            .put(changeLog.getUid()).comma()
+            .put(changeLog.getCurrency()).comma()
+            .put(changeLog.getTransactionId()).comma()
+            .put(changeLog.isOutlay()).comma()
+            .put(changeLog.isNeedFrozen()).comma()
+            .put(changeLog.isWithdrawAble()).comma()
+            .put(changeLog.getBiz()).comma()
+            .put(changeLog.getBizSubject()).comma()
+            .put(changeLog.getBizId()).comma()
+            .put(changeLog.getAmount()).comma()
+            .put(changeLog.getPreBalance()).comma()
+            .put(changeLog.getBalance()).comma()
+            .put(changeLog.getPreFrozen()).comma()
+            .put(changeLog.getFrozen()).comma()
+            .put(changeLog.getExpiredAt()).comma()
+            .put(changeLog.getParentId()).comma()
+            .put(changeLog.getIp());
+        // @formatter:on
+        digest.update(buffer, 0, pos);
+        try {
+            digest.digest(hash, 0, hash.length);
+        }
+        catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return algorithm.isBase64() ? base64() : hex();
+    }
+
+    private String hex() {
+        int i = algorithm.getPrefix().length();
+        for (byte b : hash) {
+            chars[i++] = HEX[(b >> 4) & 0x0f];
+            chars[i++] = HEX[b & 0x0f];
+        }
+        return new String(chars, 0, i);
+    }
+
+    private String base64() {
+        // url-safe, 无填充
+        int i = algorithm.getPrefix().length();
+        int j = 0;
+        while (j + 3 <= hash.length) {
+            val n = (hash[j++] & 0xff) << 16 | (hash[j++] & 0xff) << 8 | (hash[j++] & 0xff);
+            chars[i++] = BASE64[(n >>> 18) & 0x3f];
+            chars[i++] = BASE64[(n >>> 12) & 0x3f];
+            chars[i++] = BASE64[(n >>> 6) & 0x3f];
+            chars[i++] = BASE64[n & 0x3f];
+        }
+        val remain = hash.length - j;
+        if (remain > 0) {
+            val n = (hash[j] & 0xff) << 16 | (remain == 2 ? (hash[j + 1] & 0xff) << 8 : 0);
+            chars[i++] = BASE64[(n >>> 18) & 0x3f];
+            chars[i++] = BASE64[(n >>> 12) & 0x3f];
+            if (remain == 2) {
+                chars[i++] = BASE64[(n >>> 6) & 0x3f];
+            }
+        }
+        return new String(chars, 0, i);
+    }
+
+    private void ensure(int size) {
+        if (pos + size > buffer.length) {
+            digest.update(buffer, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private BlockHasher comma() {
+        ensure(1);
+        buffer[pos++] = ',';
+        return this;
+    }
+
+    private BlockHasher put(boolean value) {
+        return putAscii(value ? "true" : "false");
+    }
+
+    private BlockHasher put(@Nullable Long value) {
+        if (value == null) {
+            return putAscii("null");
+        }
+        long v = value;
+        if (v == Long.MIN_VALUE) {
+            return putAscii("-9223372036854775808");
+        }
+        ensure(20);
+        if (v < 0) {
+            buffer[pos++] = '-';
+            v = -v;
+        }
+        val start = pos;
+        do {
+            buffer[pos++] = (byte) ('0' + (int) (v % 10));
+            v /= 10;
+        }
+        while (v > 0);
+        for (int i = start, k = pos - 1; i < k; i++, k--) {
+            val tmp = buffer[i];
+            buffer[i] = buffer[k];
+            buffer[k] = tmp;
+        }
+        return this;
+    }
+
+    private BlockHasher putAscii(String value) {
+        val len = value.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+            buffer[pos++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    private BlockHasher put(@Nullable String value) {
+        if (value == null) {
+            return putAscii("null");
+        }
+        val len = value.length();
+        for (int i = 0; i < len; i++) {
+            ensure(4);
+            val c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xc0 | (c >> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    val cp = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[pos++] = (byte) (0xf0 | (cp >> 18));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+                }
+                else {
+                    // 与String.getBytes(UTF_8)一致，非法代理字符替换为'?'
+                    buffer[pos++] = '?';
+                }
+            }
+            else {
+                buffer[pos++] = (byte) (0xe0 | (c >> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    @Getter
+    public enum Algorithm {
+
+        /**
+         * 原有算法: MD5, 32位十六进制, 无版本标记
+         */
+        MD5("MD5", "", false),
+        /**
+         * SHA-256, 43位base64url(无填充), 版本标记为"2:"
+         */
+        SHA256("SHA-256", "2:", true);
+
+        private final String jcaName;
+
+        private final String prefix;
+
+        private final boolean base64;
+
+        Algorithm(String jcaName, String prefix, boolean base64) {
+            this.jcaName = jcaName;
+            this.prefix = prefix;
+            this.base64 = base64;
+        }
+
+    }
+
+}
@@ -16,7 +16,7 @@
  */
 package com.apzda.cloud.wallet.domain.entity;
 
-import cn.hutool.crypto.digest.MD5;
+import com.apzda.cloud.wallet.config.WalletConfig;
 import com.baomidou.mybatisplus.annotation.*;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
@@ -41,6 +41,8 @@ public class ChangeLog implements Serializable {
     @Serial
     private static final long serialVersionUID = -5787777442476314765L;
 
+    public static final String GENESIS_BLOCK = "00000000000000000000000000000000";
+
     @TableId(type = IdType.AUTO)
     private Long id;
 
@@ -115,7 +117,7 @@ public class ChangeLog implements Serializable {
 
     public static ChangeLog init(Wallet wallet) {
         val changelog = new ChangeLog();
-        if (!wallet.getBlock().equals("00000000000000000000000000000000")) {
+        if (!wallet.getBlock().equals(GENESIS_BLOCK)) {
             throw new IllegalStateException("The wallet(uid: " + wallet.getUid() + ", currency: " + wallet.getCurrency()
                     + ") had been initialized, Cannot initialize it again!");
         }
@@ -143,35 +145,43 @@ public class ChangeLog implements Serializable {
         return changelog;
     }
 
+    /**
+     * 重新计算已入库日志的区块，算法由日志区块的版本标记决定.
+     * 创建/更新信息在入库时才填充，生成区块时为null(初始化日志除外).
+     */
+    public static String replayBlock(ChangeLog changeLog, String preBlock) {
+        val algorithm = BlockHasher.algorithmOf(changeLog.block);
+        if ("init".equals(changeLog.biz)) {
+            return genBlock(changeLog, preBlock, algorithm);
+        }
+        val createdAt = changeLog.createdAt;
+        val createdBy = changeLog.createdBy;
+        val updatedAt = changeLog.updatedAt;
+        val updatedBy = changeLog.updatedBy;
+        changeLog.createdAt = null;
+        changeLog.createdBy = null;
+        changeLog.updatedAt = null;
+        changeLog.updatedBy = null;
+        try {
+            return genBlock(changeLog, preBlock, algorithm);
+        }
+        finally {
+            changeLog.createdAt = createdAt;
+            changeLog.createdBy = createdBy;
+            changeLog.updatedAt = updatedAt;
+            changeLog.updatedBy = updatedBy;
+        }
+    }
+
     public static String genBlock(ChangeLog changeLog, String preBlock) {
-        // @formatter:off
-        val blockStr = preBlock + ","
-            + changeLog.createdAt+ ","
-            + changeLog.createdBy + ","
-            + changeLog.updatedAt+ ","
-            + changeLog.updatedBy + ","
-            + changeLog.uid + ","
-            + changeLog.currency + ","
-            + changeLog.transactionId+","
-            + changeLog.outlay + ","
-            + changeLog.needFrozen + ","
-            + changeLog.withdrawAble + ","
-            + changeLog.biz + ","
-            + changeLog.bizSubject + ","
-            + changeLog.bizId + ","
-            + changeLog.amount+","
-            + changeLog.preBalance+","
-            + changeLog.balance+","
-            + changeLog.preFrozen+","
-            + changeLog.frozen+","
-            + changeLog.expiredAt+","
-            + changeLog.parentId+","
-            + changeLog.ip;
-        // @formatter:on
-
-        val block = MD5.create().digestHex(blockStr);
-
-        log.debug("Generated change log block({}): [{}]", block, blockStr);
+        return genBlock(changeLog, preBlock, WalletConfig.getBlockAlgorithm());
+    }
+
+    public static String genBlock(ChangeLog changeLog, String preBlock, BlockHasher.Algorithm algorithm) {
+        val block = BlockHasher.hash(changeLog, preBlock, algorithm);
+
+        log.debug("Generated change log block({}): parent({}), transaction({})", block, changeLog.parentId,
+                changeLog.transactionId);
 
         return block;
     }
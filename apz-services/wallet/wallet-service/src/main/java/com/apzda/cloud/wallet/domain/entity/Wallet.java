@@ -90,6 +90,12 @@ public class Wallet implements Serializable {
 
     private String block;
 
+    /**
+     * 非锁定读取时的版本号(最后一条变更日志的ID)
+     */
+    @TableField(exist = false)
+    private Long version;
+
     public boolean isExpireAble() {
         val config = WalletConfig.getCurrencyConfig(currency);
         return config.isEnabledExpire();
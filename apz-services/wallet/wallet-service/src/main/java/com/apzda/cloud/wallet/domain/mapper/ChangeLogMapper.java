@@ -17,7 +17,13 @@
 package com.apzda.cloud.wallet.domain.mapper;
 
 import com.apzda.cloud.wallet.domain.entity.ChangeLog;
+import com.baomidou.mybatisplus.annotation.InterceptorIgnore;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.mapping.ResultSetType;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -26,4 +32,13 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  **/
 public interface ChangeLogMapper extends BaseMapper<ChangeLog> {
 
+    /**
+     * 按ID顺序流式读取钱包的全部变更日志. 审计在后台线程中跨租户执行，不附加租户条件.
+     */
+    @InterceptorIgnore(tenantLine = "true")
+    @Select("SELECT * FROM wallet_change_log WHERE uid = #{uid} AND currency = #{currency} AND id <= #{maxId} ORDER BY id ASC")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = 1000)
+    Cursor<ChangeLog> streamByWallet(@Param("uid") long uid, @Param("currency") String currency,
+            @Param("maxId") long maxId);
+
 }
@@ -18,6 +18,16 @@ package com.apzda.cloud.wallet.domain.mapper;
 
 import com.apzda.cloud.wallet.domain.entity.Outlay;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Options;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.cursor.Cursor;
+import org.apache.ibatis.mapping.ResultSetType;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -26,4 +36,43 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  **/
 public interface OutlayMapper extends BaseMapper<Outlay> {
 
+    /**
+     * 按过期时间先后顺序流式读取可用收入. 当JDBC连接开启useCursorFetch时，每次只从服务端拉取fetchSize条记录.
+     */
+    @Select("SELECT * FROM wallet_outlay_log WHERE deleted = 0 AND uid = #{uid} AND currency = #{currency} AND balance > 0 AND expired_at >= #{now} ORDER BY expired_at ASC, id ASC")
+    @Options(resultSetType = ResultSetType.FORWARD_ONLY, fetchSize = 100)
+    Cursor<Outlay> availableIncomes(@Param("uid") long uid, @Param("currency") String currency,
+            @Param("now") long now);
+
+    /**
+     * 查询指定分区内有过期收入的钱包(仅uid与currency有值). 只扫描收入记录，已回收的收入会被归档.
+     */
+    @Select("SELECT DISTINCT uid, currency FROM wallet_outlay_log WHERE deleted = 0 AND outlay_transaction_id = 0 AND balance > 0 AND expired_at < #{now} AND MOD(uid, #{partitions}) = #{partition} LIMIT #{limit}")
+    List<Outlay> expiredWallets(@Param("now") long now, @Param("partitions") int partitions,
+            @Param("partition") int partition, @Param("limit") int limit);
+
+    @Select("SELECT * FROM wallet_outlay_log WHERE deleted = 0 AND uid = #{uid} AND currency = #{currency} AND outlay_transaction_id = 0 AND balance > 0 AND expired_at < #{now} ORDER BY expired_at ASC, id ASC LIMIT #{limit}")
+    List<Outlay> expiredIncomes(@Param("uid") long uid, @Param("currency") String currency, @Param("now") long now,
+            @Param("limit") int limit);
+
+    /**
+     * 查询指定分区内已用完或已过期(余额为0)的收入(仅uid、currency与transactionId有值).
+     */
+    @Select("SELECT uid, currency, transaction_id FROM wallet_outlay_log WHERE outlay_transaction_id = 0 AND balance = 0 AND MOD(uid, #{partitions}) = #{partition} LIMIT #{limit}")
+    List<Outlay> consumedIncomes(@Param("partitions") int partitions, @Param("partition") int partition,
+            @Param("limit") int limit);
+
+    /**
+     * 将收入及其支出日志复制到归档表.
+     */
+    @Insert("<script>INSERT INTO wallet_outlay_log_archive SELECT * FROM wallet_outlay_log WHERE uid = #{uid} AND currency = #{currency} AND transaction_id IN <foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    int archive(@Param("uid") long uid, @Param("currency") String currency, @Param("ids") Collection<Long> ids);
+
+    /**
+     * 物理删除已归档的收入及其支出日志.
+     */
+    @Delete("<script>DELETE FROM wallet_outlay_log WHERE uid = #{uid} AND currency = #{currency} AND transaction_id IN <foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach></script>")
+    int removeArchived(@Param("uid") long uid, @Param("currency") String currency,
+            @Param("ids") Collection<Long> ids);
+
 }
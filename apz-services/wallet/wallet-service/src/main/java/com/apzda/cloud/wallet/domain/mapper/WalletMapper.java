@@ -18,9 +18,12 @@ package com.apzda.cloud.wallet.domain.mapper;
 
 import com.apzda.cloud.wallet.domain.entity.Wallet;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
+
 /**
  * @author fengz (windywany@gmail.com)
  * @version 1.0.0
@@ -32,4 +35,13 @@ public interface WalletMapper extends BaseMapper<Wallet> {
     @Select("SELECT * FROM wallet WHERE deleted = 0 AND uid = #{uid} AND currency = #{currency} FOR UPDATE")
     Wallet openWallet(Long uid, String currency);
 
+    /**
+     * 非锁定读取钱包，同一语句读取最后一条变更日志的ID作为版本号以保证两者一致.
+     */
+    @Select("SELECT w.*, (SELECT MAX(l.id) FROM wallet_change_log l WHERE l.uid = w.uid AND l.currency = w.currency) AS version FROM wallet w WHERE w.deleted = 0 AND w.uid = #{uid} AND w.currency = #{currency}")
+    Wallet readWallet(@Param("uid") Long uid, @Param("currency") String currency);
+
+    @Select("SELECT * FROM wallet WHERE deleted = 0 AND id > #{id} ORDER BY id ASC LIMIT #{limit}")
+    List<Wallet> listAfter(@Param("id") long id, @Param("limit") int limit);
+
 }
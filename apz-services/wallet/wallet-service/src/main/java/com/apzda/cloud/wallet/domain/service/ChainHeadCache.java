@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.wallet.domain.service;
+
+import com.apzda.cloud.wallet.config.WalletProperties;
+import com.apzda.cloud.wallet.domain.entity.ChangeLog;
+import com.apzda.cloud.wallet.domain.entity.Wallet;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.val;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 钱包变更日志链头缓存. 只有当缓存的区块与已锁定钱包的区块一致时才使用缓存，
+ * 否则回退到数据库查询.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Component
+public class ChainHeadCache {
+
+    private final Cache<String, ChainHead> cache;
+
+    public ChainHeadCache(WalletProperties properties) {
+        this.cache = CacheBuilder.newBuilder().maximumSize(properties.getHeadCacheSize()).build();
+    }
+
+    /**
+     * 获取与钱包区块匹配的链头.
+     * @param wallet 已锁定的钱包
+     * @return 链头日志(仅包含id,block,balance,frozen), 不匹配时返回null
+     */
+    @Nullable
+    public ChangeLog get(@NonNull Wallet wallet) {
+        val key = WalletService.walletKey(wallet.getUid(), wallet.getCurrency());
+        val head = cache.getIfPresent(key);
+        if (head == null || !head.block().equals(wallet.getBlock())) {
+            return null;
+        }
+        val changeLog = new ChangeLog();
+        changeLog.setId(head.id());
+        changeLog.setUid(wallet.getUid());
+        changeLog.setCurrency(wallet.getCurrency());
+        changeLog.setBlock(head.block());
+        changeLog.setBalance(head.balance());
+        changeLog.setFrozen(head.frozen());
+        return changeLog;
+    }
+
+    /**
+     * 从数据库加载的链头可以直接缓存.
+     */
+    public void put(@NonNull ChangeLog changeLog) {
+        cache.put(WalletService.walletKey(changeLog.getUid(), changeLog.getCurrency()),
+                new ChainHead(changeLog.getId(), changeLog.getBlock(), changeLog.getBalance(), changeLog.getFrozen()));
+    }
+
+    /**
+     * 新写入的链头在事务提交后缓存，事务回滚时失效.
+     */
+    public void update(@NonNull ChangeLog changeLog) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            put(changeLog);
+            return;
+        }
+        val key = WalletService.walletKey(changeLog.getUid(), changeLog.getCurrency());
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                put(changeLog);
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    cache.invalidate(key);
+                }
+            }
+        });
+    }
+
+    public void invalidate(@NonNull Long uid, @NonNull String currency) {
+        cache.invalidate(WalletService.walletKey(uid, currency));
+    }
+
+    private record ChainHead(Long id, String block, Long balance, Long frozen) {
+    }
+
+}
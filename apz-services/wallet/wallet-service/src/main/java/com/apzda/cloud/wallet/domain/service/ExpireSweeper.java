@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.wallet.domain.service;
+
+import cn.hutool.core.date.DateUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import com.apzda.cloud.wallet.config.WalletProperties;
+import com.apzda.cloud.wallet.domain.entity.Outlay;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 过期收入回收任务. 按uid取模将钱包分区到各节点，每个事务只回收一个分片的过期收入，
+ * 因此钱包锁最多持有一个分片的时间. 回收后将已用完或已过期的收入及其支出日志归档，
+ * 支出日志表只保留可用的收入，扫描过期收入时不会再扫到已处理的记录.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Service
+@Slf4j
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "apzda.cloud.wallet.expire", name = "enabled", havingValue = "true")
+public class ExpireSweeper implements InitializingBean, Runnable {
+
+    private final WalletProperties properties;
+
+    private final WalletService walletService;
+
+    private final OutlayService outlayService;
+
+    private ScheduledExecutorService executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        val config = properties.getExpire();
+        if (config.getPartition() >= config.getPartitions()) {
+            throw new IllegalStateException("apzda.cloud.wallet.expire.partition must be less than partitions");
+        }
+
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            val thread = new Thread(r);
+            thread.setName("wallet-expire-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        val delay = config.getDelay().toSeconds();
+        val period = config.getPeriod().toSeconds();
+        executor.scheduleWithFixedDelay(this, delay > 0 ? delay : 60, period > 0 ? period : 300, TimeUnit.SECONDS);
+        log.info("Wallet expire sweeper init: partition={}/{}, delay={}, period={}", config.getPartition(),
+                config.getPartitions(), delay, period);
+    }
+
+    @Override
+    public void run() {
+        try {
+            sweep();
+        }
+        catch (Exception e) {
+            log.warn("Wallet expire sweeper failed: {}", ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+        }
+    }
+
+    /**
+     * 回收当前分区内所有钱包的过期收入.
+     * @return 回收的收入记录数
+     */
+    public long sweep() {
+        val config = properties.getExpire();
+        val now = DateUtil.current();
+        val chunkSize = config.getChunkSize();
+        long total = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            val wallets = outlayService.expiredWallets(now, config.getPartitions(), config.getPartition(),
+                    config.getWalletBatch());
+            long swept = 0;
+            for (val wallet : wallets) {
+                val uid = wallet.getUid();
+                val currency = wallet.getCurrency();
+                try {
+                    int expired;
+                    do {
+                        // 每个分片一个事务
+                        expired = walletService.expire(uid, currency, now, chunkSize);
+                        swept += expired;
+                    }
+                    while (expired >= chunkSize);
+                }
+                catch (Exception e) {
+                    log.warn("Cannot expire incomes of wallet(uid: {}, currency: {}): {}", uid, currency,
+                            ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+                }
+            }
+            total += swept;
+            if (swept == 0) {
+                // 没有可回收的或剩余的都是回收失败的钱包，等待下次执行
+                break;
+            }
+        }
+
+        if (total > 0) {
+            log.info("Wallet expire sweeper expired {} incomes in partition {}/{}", total, config.getPartition(),
+                    config.getPartitions());
+        }
+        if (config.isArchive()) {
+            archive();
+        }
+        return total;
+    }
+
+    /**
+     * 归档当前分区内已用完或已过期的收入及其支出日志，每个钱包的一个分片一个事务.
+     * @return 归档的记录数
+     */
+    public long archive() {
+        val config = properties.getExpire();
+        val chunkSize = config.getChunkSize();
+        long total = 0;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            val incomes = outlayService.consumedIncomes(config.getPartitions(), config.getPartition(), chunkSize);
+            val wallets = new LinkedHashMap<String, List<Outlay>>();
+            for (val income : incomes) {
+                wallets.computeIfAbsent(income.getUid() + "@" + income.getCurrency(), k -> new ArrayList<>())
+                    .add(income);
+            }
+            long archived = 0;
+            for (val chunk : wallets.values()) {
+                val uid = chunk.get(0).getUid();
+                val currency = chunk.get(0).getCurrency();
+                try {
+                    archived += outlayService.archive(uid, currency,
+                            chunk.stream().map(Outlay::getTransactionId).toList());
+                }
+                catch (Exception e) {
+                    log.warn("Cannot archive incomes of wallet(uid: {}, currency: {}): {}", uid, currency,
+                            ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+                }
+            }
+            total += archived;
+            if (archived == 0 || incomes.size() < chunkSize) {
+                break;
+            }
+        }
+
+        if (total > 0) {
+            log.info("Wallet expire sweeper archived {} outlay logs in partition {}/{}", total,
+                    config.getPartition(), config.getPartitions());
+        }
+        return total;
+    }
+
+    @PreDestroy
+    void stop() {
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.shutdown();
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Shutdown wallet expire sweeper timeout: 30s");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Cannot shutdown wallet expire sweeper: {}", e.getMessage());
+        }
+    }
+
+}
@@ -25,11 +25,15 @@ import com.baomidou.mybatisplus.core.toolkit.Wrappers;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
+import org.apache.ibatis.cursor.Cursor;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -43,40 +47,43 @@ public class OutlayService extends ServiceImpl<OutlayMapper, Outlay> {
 
     @Transactional
     public void newIncome(Transaction transaction) {
-        val outlay = new Outlay();
-        outlay.setUid(transaction.getUid());
-        outlay.setCurrency(transaction.getCurrency());
-        outlay.setOutlayTransactionId(0L);
-        outlay.setTransactionId(transaction.getId());
-        outlay.setAmount(0L);
-        outlay.setUseAmount(0L);
-        outlay.setIncome(transaction.getAmount());
-        outlay.setBalance(transaction.getAmount());
-        outlay.setMargin(0L);
-        outlay.setExpiredAt(transaction.getExpiredAt());
+        if (!save(newIncomeOutlay(transaction))) {
+            WalletError.OUTLAY_CANNOT_SAVE.emit(transaction.getUid(), transaction.getCurrency());
+        }
+    }
 
-        if (!save(outlay)) {
+    @Transactional
+    public void newIncomes(List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return;
+        }
+        val outlays = transactions.stream().map(OutlayService::newIncomeOutlay).toList();
+        if (!saveBatch(outlays)) {
+            val transaction = transactions.get(0);
             WalletError.OUTLAY_CANNOT_SAVE.emit(transaction.getUid(), transaction.getCurrency());
         }
     }
 
+    /**
+     * 按过期时间先后(FIFO)使用收入. 使用游标一次读取所需的收入，在内存中生成完整的使用计划后，
+     * 批量更新收入余额并批量写入支出日志.
+     * @param transaction 支出交易
+     * @return 分配统计
+     */
     @Transactional
-    public void outlay(Transaction transaction) {
+    public Allocation outlay(Transaction transaction) {
+        val start = System.nanoTime();
         var amount = transaction.getAmount();
+        if (amount <= 0) {
+            // 零金额支出不使用任何收入，也不写支出日志
+            return new Allocation(transaction.getId(), 0, 0, 0);
+        }
         val uid = transaction.getUid();
         val currency = transaction.getCurrency();
         val outs = new ArrayList<Outlay>();
         val newOutlays = new ArrayList<Outlay>();
 
-        while (amount > 0) {
-            outs.clear();
-            val incomes = availableTransactions(uid, currency);
-
-            if (incomes.isEmpty()) {
-                log.error("支出: {}, 余额不足, 差额: {}", transaction.getId(), amount);
-                WalletError.INSUFFICIENT_BALANCE.emit(uid, currency);
-            }
-
+        try (Cursor<Outlay> incomes = baseMapper.availableIncomes(uid, currency, DateUtil.current())) {
             for (Outlay income : incomes) {
                 val out = new Outlay();
                 val balance = income.getBalance();
@@ -94,38 +101,47 @@ public class OutlayService extends ServiceImpl<OutlayMapper, Outlay> {
                 newOutlays.add(out);
 
                 if (balance >= amount) {
-                    income.setBalance(income.getBalance() - amount);
+                    income.setBalance(balance - amount);
                     out.setUseAmount(amount);
                     out.setMargin(0L);
                     amount = 0L;
                     break;
                 }
                 else {
-                    out.setUseAmount(income.getBalance());
-                    amount = amount - income.getBalance();
+                    out.setUseAmount(balance);
+                    amount = amount - balance;
                     out.setMargin(amount);
                     income.setBalance(0L);
                 }
             }
+        }
+        catch (IOException e) {
+            log.warn("支出: {}, 关闭收入游标失败: {}", transaction.getId(), e.getMessage());
+        }
 
-            if ((amount > 0 && incomes.size() <= 10)) {
-                log.error("支出: {}, 余额不足, 差额: {}", transaction.getId(), amount);
-                WalletError.INSUFFICIENT_BALANCE.emit(uid, currency);
-            }
-
-            if (!updateBatchById(outs)) {
-                WalletError.LOG_CANNOT_SAVE.emit(uid, currency);
-            }
+        if (amount > 0) {
+            log.error("支出: {}, 余额不足, 差额: {}", transaction.getId(), amount);
+            WalletError.INSUFFICIENT_BALANCE.emit(uid, currency);
         }
 
-        if (log.isDebugEnabled()) {
-            log.debug("支出:{}, 一共使用{}条收入: {}", transaction.getId(), newOutlays.size(),
-                    newOutlays.stream().map(Outlay::getTransactionId).collect(Collectors.toList()));
+        if (!outs.isEmpty() && !updateBatchById(outs)) {
+            WalletError.LOG_CANNOT_SAVE.emit(uid, currency);
         }
 
         if (!newOutlays.isEmpty() && !saveBatch(newOutlays)) {
             WalletError.LOG_CANNOT_SAVE.emit(uid, currency);
         }
+
+        val allocation = new Allocation(transaction.getId(), outs.size(), newOutlays.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (log.isDebugEnabled()) {
+            log.debug("支出:{}, 一共使用{}条收入: {}, 耗时: {}ms", transaction.getId(), allocation.incomes(),
+                    newOutlays.stream().map(Outlay::getTransactionId).collect(Collectors.toList()),
+                    allocation.elapsed());
+        }
+
+        return allocation;
     }
 
     public List<Outlay> availableTransactions(long uid, String currency) {
@@ -140,6 +156,80 @@ public class OutlayService extends ServiceImpl<OutlayMapper, Outlay> {
         return list(con);
     }
 
+    /**
+     * 回收过期收入: 将收入余额清零并记录对应的支出日志.
+     * @param transaction 系统过期交易
+     * @param incomes 过期的收入
+     */
+    @Transactional
+    public void expire(Transaction transaction, List<Outlay> incomes) {
+        val uid = transaction.getUid();
+        val currency = transaction.getCurrency();
+        val newOutlays = new ArrayList<Outlay>(incomes.size());
+        var amount = transaction.getAmount();
+
+        for (Outlay income : incomes) {
+            val balance = Math.min(amount, income.getBalance());
+            amount = amount - balance;
+
+            val out = new Outlay();
+            out.setUid(uid);
+            out.setCurrency(currency);
+            out.setTransactionId(income.getTransactionId());
+            out.setOutlayTransactionId(transaction.getId());
+            out.setIncome(0L);
+            out.setBalance(0L);
+            out.setAmount(transaction.getAmount());
+            out.setUseAmount(balance);
+            out.setMargin(amount);
+            out.setExpiredAt(income.getExpiredAt());
+            newOutlays.add(out);
+
+            income.setBalance(0L);
+        }
+
+        if (!updateBatchById(incomes)) {
+            WalletError.OUTLAY_CANNOT_SAVE.emit(uid, currency);
+        }
+
+        if (!saveBatch(newOutlays)) {
+            WalletError.OUTLAY_CANNOT_SAVE.emit(uid, currency);
+        }
+    }
+
+    public List<Outlay> expiredWallets(long now, int partitions, int partition, int limit) {
+        return baseMapper.expiredWallets(now, partitions, partition, limit);
+    }
+
+    public List<Outlay> expiredIncomes(long uid, String currency, long now, int limit) {
+        return baseMapper.expiredIncomes(uid, currency, now, limit);
+    }
+
+    public List<Outlay> consumedIncomes(int partitions, int partition, int limit) {
+        return baseMapper.consumedIncomes(partitions, partition, limit);
+    }
+
+    /**
+     * 归档已用完或已过期的收入及其支出日志: 复制到归档表后从支出日志表中物理删除. 余额为0的收入不会再被使用，
+     * 因此无需锁定钱包.
+     * @param uid 用户ID
+     * @param currency 币种
+     * @param transactionIds 收入流水号
+     * @return 归档的记录数
+     */
+    @Transactional
+    public int archive(long uid, String currency, Collection<Long> transactionIds) {
+        if (transactionIds.isEmpty()) {
+            return 0;
+        }
+        val archived = baseMapper.archive(uid, currency, transactionIds);
+        val removed = baseMapper.removeArchived(uid, currency, transactionIds);
+        if (archived != removed) {
+            WalletError.OUTLAY_CANNOT_SAVE.emit(uid, currency);
+        }
+        return removed;
+    }
+
     public List<Outlay> listByOutlayTransactionId(long transactionId) {
         val con = Wrappers.lambdaQuery(Outlay.class);
         con.eq(Outlay::getOutlayTransactionId, transactionId);
@@ -153,4 +243,30 @@ public class OutlayService extends ServiceImpl<OutlayMapper, Outlay> {
         return list(con);
     }
 
+    private static Outlay newIncomeOutlay(Transaction transaction) {
+        val outlay = new Outlay();
+        outlay.setUid(transaction.getUid());
+        outlay.setCurrency(transaction.getCurrency());
+        outlay.setOutlayTransactionId(0L);
+        outlay.setTransactionId(transaction.getId());
+        outlay.setAmount(0L);
+        outlay.setUseAmount(0L);
+        outlay.setIncome(transaction.getAmount());
+        outlay.setBalance(transaction.getAmount());
+        outlay.setMargin(0L);
+        outlay.setExpiredAt(transaction.getExpiredAt());
+        return outlay;
+    }
+
+    /**
+     * 支出分配统计.
+     *
+     * @param transactionId 支出交易ID
+     * @param incomes 更新的收入记录数
+     * @param outlays 写入的支出日志数
+     * @param elapsed 耗时(毫秒)
+     */
+    public record Allocation(long transactionId, int incomes, int outlays, long elapsed) {
+    }
+
 }
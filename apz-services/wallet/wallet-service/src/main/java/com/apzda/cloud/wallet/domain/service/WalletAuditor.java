@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.wallet.domain.service;
+
+import cn.hutool.core.exceptions.ExceptionUtil;
+import com.apzda.cloud.wallet.config.WalletProperties;
+import com.apzda.cloud.wallet.domain.entity.AuditCheckpoint;
+import com.apzda.cloud.wallet.domain.entity.ChangeLog;
+import com.apzda.cloud.wallet.domain.entity.Wallet;
+import com.apzda.cloud.wallet.domain.mapper.AuditCheckpointMapper;
+import com.apzda.cloud.wallet.domain.mapper.ChangeLogMapper;
+import com.apzda.cloud.wallet.domain.mapper.WalletMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.core.env.Environment;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 变更日志链审计. 从创世区块开始重放每个钱包的全部变更日志，钱包之间使用ForkJoin并行审计，
+ * 每个钱包的日志使用游标流式读取. 每批钱包审计完成后保存检查点，重新执行时从检查点继续.
+ * <p>
+ * 每个钱包在一个只读事务的一致性快照中读取钱包及其版本(最后一条变更日志的ID)，只校验到该版本，
+ * 审计期间发生的交易不会被误报为断链. 每个并行审计的钱包占用一个数据库连接，并行度不超过连接池的一半.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Service
+@Slf4j
+public class WalletAuditor {
+
+    public static final String CHECKPOINT = "default";
+
+    private final WalletProperties.AuditConfig config;
+
+    private final WalletMapper walletMapper;
+
+    private final ChangeLogMapper changeLogMapper;
+
+    private final AuditCheckpointMapper checkpointMapper;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ForkJoinPool pool;
+
+    private final ExecutorService runner;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    public WalletAuditor(WalletProperties properties, WalletMapper walletMapper, ChangeLogMapper changeLogMapper,
+            AuditCheckpointMapper checkpointMapper, PlatformTransactionManager transactionManager,
+            Environment environment) {
+        this.config = properties.getAudit();
+        this.walletMapper = walletMapper;
+        this.changeLogMapper = changeLogMapper;
+        this.checkpointMapper = checkpointMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+        // 检查点与业务请求也需要连接
+        val maxParallelism = Math.max(1,
+                environment.getProperty("spring.datasource.hikari.maximum-pool-size", Integer.class, 10) / 2);
+        val parallelism = config.getParallelism();
+        this.pool = new ForkJoinPool(Math.min(maxParallelism,
+                parallelism < 1 ? Runtime.getRuntime().availableProcessors() : parallelism));
+        this.runner = Executors.newSingleThreadExecutor(r -> {
+            val thread = new Thread(r);
+            thread.setName("wallet-auditor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 在后台启动审计.
+     * @param restart 是否忽略检查点重新审计
+     * @return 已有审计在运行时返回false
+     */
+    public boolean start(boolean restart) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        runner.submit(() -> {
+            try {
+                audit(restart);
+            }
+            catch (Exception e) {
+                log.error("Wallet audit failed: {}", ExceptionUtil.getSimpleMessage(ExceptionUtil.getRootCause(e)));
+            }
+            finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    @Nullable
+    public AuditCheckpoint checkpoint() {
+        return checkpointMapper.selectById(CHECKPOINT);
+    }
+
+    /**
+     * 审计全部钱包.
+     * @param restart 是否忽略检查点重新审计
+     * @return 审计检查点
+     */
+    @NonNull
+    public AuditCheckpoint audit(boolean restart) throws Exception {
+        var checkpoint = checkpoint();
+        if (checkpoint == null) {
+            checkpoint = newCheckpoint();
+            checkpointMapper.insert(checkpoint);
+        }
+        else if (restart || checkpoint.isFinished()) {
+            checkpointMapper.deleteById(CHECKPOINT);
+            checkpoint = newCheckpoint();
+            checkpointMapper.insert(checkpoint);
+        }
+        else {
+            log.info("Resume wallet audit from wallet({}), {} wallets audited", checkpoint.getLastWalletId(),
+                    checkpoint.getWallets());
+        }
+
+        val pageSize = config.getPageSize();
+        while (!Thread.currentThread().isInterrupted()) {
+            val start = System.nanoTime();
+            val wallets = walletMapper.listAfter(checkpoint.getLastWalletId(), pageSize);
+            if (wallets.isEmpty()) {
+                checkpoint.setFinished(true);
+                checkpointMapper.updateById(checkpoint);
+                break;
+            }
+
+            val results = pool.submit(() -> wallets.parallelStream().map(this::verifyInTransaction).toList()).get();
+
+            for (val result : results) {
+                checkpoint.setLogs(checkpoint.getLogs() + result.logs());
+                if (result.broken() != null) {
+                    val broken = result.broken();
+                    if (checkpoint.getBroken() == 0) {
+                        checkpoint.setBrokenUid(broken.uid());
+                        checkpoint.setBrokenCurrency(broken.currency());
+                        checkpoint.setBrokenLogId(broken.logId());
+                        checkpoint.setBrokenReason(broken.reason());
+                    }
+                    checkpoint.setBroken(checkpoint.getBroken() + 1);
+                    if (checkpoint.getBroken() <= config.getMaxBroken()) {
+                        log.error("Wallet(uid: {}, currency: {}) chain is broken at log({}): {}", broken.uid(),
+                                broken.currency(), broken.logId(), broken.reason());
+                    }
+                }
+            }
+            checkpoint.setWallets(checkpoint.getWallets() + wallets.size());
+            checkpoint.setLastWalletId(wallets.get(wallets.size() - 1).getId());
+            checkpoint.setElapsed(checkpoint.getElapsed() + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            checkpointMapper.updateById(checkpoint);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Wallet audit progress: wallets={}, logs={}, broken={}, throughput={} logs/s",
+                        checkpoint.getWallets(), checkpoint.getLogs(), checkpoint.getBroken(),
+                        throughput(checkpoint));
+            }
+        }
+
+        log.info("Wallet audit {}: wallets={}, logs={}, broken={}, elapsed={}ms, throughput={} logs/s",
+                checkpoint.isFinished() ? "finished" : "paused", checkpoint.getWallets(), checkpoint.getLogs(),
+                checkpoint.getBroken(), checkpoint.getElapsed(), throughput(checkpoint));
+
+        return checkpoint;
+    }
+
+    /**
+     * 审计单个钱包. 钱包带有版本时只校验到该版本的变更日志.
+     * @param wallet 钱包
+     * @return 审计结果
+     */
+    @NonNull
+    public Result verify(@NonNull Wallet wallet) {
+        val uid = wallet.getUid();
+        val currency = wallet.getCurrency();
+        var preBlock = ChangeLog.GENESIS_BLOCK;
+        long parentId = 0L;
+        long logs = 0L;
+        ChangeLog last = null;
+
+        val version = wallet.getVersion() != null ? wallet.getVersion() : Long.MAX_VALUE;
+
+        try (Cursor<ChangeLog> cursor = changeLogMapper.streamByWallet(uid, currency, version)) {
+            for (ChangeLog changeLog : cursor) {
+                logs++;
+                if (!Objects.equals(changeLog.getParentId(), parentId)) {
+                    return new Result(logs, new BrokenLink(uid, currency, changeLog.getId(),
+                            "parent(" + changeLog.getParentId() + ") != " + parentId));
+                }
+                if (last != null && !Objects.equals(changeLog.getPreBalance(), last.getBalance())) {
+                    return new Result(logs, new BrokenLink(uid, currency, changeLog.getId(),
+                            "pre balance(" + changeLog.getPreBalance() + ") != " + last.getBalance()));
+                }
+                if (last != null && !Objects.equals(changeLog.getPreFrozen(), last.getFrozen())) {
+                    return new Result(logs, new BrokenLink(uid, currency, changeLog.getId(),
+                            "pre frozen(" + changeLog.getPreFrozen() + ") != " + last.getFrozen()));
+                }
+                val block = ChangeLog.replayBlock(changeLog, preBlock);
+                if (!block.equals(changeLog.getBlock())) {
+                    return new Result(logs, new BrokenLink(uid, currency, changeLog.getId(),
+                            "block(" + changeLog.getBlock() + ") != " + block));
+                }
+                preBlock = block;
+                parentId = changeLog.getId();
+                last = changeLog;
+            }
+        }
+        catch (IOException e) {
+            log.warn("Cannot close change log cursor of wallet(uid: {}, currency: {}): {}", uid, currency,
+                    e.getMessage());
+        }
+
+        if (last == null) {
+            return new Result(logs, new BrokenLink(uid, currency, 0L, "change log not found"));
+        }
+        if (!last.getBlock().equals(wallet.getBlock())) {
+            return new Result(logs, new BrokenLink(uid, currency, last.getId(),
+                    "wallet block(" + wallet.getBlock() + ") != " + last.getBlock()));
+        }
+        if (!last.getBalance().equals(wallet.getBalance()) || !last.getFrozen().equals(wallet.getFrozen())) {
+            return new Result(logs, new BrokenLink(uid, currency, last.getId(), "wallet balance(" + wallet.getBalance()
+                    + ")/frozen(" + wallet.getFrozen() + ") != " + last.getBalance() + "/" + last.getFrozen()));
+        }
+
+        return new Result(logs, null);
+    }
+
+    public static double throughput(@NonNull AuditCheckpoint checkpoint) {
+        val elapsed = checkpoint.getElapsed();
+        return elapsed > 0 ? checkpoint.getLogs() * 1000d / elapsed : 0d;
+    }
+
+    @PreDestroy
+    void stop() {
+        runner.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    private Result verifyInTransaction(Wallet wallet) {
+        // 游标需要在事务中使用; 钱包在同一快照中重新读取，与变更日志保持一致
+        return Objects.requireNonNull(transactionTemplate.execute(status -> {
+            val current = walletMapper.readWallet(wallet.getUid(), wallet.getCurrency());
+            return verify(current != null ? current : wallet);
+        }));
+    }
+
+    private static AuditCheckpoint newCheckpoint() {
+        val checkpoint = new AuditCheckpoint();
+        checkpoint.setName(CHECKPOINT);
+        checkpoint.setLastWalletId(0L);
+        checkpoint.setWallets(0L);
+        checkpoint.setLogs(0L);
+        checkpoint.setBroken(0L);
+        checkpoint.setElapsed(0L);
+        checkpoint.setFinished(false);
+        return checkpoint;
+    }
+
+    public record Result(long logs, @Nullable BrokenLink broken) {
+    }
+
+    public record BrokenLink(long uid, String currency, long logId, String reason) {
+    }
+
+}
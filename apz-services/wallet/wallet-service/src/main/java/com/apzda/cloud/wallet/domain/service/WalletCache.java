@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2023-2024 Fengz Ning (windywany@gmail.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.apzda.cloud.wallet.domain.service;
+
+import com.apzda.cloud.wallet.config.WalletProperties;
+import com.apzda.cloud.wallet.domain.entity.ChangeLog;
+import com.apzda.cloud.wallet.domain.entity.Wallet;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.val;
+import org.springframework.lang.NonNull;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 钱包余额读缓存. 以钱包最后一条变更日志的ID作为版本号，只有版本更新的快照才能覆盖缓存，
+ * 因此事务提交回调与读穿透加载的先后顺序不会导致旧数据覆盖新数据.
+ * <p>
+ * 缓存由本节点的交易在提交后更新，命中时直接使用; 其它节点上的交易最迟在有效期(wallet-cache-ttl)后可见.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@Component
+public class WalletCache {
+
+    private final Cache<String, Balance> cache;
+
+    public WalletCache(WalletProperties properties) {
+        val builder = CacheBuilder.newBuilder().maximumSize(properties.getWalletCacheSize());
+        val ttl = properties.getWalletCacheTtl();
+        if (ttl != null && !ttl.isZero()) {
+            builder.expireAfterWrite(ttl);
+        }
+        this.cache = builder.build();
+    }
+
+    @Nullable
+    public Balance get(@NonNull Long uid, @NonNull String currency) {
+        return cache.getIfPresent(WalletService.walletKey(uid, currency));
+    }
+
+    /**
+     * 缓存未命中时读取的钱包快照，仅当其版本不低于已缓存的版本时生效，不会覆盖在读取期间提交的交易.
+     * @param uid 用户ID
+     * @param currency 币种
+     * @param wallet 非锁定读取的钱包(包含版本号)，为null时缓存空钱包
+     * @return 缓存中的快照
+     */
+    @NonNull
+    public Balance refresh(@NonNull Long uid, @NonNull String currency, @Nullable Wallet wallet) {
+        val balance = wallet == null ? Balance.empty(uid, currency) : Balance.of(wallet, wallet.getVersion());
+        return put(balance);
+    }
+
+    /**
+     * 钱包变更后在事务提交时更新缓存，事务回滚时缓存中的数据仍然有效.
+     * @param wallet 已更新的钱包
+     * @param changeLog 本次变更的最后一条日志
+     */
+    public void update(@NonNull Wallet wallet, @NonNull ChangeLog changeLog) {
+        val balance = Balance.of(wallet, changeLog.getId());
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            put(balance);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                put(balance);
+            }
+        });
+    }
+
+    public void invalidate(@NonNull Long uid, @NonNull String currency) {
+        cache.invalidate(WalletService.walletKey(uid, currency));
+    }
+
+    @NonNull
+    private Balance put(@NonNull Balance balance) {
+        return cache.asMap()
+            .merge(WalletService.walletKey(balance.uid(), balance.currency()), balance,
+                    (cached, fresh) -> fresh.version() >= cached.version() ? fresh : cached);
+    }
+
+    /**
+     * 钱包余额快照.
+     *
+     * @param version 最后一条变更日志的ID，钱包不存在时为0
+     */
+    public record Balance(long version, long id, long uid, String currency, long amount, long balance, long frozen,
+            long withdrawal, long outlay, boolean locked) {
+
+        @NonNull
+        static Balance of(@NonNull Wallet wallet, @Nullable Long version) {
+            return new Balance(version == null ? 0 : version, wallet.getId(), wallet.getUid(), wallet.getCurrency(),
+                    wallet.getAmount(), wallet.getBalance(), wallet.getFrozen(), wallet.getWithdrawal(),
+                    wallet.getOutlay(), wallet.isLocked());
+        }
+
+        @NonNull
+        static Balance empty(@NonNull Long uid, @NonNull String currency) {
+            return new Balance(0, 0, uid, currency, 0, 0, 0, 0, 0, false);
+        }
+
+    }
+
+}
@@ -20,12 +20,15 @@ import cn.hutool.core.date.DateUtil;
 import com.apzda.cloud.gsvc.core.GsvcContextHolder;
 import com.apzda.cloud.wallet.config.WalletConfig;
 import com.apzda.cloud.wallet.domain.entity.ChangeLog;
+import com.apzda.cloud.wallet.domain.entity.Outlay;
 import com.apzda.cloud.wallet.domain.entity.Transaction;
 import com.apzda.cloud.wallet.domain.entity.Wallet;
 import com.apzda.cloud.wallet.domain.mapper.WalletMapper;
 import com.apzda.cloud.wallet.error.WalletError;
 import com.apzda.cloud.wallet.proto.TradeDTO;
+import com.baomidou.mybatisplus.core.toolkit.IdWorker;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.google.common.util.concurrent.Striped;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -36,7 +39,12 @@ import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author fengz (windywany@gmail.com)
@@ -54,9 +62,48 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
 
     private final OutlayService outlayService;
 
+    private final Striped<Lock> walletLocks;
+
+    private final ChainHeadCache chainHeadCache;
+
+    private final WalletCache walletCache;
+
     @Transactional(rollbackFor = Exception.class)
-    public synchronized Wallet openWallet(@NonNull Long uid, @NonNull String currency) {
+    public Wallet openWallet(@NonNull Long uid, @NonNull String currency) {
         WalletConfig.getCurrencyConfig(currency);
+        // 仅同一钱包的操作需要互斥，不同钱包的操作并行执行
+        val lock = walletLocks.get(walletKey(uid, currency));
+        lock.lock();
+        try {
+            return doOpenWallet(uid, currency);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取钱包余额，不锁定钱包. 命中缓存时不访问数据库，未命中时从数据库非锁定读取并缓存.
+     * @param uid 用户ID
+     * @param currency 币种
+     * @return 余额快照，钱包不存在时各项为0
+     */
+    @NonNull
+    public WalletCache.Balance balance(@NonNull Long uid, @NonNull String currency) {
+        WalletConfig.getCurrencyConfig(currency);
+        val balance = walletCache.get(uid, currency);
+        if (balance != null) {
+            return balance;
+        }
+        return walletCache.refresh(uid, currency, baseMapper.readWallet(uid, currency));
+    }
+
+    @NonNull
+    public static String walletKey(@NonNull Long uid, @NonNull String currency) {
+        return uid + "@" + currency;
+    }
+
+    private Wallet doOpenWallet(@NonNull Long uid, @NonNull String currency) {
 
         var wallet = baseMapper.openWallet(uid, currency);
 
@@ -111,20 +158,12 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
         val currency = tradeDTO.getCurrency();
         // 打开用户钱包
         val wallet = openWallet(uid, currency);
-        val transaction = wallet.newTransaction(tradeDTO);
+        val transaction = newTransaction(wallet, tradeDTO);
 
         val lastLog = getLastLog(wallet);
 
         checkIntegrity(lastLog, wallet);
 
-        // 钱包未开启过期机制时将交易的过期时间置为null。
-        if (!wallet.isExpireAble()) {
-            transaction.setExpiredAt(null);
-        }
-        else if (transaction.getExpiredAt() == null
-                || DateUtil.date(transaction.getExpiredAt()).isBefore(DateUtil.date())) {
-            WalletError.EXPIRED_TIME_INVALID.emit(wallet);
-        }
         // 保存交易记录
         if (!transactionService.save(transaction)) {
             WalletError.TRADE_CANNOT_SAVE.emit(wallet);
@@ -150,10 +189,105 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
         if (!updateById(wallet)) {
             WalletError.WALLET_CANNOT_UPDATE.emit(wallet);
         }
+        chainHeadCache.update(changeLog);
+        walletCache.update(wallet, changeLog);
 
         return transaction;
     }
 
+    /**
+     * 在同一个事务中执行一批交易. 每个钱包只锁定一次(按uid与币种排序加锁以避免死锁)，
+     * 区块链在内存中计算，交易记录与变更日志批量写入.
+     * @param trades 交易列表
+     * @return 与trades顺序一致的交易记录
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public List<Transaction> tradeBatch(@NonNull List<TradeDTO> trades) {
+        val chains = new TreeMap<WalletKey, TradeChain>();
+        for (int i = 0; i < trades.size(); i++) {
+            val tradeDTO = trades.get(i);
+            val key = new WalletKey(tradeDTO.getUid(), tradeDTO.getCurrency());
+            chains.computeIfAbsent(key, k -> new TradeChain()).indexes.add(i);
+        }
+
+        val results = new Transaction[trades.size()];
+        val transactions = new ArrayList<Transaction>(trades.size());
+        int rounds = 0;
+        // 1. 按顺序打开(锁定)钱包并校验完整性
+        for (val entry : chains.entrySet()) {
+            val key = entry.getKey();
+            val chain = entry.getValue();
+            chain.wallet = openWallet(key.uid(), key.currency());
+            chain.lastLog = getLastLog(chain.wallet);
+            checkIntegrity(chain.lastLog, chain.wallet);
+
+            for (val idx : chain.indexes) {
+                val transaction = newTransaction(chain.wallet, trades.get(idx));
+                transaction.setId(IdWorker.getId());
+                chain.transactions.add(transaction);
+                transactions.add(transaction);
+                results[idx] = transaction;
+            }
+            rounds = Math.max(rounds, chain.transactions.size());
+        }
+        // 2. 批量保存交易记录
+        if (!transactionService.saveBatch(transactions)) {
+            val wallet = chains.firstEntry().getValue().wallet;
+            WalletError.TRADE_CANNOT_SAVE.emit(wallet);
+        }
+        // 3. 处理有过期机制的钱包
+        for (val chain : chains.values()) {
+            if (!chain.wallet.isExpireAble()) {
+                continue;
+            }
+            val incomes = new ArrayList<Transaction>();
+            for (val transaction : chain.transactions) {
+                if (transaction.isOutlay()) {
+                    // 支出前需要先保存收入，以便支出可以使用这些收入
+                    outlayService.newIncomes(incomes);
+                    incomes.clear();
+                    outlayService.outlay(transaction);
+                }
+                else {
+                    incomes.add(transaction);
+                }
+            }
+            outlayService.newIncomes(incomes);
+        }
+        // 4. 生成交易日志: 每一轮为每个钱包生成一条日志，下一轮依赖上一轮日志的ID
+        for (int round = 0; round < rounds; round++) {
+            val changeLogs = new ArrayList<ChangeLog>(chains.size());
+            for (val chain : chains.values()) {
+                if (round < chain.transactions.size()) {
+                    val changeLog = chain.wallet.newChangeLog(chain.transactions.get(round), chain.lastLog);
+                    changeLogs.add(changeLog);
+                    chain.lastLog = changeLog;
+                }
+            }
+
+            if (!changeLogService.saveBatch(changeLogs)) {
+                WalletError.LOG_CANNOT_SAVE.emit(changeLogs.get(0).getUid(), changeLogs.get(0).getCurrency());
+            }
+
+            for (val changeLog : changeLogs) {
+                if (changeLog.getId() == null) {
+                    WalletError.LOG_CANNOT_SAVE.emit(changeLog.getUid(), changeLog.getCurrency());
+                }
+            }
+        }
+        // 5. 批量更新账户
+        val wallets = chains.values().stream().map(chain -> chain.wallet).toList();
+        if (!updateBatchById(wallets)) {
+            WalletError.WALLET_CANNOT_UPDATE.emit(wallets.get(0));
+        }
+        for (val chain : chains.values()) {
+            chainHeadCache.update(chain.lastLog);
+            walletCache.update(chain.wallet, chain.lastLog);
+        }
+
+        return Arrays.asList(results);
+    }
+
     @Transactional(rollbackFor = Exception.class)
     public boolean confirm(Long transactionId) {
         // 用于确认冻结
@@ -206,6 +340,8 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
         if (!changeLogService.save(changeLog)) {
             WalletError.LOG_CANNOT_SAVE.emit(wallet);
         }
+        chainHeadCache.update(changeLog);
+        walletCache.update(wallet, changeLog);
 
         return true;
     }
@@ -272,13 +408,90 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
         if (!updateById(wallet)) {
             WalletError.WALLET_CANNOT_UPDATE.emit(wallet);
         }
+        chainHeadCache.update(changeLog);
+        walletCache.update(wallet, changeLog);
 
         return true;
     }
 
+    /**
+     * 回收钱包中一个分片的过期收入，通过系统过期交易(system/expire)记入变更日志链.
+     * @param uid 用户ID
+     * @param currency 币种
+     * @param now 当前时间
+     * @param chunkSize 分片大小
+     * @return 本次回收的收入记录数
+     */
+    @Transactional(rollbackFor = Exception.class)
+    public int expire(@NonNull Long uid, @NonNull String currency, long now, int chunkSize) {
+        val wallet = openWallet(uid, currency);
+        if (!wallet.isExpireAble()) {
+            return 0;
+        }
+        val incomes = outlayService.expiredIncomes(uid, currency, now, chunkSize);
+        if (incomes.isEmpty()) {
+            return 0;
+        }
+
+        val lastLog = getLastLog(wallet);
+        checkIntegrity(lastLog, wallet);
+
+        val expired = incomes.stream().mapToLong(Outlay::getBalance).sum();
+        // 过期金额不能超过可用余额
+        val amount = Math.min(expired, wallet.getBalance());
+
+        val transaction = new Transaction();
+        transaction.setId(IdWorker.getId());
+        transaction.setCreatedAt(now);
+        transaction.setUpdatedAt(now);
+        transaction.setUid(uid);
+        transaction.setCurrency(currency);
+        transaction.setAmount(amount);
+        transaction.setOutlay(true);
+        transaction.setNeedFrozen(false);
+        transaction.setWithdrawAble(false);
+        transaction.setIp("127.0.0.1");
+        transaction.setBiz("system");
+        transaction.setBizSubject("expire");
+        transaction.setBizId(IdWorker.getIdStr());
+        transaction.setRemark("expired " + incomes.size() + " incomes");
+
+        if (!transactionService.save(transaction)) {
+            WalletError.TRADE_CANNOT_SAVE.emit(wallet);
+        }
+
+        outlayService.expire(transaction, incomes);
+
+        val changeLog = wallet.newChangeLog(transaction, lastLog);
+        if (!changeLogService.save(changeLog)) {
+            WalletError.LOG_CANNOT_SAVE.emit(wallet);
+        }
+        if (!updateById(wallet)) {
+            WalletError.WALLET_CANNOT_UPDATE.emit(wallet);
+        }
+        chainHeadCache.update(changeLog);
+        walletCache.update(wallet, changeLog);
+
+        log.debug("Wallet(uid: {}, currency: {}) expired {} incomes, amount: {}", uid, currency, incomes.size(),
+                amount);
+
+        return incomes.size();
+    }
+
+    /**
+     * 获取已锁定钱包的最后一条变更日志，链头缓存与钱包区块一致时不查询数据库.
+     */
     @Nullable
     public ChangeLog getLastLog(@NonNull Wallet wallet) {
-        return changeLogService.getLastLog(wallet.getUid(), wallet.getCurrency());
+        val head = chainHeadCache.get(wallet);
+        if (head != null) {
+            return head;
+        }
+        val lastLog = changeLogService.getLastLog(wallet.getUid(), wallet.getCurrency());
+        if (lastLog != null && lastLog.getBlock().equals(wallet.getBlock())) {
+            chainHeadCache.put(lastLog);
+        }
+        return lastLog;
     }
 
     @Nullable
@@ -286,6 +499,20 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
         return changeLogService.getLastLog(uid, currency);
     }
 
+    @NonNull
+    private Transaction newTransaction(@NonNull Wallet wallet, @NonNull TradeDTO tradeDTO) {
+        val transaction = wallet.newTransaction(tradeDTO);
+        // 钱包未开启过期机制时将交易的过期时间置为null。
+        if (!wallet.isExpireAble()) {
+            transaction.setExpiredAt(null);
+        }
+        else if (transaction.getExpiredAt() == null
+                || DateUtil.date(transaction.getExpiredAt()).isBefore(DateUtil.date())) {
+            WalletError.EXPIRED_TIME_INVALID.emit(wallet);
+        }
+        return transaction;
+    }
+
     public static void checkIntegrity(ChangeLog lastLog, Wallet wallet) {
         val uid = wallet.getUid();
         val currency = wallet.getCurrency();
@@ -325,4 +552,26 @@ public class WalletService extends ServiceImpl<WalletMapper, Wallet> {
         }
     }
 
+    private record WalletKey(long uid, String currency) implements Comparable<WalletKey> {
+
+        @Override
+        public int compareTo(@NonNull WalletKey o) {
+            val c = Long.compare(uid, o.uid);
+            return c != 0 ? c : currency.compareTo(o.currency);
+        }
+
+    }
+
+    private static final class TradeChain {
+
+        private final List<Integer> indexes = new ArrayList<>();
+
+        private final List<Transaction> transactions = new ArrayList<>();
+
+        private Wallet wallet;
+
+        private ChangeLog lastLog;
+
+    }
+
 }
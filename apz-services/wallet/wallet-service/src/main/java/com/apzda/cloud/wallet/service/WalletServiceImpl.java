@@ -16,15 +16,18 @@
  */
 package com.apzda.cloud.wallet.service;
 
-import com.apzda.cloud.wallet.proto.TradeDTO;
-import com.apzda.cloud.wallet.proto.TransactionVO;
-import com.apzda.cloud.wallet.proto.WalletDTO;
-import com.apzda.cloud.wallet.proto.WalletService;
+import com.apzda.cloud.wallet.config.WalletConfig;
+import com.apzda.cloud.wallet.domain.entity.Transaction;
+import com.apzda.cloud.wallet.domain.service.WalletAuditor;
+import com.apzda.cloud.wallet.proto.*;
 import lombok.RequiredArgsConstructor;
 import lombok.val;
+import org.springframework.lang.NonNull;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.math.BigDecimal;
+
 /**
  * @author fengz (windywany@gmail.com)
  * @version 1.0.0
@@ -36,21 +39,98 @@ public class WalletServiceImpl implements WalletService {
 
     private final com.apzda.cloud.wallet.domain.service.WalletService walletService;
 
+    private final WalletAuditor walletAuditor;
+
     @Override
     @Transactional(rollbackFor = Exception.class)
     public TransactionVO trade(TradeDTO request) {
-
-
         val trans = walletService.trade(request);
-        val builder = TransactionVO.newBuilder();
 
+        return toTransactionVO(trans);
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public TradeBatchVO tradeBatch(TradeBatchDTO request) {
+        val transactions = walletService.tradeBatch(request.getTradesList());
+        val builder = TradeBatchVO.newBuilder();
+        for (Transaction trans : transactions) {
+            builder.addTransactions(toTransactionVO(trans));
+        }
         return builder.build();
     }
 
     @Override
     public WalletDTO wallet(WalletDTO request) {
-        val builder = WalletDTO.getDefaultInstance();
-        return builder;
+        // 只读查询: 不锁定钱包，不与交易争用行锁
+        val balance = walletService.balance(request.getUid(), request.getCurrency());
+        val config = WalletConfig.getCurrencyConfig(balance.currency());
+        val precision = config.getPrecision();
+        val builder = WalletDTO.newBuilder();
+        builder.setId(balance.id());
+        builder.setUid(balance.uid());
+        builder.setCurrency(balance.currency());
+        builder.setAmount(toDouble(balance.amount(), precision));
+        builder.setBalance(toDouble(balance.balance(), precision));
+        builder.setFrozen(toDouble(balance.frozen(), precision));
+        builder.setWithdrawal(toDouble(balance.withdrawal(), precision));
+        builder.setOutlay(toDouble(balance.outlay(), precision));
+        builder.setLocked(balance.locked());
+        builder.setExpireAble(config.isEnabledExpire());
+        builder.setWithdrawAble(config.isWithdrawAble());
+        builder.setRate(config.getRate());
+        builder.setPrecision(precision);
+        builder.setScale(config.getScale());
+        return builder.build();
+    }
+
+    @Override
+    public AuditRes audit(AuditReq request) {
+        walletAuditor.start(request.getRestart());
+        val builder = AuditRes.newBuilder();
+        builder.setErrCode(0);
+        builder.setRunning(walletAuditor.isRunning());
+        val checkpoint = walletAuditor.checkpoint();
+        if (checkpoint != null) {
+            builder.setFinished(checkpoint.isFinished());
+            builder.setWallets(checkpoint.getWallets());
+            builder.setLogs(checkpoint.getLogs());
+            builder.setBroken(checkpoint.getBroken());
+            builder.setElapsed(checkpoint.getElapsed());
+            builder.setThroughput(WalletAuditor.throughput(checkpoint));
+            if (checkpoint.getBrokenUid() != null) {
+                val broken = BrokenLink.newBuilder();
+                broken.setUid(checkpoint.getBrokenUid());
+                broken.setCurrency(checkpoint.getBrokenCurrency());
+                broken.setLogId(checkpoint.getBrokenLogId());
+                broken.setReason(checkpoint.getBrokenReason());
+                builder.setFirstBroken(broken);
+            }
+        }
+        return builder.build();
+    }
+
+    @NonNull
+    private static TransactionVO toTransactionVO(@NonNull Transaction trans) {
+        val config = WalletConfig.getCurrencyConfig(trans.getCurrency());
+        val builder = TransactionVO.newBuilder();
+        builder.setUid(trans.getUid());
+        builder.setCurrency(trans.getCurrency());
+        builder.setAmount(toDouble(trans.getAmount(), config.getPrecision()));
+        builder.setOutlay(trans.isOutlay());
+        builder.setBiz(trans.getBiz());
+        builder.setBizSubject(trans.getBizSubject());
+        builder.setBizId(trans.getBizId());
+        if (trans.getExpiredAt() != null) {
+            builder.setExpiredAt(trans.getExpiredAt());
+        }
+        builder.setScale(config.getScale());
+        builder.setPrecision(config.getPrecision());
+        return builder.build();
+    }
+
+    private static double toDouble(long value, short precision) {
+        return BigDecimal.valueOf(value).movePointLeft(precision).doubleValue();
     }
 
 }
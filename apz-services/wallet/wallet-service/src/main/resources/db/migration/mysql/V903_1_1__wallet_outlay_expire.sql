@@ -0,0 +1,2 @@
+ALTER TABLE wallet_outlay_log
+    ADD INDEX IDX_EXPIRED_AT_BALANCE (expired_at, balance);
@@ -0,0 +1,22 @@
+CREATE TABLE wallet_audit_checkpoint
+(
+    name            VARCHAR(32)      NOT NULL COMMENT '审计任务名',
+    created_at      BIGINT UNSIGNED  NULL     DEFAULT NULL,
+    created_by      VARCHAR(32)      NULL COMMENT 'Create User Id',
+    updated_at      BIGINT UNSIGNED  NULL     DEFAULT NULL,
+    updated_by      VARCHAR(32)      NULL COMMENT 'Last updated by who',
+    last_wallet_id  BIGINT UNSIGNED  NOT NULL DEFAULT 0 COMMENT '最后一个审计完成的钱包ID',
+    wallets         BIGINT UNSIGNED  NOT NULL DEFAULT 0 COMMENT '已审计的钱包数',
+    logs            BIGINT UNSIGNED  NOT NULL DEFAULT 0 COMMENT '已审计的日志数',
+    broken          BIGINT UNSIGNED  NOT NULL DEFAULT 0 COMMENT '断链的钱包数',
+    elapsed         BIGINT UNSIGNED  NOT NULL DEFAULT 0 COMMENT '累计耗时(毫秒)',
+    finished        TINYINT UNSIGNED NOT NULL DEFAULT 0 COMMENT '是否已完成',
+    broken_uid      BIGINT UNSIGNED  NULL     DEFAULT NULL COMMENT '第一个断链的用户ID',
+    broken_currency VARCHAR(6)       NULL     DEFAULT NULL COMMENT '第一个断链的币种',
+    broken_log_id   BIGINT UNSIGNED  NULL     DEFAULT NULL COMMENT '第一个断链的日志ID',
+    broken_reason   VARCHAR(256)     NULL     DEFAULT NULL COMMENT '断链原因',
+    PRIMARY KEY (name)
+) COMMENT '变更日志链审计检查点';
+
+ALTER TABLE wallet_change_log
+    ADD INDEX IDX_UID_CURRENCY_ID (uid, currency, id);
@@ -0,0 +1,6 @@
+-- 区块带版本标记(SHA-256: '2:' + 43位base64url)，VARCHAR(48)在utf8mb4下不超过255字节，可原地扩展
+ALTER TABLE wallet
+    MODIFY block VARCHAR(48) NOT NULL DEFAULT '00000000000000000000000000000000' COMMENT '最后交易的区块地址';
+
+ALTER TABLE wallet_change_log
+    MODIFY block VARCHAR(48) NOT NULL COMMENT '区块地址(基于上一个交易的区块地址), 带版本标记';
@@ -0,0 +1,9 @@
+-- 只扫描收入记录(outlay_transaction_id = 0)，已处理的收入归档后不再被扫描
+ALTER TABLE wallet_outlay_log
+    DROP INDEX IDX_EXPIRED_AT_BALANCE,
+    ADD INDEX IDX_INCOME_EXPIRED_AT (outlay_transaction_id, expired_at, balance),
+    ADD INDEX IDX_INCOME_BALANCE (outlay_transaction_id, balance);
+
+-- 已用完或已过期(余额为0)的收入及其支出日志归档到此表，结构须与wallet_outlay_log保持一致，
+-- 因此在索引调整之后创建
+CREATE TABLE wallet_outlay_log_archive LIKE wallet_outlay_log;
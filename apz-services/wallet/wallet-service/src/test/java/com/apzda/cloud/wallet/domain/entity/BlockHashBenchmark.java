@@ -0,0 +1,54 @@
+package com.apzda.cloud.wallet.domain.entity;
+
+import lombok.val;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 区块计算基准测试: 原有字符串拼接+hutool MD5 与 BlockHasher 对比.
+ * <p>
+ * 运行: 执行main方法，或使用 {@code -prof gc} 查看每次计算的内存分配.
+ *
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlockHashBenchmark {
+
+    private ChangeLog changeLog;
+
+    @Setup
+    public void setup() {
+        changeLog = BlockHasherTest.newChangeLog();
+    }
+
+    @Benchmark
+    public String legacyMd5() {
+        return BlockHasherTest.legacyBlock(changeLog, ChangeLog.GENESIS_BLOCK);
+    }
+
+    @Benchmark
+    public String hasherMd5() {
+        return BlockHasher.hash(changeLog, ChangeLog.GENESIS_BLOCK, BlockHasher.Algorithm.MD5);
+    }
+
+    @Benchmark
+    public String hasherSha256() {
+        return BlockHasher.hash(changeLog, ChangeLog.GENESIS_BLOCK, BlockHasher.Algorithm.SHA256);
+    }
+
+    public static void main(String[] args) throws Exception {
+        val options = new OptionsBuilder().include(BlockHashBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.apzda.cloud.wallet.domain.entity;
+
+import cn.hutool.crypto.digest.MD5;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * @author fengz (windywany@gmail.com)
+ * @version 1.0.0
+ * @since 1.0.0
+ **/
+class BlockHasherTest {
+
+    @Test
+    void md5_block_should_be_same_as_legacy_block() {
+        // given
+        val changeLog = newChangeLog();
+
+        // when
+        val block = BlockHasher.hash(changeLog, ChangeLog.GENESIS_BLOCK, BlockHasher.Algorithm.MD5);
+
+        // then
+        assertThat(block).isEqualTo(legacyBlock(changeLog, ChangeLog.GENESIS_BLOCK));
+        assertThat(BlockHasher.algorithmOf(block)).isEqualTo(BlockHasher.Algorithm.MD5);
+
+        // when
+        changeLog.setCreatedBy(null);
+        changeLog.setRemark("备注");
+        changeLog.setBizId("订单-😀-" + Long.MIN_VALUE);
+
+        // then
+        assertThat(BlockHasher.hash(changeLog, block, BlockHasher.Algorithm.MD5))
+            .isEqualTo(legacyBlock(changeLog, block));
+    }
+
+    @Test
+    void sha256_block_should_be_tagged() {
+        // given
+        val changeLog = newChangeLog();
+
+        // when
+        val block = BlockHasher.hash(changeLog, ChangeLog.GENESIS_BLOCK, BlockHasher.Algorithm.SHA256);
+
+        // then
+        assertThat(block).startsWith("2:").hasSize(45);
+        assertThat(BlockHasher.algorithmOf(block)).isEqualTo(BlockHasher.Algorithm.SHA256);
+        assertThat(BlockHasher.hash(changeLog, ChangeLog.GENESIS_BLOCK, BlockHasher.Algorithm.SHA256))
+            .isEqualTo(block);
+    }
+
+    @Test
+    void replay_block_should_use_tagged_algorithm() {
+        // given
+        val changeLog = newChangeLog();
+        changeLog.setBlock(ChangeLog.genBlock(changeLog, ChangeLog.GENESIS_BLOCK, BlockHasher.Algorithm.SHA256));
+        changeLog.setCreatedAt(1L);
+
+        // when
+        val block = ChangeLog.replayBlock(changeLog, ChangeLog.GENESIS_BLOCK);
+
+        // then
+        assertThat(block).isEqualTo(changeLog.getBlock());
+        assertThat(changeLog.getCreatedAt()).isEqualTo(1L);
+    }
+
+    static ChangeLog newChangeLog() {
+        val changeLog = new ChangeLog();
+        changeLog.setUid(1L);
+        changeLog.setCurrency("CNY");
+        changeLog.setTransactionId(1768543211234567890L);
+        changeLog.setOutlay(true);
+        changeLog.setNeedFrozen(false);
+        changeLog.setWithdrawAble(true);
+        changeLog.setBiz("test");
+        changeLog.setBizSubject("withdraw");
+        changeLog.setBizId("10001");
+        changeLog.setAmount(5000000L);
+        changeLog.setPreBalance(1025000000L);
+        changeLog.setBalance(1020000000L);
+        changeLog.setPreFrozen(0L);
+        changeLog.setFrozen(5000000L);
+        changeLog.setParentId(2L);
+        changeLog.setIp("127.0.0.1");
+        return changeLog;
+    }
+
+    static String legacyBlock(ChangeLog changeLog, String preBlock) {
+        // @formatter:off
+        val blockStr = preBlock + ","
+            + changeLog.getCreatedAt() + ","
+            + changeLog.getCreatedBy() + ","
+            + changeLog.getUpdatedAt() + ","
+            + changeLog.getUpdatedBy() + ","
+            + changeLog.getUid() + ","
+            + changeLog.getCurrency() + ","
+            + changeLog.getTransactionId() + ","
+            + changeLog.isOutlay() + ","
+            + changeLog.isNeedFrozen() + ","
+            + changeLog.isWithdrawAble() + ","
+            + changeLog.getBiz() + ","
+            + changeLog.getBizSubject() + ","
+            + changeLog.getBizId() + ","
+            + changeLog.getAmount() + ","
+            + changeLog.getPreBalance() + ","
+            + changeLog.getBalance() + ","
+            + changeLog.getPreFrozen() + ","
+            + changeLog.getFrozen() + ","
+            + changeLog.getExpiredAt() + ","
+            + changeLog.getParentId() + ","
+            + changeLog.getIp();
+        // @formatter:on
+        return MD5.create().digestHex(blockStr);
+    }
+
+}
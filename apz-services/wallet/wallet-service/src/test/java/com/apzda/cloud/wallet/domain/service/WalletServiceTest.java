@@ -4,6 +4,7 @@ import cn.hutool.core.date.DateUtil;
 import com.apzda.cloud.gsvc.autoconfigure.MyBatisPlusAutoConfiguration;
 import com.apzda.cloud.gsvc.config.ServiceConfigProperties;
 import com.apzda.cloud.test.autoconfig.AutoConfigureGsvcTest;
+import com.apzda.cloud.wallet.domain.entity.Outlay;
 import com.apzda.cloud.wallet.domain.entity.Transaction;
 import com.apzda.cloud.wallet.proto.TradeDTO;
 import com.apzda.cloud.wallet.test.TestApp;
@@ -19,6 +20,7 @@ import org.springframework.test.context.ContextConfiguration;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -45,6 +47,12 @@ class WalletServiceTest {
     @Autowired
     private OutlayService outlayService;
 
+    @Autowired
+    private WalletAuditor walletAuditor;
+
+    @Autowired
+    private WalletCache walletCache;
+
     @Test
     public void user_wallet_should_be_opened() {
         // given
@@ -647,4 +655,214 @@ class WalletServiceTest {
         }
     }
 
+    @Test
+    void trade_batch_should_be_ok() {
+        // given
+        val currency = "CNY";
+        val builder = TradeDTO.newBuilder();
+        builder.setCurrency(currency);
+        builder.setBiz("test");
+        builder.setBizSubject("deposit");
+        val trades = new ArrayList<TradeDTO>();
+        trades.add(builder.setUid(2L).setAmount(1D).setBizId("30000").build());
+        trades.add(builder.setUid(3L).setAmount(2D).setBizId("30001").build());
+        trades.add(builder.setUid(2L).setAmount(3D).setBizId("30002").build());
+        trades.add(builder.setUid(2L).setAmount(1D).setBizSubject("pay").setBizId("30003").build());
+
+        // when
+        val transactions = walletService.tradeBatch(trades);
+
+        // then
+        assertThat(transactions).hasSize(4);
+        assertThat(transactions.get(0).getUid()).isEqualTo(2L);
+        assertThat(transactions.get(1).getUid()).isEqualTo(3L);
+        assertThat(transactions.get(3).isOutlay()).isTrue();
+
+        val w2 = walletService.openWallet(2L, currency);
+        val l2 = walletService.getLastLog(2L, currency);
+        assertThat(l2).isNotNull();
+        assertThat(l2.getTransactionId()).isEqualTo(transactions.get(3).getId());
+        assertThat(l2.getPreBalance()).isEqualTo(400000000L);
+        assertThat(l2.getBalance()).isEqualTo(300000000L);
+        assertThat(w2.getBalance()).isEqualTo(300000000L);
+        assertThat(w2.getBlock()).isEqualTo(l2.getBlock());
+
+        val w3 = walletService.openWallet(3L, currency);
+        val l3 = walletService.getLastLog(3L, currency);
+        assertThat(l3).isNotNull();
+        assertThat(l3.getBalance()).isEqualTo(200000000L);
+        assertThat(w3.getBlock()).isEqualTo(l3.getBlock());
+    }
+
+    @Test
+    void balance_should_be_read_without_lock() {
+        // given
+        val uid = 6L;
+        val currency = "CNY";
+        val empty = walletService.balance(uid, currency);
+        assertThat(empty.version()).isEqualTo(0L);
+        assertThat(empty.balance()).isEqualTo(0L);
+
+        val builder = TradeDTO.newBuilder();
+        builder.setUid(uid);
+        builder.setCurrency(currency);
+        builder.setBiz("test");
+        builder.setBizSubject("deposit");
+        builder.setAmount(5D);
+        builder.setBizId("40000");
+
+        // when
+        walletService.trade(builder.build());
+
+        // then: 事务未提交前缓存不变，命中时直接使用缓存
+        assertThat(walletCache.get(uid, currency)).isEqualTo(empty);
+        assertThat(walletService.balance(uid, currency)).isSameAs(walletCache.get(uid, currency));
+
+        // 缓存过期(如其它节点上发生的交易)后从数据库非锁定读取
+        walletCache.invalidate(uid, currency);
+        val balance = walletService.balance(uid, currency);
+        val lastLog = walletService.getLastLog(uid, currency);
+        assertThat(lastLog).isNotNull();
+        assertThat(balance.version()).isEqualTo(lastLog.getId());
+        assertThat(balance.balance()).isEqualTo(500000000L);
+        assertThat(balance.amount()).isEqualTo(500000000L);
+        assertThat(balance.withdrawal()).isEqualTo(500000000L);
+        assertThat(walletService.balance(uid, currency)).isSameAs(balance);
+    }
+
+    @Test
+    void expired_incomes_should_be_reclaimed() {
+        // given
+        val uid = 4L;
+        val currency = "INT";
+        val builder = TradeDTO.newBuilder();
+        builder.setUid(uid);
+        builder.setCurrency(currency);
+        builder.setBiz("test");
+        builder.setBizSubject("add");
+        builder.setAmount(100D);
+        builder.setBizId("40000");
+        builder.setExpiredAt(DateUtil.current() + Duration.ofDays(1).toMillis());
+        val t1 = walletService.trade(builder.build());
+        builder.setAmount(20D);
+        builder.setBizId("40001");
+        builder.setExpiredAt(DateUtil.current() + Duration.ofDays(30).toMillis());
+        val t2 = walletService.trade(builder.build());
+        outlayService.lambdaUpdate()
+            .eq(Outlay::getUid, uid)
+            .ne(Outlay::getTransactionId, t2.getId())
+            .set(Outlay::getExpiredAt, DateUtil.current() - 1000)
+            .update();
+
+        // when
+        val expired = walletService.expire(uid, currency, DateUtil.current(), 10);
+
+        // then
+        assertThat(expired).isEqualTo(1);
+        val wallet = walletService.openWallet(uid, currency);
+        val lastLog = walletService.getLastLog(uid, currency);
+        assertThat(wallet.getBalance()).isEqualTo(20L);
+        assertThat(lastLog).isNotNull();
+        assertThat(lastLog.getBiz()).isEqualTo("system");
+        assertThat(lastLog.getBizSubject()).isEqualTo("expire");
+        assertThat(lastLog.getAmount()).isEqualTo(100L);
+        assertThat(wallet.getBlock()).isEqualTo(lastLog.getBlock());
+        assertThat(outlayService.availableTransactions(uid, currency)).hasSize(1);
+        assertThat(walletService.expire(uid, currency, DateUtil.current(), 10)).isEqualTo(0);
+
+        // 已过期的收入及其支出日志被归档
+        val consumed = outlayService.consumedIncomes(1, 0, 1000)
+            .stream()
+            .filter(income -> income.getUid() == uid)
+            .map(Outlay::getTransactionId)
+            .toList();
+        assertThat(consumed).containsExactly(t1.getId());
+        assertThat(outlayService.archive(uid, currency, consumed)).isEqualTo(2);
+        assertThat(outlayService.listByTransactionId(t1.getId())).isEmpty();
+        assertThat(outlayService.listByTransactionId(t2.getId())).hasSize(1);
+        assertThat(outlayService.expiredWallets(DateUtil.current(), 1, 0, 1000)).noneMatch(w -> w.getUid() == uid);
+    }
+
+    @Test
+    void zero_outlay_should_not_write_outlay_logs() {
+        // given
+        val uid = 7L;
+        val currency = "INT";
+        val builder = TradeDTO.newBuilder();
+        builder.setUid(uid);
+        builder.setCurrency(currency);
+        builder.setBiz("test");
+        builder.setBizSubject("add");
+        builder.setAmount(10D);
+        builder.setBizId("70000");
+        builder.setExpiredAt(DateUtil.current() + Duration.ofDays(1).toMillis());
+        val income = walletService.trade(builder.build());
+        val transaction = new Transaction();
+        transaction.setId(70001L);
+        transaction.setUid(uid);
+        transaction.setCurrency(currency);
+        transaction.setAmount(0L);
+        transaction.setOutlay(true);
+
+        // when
+        val allocation = outlayService.outlay(transaction);
+
+        // then
+        assertThat(allocation.incomes()).isEqualTo(0);
+        assertThat(allocation.outlays()).isEqualTo(0);
+        assertThat(outlayService.listByOutlayTransactionId(70001L)).isEmpty();
+        assertThat(outlayService.listByTransactionId(income.getId())).extracting(Outlay::getBalance)
+            .containsExactly(10L);
+    }
+
+    @Test
+    void change_log_chain_should_be_verified() {
+        // given
+        val uid = 5L;
+        val currency = "CNY";
+        val builder = TradeDTO.newBuilder();
+        builder.setUid(uid);
+        builder.setCurrency(currency);
+        builder.setBiz("test");
+        builder.setBizSubject("deposit");
+        builder.setAmount(10D);
+        builder.setBizId("50000");
+        walletService.trade(builder.build());
+        builder.setBizSubject("withdraw");
+        builder.setAmount(1D);
+        builder.setBizId("50001");
+        val withdraw = walletService.trade(builder.build());
+        walletService.confirm(withdraw.getId());
+        val wallet = walletService.openWallet(uid, currency);
+
+        // when
+        val result = walletAuditor.verify(wallet);
+
+        // then
+        assertThat(result.logs()).isEqualTo(4L);
+        assertThat(result.broken()).isNull();
+
+        // when
+        wallet.setBlock("ffffffffffffffffffffffffffffffff");
+        val broken = walletAuditor.verify(wallet);
+
+        // then
+        assertThat(broken.broken()).isNotNull();
+        assertThat(broken.broken().reason()).startsWith("wallet block");
+
+        // given: 读取钱包后又发生了交易
+        val snapshot = walletService.getBaseMapper().readWallet(uid, currency);
+        builder.setBizSubject("deposit");
+        builder.setAmount(2D);
+        builder.setBizId("50002");
+        walletService.trade(builder.build());
+
+        // when
+        val versioned = walletAuditor.verify(snapshot);
+
+        // then: 只校验到读取时的版本
+        assertThat(versioned.logs()).isEqualTo(4L);
+        assertThat(versioned.broken()).isNull();
+    }
+
 }